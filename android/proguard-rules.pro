@@ -26,6 +26,13 @@
 # Required if using Gdx-Controllers extension
 -keep class com.badlogic.gdx.controllers.android.AndroidControllers
 
+# Required for roms translated ahead of time, which are only ever found by a name
+# made from that of TranslatedRom, see TranslatedRom.find
+-keepnames class com.gradualgames.ggvm.TranslatedRom
+-keep class com.gradualgames.ggvm.TranslatedRom_* {
+    <init>();
+}
+
 # Required if using Box2D extension
 -keepclassmembers class com.badlogic.gdx.physics.box2d.World {
    boolean contactFilter(long, long);
@@ -0,0 +1,17 @@
+#ifdef GL_ES
+    precision mediump float;
+#endif
+
+varying vec4 v_color;
+varying vec2 v_texCoords;
+uniform sampler2D u_texture;
+uniform mat4 u_projTrans;
+
+//Stores the pixel value and attribute of a nametable tile rather than its color, so
+//fragment_shader.glsl can look the color up later from the palette of the frame.
+void main() {
+    vec4 currentPixelColor = texture2D(u_texture, v_texCoords).rgba;
+    float pixel = currentPixelColor.r;
+    float attr = v_color.g;
+    gl_FragColor = vec4(attr + pixel, 0.0, 0.0, currentPixelColor.a);
+}
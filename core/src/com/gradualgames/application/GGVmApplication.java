@@ -6,8 +6,11 @@ import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.controllers.Controllers;
 import com.badlogic.gdx.files.FileHandle;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.gradualgames.ggvm.EmulationThread;
+import com.gradualgames.ggvm.FrameScheduler;
 import com.gradualgames.ggvm.GGVm;
 import com.gradualgames.ggvm.OnGeneratePatternTableListener;
+import com.gradualgames.ggvm.RewindBuffer;
 import com.gradualgames.input.InputProcessorBase;
 import com.gradualgames.manager.rastereffect.RasterEffectManager;
 import com.gradualgames.manager.render.PatternTableManager;
@@ -24,10 +27,15 @@ import java.io.OutputStream;
  * This is the GGVmApplication object, specific to integration with LibGDX as the game
  * framework. It takes in a game module, input processor type and menu type from the
  * platform specific launcher. It initializes the GGVm virtual machine, input processor and
- * menu. On every frame, it forwards the render call to the render manager, input processor
- * (in case of overlay in mobile) and menu. On every frame, it calls nmi and advances ggvm by
- * an arbitrary number of instructions that approximates how many instructions the NES would
- * execute, per frame. It also kicks off saving and loading a savestate of the current game
+ * menu. On every frame, it acquires the state of the last frame ggvm finished and
+ * forwards the render call to the render manager, input processor (in case of overlay
+ * in mobile) and menu. On every frame, it runs as many frames of ggvm as a
+ * FrameScheduler says are due at the NES frame rate, whatever the refresh rate of the
+ * display: nmi followed by as many cpu cycles as the NES would execute, per frame.
+ * By default ggvm runs on an EmulationThread, emulating the next frame while this one
+ * is drawn; see setEmulationThreadEnabled. Every frame is recorded into a RewindBuffer
+ * so the game can be rewound; see setRewindEnabled. It also kicks off
+ * saving and loading a savestate of the current game
  * depending on the application lifecycle. Finally, it manages logging some heap information
  * and printing uncaught exceptions, cpu status and current bank (for supported mappers) to
  * the log file in case of a catastrophic crash.
@@ -54,6 +62,31 @@ public class GGVmApplication extends ApplicationAdapter implements OnGeneratePat
     private Class<? extends InputProcessorBase> inputProcessorClass;
     private InputProcessorBase inputProcessor;
 
+    //Runs ggvm while frames are drawn, unless disabled
+    private EmulationThread emulationThread;
+    private boolean emulationThreadEnabled = true;
+
+    //Runs ggvm at the frame rate of the NES whatever the refresh rate of the display
+    private FrameScheduler frameScheduler;
+    private double frameRate = FrameScheduler.NTSC_FRAME_RATE;
+
+    //Runs hot code through the cpu's block translator, unless disabled
+    private boolean blockTranslationEnabled = true;
+
+    //Records every frame for rewinding, unless disabled. Keyframes every second take
+    //about 0.75MiB per minute of play, so the buffer holds about five minutes.
+    private static final int REWIND_BUFFER_CAPACITY = 4 << 20;
+    private static final int REWIND_MAX_SECONDS = 60 * 5;
+    private static final int REWIND_FRAME_INTERVAL = 1;
+    private static final int REWIND_KEYFRAME_INTERVAL = 60;
+    private boolean rewindEnabled = true;
+    private boolean rewinding;
+
+    //Fast forward logging
+    private static final long FAST_FORWARD_LOGGING_INTERVAL_NANOS = 1000000000L;
+    private long fastForwardLoggingNanos;
+    private int fastForwardLoggingFrame;
+
     //Heap info logging
     private static final int HEAP_INFO_COUNTER_RESET = 500;
     private int heapInfoCounter = HEAP_INFO_COUNTER_RESET;
@@ -70,6 +103,41 @@ public class GGVmApplication extends ApplicationAdapter implements OnGeneratePat
         this.inputProcessorClass = inputProcessorClass;
     }
 
+    /**
+     * Chooses between running ggvm on an EmulationThread, the default, and running
+     * it on the rendering thread after drawing each frame. Must be called before
+     * create.
+     */
+    public void setEmulationThreadEnabled(boolean emulationThreadEnabled) {
+        this.emulationThreadEnabled = emulationThreadEnabled;
+    }
+
+    /**
+     * Chooses whether ggvm records every frame so that it can be rewound, the
+     * default, at the cost of a buffer of REWIND_BUFFER_CAPACITY bytes and the time
+     * to record each frame. Must be called before create.
+     */
+    public void setRewindEnabled(boolean rewindEnabled) {
+        this.rewindEnabled = rewindEnabled;
+    }
+
+    /**
+     * Sets the frames per second ggvm runs at, which defaults to
+     * FrameScheduler.NTSC_FRAME_RATE. Must be called before create.
+     */
+    public void setFrameRate(double frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Chooses whether the cpu runs hot code through its block translator, along
+     * with any code generated by RomTranslator, the default, or interprets every
+     * instruction. Must be called before create.
+     */
+    public void setBlockTranslationEnabled(boolean blockTranslationEnabled) {
+        this.blockTranslationEnabled = blockTranslationEnabled;
+    }
+
     /**
      * LibGDX lifecycle callback for application initialization. Initializes
      * ggvm virtual machine, game-specific adapters, input processor, and
@@ -88,6 +156,7 @@ public class GGVmApplication extends ApplicationAdapter implements OnGeneratePat
         //Initialize ggvm
         FileHandle fileHandle = Gdx.files.internal(gameModule.provideFileName());
         ggvm = new GGVm(gameModule.provideCartridge(fileHandle.readBytes()), gameModule.provideNmiSafeFunctor(), this);
+        ggvm.setBlockTranslationEnabled(blockTranslationEnabled);
 
         //Initialize game-specific classes that depend on ggvm
         rasterEffectManager = gameModule.provideRasterEffectManager(ggvm);
@@ -124,7 +193,17 @@ public class GGVmApplication extends ApplicationAdapter implements OnGeneratePat
         //Generate graphics at least once in case we have a CHR-ROM mapper.
         patternTableManager.onGeneratePatternTable();
 
+        if (rewindEnabled) {
+            int maxStates = (int) (frameRate * REWIND_MAX_SECONDS) / REWIND_FRAME_INTERVAL;
+            ggvm.setRewindBuffer(new RewindBuffer(REWIND_BUFFER_CAPACITY, maxStates, ggvm.getStateSize(),
+                    frameRate, REWIND_FRAME_INTERVAL, REWIND_KEYFRAME_INTERVAL));
+        }
         ggvm.start();
+        frameScheduler = new FrameScheduler(frameRate);
+        if (emulationThreadEnabled) {
+            emulationThread = new EmulationThread(ggvm, this);
+            emulationThread.start();
+        }
     }
 
     /**
@@ -144,23 +223,102 @@ public class GGVmApplication extends ApplicationAdapter implements OnGeneratePat
     }
 
     /**
-     * LibGDX lifecycle callback for rendering every frame at 60fps. Forwards
-     * this call to the RenderManager, InputProcessor and Menu. Advances
-     * ggvm by running the nmi routine and then advances the main thread by
-     * 9000 instructions. This approximates the speed of a real NES. Finally,
-     * some logging is performed.
+     * LibGDX lifecycle callback for rendering every frame, at whatever rate the
+     * display refreshes. Acquires the state of the last frame ggvm finished and
+     * uploads the tiles written to CHR-RAM during it, then forwards this call to the
+     * RenderManager, InputProcessor and Menu. Advances ggvm by the number of frames
+     * the FrameScheduler says are due, which may be none, each running the nmi
+     * routine and then the main thread for the rest of the frame's cpu cycles, the
+     * same as a real NES: on the emulation thread while this frame is drawn, or else
+     * after drawing it. While fast forwarding, more frames are due, and only the last
+     * one finished is drawn, and while rewinding, each frame steps back one recorded
+     * frame instead. Finally, some logging is performed.
      */
     @Override
     public void render() {
+        ggvm.acquireFrameState();
+        applySpeed();
+        int frames = frameScheduler.update();
+        if (emulationThread != null) {
+            emulationThread.setUncapped(frameScheduler.isUncapped());
+            emulationThread.requestFrames(frames);
+        }
+        patternTableManager.updateDirtyPatterns();
         renderManager.render(spriteBatch);
         inputProcessor.render(spriteBatch);
         menu.render(spriteBatch);
-        ggvm.nmi();
-        ggvm.advance(9000);
-        ggvm.logInstructionsPerSecond();
+        if (emulationThread == null) {
+            runFrames(frames);
+        }
+        patternTableManager.logTextureUploads();
+        logFastForward();
         logHeapInformation();
     }
 
+    /**
+     * Runs ggvm on the rendering thread: the frames due or, while fast forwarding
+     * uncapped, as many frames as fit in half a display frame, leaving the rest of it
+     * for drawing.
+     */
+    private void runFrames(int frames) {
+        if (frameScheduler.isUncapped()) {
+            long deadline = System.nanoTime() + frameScheduler.getFramePeriodNanos() / 2;
+            do {
+                ggvm.runFrame();
+                ggvm.logInstructionsPerSecond();
+            } while (System.nanoTime() < deadline);
+        } else {
+            for (int i = 0; i < frames; i++) {
+                ggvm.runFrame();
+                ggvm.logInstructionsPerSecond();
+            }
+        }
+    }
+
+    /**
+     * Passes the speed ggvm is set to, see GGVm.setFastForward, on to the frame
+     * scheduler, and mutes the soundtrack while it is not normal speed or ggvm is
+     * rewinding. While ggvm is stopped, as when the menu is open, it runs at normal
+     * speed.
+     */
+    private void applySpeed() {
+        int speed = ggvm.isAlive() ? ggvm.getSpeed() : 1;
+        boolean rewinding = ggvm.isAlive() && ggvm.isRewinding();
+        if (speed != frameScheduler.getSpeed() || rewinding != this.rewinding) {
+            soundtrackManager.setMuted(speed != 1 || rewinding);
+            this.rewinding = rewinding;
+        }
+        if (speed != frameScheduler.getSpeed()) {
+            frameScheduler.setSpeed(speed);
+            fastForwardLoggingNanos = System.nanoTime();
+            fastForwardLoggingFrame = ggvm.getFrameState().getFrame();
+            if (speed == 1) {
+                Gdx.graphics.setTitle(gameModule.provideTitle());
+            }
+        }
+    }
+
+    /**
+     * While fast forwarding, logs the frames ggvm runs per second and shows them in
+     * the window title, once every FAST_FORWARD_LOGGING_INTERVAL_NANOS.
+     */
+    private void logFastForward() {
+        if (frameScheduler.getSpeed() == 1) {
+            return;
+        }
+        long nanos = System.nanoTime() - fastForwardLoggingNanos;
+        if (nanos >= FAST_FORWARD_LOGGING_INTERVAL_NANOS) {
+            int frame = ggvm.getFrameState().getFrame();
+            long framesPerSecond = (frame - fastForwardLoggingFrame) * 1000000000L / nanos;
+            String speed = frameScheduler.isUncapped() ? "UNCAPPED" : frameScheduler.getSpeed() + "X";
+            String text = "FAST FORWARD " + speed + ": " + framesPerSecond + " fps";
+            Gdx.app.log(getClass().getSimpleName(), text);
+            Gdx.graphics.setTitle(gameModule.provideTitle() + " - " + text);
+            fastForwardLoggingNanos += nanos;
+            fastForwardLoggingFrame = frame;
+        }
+    }
+
     /**
      * LibGDX lifecycle callback for pausing the application. Stops
      * GGVm and saves current game state.
@@ -171,6 +329,7 @@ public class GGVmApplication extends ApplicationAdapter implements OnGeneratePat
         switch (Gdx.app.getType()) {
             case Android:
             case iOS:
+                stopEmulationThread();
                 ggvm.stop();
                 saveState();
                 break;
@@ -188,7 +347,12 @@ public class GGVmApplication extends ApplicationAdapter implements OnGeneratePat
             case Android:
             case iOS:
                 loadState();
+                if (ggvm.getRewindBuffer() != null) {
+                    ggvm.getRewindBuffer().clear();
+                }
                 ggvm.start();
+                frameScheduler.reset();
+                startEmulationThread();
                 break;
         }
     }
@@ -200,10 +364,30 @@ public class GGVmApplication extends ApplicationAdapter implements OnGeneratePat
     @Override
     public void dispose() {
         Gdx.app.log(getClass().getSimpleName(), "dispose()");
+        stopEmulationThread();
         ggvm.stop();
         saveState();
     }
 
+    /**
+     * Starts the emulation thread again after stopEmulationThread, if it is enabled.
+     */
+    private void startEmulationThread() {
+        if (emulationThread != null) {
+            emulationThread.start();
+        }
+    }
+
+    /**
+     * Waits for the emulation thread to finish its frame and stops it, so that ggvm
+     * can be saved or loaded.
+     */
+    private void stopEmulationThread() {
+        if (emulationThread != null) {
+            emulationThread.stop();
+        }
+    }
+
     /**
      * Logs heap information in megabytes each time heapInfoCounter reaches
      * zero from HEAP_INFO_COUNTER_RESET. Helps reveal the presence of
@@ -257,7 +441,11 @@ public class GGVmApplication extends ApplicationAdapter implements OnGeneratePat
             }
         } catch (IOException ex) {
             Gdx.app.error(getClass().getSimpleName(), "Error loading game state.", ex);
+            //Part of the state may have been loaded, so start the game over
+            ggvm.reset();
         }
+        //On mobile devices framebuffers may have lost their contents while paused.
+        renderManager.invalidateNametable();
     }
 
     /**
@@ -0,0 +1,173 @@
+package com.gradualgames.ggvm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A window of a fixed size onto the PRG rom, CHR rom or CHR-RAM of a BankedMapper,
+ * mapped at a fixed address range of the cpu or ppu bus. The memory is split into
+ * banks the size of the slot, and the slot shows one of them at a time. Switching
+ * banks only moves the offset from an address in the slot to its index into the
+ * memory; nothing is copied, so a switch costs the same for any bank size, and every
+ * bank of CHR-RAM keeps its bytes while it is switched out. The buses and the cpu's
+ * InstructionCache listen for switches, see OnBankSwitchListener.
+ *
+ * Any write to a PRG slot is handed to the mapper, which interprets it as a write
+ * to one of its registers. Writes to a CHR slot go to the bank it shows if the slot
+ * is writable, which it is for CHR-RAM, and are ignored otherwise.
+ */
+public class BankSlot implements DirectReadWriteRange {
+
+    private BankedMapper mapper;
+
+    private Bus.BusType busType;
+
+    private int lower;
+
+    private int upper;
+
+    private int size;
+
+    private byte[] memory;
+
+    private boolean writable;
+
+    private int bankCount;
+
+    private int bank;
+
+    private int offset;
+
+    private boolean switchable = true;
+
+    private List<OnBankSwitchListener> onBankSwitchListeners = new ArrayList<OnBankSwitchListener>();
+
+    BankSlot(BankedMapper mapper, Bus.BusType busType, int lower, int size, byte[] memory, boolean writable) {
+        this.mapper = mapper;
+        this.busType = busType;
+        this.lower = lower;
+        this.size = size;
+        this.upper = lower + size - 1;
+        this.memory = memory;
+        this.writable = writable;
+        this.bankCount = Math.max(1, memory.length / size);
+        this.offset = -lower;
+    }
+
+    public void addOnBankSwitchListener(OnBankSwitchListener onBankSwitchListener) {
+        onBankSwitchListeners.add(onBankSwitchListener);
+    }
+
+    /**
+     * @return The bank currently shown in this slot.
+     */
+    public int getBank() {
+        return bank;
+    }
+
+    /**
+     * @return The number of banks of the memory which can be shown in this slot.
+     */
+    public int getBankCount() {
+        return bankCount;
+    }
+
+    /**
+     * @return Whether the bank shown in this slot can change. The mapper fixes a
+     * slot to a bank for good with BankedMapper.fixPrgBank or fixChrBank.
+     */
+    public boolean isSwitchable() {
+        return switchable;
+    }
+
+    /**
+     * @return The memory this slot is a window onto, all banks of it. Bank b starts
+     * at index b times the size of the slot.
+     */
+    public byte[] getMemory() {
+        return memory;
+    }
+
+    /**
+     * @return The size of this slot, and of each bank.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    void setBank(int bank) {
+        bank %= bankCount;
+        if (bank != this.bank) {
+            this.bank = bank;
+            offset = bank * size - lower;
+            for (OnBankSwitchListener onBankSwitchListener : onBankSwitchListeners) {
+                onBankSwitchListener.onBankSwitch(this);
+            }
+        }
+    }
+
+    void fixBank(int bank) {
+        setBank(bank);
+        switchable = false;
+    }
+
+    @Override
+    public byte read(int address) {
+        return memory[address + offset];
+    }
+
+    @Override
+    public void write(int address, byte value) {
+        if (busType == Bus.BusType.CPU) {
+            mapper.writeRegister(address, value);
+        } else if (writable) {
+            memory[address + offset] = value;
+        }
+    }
+
+    @Override
+    public byte[] getPageData(int address) {
+        return memory;
+    }
+
+    @Override
+    public int getPageOffset(int address) {
+        return offset;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return writable;
+    }
+
+    @Override
+    public int lower() {
+        return lower;
+    }
+
+    @Override
+    public int upper() {
+        return upper;
+    }
+
+    @Override
+    public void save(OutputStream outputStream) throws IOException {
+        mapper.save(this, outputStream);
+    }
+
+    @Override
+    public void load(InputStream inputStream) throws IOException {
+        mapper.load(this, inputStream);
+    }
+
+    /**
+     * Reads the state of the slot from a save state written before SaveStateFormat,
+     * see Bus.loadLegacy.
+     */
+    public void loadLegacy(InputStream inputStream) throws IOException {
+        mapper.loadLegacy(this, inputStream);
+    }
+}
@@ -0,0 +1,311 @@
+package com.gradualgames.ggvm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base class of mappers which map their PRG and CHR roms through BankSlots. The
+ * PRG roms of the cartridge are joined into one rom, which is shown through slots of
+ * 8kb, 16kb or 32kb across 0x8000 - 0xffff of the cpu bus; the CHR roms likewise
+ * through slots of 1kb, 4kb or 8kb across 0x0000 - 0x1fff of the ppu bus. A mapper
+ * picks the slot sizes which match its hardware, then switches banks with setPrgBank
+ * and setChrBank whenever writeRegister is called. This covers the discrete mappers
+ * as well as MMC1 (16kb/4kb) and MMC3 (8kb/1kb) style mappers.
+ *
+ * Every slot starts out switchable, showing bank 0. A mapper should fix any slot
+ * which never switches, such as the upper 16kb of UnROM, with fixPrgBank or
+ * fixChrBank, since the cpu caches and translates code in switchable slots per bank.
+ *
+ * Cartridges without CHR rom get CHR-RAM instead, 8kb unless the mapper asks for
+ * more, shown through the CHR slots just like CHR rom. Every bank of CHR-RAM keeps
+ * its bytes while switched out, so it reads back correctly through $2007 whichever
+ * bank was selected when it was written. Nametable and palette ram are configured by
+ * each mapper, see addNametableRams.
+ *
+ * The bank of each switchable slot is saved as a single byte, PRG slots first, as
+ * part of the first PRG slot. All of the CHR-RAM, if any, is saved as part of the
+ * first CHR slot, which for 8kb is the same layout as the plain Ram used before.
+ * Subclasses with more state can override save and load. States saved before
+ * BankedMapper hold less, see loadLegacy.
+ */
+public abstract class BankedMapper implements ReadWriteRangeProvider {
+
+    public static final int PRG_ROM_BASE_ADDRESS = 0x8000;
+    public static final int PRG_ROM_WINDOW_SIZE = 0x8000;
+    public static final int CHR_BASE_ADDRESS = 0x0000;
+    public static final int CHR_WINDOW_SIZE = 0x2000;
+
+    public static final int PRG_SLOT_SIZE_8K = 0x2000;
+    public static final int PRG_SLOT_SIZE_16K = 0x4000;
+    public static final int PRG_SLOT_SIZE_32K = 0x8000;
+
+    public static final int CHR_SLOT_SIZE_1K = 0x0400;
+    public static final int CHR_SLOT_SIZE_4K = 0x1000;
+    public static final int CHR_SLOT_SIZE_8K = 0x2000;
+
+    private BankSlot[] prgSlots;
+    private BankSlot[] chrSlots;
+    private byte[] chrRam;
+    private List<ReadWriteRange> nametableRams = new ArrayList<ReadWriteRange>();
+    private PaletteRam paletteRam;
+
+    /**
+     * Creates the PRG and CHR slots for the cartridge.
+     * @param cartridge The cartridge containing the roms to show through the slots.
+     * @param prgSlotSize The size of each PRG slot, one of the PRG_SLOT_SIZE constants.
+     * @param chrSlotSize The size of each CHR slot, one of the CHR_SLOT_SIZE constants.
+     */
+    protected BankedMapper(Cartridge cartridge, int prgSlotSize, int chrSlotSize) {
+        this(cartridge, prgSlotSize, chrSlotSize, CHR_WINDOW_SIZE);
+    }
+
+    /**
+     * Creates the PRG and CHR slots for the cartridge.
+     * @param cartridge The cartridge containing the roms to show through the slots.
+     * @param prgSlotSize The size of each PRG slot, one of the PRG_SLOT_SIZE constants.
+     * @param chrSlotSize The size of each CHR slot, one of the CHR_SLOT_SIZE constants.
+     * @param chrRamSize The size of the CHR-RAM if the cartridge has no CHR rom, a
+     * multiple of chrSlotSize.
+     */
+    protected BankedMapper(Cartridge cartridge, int prgSlotSize, int chrSlotSize, int chrRamSize) {
+        byte[] prgRom = join(cartridge.getPrgRoms());
+        prgSlots = new BankSlot[PRG_ROM_WINDOW_SIZE / prgSlotSize];
+        for (int i = 0; i < prgSlots.length; i++) {
+            prgSlots[i] = new BankSlot(this, Bus.BusType.CPU, PRG_ROM_BASE_ADDRESS + i * prgSlotSize, prgSlotSize, prgRom, false);
+        }
+        byte[] chr;
+        if (0 < cartridge.getChrRomCount()) {
+            chr = join(cartridge.getChrRoms());
+        } else {
+            chrRam = new byte[chrRamSize];
+            chr = chrRam;
+        }
+        chrSlots = new BankSlot[CHR_WINDOW_SIZE / chrSlotSize];
+        for (int i = 0; i < chrSlots.length; i++) {
+            chrSlots[i] = new BankSlot(this, Bus.BusType.PPU, CHR_BASE_ADDRESS + i * chrSlotSize, chrSlotSize, chr, chrRam != null);
+        }
+        paletteRam = new PaletteRam();
+    }
+
+    private static byte[] join(Rom[] roms) {
+        int length = 0;
+        for (Rom rom : roms) {
+            length += rom.getData().length;
+        }
+        byte[] data = new byte[length];
+        int index = 0;
+        for (Rom rom : roms) {
+            System.arraycopy(rom.getData(), 0, data, index, rom.getData().length);
+            index += rom.getData().length;
+        }
+        return data;
+    }
+
+    /**
+     * Called for every write the cpu makes to 0x8000 - 0xffff.
+     * @param address The address written to.
+     * @param value The value written.
+     */
+    public abstract void writeRegister(int address, byte value);
+
+    /**
+     * Adds nametable ram for the cartridge's mirroring mode. Mappers which select
+     * nametables themselves add their own ram with addNametableRam instead.
+     */
+    protected void addNametableRams(Cartridge cartridge) {
+        switch (cartridge.getMirroringMode()) {
+            case Cartridge.MIRRORING_MODE_HORIZONTAL:
+                nametableRams.add(new Ram(Ppu.NAME_TABLE_0_BASE_ADDRESS, Ppu.NAMETABLE_RAM_SIZE));
+                nametableRams.add(new Ram(Ppu.NAME_TABLE_2_BASE_ADDRESS, Ppu.NAMETABLE_RAM_SIZE));
+                break;
+            case Cartridge.MIRRORING_MODE_VERTICAL:
+                //VerticalMirroringRam was added to support games which write to the
+                //mirrored ranges of vram. It allocates precisely the same amount of bytes
+                //as the one contiguous chunk of ram for $2000 and $2400 used previously,
+                //so legacy state.sav files still load. It maps itself over the full range
+                //of nametable addresses, and mirrors any read or write past $2800 back to
+                //$2000 and $2400.
+                nametableRams.add(new VerticalMirroringRam());
+                break;
+        }
+    }
+
+    protected void addNametableRam(ReadWriteRange nametableRam) {
+        nametableRams.add(nametableRam);
+    }
+
+    public int getPrgSlotCount() {
+        return prgSlots.length;
+    }
+
+    public BankSlot getPrgSlot(int slot) {
+        return prgSlots[slot];
+    }
+
+    public int getChrSlotCount() {
+        return chrSlots.length;
+    }
+
+    public BankSlot getChrSlot(int slot) {
+        return chrSlots[slot];
+    }
+
+    /**
+     * @return Whether the CHR slots show CHR-RAM rather than CHR rom.
+     */
+    public boolean hasChrRam() {
+        return chrRam != null;
+    }
+
+    /**
+     * Shows a PRG bank in a slot. Banks past the end of the rom wrap around.
+     * @param slot The index of the slot, counting from 0x8000.
+     * @param bank The bank, in units of the slot size.
+     */
+    protected void setPrgBank(int slot, int bank) {
+        prgSlots[slot].setBank(bank);
+    }
+
+    /**
+     * Shows a CHR bank in a slot. Banks past the end of the rom or ram wrap around.
+     * @param slot The index of the slot, counting from 0x0000.
+     * @param bank The bank, in units of the slot size.
+     */
+    protected void setChrBank(int slot, int bank) {
+        chrSlots[slot].setBank(bank);
+    }
+
+    /**
+     * Shows a PRG bank in a slot for good. Should only be called while configuring
+     * the mapper. A negative bank counts from the end of the rom, so -1 is the last.
+     */
+    protected void fixPrgBank(int slot, int bank) {
+        BankSlot bankSlot = prgSlots[slot];
+        bankSlot.fixBank(bank < 0 ? bankSlot.getBankCount() + bank : bank);
+    }
+
+    /**
+     * Shows a CHR bank in a slot for good. Should only be called while configuring
+     * the mapper. A negative bank counts from the end of the rom, so -1 is the last.
+     */
+    protected void fixChrBank(int slot, int bank) {
+        BankSlot bankSlot = chrSlots[slot];
+        bankSlot.fixBank(bank < 0 ? bankSlot.getBankCount() + bank : bank);
+    }
+
+    /**
+     * Saves the state of the mapper, on behalf of one of its slots.
+     * @param bankSlot The slot being saved by the bus.
+     * @param outputStream An output stream for saving data.
+     */
+    protected void save(BankSlot bankSlot, OutputStream outputStream) throws IOException {
+        if (bankSlot == prgSlots[0]) {
+            for (BankSlot slot : prgSlots) {
+                if (slot.isSwitchable()) {
+                    outputStream.write(slot.getBank());
+                }
+            }
+            for (BankSlot slot : chrSlots) {
+                if (slot.isSwitchable()) {
+                    outputStream.write(slot.getBank());
+                }
+            }
+        } else if (bankSlot == chrSlots[0] && chrRam != null) {
+            outputStream.write(chrRam);
+        }
+    }
+
+    /**
+     * Restores the state of the mapper, on behalf of one of its slots.
+     * @param bankSlot The slot being loaded by the bus.
+     * @param inputStream An input stream for reading save state data.
+     */
+    protected void load(BankSlot bankSlot, InputStream inputStream) throws IOException {
+        if (bankSlot == prgSlots[0]) {
+            for (BankSlot slot : prgSlots) {
+                loadBank(slot, inputStream);
+            }
+            for (BankSlot slot : chrSlots) {
+                loadBank(slot, inputStream);
+            }
+        } else if (bankSlot == chrSlots[0] && chrRam != null) {
+            readChrRam(inputStream, chrRam.length);
+        }
+    }
+
+    /**
+     * Restores the state of the mapper, on behalf of one of its slots, from a save
+     * state written before SaveStateFormat, see Bus.loadLegacy. The mappers of the
+     * time, 0, 2 and 30, saved only the bank of the switchable PRG slot and 8kb of
+     * CHR-RAM. Mapper 30 had a single 8kb of CHR-RAM which every CHR bank wrote to,
+     * so that 8kb is loaded into every bank, to show what it showed whichever bank
+     * is selected. For mappers 0 and 2 this is the same layout as load.
+     * @param bankSlot The slot being loaded by the bus.
+     * @param inputStream An input stream for reading save state data.
+     */
+    protected void loadLegacy(BankSlot bankSlot, InputStream inputStream) throws IOException {
+        if (bankSlot == prgSlots[0]) {
+            for (BankSlot slot : prgSlots) {
+                loadBank(slot, inputStream);
+            }
+        } else if (bankSlot == chrSlots[0] && chrRam != null) {
+            readChrRam(inputStream, CHR_WINDOW_SIZE);
+            for (int offset = CHR_WINDOW_SIZE; offset < chrRam.length; offset += CHR_WINDOW_SIZE) {
+                System.arraycopy(chrRam, 0, chrRam, offset, CHR_WINDOW_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Selects the bank a save state holds for a slot, if it is switchable. If the
+     * state ends first, the slot keeps its current bank.
+     */
+    private void loadBank(BankSlot slot, InputStream inputStream) throws IOException {
+        if (slot.isSwitchable()) {
+            int bank = inputStream.read();
+            if (bank >= 0) {
+                slot.setBank(bank);
+            }
+        }
+    }
+
+    /**
+     * Reads the first length bytes of CHR-RAM from a save state, which a single read
+     * may not return in one go.
+     * @throws EOFException If the state ends first.
+     */
+    private void readChrRam(InputStream inputStream, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = inputStream.read(chrRam, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("Save state ended early.");
+            }
+            offset += read;
+        }
+    }
+
+    @Override
+    public List<ReadWriteRange> provideReadWriteRanges(Bus.BusType busType) {
+        List<ReadWriteRange> readWriteRanges = new ArrayList<ReadWriteRange>();
+        switch (busType) {
+            case CPU:
+                for (BankSlot slot : prgSlots) {
+                    readWriteRanges.add(slot);
+                }
+                break;
+            case PPU:
+                for (BankSlot slot : chrSlots) {
+                    readWriteRanges.add(slot);
+                }
+                readWriteRanges.addAll(nametableRams);
+                readWriteRanges.add(paletteRam);
+                break;
+        }
+        return readWriteRanges;
+    }
+}
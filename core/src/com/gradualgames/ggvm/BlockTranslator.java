@@ -0,0 +1,334 @@
+package com.gradualgames.ggvm;
+
+import java.util.Arrays;
+
+/**
+ * Finds basic blocks in PRG rom and translates them into Blocks: a straight run
+ * of already decoded instructions which the Cpu can execute back to back, without
+ * fetching, decoding or looking anything up between instructions. A block ends
+ * with the first instruction that transfers control (branch, jmp, jsr, rts, rti,
+ * brk), or after MAX_BLOCK_LENGTH instructions.
+ *
+ * Blocks are cached per pc and, within a switchable BankSlot, per PRG bank. Every pc
+ * starts out cold and is left to the interpreter; only once it has been reached
+ * HOT_THRESHOLD times is its block translated. Code that is not in rom is never
+ * translated, and neither is any instruction with a byte covered by a
+ * BusEventGenerator, so such instructions always go through the interpreter and
+ * keep firing their events. A block in a switchable slot also ends after any
+ * write which might switch banks, since the following instructions would then
+ * come from another bank, and before running into another switchable slot.
+ *
+ * Translation has no way to generate JVM classes at runtime on every platform GGVm
+ * runs on (Android in particular), so a block is data for Cpu.executeBlock rather
+ * than code. Code can however be generated ahead of time by RomTranslator, which
+ * finds blocks with the same rules as this class. If a TranslatedRom has code for a
+ * block, the block is translated the first time its pc is reached and executes that
+ * code instead of its decoded instructions.
+ *
+ * A block which branches back to its own start and does nothing but read ram or rom
+ * into registers and test them, such as a loop waiting for the nmi to set a flag, is
+ * marked as a possible idle loop, see Cpu.run. The translated blocks must be cleared
+ * whenever the memory map changes, see GGVm.installBusEventGenerator.
+ */
+public class BlockTranslator {
+
+    public static final int HOT_THRESHOLD = 8;
+
+    public static final int MAX_BLOCK_LENGTH = 64;
+
+    private static final int PAGE_SIZE = 256;
+
+    private static final int PAGE_COUNT = CpuBus.MEMORY_MAP_SIZE / PAGE_SIZE;
+
+    /**
+     * Marks a pc from which no block can be translated.
+     */
+    private static final Block UNTRANSLATABLE = new Block(-1, -1);
+
+    /**
+     * A translated basic block. Until it is translated, entries is null and
+     * hits counts how often its pc has been reached.
+     */
+    public static class Block {
+
+        private final int pc;
+
+        private final int bank;
+
+        private int hits;
+
+        /**
+         * The block most recently executed after this one.
+         */
+        private Block successor;
+
+        /**
+         * Decoded instructions in the same format as InstructionCache.fetch.
+         */
+        int[] entries;
+
+        /**
+         * Number of cycles the instructions take, not counting extra cycles for
+         * page crossing or taken branches.
+         */
+        int cycles;
+
+        /**
+         * Number of cycles the instructions take at most, counting all extra cycles.
+         */
+        int maxCycles;
+
+        /**
+         * Whether the block loops back to its own pc without writing anything or
+         * reading anything but ram and rom, so that if an iteration leaves the
+         * registers as they were, it will keep looping until an nmi.
+         */
+        boolean idleLoop;
+
+        /**
+         * Index of the code generated for this block in the TranslatedRom, or -1.
+         * Before translation, holds the result of TranslatedRom.findBlock.
+         */
+        int translatedIndex = -1;
+
+        Block(int pc, int bank) {
+            this.pc = pc;
+            this.bank = bank;
+        }
+
+        public int getPc() {
+            return pc;
+        }
+
+        public int getBank() {
+            return bank;
+        }
+
+        public int getLength() {
+            return entries.length;
+        }
+
+        public int getCycles() {
+            return cycles;
+        }
+
+        public boolean isIdleLoop() {
+            return idleLoop;
+        }
+    }
+
+    private CpuBus bus;
+
+    private InstructionCache instructionCache;
+
+    private TranslatedRom translatedRom;
+
+    /**
+     * Blocks indexed by bank + 1 (0 for addresses outside any switchable slot),
+     * page and offset within the page.
+     */
+    private Block[][][] blocks;
+
+    public BlockTranslator(CpuBus bus, InstructionCache instructionCache) {
+        this.bus = bus;
+        this.instructionCache = instructionCache;
+        this.blocks = new Block[instructionCache.getBankCount() + 1][][];
+    }
+
+    /**
+     * Returns the translated block starting at pc, translating it first if the pc
+     * has just become hot.
+     * @param pc The address at which the block starts.
+     * @return The translated block, or null if pc is still cold or cannot be translated.
+     */
+    public Block getBlock(int pc) {
+        int bank = instructionCache.getBank(pc);
+        Block[][] pages = blocks[bank + 1];
+        if (pages == null) {
+            pages = new Block[PAGE_COUNT][];
+            blocks[bank + 1] = pages;
+        }
+        Block[] page = pages[pc >> 8];
+        if (page == null) {
+            page = new Block[PAGE_SIZE];
+            pages[pc >> 8] = page;
+        }
+        Block block = page[pc & 0xff];
+        if (block == null) {
+            if (isTranslatable(pc)) {
+                block = new Block(pc, bank);
+                if (translatedRom != null) {
+                    block.translatedIndex = translatedRom.findBlock(bank, pc);
+                }
+            } else {
+                block = UNTRANSLATABLE;
+            }
+            page[pc & 0xff] = block;
+        }
+        if (block.entries == null) {
+            if (block == UNTRANSLATABLE || (++block.hits < HOT_THRESHOLD && block.translatedIndex == -1)) {
+                return null;
+            }
+            translate(block);
+        }
+        return block;
+    }
+
+    /**
+     * Returns the translated block starting at pc, like getBlock(pc), but first checks
+     * whether it is the block which followed the previous block last time. Loops and
+     * straight line code mostly chain from block to block without any lookup.
+     * @param previous The block executed before reaching pc, or null.
+     * @param pc The address at which the block starts.
+     * @return The translated block, or null if pc is still cold or cannot be translated.
+     */
+    public Block getBlock(Block previous, int pc) {
+        if (previous == null) {
+            return getBlock(pc);
+        }
+        Block successor = previous.successor;
+        if (successor != null && successor.pc == pc && (successor.bank == -1 || successor.bank == instructionCache.getBank(pc))) {
+            return successor;
+        }
+        successor = getBlock(pc);
+        if (successor != null) {
+            previous.successor = successor;
+        }
+        return successor;
+    }
+
+    /**
+     * Drops all blocks, hot or cold.
+     */
+    public void clear() {
+        Arrays.fill(blocks, null);
+    }
+
+    /**
+     * Sets the code generated ahead of time for the rom, and drops all blocks so that
+     * they are looked up in it.
+     */
+    public void setTranslatedRom(TranslatedRom translatedRom) {
+        this.translatedRom = translatedRom;
+        clear();
+    }
+
+    private void translate(Block block) {
+        int[] entries = new int[MAX_BLOCK_LENGTH];
+        int length = 0;
+        int address = block.pc;
+        while (length < MAX_BLOCK_LENGTH && isTranslatable(address) && instructionCache.isInSameBank(block.pc, address)) {
+            int entry = instructionCache.fetch(address);
+            int opcode = entry & 0xff;
+            entries[length++] = entry;
+            block.cycles += Cpu.INSTRUCTION_CYCLES[opcode];
+            block.maxCycles += Cpu.INSTRUCTION_CYCLES[opcode] + Cpu.INSTRUCTION_EXTRA_CYCLES[opcode];
+            if (endsBlock(opcode) || (block.bank != -1 && mayWriteRom(opcode, (entry >> 8) & 0xffff))) {
+                break;
+            }
+            address += Cpu.INSTRUCTION_LENGTHS[opcode];
+        }
+        block.entries = Arrays.copyOf(entries, length);
+        block.idleLoop = isIdleLoop(block);
+        //Generated code for a block of another length is not for this block: a
+        //BusEventGenerator has been installed inside it since the rom was translated.
+        if (block.translatedIndex != -1) {
+            block.translatedIndex = (block.translatedIndex & 0xff) == length ? block.translatedIndex >> 8 : -1;
+        }
+    }
+
+    /**
+     * An instruction can only be part of a block if all of its bytes are read
+     * straight from rom, without any BusEventGenerator in between.
+     */
+    private boolean isTranslatable(int address) {
+        if (!isRom(address)) {
+            return false;
+        }
+        int length = Cpu.INSTRUCTION_LENGTHS[bus.readUnsignedByteAsInt(address)];
+        for (int i = address + 1; i < address + length; i++) {
+            if (!isRom(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isRom(int address) {
+        if (address > 0xffff) {
+            return false;
+        }
+        ReadWriteRange readWriteRange = bus.memoryMap[address];
+        return readWriteRange instanceof Rom || readWriteRange instanceof BankSlot;
+    }
+
+    static boolean endsBlock(int opcode) {
+        switch (opcode) {
+            case 0x90: //bcc
+            case 0xb0: //bcs
+            case 0xf0: //beq
+            case 0x30: //bmi
+            case 0xd0: //bne
+            case 0x10: //bpl
+            case 0x50: //bvc
+            case 0x70: //bvs
+            case 0x4c: //jmp abs
+            case 0x6c: //jmp (indirect)
+            case 0x20: //jsr
+            case 0x60: //rts
+            case 0x40: //rti
+            case 0x00: //brk
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Determines whether an instruction might write to rom, which for a BankedMapper
+     * means it might switch banks. Zero page and stack writes never do,
+     * nor do absolute writes whose (indexed) target stays below rom.
+     */
+    static boolean mayWriteRom(int opcode, int operand) {
+        switch (opcode) {
+            case 0x8d: case 0x8e: case 0x8c: //sta, stx, sty abs
+            case 0xee: case 0xce: //inc, dec abs
+            case 0x0e: case 0x4e: case 0x2e: case 0x6e: //asl, lsr, rol, ror abs
+                return operand >= 0x8000;
+            case 0x9d: case 0x99: //sta abs,x abs,y
+            case 0xfe: case 0xde: //inc, dec abs,x
+            case 0x1e: case 0x5e: case 0x3e: case 0x7e: //asl, lsr, rol, ror abs,x
+                return operand + 0xff >= 0x8000;
+            case 0x81: case 0x91: //sta (indirect,x) (indirect),y
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Determines whether a block is a possible idle loop: its last instruction branches
+     * or jumps back to its pc, and every other instruction only reads ram or rom at a
+     * fixed address, or an immediate, into a register or the flags, see
+     * IdleLoopDetector.
+     */
+    private boolean isIdleLoop(Block block) {
+        int[] entries = block.entries;
+        int last = entries[entries.length - 1];
+        int lastAddress = block.pc;
+        for (int i = 0; i < entries.length - 1; i++) {
+            lastAddress += Cpu.INSTRUCTION_LENGTHS[entries[i] & 0xff];
+        }
+        int lastOpcode = last & 0xff;
+        int target = lastOpcode == 0x4c ? (last >> 8) & 0xffff : lastAddress + 2 + (byte) (last >> 8);
+        if (!IdleLoopDetector.isJump(lastOpcode) || target != block.pc) {
+            return false;
+        }
+        for (int i = 0; i < entries.length - 1; i++) {
+            if (!IdleLoopDetector.isLoopInstruction(bus, entries[i] & 0xff, (entries[i] >> 8) & 0xffff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
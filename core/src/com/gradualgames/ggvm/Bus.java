@@ -1,9 +1,12 @@
 package com.gradualgames.ggvm;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -14,8 +17,19 @@ import java.util.Set;
  * entire address range that those objects specify by their lower()
  * and upper() range methods. This allows reading and writing to different
  * components on the bus as easy as an array lookup.
+ *
+ * On top of the memory map, the bus keeps a page table with an entry per 256 byte
+ * page. Pages covered entirely by one DirectReadWriteRange, such as ram or the
+ * bank shown in a BankSlot, point straight at the array backing them, so reading or
+ * writing them is a plain array access. All other pages, such as hardware registers
+ * or any page with a BusEventGenerator installed, go through the memory map. When a
+ * BankSlot switches banks, only the offsets of its own pages are updated.
+ *
+ * Blocks of bytes are read a page at a time with readBlock, which copies directly
+ * accessed pages with System.arraycopy and only goes through the memory map byte by
+ * byte for the other pages.
  */
-public abstract class Bus {
+public abstract class Bus implements OnBankSwitchListener {
 
     public enum BusType {
         CPU,
@@ -35,6 +49,26 @@ public abstract class Bus {
      */
     protected ReadWriteRange[] memoryMap;
 
+    /**
+     * The page table. For each page covered entirely by a DirectReadWriteRange, the
+     * range, the arrays to read from and write to (null if the range is read only)
+     * and the offset from an address in the page to its index into those arrays.
+     * Reads and writes of pages whose arrays are null go through the memory map.
+     */
+    protected DirectReadWriteRange[] pageRanges;
+    protected byte[][] pageReadData;
+    protected byte[][] pageWriteData;
+    protected int[] pageOffsets;
+
+    /**
+     * Every distinct ReadWriteRange of the memory map with BusEventGenerators replaced
+     * by the ranges they wrap, and the first address each one appears at, see
+     * getStateRanges. Built on first use and dropped whenever the memory map changes,
+     * so saving and loading states does not scan the whole memory map every time.
+     */
+    private List<ReadWriteRange> stateRanges;
+    private int[] stateAddresses;
+
     /**
      * This object is installed throughout the memory map wherever no ram, rom or hardware
      * was installed. Any reads or writes to this object will generate a warning in the log
@@ -54,40 +88,95 @@ public abstract class Bus {
         this.busType = busType;
         this.readWriteRangeWarning = readWriteRangeWarning;
         memoryMap = new ReadWriteRange[memoryMapSize];
+        int pageCount = memoryMapSize >> 8;
+        pageRanges = new DirectReadWriteRange[pageCount];
+        pageReadData = new byte[pageCount][];
+        pageWriteData = new byte[pageCount][];
+        pageOffsets = new int[pageCount];
     }
 
     /**
-     * Saves out every ReadWriteRange's state to the passed in output stream.
-     * This is used by GGVm as part of doing a full save-state of the vm.
-     * @param outputStream An output stream for saving data.
+     * @return Every ReadWriteRange whose state is saved with this bus, see
+     * SaveStateFormat, in the order of the first address each one appears at in the
+     * memory map. A BusEventGenerator only passes reads and writes on, so the range it
+     * wraps is returned in its place, at the first address either appears at. A new
+     * list is returned after the memory map changes.
      */
-    public void save(OutputStream outputStream) throws IOException {
-        Set<ReadWriteRange> readWriteRangeSet = new HashSet<ReadWriteRange>();
-        for(int i = 0; i < memoryMap.length; i++) {
-            ReadWriteRange readWriteRange = memoryMap[i];
-            if (!readWriteRangeSet.contains(readWriteRange)) {
-                readWriteRange.save(outputStream);
-                readWriteRangeSet.add(readWriteRange);
+    public List<ReadWriteRange> getStateRanges() {
+        if (stateRanges == null) {
+            List<ReadWriteRange> ranges = new ArrayList<ReadWriteRange>();
+            int[] addresses = new int[memoryMap.length];
+            Set<ReadWriteRange> readWriteRangeSet = new HashSet<ReadWriteRange>();
+            for(int i = 0; i < memoryMap.length; i++) {
+                ReadWriteRange readWriteRange = memoryMap[i];
+                while (readWriteRange instanceof BusEventGenerator) {
+                    readWriteRange = ((BusEventGenerator) readWriteRange).getReadWriteRange();
+                }
+                if (readWriteRangeSet.add(readWriteRange)) {
+                    addresses[ranges.size()] = i;
+                    ranges.add(readWriteRange);
+                }
             }
+            stateAddresses = Arrays.copyOf(addresses, ranges.size());
+            stateRanges = ranges;
         }
+        return stateRanges;
     }
 
     /**
-     * Reads every ReadWriteRange's state from the passed in input stream.
-     * This is used by GGVm as part of restoring a full save-state of the vm.
+     * @return The address each range returned by getStateRanges first appears at in
+     * the memory map, which identifies its state, see SaveStateFormat.
+     */
+    public int[] getStateAddresses() {
+        getStateRanges();
+        return stateAddresses;
+    }
+
+    /**
+     * Reads every ReadWriteRange's state from a save state written before
+     * SaveStateFormat, which wrote them one after the other with nothing between
+     * them, in the order of the first address each distinct range of the memory map
+     * appeared at, BusEventGenerators included. Rams aligned to the bus then also
+     * saved the space before them, which is skipped, and BankSlots saved what the
+     * mappers of the time kept, see BankedMapper.loadLegacy.
      * @param inputStream An input stream for reading save state data.
+     * @param skippedAddresses Addresses of ranges which saved nothing then, but do now.
      */
-    public void load(InputStream inputStream) throws IOException {
+    public void loadLegacy(InputStream inputStream, int... skippedAddresses) throws IOException {
         Set<ReadWriteRange> readWriteRangeSet = new HashSet<ReadWriteRange>();
         for(int i = 0; i < memoryMap.length; i++) {
             ReadWriteRange readWriteRange = memoryMap[i];
-            if (!readWriteRangeSet.contains(readWriteRange)) {
-                readWriteRange.load(inputStream);
-                readWriteRangeSet.add(readWriteRange);
+            if (readWriteRangeSet.add(readWriteRange) && Arrays.binarySearch(skippedAddresses, i) < 0) {
+                ReadWriteRange wrappedRange = readWriteRange;
+                while (wrappedRange instanceof BusEventGenerator) {
+                    wrappedRange = ((BusEventGenerator) wrappedRange).getReadWriteRange();
+                }
+                if (wrappedRange instanceof Ram || wrappedRange instanceof SelectableRam ||
+                        wrappedRange instanceof VerticalMirroringRam) {
+                    skipFully(inputStream, wrappedRange.lower());
+                }
+                if (wrappedRange instanceof BankSlot) {
+                    ((BankSlot) wrappedRange).loadLegacy(inputStream);
+                } else {
+                    readWriteRange.load(inputStream);
+                }
             }
         }
     }
 
+    private static void skipFully(InputStream inputStream, int length) throws IOException {
+        while (length > 0) {
+            long skipped = inputStream.skip(length);
+            if (skipped <= 0) {
+                if (inputStream.read() < 0) {
+                    throw new EOFException("Save state ended early.");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
     /**
      * Adds a ReadWriteRange object to the Bus's memory map.
      * Duplicate reference to readWriteRange for its entire address range,
@@ -99,6 +188,10 @@ public abstract class Bus {
         for(int i = readWriteRange.lower(); i <= readWriteRange.upper(); i++) {
             memoryMap[i] = readWriteRange;
         }
+        mapPages(readWriteRange.lower(), readWriteRange.upper());
+        if (readWriteRange instanceof BankSlot) {
+            ((BankSlot) readWriteRange).addOnBankSwitchListener(this);
+        }
     }
 
     /**
@@ -125,6 +218,50 @@ public abstract class Bus {
                 memoryMap[i] = readWriteRange;
             }
         }
+        mapPages(0, memoryMap.length - 1);
+    }
+
+    /**
+     * Updates the page table for every page overlapping an address range, after the
+     * memory map has changed there. A page is accessed directly if every address in
+     * it is mapped to the same DirectReadWriteRange.
+     * @param lower The lower address of the range, inclusive.
+     * @param upper The upper address of the range, inclusive.
+     */
+    protected void mapPages(int lower, int upper) {
+        stateRanges = null;
+        for (int page = lower >> 8; page <= upper >> 8; page++) {
+            ReadWriteRange readWriteRange = memoryMap[page << 8];
+            boolean direct = readWriteRange instanceof DirectReadWriteRange;
+            for (int i = (page << 8) + 1; direct && i < (page + 1) << 8; i++) {
+                direct = memoryMap[i] == readWriteRange;
+            }
+            pageRanges[page] = direct ? (DirectReadWriteRange) readWriteRange : null;
+        }
+        refreshPages(lower, upper);
+    }
+
+    /**
+     * Fetches the arrays and offsets of every directly accessed page overlapping an
+     * address range again, after the range mapped there has changed which arrays back
+     * it, for example by switching banks. This does not depend on the memory map, so
+     * it only costs a few operations per page.
+     * @param lower The lower address of the range, inclusive.
+     * @param upper The upper address of the range, inclusive.
+     */
+    protected void refreshPages(int lower, int upper) {
+        for (int page = lower >> 8; page <= upper >> 8; page++) {
+            DirectReadWriteRange range = pageRanges[page];
+            byte[] data = range != null ? range.getPageData(page << 8) : null;
+            pageReadData[page] = data;
+            pageWriteData[page] = data != null && range.isWritable() ? data : null;
+            pageOffsets[page] = data != null ? range.getPageOffset(page << 8) : 0;
+        }
+    }
+
+    @Override
+    public void onBankSwitch(BankSlot bankSlot) {
+        refreshPages(bankSlot.lower(), bankSlot.upper());
     }
 
     /**
@@ -133,6 +270,12 @@ public abstract class Bus {
      *                memorymap, from which to read an unsigned word as a Java int.
      */
     public int readUnsignedWordAsInt(int address) {
+        int page = address >> 8;
+        byte[] data = pageReadData[page];
+        if (data != null && (address & 0xff) != 0xff) {
+            int index = address + pageOffsets[page];
+            return (data[index] & 0xff) | ((data[index + 1] & 0xff) << 8);
+        }
         int lo = readUnsignedByteAsInt(address);
         int hi = readUnsignedByteAsInt(address + 1) << 8;
         return lo | hi;
@@ -146,6 +289,10 @@ public abstract class Bus {
      *                memory map, to read from.
      */
     public int readUnsignedByteAsInt(int address) {
+        byte[] data = pageReadData[address >> 8];
+        if (data != null) {
+            return data[address + pageOffsets[address >> 8]] & 0xff;
+        }
         return memoryMap[address].read(address) & 0xff;
     }
 
@@ -156,6 +303,10 @@ public abstract class Bus {
      *                memory map, to read from.
      */
     public byte readSignedByte(int address) {
+        byte[] data = pageReadData[address >> 8];
+        if (data != null) {
+            return data[address + pageOffsets[address >> 8]];
+        }
         return memoryMap[address].read(address);
     }
 
@@ -169,7 +320,39 @@ public abstract class Bus {
      *              bus.
      */
     public void writeIntAsByte(int address, int value) {
-        memoryMap[address].write(address, (byte) value);
+        byte[] data = pageWriteData[address >> 8];
+        if (data != null) {
+            data[address + pageOffsets[address >> 8]] = (byte) value;
+        } else {
+            memoryMap[address].write(address, (byte) value);
+        }
+    }
+
+    /**
+     * Reads a block of bytes into an array, as if by readSignedByte for each address,
+     * but copying every directly accessed page with a single System.arraycopy.
+     * @param address The address of the first byte, expected to be within range of
+     *                this bus's memory map along with the rest of the block.
+     * @param data The array to read into.
+     * @param offset The index into data of the first byte.
+     * @param length The number of bytes to read.
+     */
+    public void readBlock(int address, byte[] data, int offset, int length) {
+        while (length > 0) {
+            int page = address >> 8;
+            int count = Math.min(length, 0x100 - (address & 0xff));
+            byte[] pageData = pageReadData[page];
+            if (pageData != null) {
+                System.arraycopy(pageData, address + pageOffsets[page], data, offset, count);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    data[offset + i] = memoryMap[address + i].read(address + i);
+                }
+            }
+            address += count;
+            offset += count;
+            length -= count;
+        }
     }
 
     /**
@@ -186,7 +369,8 @@ public abstract class Bus {
      * Installs a bus event generator to a specific address range on the bus. Bus
      * event generators forward all read and write calls to whatever they are replacing on
      * the bus, but also fire an event back to the BusListener passed in here that a read
-     * or write has occurred.
+     * or write has occurred. If the range covers several ReadWriteRange objects, such as
+     * the CHR slots of a BankedMapper, each of them gets its own bus event generator.
      * @param address The address, expected to be within range of this bus's
      *                memory map, at which to begin installing a bus event generator.
      * @param size The number of bytes this bus event generator will occupy beyond the
@@ -195,10 +379,20 @@ public abstract class Bus {
      *                    is triggered by a read or a write.
      */
     public void installBusEventGenerator(int address, int size, BusListener busListener) {
-        BusEventGenerator busEventGenerator = new BusEventGenerator(address, size, memoryMap[address], busListener);
-        for(int i = address; i < address + size; i++) {
-            memoryMap[i] = busEventGenerator;
+        int lower = address;
+        while (lower < address + size) {
+            ReadWriteRange readWriteRange = memoryMap[lower];
+            int upper = lower;
+            while (upper + 1 < address + size && memoryMap[upper + 1] == readWriteRange) {
+                upper++;
+            }
+            BusEventGenerator busEventGenerator = new BusEventGenerator(lower, upper - lower + 1, readWriteRange, busListener);
+            for(int i = lower; i <= upper; i++) {
+                memoryMap[i] = busEventGenerator;
+            }
+            lower = upper + 1;
         }
+        mapPages(address, address + size - 1);
     }
 
     /**
@@ -217,5 +411,6 @@ public abstract class Bus {
                 memoryMap[i] = busEventGenerator.getReadWriteRange();
             }
         }
+        mapPages(address, address + size - 1);
     }
 }
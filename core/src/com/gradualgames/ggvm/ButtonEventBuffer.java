@@ -0,0 +1,64 @@
+package com.gradualgames.ggvm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ring buffer of button presses and releases, through which the thread handling
+ * input hands them to the thread running the vm without either one waiting on the
+ * other or allocating. Each event is encoded as an int, see GGVm.setButtonState. The
+ * producer writes an event into the slot after the last one and then advances the
+ * tail; the consumer reads every event up to the tail and then advances the head.
+ * Each index is only ever written by one side, so plain gets and sets of the two
+ * AtomicIntegers are enough, and publish the events written before them.
+ *
+ * Only one thread may offer events and only one may poll them. Should the consumer
+ * fall behind by CAPACITY events, further events are dropped until it catches up.
+ */
+class ButtonEventBuffer {
+
+    static final int CAPACITY = 256;
+
+    private static final int INDEX_MASK = CAPACITY - 1;
+
+    private int[] events = new int[CAPACITY];
+
+    /**
+     * The number of events ever offered and polled, wrapping around, of which the
+     * low bits are the index of the next slot to write and to read.
+     */
+    private AtomicInteger tail = new AtomicInteger();
+
+    private AtomicInteger head = new AtomicInteger();
+
+    /**
+     * Adds an event after the last one. Only for the producer.
+     * @return False if the buffer is full and the event was dropped.
+     */
+    boolean offer(int event) {
+        int t = tail.get();
+        if (t - head.get() == CAPACITY) {
+            return false;
+        }
+        events[t & INDEX_MASK] = event;
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * @return The number of events which can be polled. Only for the consumer.
+     */
+    int available() {
+        return tail.get() - head.get();
+    }
+
+    /**
+     * Removes the oldest event. Only for the consumer, and only if available is
+     * above 0.
+     */
+    int poll() {
+        int h = head.get();
+        int event = events[h & INDEX_MASK];
+        head.set(h + 1);
+        return event;
+    }
+}
@@ -1,5 +1,7 @@
 package com.gradualgames.ggvm;
 
+import com.badlogic.gdx.Gdx;
+
 /**
  * Created by derek on 8/21/2016.
  *
@@ -80,9 +82,7 @@ public class Cartridge {
         //Read all the PRG ROMs
         for(int i = 0; i < prgRomCount; i++) {
             byte[] data = new byte[PRG_ROM_SIZE];
-            for (int j = 0; j < PRG_ROM_SIZE; j++) {
-                data[j] = bytes[address + j];
-            }
+            System.arraycopy(bytes, address, data, 0, PRG_ROM_SIZE);
             Rom prgRom = new Rom(data);
             prgRoms[i] = prgRom;
             address += PRG_ROM_SIZE;
@@ -91,15 +91,20 @@ public class Cartridge {
         //Read all the CHR ROMs
         for(int i = 0; i < chrRomCount; i++) {
             byte[] data = new byte[CHR_ROM_SIZE];
-            for (int j = 0; j < CHR_ROM_SIZE; j++) {
-                data[j] = bytes[address + j];
-            }
+            System.arraycopy(bytes, address, data, 0, CHR_ROM_SIZE);
             Rom chrRom = new Rom(data);
             chrRoms[i] = chrRom;
             address += CHR_ROM_SIZE;
         }
     }
 
+    /**
+     * @return The mapper number, from the iNES header or as predefined.
+     */
+    public int getMapper() {
+        return mapper;
+    }
+
     /**
      * @return The mirroring mode, as MIRRORING_MODE_HORIZONTAL or
      * MIRRORING_MODE_VERTICAL.
@@ -151,6 +156,17 @@ public class Cartridge {
      * @return Fully configured mapper as a ReadWriteRangeProvider.
      */
     public ReadWriteRangeProvider configureMapper() {
+        Gdx.app.log(getClass().getSimpleName(), "Configuring cpu and ppu bus for Mapper " + mapper + ".");
+        return createMapper();
+    }
+
+    /**
+     * Creates a fully configured mapper for this cartridge like configureMapper,
+     * but without logging, so that it can also be used outside of a running
+     * application, see RomTranslator.
+     * @return Fully configured mapper, or null if the mapper is not supported.
+     */
+    public BankedMapper createMapper() {
         if (mapper == 0) {
             return Mapper0.configure(this);
         } else if (mapper == 2) {
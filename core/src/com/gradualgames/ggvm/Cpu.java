@@ -2,6 +2,7 @@ package com.gradualgames.ggvm;
 
 import com.badlogic.gdx.Gdx;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -17,10 +18,9 @@ import java.io.OutputStream;
  * is expected to call nmi and also call execute repeatedly every frame,
  * enough times to approximate the performance of a real NES.
  *
- * TODO: Implement calculation of the overflow flag.
  * TODO: Finish implementation of indexed indirect addressing.
  */
-public class Cpu {
+public class Cpu implements StateComponent {
 
     public static final int RAM_SIZE = 2048;
 
@@ -28,8 +28,115 @@ public class Cpu {
 
     public static final int EMERGENCY_NMI_BREAK_INSTRUCTION_COUNT = 2000;
 
+    /**
+     * Length in bytes of each instruction, indexed by opcode. Used to decode
+     * the operand ahead of dispatch and to advance the pc afterwards.
+     */
+    static final int[] INSTRUCTION_LENGTHS = {
+            1, 2, 1, 1, 1, 2, 2, 1, 1, 2, 1, 1, 1, 3, 3, 1, //0x00
+            2, 2, 1, 1, 1, 2, 2, 1, 1, 3, 1, 1, 1, 3, 3, 1, //0x10
+            3, 2, 1, 1, 2, 2, 2, 1, 1, 2, 1, 1, 3, 3, 3, 1, //0x20
+            2, 2, 1, 1, 1, 2, 2, 1, 1, 3, 1, 1, 1, 3, 3, 1, //0x30
+            1, 2, 1, 1, 1, 2, 2, 1, 1, 2, 1, 1, 3, 3, 3, 1, //0x40
+            2, 2, 1, 1, 1, 2, 2, 1, 1, 3, 1, 1, 1, 3, 3, 1, //0x50
+            1, 2, 1, 1, 1, 2, 2, 1, 1, 2, 1, 1, 3, 3, 3, 1, //0x60
+            2, 2, 1, 1, 1, 2, 2, 1, 1, 3, 1, 1, 1, 3, 3, 1, //0x70
+            1, 2, 1, 1, 2, 2, 2, 1, 1, 1, 1, 1, 3, 3, 3, 1, //0x80
+            2, 2, 1, 1, 2, 2, 2, 1, 1, 3, 1, 1, 1, 3, 1, 1, //0x90
+            2, 2, 2, 1, 2, 2, 2, 1, 1, 2, 1, 1, 3, 3, 3, 1, //0xa0
+            2, 2, 1, 1, 2, 2, 2, 1, 1, 3, 1, 1, 3, 3, 3, 1, //0xb0
+            2, 2, 1, 1, 2, 2, 2, 1, 1, 2, 1, 1, 3, 3, 3, 1, //0xc0
+            2, 2, 1, 1, 1, 2, 2, 1, 1, 3, 1, 1, 1, 3, 3, 1, //0xd0
+            2, 2, 1, 1, 2, 2, 2, 1, 1, 2, 1, 1, 3, 3, 3, 1, //0xe0
+            2, 2, 1, 1, 1, 2, 2, 1, 1, 3, 1, 1, 1, 3, 3, 1  //0xf0
+    };
+
+    /**
+     * Number of cycles each instruction takes, indexed by opcode, not counting the
+     * extra cycle of an indexed read which crosses a page or the extra cycles of a
+     * branch which is taken. Opcodes which are not implemented count as 2.
+     */
+    static final int[] INSTRUCTION_CYCLES = {
+            7, 6, 2, 2, 2, 3, 5, 2, 3, 2, 2, 2, 2, 4, 6, 2, //0x00
+            2, 5, 2, 2, 2, 4, 6, 2, 2, 4, 2, 2, 2, 4, 7, 2, //0x10
+            6, 6, 2, 2, 3, 3, 5, 2, 4, 2, 2, 2, 4, 4, 6, 2, //0x20
+            2, 5, 2, 2, 2, 4, 6, 2, 2, 4, 2, 2, 2, 4, 7, 2, //0x30
+            6, 6, 2, 2, 2, 3, 5, 2, 3, 2, 2, 2, 3, 4, 6, 2, //0x40
+            2, 5, 2, 2, 2, 4, 6, 2, 2, 4, 2, 2, 2, 4, 7, 2, //0x50
+            6, 6, 2, 2, 2, 3, 5, 2, 4, 2, 2, 2, 5, 4, 6, 2, //0x60
+            2, 5, 2, 2, 2, 4, 6, 2, 2, 4, 2, 2, 2, 4, 7, 2, //0x70
+            2, 6, 2, 2, 3, 3, 3, 2, 2, 2, 2, 2, 4, 4, 4, 2, //0x80
+            2, 6, 2, 2, 4, 4, 4, 2, 2, 5, 2, 2, 2, 5, 2, 2, //0x90
+            2, 6, 2, 2, 3, 3, 3, 2, 2, 2, 2, 2, 4, 4, 4, 2, //0xa0
+            2, 5, 2, 2, 4, 4, 4, 2, 2, 4, 2, 2, 4, 4, 4, 2, //0xb0
+            2, 6, 2, 2, 3, 3, 5, 2, 2, 2, 2, 2, 4, 4, 6, 2, //0xc0
+            2, 5, 2, 2, 2, 4, 6, 2, 2, 4, 2, 2, 2, 4, 7, 2, //0xd0
+            2, 6, 2, 2, 3, 3, 5, 2, 2, 2, 2, 2, 4, 4, 6, 2, //0xe0
+            2, 5, 2, 2, 2, 4, 6, 2, 2, 4, 2, 2, 2, 4, 7, 2  //0xf0
+    };
+
+    /**
+     * Most extra cycles each instruction can take, indexed by opcode: 1 for indexed
+     * reads, which take an extra cycle when they cross a page, and 2 for branches,
+     * which take an extra cycle when taken and another when they land on another page.
+     */
+    static final int[] INSTRUCTION_EXTRA_CYCLES = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, //0x00
+            2, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, //0x10
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, //0x20
+            2, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, //0x30
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, //0x40
+            2, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, //0x50
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, //0x60
+            2, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, //0x70
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, //0x80
+            2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, //0x90
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, //0xa0
+            2, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1, 1, 1, 0, //0xb0
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, //0xc0
+            2, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, //0xd0
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, //0xe0
+            2, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0  //0xf0
+    };
+
+    /**
+     * Number of cycles the cpu takes to enter the nmi handler.
+     */
+    private static final int NMI_CYCLES = 7;
+
     private CpuBus bus;
 
+    /**
+     * The array backing the internal ram. Zero page, stack and other ram accesses make
+     * up most of a game's data traffic, so they index it directly instead of going
+     * through the bus, see read and write.
+     */
+    private byte[] ram;
+
+    /**
+     * Addresses below this are accessed directly through ram. It is the start of the
+     * first page of $0000-$1fff with a BusEventGenerator installed anywhere in it, or
+     * $2000 if there is none, so that listeners are still notified of every access.
+     */
+    private int directRamLimit;
+
+    private InstructionCache instructionCache;
+
+    private BlockTranslator blockTranslator;
+
+    private IdleLoopDetector idleLoopDetector;
+
+    private TranslatedRom translatedRom;
+
+    private boolean blockTranslationEnabled = true;
+
+    private boolean idleLoopDetectionEnabled = true;
+
+    /**
+     * Set when run or runCycles stopped early because the cpu is in an idle loop.
+     */
+    private boolean idle;
+
     /**
      * Counts the number of instructions executed (for performance profiling)
      */
@@ -37,23 +144,46 @@ public class Cpu {
     private long startMillis;
 
     /**
-     * The following members are all internal registers of the CPU.
+     * Counts the number of cycles executed. It wraps around, so only differences
+     * between two counts are meaningful. Package-private so that code generated by
+     * RomTranslator can add the extra cycles of taken branches.
+     */
+    int cycles;
+
+    /**
+     * The following members are all internal registers of the CPU. They
+     * are package-private, as are the small op methods below, so that
+     * code generated by RomTranslator can execute instructions directly.
      */
-    private int pc;
-    private int sp;
-    private int a;
-    private int x;
-    private int y;
+    int pc;
+    int sp;
+    int a;
+    int x;
+    int y;
 
     /**
      * The following are all cpu status flags
      */
-    private boolean status_interrupt_disable;
-    private boolean status_decimal_mode;
-    private int status_carry;
-    private boolean status_negative;
-    private boolean status_zero;
-    private boolean status_overflow;
+    boolean status_interrupt_disable;
+    boolean status_decimal_mode;
+
+    /**
+     * The carry, negative, zero and overflow flags are evaluated lazily. Rather than
+     * testing its result for every instruction, the cpu keeps the value the flag is
+     * derived from, and only tests it when a branch, php, nmi or save needs the flag,
+     * or adc, sbc or a rotate reads the carry, see isCarry, isNegative, isZero and
+     * isOverflow. Most results are never tested.
+     */
+    int carryResult;
+    int negativeResult;
+    int zeroResult;
+    int overflowResult;
+
+    /**
+     * The registers and flags as saved, see save, written and read in one go.
+     */
+    private byte[] state = new byte[13];
+
 
     /**
      * The following keep track of vectors obtained from hardcoded locations
@@ -69,46 +199,55 @@ public class Cpu {
         nmi = bus.readUnsignedWordAsInt(VECTORS_ADDRESS);
         reset = bus.readUnsignedWordAsInt(VECTORS_ADDRESS + 2);
         irq = bus.readUnsignedWordAsInt(VECTORS_ADDRESS + 4);
+
+        instructionCache = new InstructionCache(bus);
+        blockTranslator = new BlockTranslator(bus, instructionCache);
+        idleLoopDetector = new IdleLoopDetector(bus, instructionCache);
+        mapRam();
     }
 
     public void save(OutputStream outputStream) throws IOException {
-        outputStream.write(pc & 0xff);
-        outputStream.write(pc >> 8);
-        outputStream.write(sp & 0xff);
-        outputStream.write(sp >> 8);
-        outputStream.write(a);
-        outputStream.write(x);
-        outputStream.write(y);
-        outputStream.write(status_interrupt_disable ? 1: 0);
-        outputStream.write(status_decimal_mode ? 1: 0);
-        outputStream.write(status_carry);
-        outputStream.write(status_negative ? 1: 0);
-        outputStream.write(status_zero ? 1: 0);
-        outputStream.write(status_overflow ? 1: 0);
+        state[0] = (byte) pc;
+        state[1] = (byte) (pc >> 8);
+        state[2] = (byte) sp;
+        state[3] = (byte) (sp >> 8);
+        state[4] = (byte) a;
+        state[5] = (byte) x;
+        state[6] = (byte) y;
+        state[7] = (byte) (status_interrupt_disable ? 1: 0);
+        state[8] = (byte) (status_decimal_mode ? 1: 0);
+        state[9] = (byte) getCarry();
+        state[10] = (byte) (isNegative() ? 1: 0);
+        state[11] = (byte) (isZero() ? 1: 0);
+        state[12] = (byte) (isOverflow() ? 1: 0);
+        outputStream.write(state);
     }
 
     public void load(InputStream inputStream) throws IOException {
-        int lo = inputStream.read();
-        int hi = inputStream.read();
-        pc = (hi << 8) | lo;
-
-        lo = inputStream.read();
-        hi = inputStream.read();
-        sp = (hi << 8) | lo;
-
-        a = inputStream.read();
-        x = inputStream.read();
-        y = inputStream.read();
-        status_interrupt_disable = inputStream.read() == 1 ? true : false;
-        status_decimal_mode = inputStream.read() == 1 ? true : false;
-        status_carry = inputStream.read();
-        status_negative = inputStream.read() == 1 ? true : false;
-        status_zero = inputStream.read() == 1 ? true : false;
-        status_overflow = inputStream.read() == 1 ? true : false;
+        int length = 0;
+        while (length < state.length) {
+            int read = inputStream.read(state, length, state.length - length);
+            if (read < 0) {
+                throw new EOFException("Cpu state ended early.");
+            }
+            length += read;
+        }
+        pc = (state[1] & 0xff) << 8 | state[0] & 0xff;
+        sp = (state[3] & 0xff) << 8 | state[2] & 0xff;
+        a = state[4] & 0xff;
+        x = state[5] & 0xff;
+        y = state[6] & 0xff;
+        status_interrupt_disable = state[7] == 1;
+        status_decimal_mode = state[8] == 1;
+        setCarry(state[9] == 1);
+        setNegative(state[10] == 1);
+        setZero(state[11] == 1);
+        setOverflow(state[12] == 1);
     }
 
     public void startTimer() {
         instructionCount = 0;
+        idleLoopDetector.clear();
         startMillis = System.currentTimeMillis();
     }
 
@@ -116,6 +255,14 @@ public class Cpu {
         return instructionCount;
     }
 
+    /**
+     * @return The cycle count, which wraps around. Subtract two counts to find the
+     * number of cycles executed in between.
+     */
+    public int getCycles() {
+        return cycles;
+    }
+
     public int instructionsPerSecond() {
         float seconds = (float) (System.currentTimeMillis() - startMillis) / 1000f;
         return (int) (instructionCount / seconds);
@@ -146,7 +293,7 @@ public class Cpu {
         return result;
     }
 
-    private int preIncSp() {
+    int preIncSp() {
         sp = sp + 1;
         if (sp == 512) sp = 256;
         return sp;
@@ -166,12 +313,12 @@ public class Cpu {
         Gdx.app.log(getClass().getSimpleName(), "a: " + Integer.toHexString(a) + " x: " + Integer.toHexString(x) + " y: " + Integer.toHexString(y));
         Gdx.app.log(getClass().getSimpleName(), "pc: " + Integer.toHexString(pc));
         Gdx.app.log(getClass().getSimpleName(), "sp: " + Integer.toHexString(sp));
-        Gdx.app.log(getClass().getSimpleName(), "C:" + status_carry);
-        Gdx.app.log(getClass().getSimpleName(), "Z:" + status_zero);
+        Gdx.app.log(getClass().getSimpleName(), "C:" + getCarry());
+        Gdx.app.log(getClass().getSimpleName(), "Z:" + isZero());
         Gdx.app.log(getClass().getSimpleName(), "I:" + status_interrupt_disable);
         Gdx.app.log(getClass().getSimpleName(), "D:" + status_decimal_mode);
-        Gdx.app.log(getClass().getSimpleName(), "V:" + status_overflow);
-        Gdx.app.log(getClass().getSimpleName(), "N:" + status_negative);
+        Gdx.app.log(getClass().getSimpleName(), "V:" + isOverflow());
+        Gdx.app.log(getClass().getSimpleName(), "N:" + isNegative());
         Gdx.app.log(getClass().getSimpleName(), "****************************************************************");
     }
 
@@ -181,12 +328,12 @@ public class Cpu {
                " y: " + Integer.toHexString(y) +
                " pc: " + Integer.toHexString(pc) +
                " sp: " + Integer.toHexString(sp) +
-               " C: " + status_carry +
-               " Z: " + status_zero +
+               " C: " + getCarry() +
+               " Z: " + isZero() +
                " I: " + status_interrupt_disable +
                " D: " + status_decimal_mode +
-               " V: " + status_overflow +
-               " N: " + status_negative;
+               " V: " + isOverflow() +
+               " N: " + isNegative();
     }
 
     /**
@@ -199,36 +346,15 @@ public class Cpu {
         int returnPoint = pc - 1;
         int lo = returnPoint & 0xff;
         int hi = (returnPoint & 0xff00) >> 8;
-        bus.writeIntAsByte(postDecSp(), hi);
-        bus.writeIntAsByte(postDecSp(), lo);
+        write(postDecSp(), hi);
+        write(postDecSp(), lo);
 
         //Push processor flags, same logic as php
-        int value = 0;
-        if (status_carry == 1) {
-            value = (1 << 6);
-        }
-        if (status_zero) {
-            value |= (1 << 5);
-        }
-        if (status_interrupt_disable) {
-            value |= (1 << 4);
-        }
-        if (status_decimal_mode) {
-            value |= (1 << 3);
-        }
-        //TODO: Implement break mode flag?
-        //TODO: This would be 1 << 2 here
-        if (status_overflow) {
-            value |= (1 << 1);
-        }
-        if (status_negative) {
-            value |= 1;
-        }
-
-        bus.writeIntAsByte(postDecSp(), value);
+        write(postDecSp(), getStatus());
 
         //Now set pc to the nmi address
         pc = nmi;
+        cycles += NMI_CYCLES;
 
         //Execute until rti (0x40) or we execute too long
         int instructions = EMERGENCY_NMI_BREAK_INSTRUCTION_COUNT;
@@ -236,1524 +362,773 @@ public class Cpu {
     }
 
     /**
-     * Looks at the instruction located on the bus at the current program
-     * counter, then jumps to the case associated with that opcode and performs
-     * the associated logic.
-     *
-     * @return Returns the instruction that was executed (for use by nmi to determine
-     * when rti has been executed).
+     * Drops all decoded instructions and finds how much of the ram can still be
+     * accessed directly. Must be called whenever the memory map of the cpu bus changes, for
+     * example when a BusEventGenerator is installed.
      */
-    public int execute() {
+    public void invalidateInstructionCache() {
+        instructionCache.clear();
+        blockTranslator.clear();
+        idleLoopDetector.clear();
+        mapRam();
+    }
 
-        int instruction = bus.readUnsignedByteAsInt(pc);
+    /**
+     * Finds how much of $0000-$1fff is mapped only to the cpu ram, in whole pages, and
+     * can therefore be accessed directly.
+     */
+    private void mapRam() {
+        CpuRam cpuRam = bus.getRam();
+        ram = cpuRam.getRam();
+        directRamLimit = 0;
+        while (directRamLimit < CpuRam.MIRRORED_SIZE && bus.memoryMap[directRamLimit] == cpuRam) {
+            directRamLimit++;
+        }
+        directRamLimit &= ~0xff;
+    }
 
-        int address;
-        int value;
-        int lo, hi;
+    /**
+     * Drops decoded instructions which were read from ram. Must be called whenever
+     * ram is modified by anything other than the cpu, such as loading a save state.
+     */
+    public void invalidateRamInstructionCache() {
+        instructionCache.invalidateWritablePages();
+    }
 
-//        Gdx.app.debug(getClass().getSimpleName(), "****************************************************************");
-//        Gdx.app.debug(getClass().getSimpleName(), "Executing opcode: " + Integer.toHexString(instruction));
+    /**
+     * Sets code generated ahead of time by RomTranslator for the rom, which the block
+     * translator then uses for every block it has code for.
+     * @param translatedRom The translated rom, or null to only use the interpreter and
+     *                      translated blocks.
+     */
+    public void setTranslatedRom(TranslatedRom translatedRom) {
+        this.translatedRom = translatedRom;
+        blockTranslator.setTranslatedRom(translatedRom);
+    }
 
-        switch(instruction) {
-            //adc
-            case 0x69: //adc #
-                value = bus.readUnsignedByteAsInt(++pc);
-                a += value + status_carry;
-                //Check for overflow
-                if (a > 0xff) {
-                    status_carry = 1;
-                    a -= 0x100;
-                } else {
-                    status_carry = 0;
-                }
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                //TODO: Implement overflow flag? I never use it.
-                pc++;
-                break;
-            case 0x65: //adc zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                a += value + status_carry;
-                //Check for overflow
-                if (a > 0xff) {
-                    status_carry = 1;
-                    a -= 0x100;
-                } else {
-                    status_carry = 0;
-                }
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                //TODO: Implement overflow flag? I never use it.
-                pc++;
-                break;
-            case 0x75: //adc zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x);
-                a += value + status_carry;
-                //Check for overflow
-                if (a > 0xff) {
-                    status_carry = 1;
-                    a -= 0x100;
-                } else {
-                    status_carry = 0;
-                }
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                //TODO: Implement overflow flag? I never use it.
-                pc++;
-                break;
-            case 0x6d: //adc abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                a += value + status_carry;
-                //Check for overflow
-                if (a > 0xff) {
-                    status_carry = 1;
-                    a -= 0x100;
-                } else {
-                    status_carry = 0;
-                }
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                //TODO: Implement overflow flag? I never use it.
-                pc += 2;
-                break;
-            case 0x7d: //adc abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x);
-                a += value + status_carry;
-                //Check for overflow
-                if (a > 0xff) {
-                    status_carry = 1;
-                    a -= 0x100;
-                } else {
-                    status_carry = 0;
-                }
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                //TODO: Implement overflow flag? I never use it.
-                pc += 2;
-                break;
-            case 0x79: //adc abs,y
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + y);
-                a += value + status_carry;
-                //Check for overflow
-                if (a > 0xff) {
-                    status_carry = 1;
-                    a -= 0x100;
-                } else {
-                    status_carry = 0;
-                }
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                //TODO: Implement overflow flag? I never use it.
-                pc += 2;
-                break;
-            case 0x61: //adc (indirect,x)
-                throw new RuntimeException("adc (indirect,x) not implemented!");
-            case 0x71: //adc (indirect),y
-                address = bus.readUnsignedByteAsInt(++pc);
-                address = bus.readUnsignedWordAsInt(address);
-                value = bus.readUnsignedByteAsInt(address + y);
-                a += value + status_carry;
-                //Check for overflow
-                if (a > 0xff) {
-                    status_carry = 1;
-                    a -= 0x100;
-                } else {
-                    status_carry = 0;
-                }
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                //TODO: Implement overflow flag? I never use it.
-                pc++;
-                break;
+    public boolean isBlockTranslationEnabled() {
+        return blockTranslationEnabled;
+    }
 
-            //and
-            case 0x29: //and #
-                a &= bus.readUnsignedByteAsInt(++pc);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-            case 0x25: //and zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                a &= bus.readUnsignedByteAsInt(address);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-            case 0x35: //and zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                a &= bus.readUnsignedByteAsInt(address + x);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-            case 0x2d: //and abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                a &= bus.readUnsignedByteAsInt(address);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc += 2;
-                break;
-            case 0x3d: //and abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                a &= bus.readUnsignedByteAsInt(address + x);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc += 2;
-                break;
-            case 0x39: //and abs,y
-                address = bus.readUnsignedWordAsInt(++pc);
-                a &= bus.readUnsignedByteAsInt(address + y);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc += 2;
-                break;
-            case 0x21: //and (indirect,x)
-                throw new RuntimeException("and (indirect,x) not implemented!");
-            case 0x31: //and (indirect),y
-                address = bus.readUnsignedByteAsInt(++pc);
-                address = bus.readUnsignedWordAsInt(address);
-                a &= bus.readUnsignedByteAsInt(address + y);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
+    /**
+     * Turns the block translator on or off. When off, every instruction is interpreted.
+     */
+    public void setBlockTranslationEnabled(boolean blockTranslationEnabled) {
+        this.blockTranslationEnabled = blockTranslationEnabled;
+    }
 
-            //asl
-            case 0x0a: //asl a
-                a <<= 1;
-                status_carry = (a & 0x100) >> 8;
-                a &= 0xff;
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-            case 0x06: //asl zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                value <<= 1;
-                status_carry = (value & 0x100) >> 8;
-                value &= 0xff;
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = a == 0;
-                bus.writeIntAsByte(address, value);
-                pc++;
-                break;
-            case 0x16: //asl zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x);
-                value <<= 1;
-                status_carry = (value & 0x100) >> 8;
-                value &= 0xff;
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = a == 0;
-                bus.writeIntAsByte(address + x, value);
-                pc++;
-                break;
-            case 0x0e: //asl abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                value <<= 1;
-                status_carry = (value & 0x100) >> 8;
-                value &= 0xff;
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = a == 0;
-                bus.writeIntAsByte(address, value);
-                pc += 2;
-                break;
-            case 0x1e: //asl abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x);
-                value <<= 1;
-                status_carry = (value & 0x100) >> 8;
-                value &= 0xff;
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = a == 0;
-                bus.writeIntAsByte(address + x, value);
-                pc += 2;
-                break;
+    public boolean isIdleLoopDetectionEnabled() {
+        return idleLoopDetectionEnabled;
+    }
 
-            //bcc
-            case 0x90:
-                if (status_carry == 0) {
-                    pc += bus.readSignedByte(++pc);
-                }
-                pc += 2;
-                break;
+    /**
+     * Turns idle loop detection on or off, see run.
+     */
+    public void setIdleLoopDetectionEnabled(boolean idleLoopDetectionEnabled) {
+        this.idleLoopDetectionEnabled = idleLoopDetectionEnabled;
+    }
 
-            //bcs
-            case 0xb0:
-                if (status_carry == 1) {
-                    pc += bus.readSignedByte(++pc);
-                }
-                pc += 2;
-                break;
+    /**
+     * @return Whether the last call to run or runCycles stopped early because the
+     * cpu is in an idle loop.
+     */
+    public boolean isIdle() {
+        return idle;
+    }
 
-            //beq
-            case 0xf0:
-                if (status_zero) {
-                    pc += bus.readSignedByte(++pc);
-                }
-                pc += 2;
-                break;
+    /**
+     * Executes exactly instructionCount instructions, running translated blocks
+     * wherever they are hot and fit in the remaining count, and interpreting
+     * everything else.
+     *
+     * If idle loop detection is enabled, this stops early once the cpu is in an idle
+     * loop: a loop in rom which only reads ram or rom and has just run an iteration
+     * which left the registers exactly as they were. Every further iteration would do
+     * the same until an nmi changes ram, so the pc is left at the start of the loop and
+     * the loop resumes after the next nmi. Loops are detected whether they run as a
+     * translated block or are interpreted, see IdleLoopDetector.
+     * @param instructionCount Number of instructions to execute.
+     * @return The number of instructions actually executed.
+     */
+    public int run(int instructionCount) {
+        idle = false;
+        int remaining = instructionCount;
+        BlockTranslator.Block block = null;
+        while (remaining > 0) {
+            if (blockTranslationEnabled) {
+                block = blockTranslator.getBlock(block, pc);
+                if (block != null && block.entries.length <= remaining) {
+                    executeBlockDetectingIdle(block);
+                    remaining -= block.entries.length;
+                    if (idle) {
+                        break;
+                    }
+                    continue;
+                }
+            }
+            executeDetectingIdle();
+            remaining--;
+            if (idle) {
+                break;
+            }
+        }
+        return instructionCount - remaining;
+    }
 
-            //bit
-            case 0x24: //bit zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                status_zero = (value & a) == 0;
-                status_negative = (value & 0x80) == 0x80;
-                status_overflow = (value & 0x40) == 0x40;
-                pc++;
-                break;
-            case 0x2c: //bit abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                status_zero = (value & a) == 0;
-                status_negative = (value & 0x80) == 0x80;
-                status_overflow = (value & 0x40) == 0x40;
-                pc += 2;
-                break;
+    /**
+     * Executes instructions until at least cycleBudget cycles have passed, running
+     * translated blocks wherever they are hot and fit in the remaining cycles even
+     * with all their extra cycles, and interpreting everything else. This stops after
+     * the same instruction with or without block translation. Since the last
+     * instruction always completes, slightly more cycles than the budget may be executed.
+     * Like run, this stops early when the cpu is in an idle loop.
+     * @param cycleBudget Number of cycles to execute.
+     * @return The number of cycles actually executed.
+     */
+    public int runCycles(int cycleBudget) {
+        idle = false;
+        int start = cycles;
+        BlockTranslator.Block block = null;
+        while (cycles - start < cycleBudget) {
+            if (blockTranslationEnabled) {
+                block = blockTranslator.getBlock(block, pc);
+                if (block != null && cycles - start + block.maxCycles <= cycleBudget) {
+                    executeBlockDetectingIdle(block);
+                    if (idle) {
+                        break;
+                    }
+                    continue;
+                }
+            }
+            executeDetectingIdle();
+            if (idle) {
+                break;
+            }
+        }
+        return cycles - start;
+    }
 
-            //bmi
-            case 0x30:
-                if (status_negative) {
-                    pc += bus.readSignedByte(++pc);
-                }
-                pc += 2;
-                break;
+    /**
+     * Executes a translated block, and if it is a possible idle loop which has just run
+     * an iteration that left the registers unchanged, sets idle.
+     */
+    private void executeBlockDetectingIdle(BlockTranslator.Block block) {
+        if (block.idleLoop && idleLoopDetectionEnabled) {
+            int registers = getRegisters();
+            executeBlock(block);
+            idle = pc == block.getPc() && getRegisters() == registers;
+        } else {
+            executeBlock(block);
+        }
+    }
 
-            //bne
-            case 0xd0:
-                if (!status_zero) {
-                    pc += bus.readSignedByte(++pc);
-                }
-                pc += 2;
-                break;
+    /**
+     * Interprets an instruction, and if it jumped back to the start of a possible idle
+     * loop which has just run an iteration that left the registers unchanged, sets idle.
+     */
+    private void executeDetectingIdle() {
+        int address = pc;
+        int instruction = execute();
+        if (pc <= address && idleLoopDetectionEnabled && IdleLoopDetector.isJump(instruction)) {
+            idle = idleLoopDetector.isIdle(address, pc, getRegisters(), instructionCount);
+        }
+    }
 
-            //bpl
-            case 0x10:
-                if (!status_negative) {
-                    pc += bus.readSignedByte(++pc);
-                }
-                pc += 2;
-                break;
+    /**
+     * Packs a, x, y and the status flags into an int, for idle loop detection.
+     */
+    private int getRegisters() {
+        return a | (x << 8) | (y << 16) | (getStatus() << 24);
+    }
 
-            //brk
-            case 0x00:
-                printRegisters();
-                throw new RuntimeException("brk not implemented!");
+    /**
+     * @return The translated block at the current pc, if block translation is enabled,
+     * the pc is hot and the block is no longer than maxInstructions and can take no more
+     * than maxCycles cycles, otherwise null.
+     */
+    BlockTranslator.Block getBlock(int maxInstructions, int maxCycles) {
+        if (blockTranslationEnabled) {
+            BlockTranslator.Block block = blockTranslator.getBlock(pc);
+            if (block != null && block.entries.length <= maxInstructions && block.maxCycles <= maxCycles) {
+                return block;
+            }
+        }
+        return null;
+    }
 
-            //bvc:
-            case 0x50:
-                if (!status_overflow) {
-                    pc += bus.readSignedByte(++pc);
-                }
-                pc += 2;
-                break;
+    /**
+     * Executes a translated block, either through the code generated for it ahead of
+     * time or by running its decoded instructions back to back.
+     */
+    void executeBlock(BlockTranslator.Block block) {
+        int[] entries = block.entries;
+        if (block.translatedIndex >= 0) {
+            translatedRom.execute(this, block.translatedIndex);
+        } else {
+            for (int i = 0; i < entries.length; i++) {
+                int entry = entries[i];
+                execute(entry & 0xff, (entry >> 8) & 0xffff);
+            }
+        }
+        instructionCount += entries.length;
+        cycles += block.cycles;
+    }
 
-            //bvs:
-            case 0x70:
-                if (status_overflow) {
-                    pc += bus.readSignedByte(++pc);
-                }
-                pc += 2;
-                break;
+    /**
+     * Looks up the decoded instruction at the current program counter and
+     * dispatches to the logic associated with that opcode.
+     *
+     * @return Returns the instruction that was executed (for use by nmi to determine
+     * when rti has been executed).
+     */
+    public int execute() {
+        int decoded = instructionCache.fetch(pc);
+        int instruction = decoded & 0xff;
+        execute(instruction, (decoded >> 8) & 0xffff);
+        instructionCount++;
+        cycles += INSTRUCTION_CYCLES[instruction];
+        return instruction;
+    }
 
-            //clc
-            case 0x18:
-                status_carry = 0;
-                pc++;
-                break;
+    /**
+     * Performs the logic associated with an already fetched instruction. Each
+     * case only resolves the addressing mode and hands off to a small method for
+     * the operation itself, which keeps this method compact enough to be compiled
+     * and inlined by the JIT. Instructions which do not modify the pc return
+     * early; all others advance it by the length of the instruction. Only extra
+     * cycles are counted here, the caller counts INSTRUCTION_CYCLES.
+     */
+    void execute(int instruction, int operand) {
+        switch (instruction) {
+            //adc
+            case 0x69: adc(operand); break; //adc #
+            case 0x65: adc(read(operand)); break; //adc zp
+            case 0x75: adc(read(operand + x)); break; //adc zp,x
+            case 0x6d: adc(read(operand)); break; //adc abs
+            case 0x7d: adc(read(indexedRead(operand, x))); break; //adc abs,x
+            case 0x79: adc(read(indexedRead(operand, y))); break; //adc abs,y
+            case 0x61: throw new RuntimeException("adc (indirect,x) not implemented!");
+            case 0x71: adc(read(indirectIndexedRead(operand))); break; //adc (indirect),y
 
-            //cld
-            case 0xd8:
-                status_decimal_mode = false;
-                pc++;
-                break;
+            //and
+            case 0x29: and(operand); break; //and #
+            case 0x25: and(read(operand)); break; //and zp
+            case 0x35: and(read(operand + x)); break; //and zp,x
+            case 0x2d: and(read(operand)); break; //and abs
+            case 0x3d: and(read(indexedRead(operand, x))); break; //and abs,x
+            case 0x39: and(read(indexedRead(operand, y))); break; //and abs,y
+            case 0x21: throw new RuntimeException("and (indirect,x) not implemented!");
+            case 0x31: and(read(indirectIndexedRead(operand))); break; //and (indirect),y
 
-            //cli
-            case 0x58:
-                status_interrupt_disable = false;
-                pc++;
-                break;
+            //asl
+            case 0x0a: aslA(); break; //asl a
+            case 0x06: asl(operand); break; //asl zp
+            case 0x16: asl(operand + x); break; //asl zp,x
+            case 0x0e: asl(operand); break; //asl abs
+            case 0x1e: asl(operand + x); break; //asl abs,x
+
+            //branches
+            case 0x90: branch((carryResult & 0x100) == 0, operand); return; //bcc
+            case 0xb0: branch((carryResult & 0x100) != 0, operand); return; //bcs
+            case 0xf0: branch(zeroResult == 0, operand); return; //beq
+            case 0x30: branch((negativeResult & 0x80) != 0, operand); return; //bmi
+            case 0xd0: branch(zeroResult != 0, operand); return; //bne
+            case 0x10: branch((negativeResult & 0x80) == 0, operand); return; //bpl
+            case 0x50: branch((overflowResult & 0x80) == 0, operand); return; //bvc
+            case 0x70: branch((overflowResult & 0x80) != 0, operand); return; //bvs
 
-            //clv
-            case 0xb8:
-                status_overflow = false;
-                pc++;
-                break;
+            //bit
+            case 0x24: bit(read(operand)); break; //bit zp
+            case 0x2c: bit(read(operand)); break; //bit abs
+
+            //brk
+            case 0x00:
+                printRegisters();
+                throw new RuntimeException("brk not implemented!");
+
+            //flags
+            case 0x18: carryResult = 0; break; //clc
+            case 0xd8: status_decimal_mode = false; break; //cld
+            case 0x58: status_interrupt_disable = false; break; //cli
+            case 0xb8: overflowResult = 0; break; //clv
+            case 0x38: carryResult = 0x100; break; //sec
+            case 0xf8: status_decimal_mode = true; break; //sed
+            case 0x78: status_interrupt_disable = true; break; //sei
 
             //cmp
-            case 0xc9: //cmp #
-                value = bus.readUnsignedByteAsInt(++pc);
-                //Unsigned comparison
-                if (a >= value) {
-                    status_carry = 1;
-                }  else {
-                    status_carry = 0;
-                }
-                //Signed comparison
-                value = (byte) value;
-                if ((byte) a >= (byte) value) {
-                    status_negative = false;
-                }  else {
-                    status_negative = true;
-                }
-                status_zero = a == (value & 0xff);
-                pc++;
-                break;
-            case 0xc5: //cmp zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                //Unsigned comparison
-                if (a >= value) {
-                    status_carry = 1;
-                }  else {
-                    status_carry = 0;
-                }
-                //Signed comparison
-                value = (byte) value;
-                if ((byte) a >= (byte) value) {
-                    status_negative = false;
-                }  else {
-                    status_negative = true;
-                }
-                status_zero = a == (value & 0xff);
-                pc++;
-                break;
-            case 0xd5: //cmp zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x);
-                //Unsigned comparison
-                if (a >= value) {
-                    status_carry = 1;
-                }  else {
-                    status_carry = 0;
-                }
-                //Signed comparison
-                value = (byte) value;
-                if ((byte) a >= (byte) value) {
-                    status_negative = false;
-                }  else {
-                    status_negative = true;
-                }
-                status_zero = a == (value & 0xff);
-                pc++;
-                break;
-            case 0xcd: //cmp abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                //Unsigned comparison
-                if (a >= value) {
-                    status_carry = 1;
-                }  else {
-                    status_carry = 0;
-                }
-                //Signed comparison
-                value = (byte) value;
-                if ((byte) a >= (byte) value) {
-                    status_negative = false;
-                }  else {
-                    status_negative = true;
-                }
-                status_zero = a == (value & 0xff);
-                pc += 2;
-                break;
-            case 0xdd: //cmp abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x);
-                //Unsigned comparison
-                if (a >= value) {
-                    status_carry = 1;
-                }  else {
-                    status_carry = 0;
-                }
-                //Signed comparison
-                value = (byte) value;
-                if ((byte) a >= (byte) value) {
-                    status_negative = false;
-                }  else {
-                    status_negative = true;
-                }
-                status_zero = a == (value & 0xff);
-                pc += 2;
-                break;
-            case 0xd9: //cmp abs,y
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + y);
-                //Unsigned comparison
-                if (a >= value) {
-                    status_carry = 1;
-                }  else {
-                    status_carry = 0;
-                }
-                //Signed comparison
-                value = (byte) value;
-                if ((byte) a >= (byte) value) {
-                    status_negative = false;
-                }  else {
-                    status_negative = true;
-                }
-                status_zero = a == (value & 0xff);
-                pc += 2;
-                break;
-            case 0xc1: //cmp (indirect,x)
-                throw new RuntimeException("cmp (indirect,x) not implemented!");
-            case 0xd1: //cmp (indirect),y
-                address = bus.readUnsignedByteAsInt(++pc);
-                address = bus.readUnsignedWordAsInt(address);
-                value = bus.readUnsignedByteAsInt(address + y);
-                //Unsigned comparison
-                if (a >= value) {
-                    status_carry = 1;
-                }  else {
-                    status_carry = 0;
-                }
-                //Signed comparison
-                value = (byte) value;
-                if ((byte) a >= (byte) value) {
-                    status_negative = false;
-                }  else {
-                    status_negative = true;
-                }
-                status_zero = a == (value & 0xff);
-                pc++;
-                break;
+            case 0xc9: compare(a, operand); break; //cmp #
+            case 0xc5: compare(a, read(operand)); break; //cmp zp
+            case 0xd5: compare(a, read(operand + x)); break; //cmp zp,x
+            case 0xcd: compare(a, read(operand)); break; //cmp abs
+            case 0xdd: compare(a, read(indexedRead(operand, x))); break; //cmp abs,x
+            case 0xd9: compare(a, read(indexedRead(operand, y))); break; //cmp abs,y
+            case 0xc1: throw new RuntimeException("cmp (indirect,x) not implemented!");
+            case 0xd1: compare(a, read(indirectIndexedRead(operand))); break; //cmp (indirect),y
 
             //cpx
-            case 0xe0: //cpx #
-                value = bus.readUnsignedByteAsInt(++pc);
-                //Unsigned comparison
-                if (x >= value) {
-                    status_carry = 1;
-                }  else {
-                    status_carry = 0;
-                }
-                //Signed comparison
-                value = (byte) value;
-                if ((byte) x >= (byte) value) {
-                    status_negative = false;
-                }  else {
-                    status_negative = true;
-                }
-                status_zero = x == (value & 0xff);
-                pc++;
-                break;
-            case 0xe4: //cpx zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                //Unsigned comparison
-                if (x >= value) {
-                    status_carry = 1;
-                }  else {
-                    status_carry = 0;
-                }
-                //Signed comparison
-                value = (byte) value;
-                if ((byte) x >= (byte) value) {
-                    status_negative = false;
-                }  else {
-                    status_negative = true;
-                }
-                status_zero = x == (value & 0xff);
-                pc++;
-                break;
-            case 0xec: //cpx abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                //Unsigned comparison
-                if (x >= value) {
-                    status_carry = 1;
-                }  else {
-                    status_carry = 0;
-                }
-                //Signed comparison
-                value = (byte) value;
-                if ((byte) x >= (byte) value) {
-                    status_negative = false;
-                }  else {
-                    status_negative = true;
-                }
-                status_zero = x == (value & 0xff);
-                pc += 2;
-                break;
+            case 0xe0: compare(x, operand); break; //cpx #
+            case 0xe4: compare(x, read(operand)); break; //cpx zp
+            case 0xec: compare(x, read(operand)); break; //cpx abs
 
             //cpy
-            case 0xc0: //cpy #
-                value = bus.readUnsignedByteAsInt(++pc);
-                //Unsigned comparison
-                if (y >= value) {
-                    status_carry = 1;
-                }  else {
-                    status_carry = 0;
-                }
-                //Signed comparison
-                value = (byte) value;
-                if ((byte) y >= (byte) value) {
-                    status_negative = false;
-                }  else {
-                    status_negative = true;
-                }
-                status_zero = y == (value & 0xff);
-                pc++;
-                break;
-            case 0xc4: //cpy zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                //Unsigned comparison
-                if (y >= value) {
-                    status_carry = 1;
-                }  else {
-                    status_carry = 0;
-                }
-                //Signed comparison
-                value = (byte) value;
-                if ((byte) y >= (byte) value) {
-                    status_negative = false;
-                }  else {
-                    status_negative = true;
-                }
-                status_zero = y == (value & 0xff);
-                pc++;
-                break;
-            case 0xcc: //cpy abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                //Unsigned comparison
-                if (y >= value) {
-                    status_carry = 1;
-                }  else {
-                    status_carry = 0;
-                }
-                //Signed comparison
-                value = (byte) value;
-                if ((byte) y >= (byte) value) {
-                    status_negative = false;
-                }  else {
-                    status_negative = true;
-                }
-                status_zero = y == (value & 0xff);
-                pc += 2;
-                break;
+            case 0xc0: compare(y, operand); break; //cpy #
+            case 0xc4: compare(y, read(operand)); break; //cpy zp
+            case 0xcc: compare(y, read(operand)); break; //cpy abs
 
             //dec
-            case 0xc6: //dec zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address) - 1;
-                value &= 0xff;
-                status_zero = value == 0;
-                status_negative = (value & 0x80) == 0x80;
-                bus.writeIntAsByte(address, value);
-                pc++;
-                break;
-            case 0xd6: //dec zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x) - 1;
-                value &= 0xff;
-                status_zero = value == 0;
-                status_negative = (value & 0x80) == 0x80;
-                bus.writeIntAsByte(address + x, value);
-                pc++;
-                break;
-            case 0xce: //dec abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address) - 1;
-                value &= 0xff;
-                status_zero = value == 0;
-                status_negative = (value & 0x80) == 0x80;
-                bus.writeIntAsByte(address, value);
-                pc += 2;
-                break;
-            case 0xde: //dec abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x) - 1;
-                value &= 0xff;
-                status_zero = value == 0;
-                status_negative = (value & 0x80) == 0x80;
-                bus.writeIntAsByte(address + x, value);
-                pc += 2;
-                break;
-
-            //dex
-            case 0xca:
-                x--;
-                x &= 0xff;
-                status_zero = x == 0;
-                status_negative = (x & 0x80) == 0x80;
-                pc++;
-                break;
-
-            //dey
-            case 0x88:
-                y--;
-                y &= 0xff;
-                status_zero = y == 0;
-                status_negative = (y & 0x80) == 0x80;
-                pc++;
-                break;
-
-            //eor:
-            case 0x49: //eor #
-                a ^= bus.readUnsignedByteAsInt(++pc);
-                status_zero = a == 0;
-                status_negative = (a & 0x80) == 0x80;
-                pc++;
-                break;
-            case 0x45: //eor zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                a ^= bus.readUnsignedByteAsInt(address);
-                status_zero = a == 0;
-                status_negative = (a & 0x80) == 0x80;
-                pc++;
-                break;
-            case 0x55: //eor zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                a ^= bus.readUnsignedByteAsInt(address + x);
-                status_zero = a == 0;
-                status_negative = (a & 0x80) == 0x80;
-                pc++;
-                break;
-            case 0x4d: //eor abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                a ^= bus.readUnsignedByteAsInt(address);
-                status_zero = a == 0;
-                status_negative = (a & 0x80) == 0x80;
-                pc += 2;
-                break;
-            case 0x5d: //eor abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                a ^= bus.readUnsignedByteAsInt(address + x);
-                status_zero = a == 0;
-                status_negative = (a & 0x80) == 0x80;
-                pc += 2;
-                break;
-            case 0x59: //eor abs,y
-                address = bus.readUnsignedWordAsInt(++pc);
-                a ^= bus.readUnsignedByteAsInt(address + y);
-                status_zero = a == 0;
-                status_negative = (a & 0x80) == 0x80;
-                pc += 2;
-                break;
-            case 0x41: //eor (indirect,x)
-                throw new RuntimeException("eor (indirect,x) not implemented!");
-            case 0x51: //eor (indirect),y
-                address = bus.readUnsignedByteAsInt(++pc);
-                address = bus.readUnsignedWordAsInt(address);
-                a ^= bus.readUnsignedByteAsInt(address + y);
-                status_zero = a == 0;
-                status_negative = (a & 0x80) == 0x80;
-                pc++;
-                break;
+            case 0xc6: dec(operand); break; //dec zp
+            case 0xd6: dec(operand + x); break; //dec zp,x
+            case 0xce: dec(operand); break; //dec abs
+            case 0xde: dec(operand + x); break; //dec abs,x
+            case 0xca: x = setNZ((x - 1) & 0xff); break; //dex
+            case 0x88: y = setNZ((y - 1) & 0xff); break; //dey
+
+            //eor
+            case 0x49: eor(operand); break; //eor #
+            case 0x45: eor(read(operand)); break; //eor zp
+            case 0x55: eor(read(operand + x)); break; //eor zp,x
+            case 0x4d: eor(read(operand)); break; //eor abs
+            case 0x5d: eor(read(indexedRead(operand, x))); break; //eor abs,x
+            case 0x59: eor(read(indexedRead(operand, y))); break; //eor abs,y
+            case 0x41: throw new RuntimeException("eor (indirect,x) not implemented!");
+            case 0x51: eor(read(indirectIndexedRead(operand))); break; //eor (indirect),y
 
             //inc
-            case 0xe6: //inc zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address) + 1;
-                value &= 0xff;
-                status_zero = value == 0;
-                status_negative = (value & 0x80) == 0x80;
-                bus.writeIntAsByte(address, value);
-                pc++;
-                break;
-            case 0xf6: //inc zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x) + 1;
-                value &= 0xff;
-                status_zero = value == 0;
-                status_negative = (value & 0x80) == 0x80;
-                bus.writeIntAsByte(address + x, value);
-                pc++;
-                break;
-            case 0xee: //inc abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address) + 1;
-                value &= 0xff;
-                status_zero = value == 0;
-                status_negative = (value & 0x80) == 0x80;
-                bus.writeIntAsByte(address, value);
-                pc += 2;
-                break;
-            case 0xfe: //inc abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x) + 1;
-                value &= 0xff;
-                status_zero = value == 0;
-                status_negative = (value & 0x80) == 0x80;
-                bus.writeIntAsByte(address + x, value);
-                pc += 2;
-                break;
-
-            //inx
-            case 0xe8:
-                x++;
-                x &= 0xff;
-                status_zero = x == 0;
-                status_negative = (x & 0x80) == 0x80;
-                pc++;
-                break;
-
-            //iny
-            case 0xc8:
-                y++;
-                y &= 0xff;
-                status_zero = y == 0;
-                status_negative = (y & 0x80) == 0x80;
-                pc++;
-                break;
+            case 0xe6: inc(operand); break; //inc zp
+            case 0xf6: inc(operand + x); break; //inc zp,x
+            case 0xee: inc(operand); break; //inc abs
+            case 0xfe: inc(operand + x); break; //inc abs,x
+            case 0xe8: x = setNZ((x + 1) & 0xff); break; //inx
+            case 0xc8: y = setNZ((y + 1) & 0xff); break; //iny
 
             //jmp
-            case 0x4c: //jmp abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                pc = address;
-                break;
-            case 0x6c: //jmp (indirect)
-                address = bus.readUnsignedWordAsInt(++pc);
-                address = bus.readUnsignedWordAsInt(address);
-                pc = address;
-                break;
+            case 0x4c: pc = operand; return; //jmp abs
+            case 0x6c: pc = readWord(operand); return; //jmp (indirect)
 
             //jsr
-            case 0x20:
-                int returnPoint = pc + 2;
-                lo = returnPoint & 0xff;
-                hi = (returnPoint & 0xff00) >> 8;
-                bus.writeIntAsByte(postDecSp(), hi);
-                bus.writeIntAsByte(postDecSp(), lo);
-                pc = bus.readUnsignedWordAsInt(++pc);
-                break;
+            case 0x20: jsr(operand); return;
 
             //lda
-            case 0xa9: //lda #
-                a = bus.readUnsignedByteAsInt(++pc);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-            case 0xa5: //lda zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                a = bus.readUnsignedByteAsInt(address);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-            case 0xb5: //lda zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                a = bus.readUnsignedByteAsInt(address + x);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-            case 0xad: //lda abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                a = bus.readUnsignedByteAsInt(address);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc += 2;
-                break;
-            case 0xbd: //lda abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                a = bus.readUnsignedByteAsInt(address + x);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc += 2;
-                break;
-            case 0xb9: //lda abs,y
-                address = bus.readUnsignedWordAsInt(++pc);
-                a = bus.readUnsignedByteAsInt(address + y);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc += 2;
-                break;
-            case 0xa1: //lda (indirect,x)
-                address = bus.readUnsignedByteAsInt(++pc);
-                address = bus.readUnsignedWordAsInt(address + x);
-                a = bus.readUnsignedByteAsInt(address);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-            case 0xb1: // lda (indirect),y
-                address = bus.readUnsignedByteAsInt(++pc);
-                address = bus.readUnsignedWordAsInt(address);
-                a = bus.readUnsignedByteAsInt(address + y);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
+            case 0xa9: a = setNZ(operand); break; //lda #
+            case 0xa5: a = setNZ(read(operand)); break; //lda zp
+            case 0xb5: a = setNZ(read(operand + x)); break; //lda zp,x
+            case 0xad: a = setNZ(read(operand)); break; //lda abs
+            case 0xbd: a = setNZ(read(indexedRead(operand, x))); break; //lda abs,x
+            case 0xb9: a = setNZ(read(indexedRead(operand, y))); break; //lda abs,y
+            case 0xa1: a = setNZ(read(indexedIndirect(operand))); break; //lda (indirect,x)
+            case 0xb1: a = setNZ(read(indirectIndexedRead(operand))); break; //lda (indirect),y
 
             //ldx
-            case 0xa2: //ldx #
-                x = bus.readUnsignedByteAsInt(++pc);
-                status_negative = (x & 0x80) == 0x80;
-                status_zero = x == 0;
-                pc++;
-                break;
-            case 0xa6: //ldx zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                x = bus.readUnsignedByteAsInt(address);
-                status_negative = (x & 0x80) == 0x80;
-                status_zero = x == 0;
-                pc++;
-                break;
-            case 0xb6: //ldx zp,y
-                address = bus.readUnsignedByteAsInt(++pc);
-                x = bus.readUnsignedByteAsInt(address + y);
-                status_negative = (x & 0x80) == 0x80;
-                status_zero = x == 0;
-                pc++;
-                break;
-            case 0xae: //ldx abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                x = bus.readUnsignedByteAsInt(address);
-                status_negative = (x & 0x80) == 0x80;
-                status_zero = x == 0;
-                pc += 2;
-                break;
-            case 0xbe: //ldx abs,y
-                address = bus.readUnsignedWordAsInt(++pc);
-                x = bus.readUnsignedByteAsInt(address + y);
-                status_negative = (x & 0x80) == 0x80;
-                status_zero = x == 0;
-                pc += 2;
-                break;
+            case 0xa2: x = setNZ(operand); break; //ldx #
+            case 0xa6: x = setNZ(read(operand)); break; //ldx zp
+            case 0xb6: x = setNZ(read(operand + y)); break; //ldx zp,y
+            case 0xae: x = setNZ(read(operand)); break; //ldx abs
+            case 0xbe: x = setNZ(read(indexedRead(operand, y))); break; //ldx abs,y
 
             //ldy
-            case 0xa0: //ldy #
-                y = bus.readUnsignedByteAsInt(++pc);
-                status_negative = (y & 0x80) == 0x80;
-                status_zero = y == 0;
-                pc++;
-                break;
-            case 0xa4: //ldy zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                y = bus.readUnsignedByteAsInt(address);
-                status_negative = (y & 0x80) == 0x80;
-                status_zero = y == 0;
-                pc++;
-                break;
-            case 0xb4: //ldy zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                y = bus.readUnsignedByteAsInt(address + x);
-                status_negative = (y & 0x80) == 0x80;
-                status_zero = y == 0;
-                pc++;
-                break;
-            case 0xac: //ldy abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                y = bus.readUnsignedByteAsInt(address);
-                status_negative = (y & 0x80) == 0x80;
-                status_zero = y == 0;
-                pc += 2;
-                break;
-            case 0xbc: //ldy abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                y = bus.readUnsignedByteAsInt(address + x);
-                status_negative = (y & 0x80) == 0x80;
-                status_zero = y == 0;
-                pc += 2;
-                break;
+            case 0xa0: y = setNZ(operand); break; //ldy #
+            case 0xa4: y = setNZ(read(operand)); break; //ldy zp
+            case 0xb4: y = setNZ(read(operand + x)); break; //ldy zp,x
+            case 0xac: y = setNZ(read(operand)); break; //ldy abs
+            case 0xbc: y = setNZ(read(indexedRead(operand, x))); break; //ldy abs,x
 
             //lsr
-            case 0x4a: //lsr a
-                status_carry = a & 1;
-                a >>= 1;
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-            case 0x46: //lsr zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                status_carry = value & 1;
-                value >>= 1;
-                bus.writeIntAsByte(address, value);
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = value == 0;
-                pc++;
-                break;
-            case 0x56: //lsr zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x);
-                status_carry = value & 1;
-                value >>= 1;
-                bus.writeIntAsByte(address + x, value);
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = value == 0;
-                pc++;
-                break;
-            case 0x4e: //lsr abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                status_carry = value & 1;
-                value >>= 1;
-                bus.writeIntAsByte(address, value);
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = value == 0;
-                pc += 2;
-                break;
-            case 0x5e: //lsr abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x);
-                status_carry = value & 1;
-                value >>= 1;
-                bus.writeIntAsByte(address + x, value);
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = value == 0;
-                pc += 2;
-                break;
+            case 0x4a: lsrA(); break; //lsr a
+            case 0x46: lsr(operand); break; //lsr zp
+            case 0x56: lsr(operand + x); break; //lsr zp,x
+            case 0x4e: lsr(operand); break; //lsr abs
+            case 0x5e: lsr(operand + x); break; //lsr abs,x
 
             //nop
-            case 0xea:
-                pc++;
-                break;
+            case 0xea: break;
 
             //ora
-            case 0x09: //ora #
-                a |= bus.readUnsignedByteAsInt(++pc);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-            case 0x05: //ora zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                a |= bus.readUnsignedByteAsInt(address);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-            case 0x15: //ora zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                a |= bus.readUnsignedByteAsInt(address + x);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-            case 0x0d: //ora abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                a |= bus.readUnsignedByteAsInt(address);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc += 2;
-                break;
-            case 0x1d: //ora abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                a |= bus.readUnsignedByteAsInt(address + x);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc += 2;
-                break;
-            case 0x19: //ora abs,y
-                address = bus.readUnsignedWordAsInt(++pc);
-                a |= bus.readUnsignedByteAsInt(address + y);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc += 2;
-                break;
-            case 0x01: //ora (indirect,x)
-                throw new RuntimeException("ora (indirect,x) not implemented!");
-            case 0x11: //ora (indirect),y
-                address = bus.readUnsignedByteAsInt(++pc);
-                address = bus.readUnsignedWordAsInt(address);
-                a |= bus.readUnsignedByteAsInt(address + y);
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-
-            //pha
-            case 0x48:
-                bus.writeIntAsByte(postDecSp(), a);
-                pc++;
-                break;
-
-            //php
-            case 0x08:
-                value = 0;
-                if (status_carry == 1) {
-                    value = (1 << 6);
-                }
-                if (status_zero) {
-                    value |= (1 << 5);
-                }
-                if (status_interrupt_disable) {
-                    value |= (1 << 4);
-                }
-                if (status_decimal_mode) {
-                    value |= (1 << 3);
-                }
-                //TODO: Implement break mode flag?
-                //TODO: This would be 1 << 2 here
-                if (status_overflow) {
-                    value |= (1 << 1);
-                }
-                if (status_negative) {
-                    value |= 1;
-                }
-
-                bus.writeIntAsByte(postDecSp(), value);
-                pc++;
-                break;
-
-            //pla
-            case 0x68:
-                a = bus.readUnsignedByteAsInt(preIncSp());
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-
-            //plp
-            case 0x28:
-                value = bus.readUnsignedByteAsInt(preIncSp());
-                if ((value & (1 << 6)) != 0) {
-                    status_carry = 1;
-                } else {
-                    status_carry = 0;
-                }
-                if ((value & (1 << 5)) != 0) {
-                    status_zero = true;
-                } else {
-                    status_zero = false;
-                }
-                if ((value & (1 << 4)) != 0) {
-                    status_interrupt_disable = true;
-                } else {
-                    status_interrupt_disable = false;
-                }
-                if ((value & (1 << 3)) != 0) {
-                    status_decimal_mode = true;
-                } else {
-                    status_decimal_mode = false;
-                }
-                //TODO: Implement break mode flag?
-                //TODO: This would be 1 << 2 here
-                if ((value & (1 << 1)) != 0) {
-                    status_overflow = true;
-                } else {
-                    status_overflow = false;
-                }
-                if ((value & 1) != 0) {
-                    status_negative = true;
-                } else {
-                    status_negative = false;
-                }
-                pc++;
-                break;
+            case 0x09: ora(operand); break; //ora #
+            case 0x05: ora(read(operand)); break; //ora zp
+            case 0x15: ora(read(operand + x)); break; //ora zp,x
+            case 0x0d: ora(read(operand)); break; //ora abs
+            case 0x1d: ora(read(indexedRead(operand, x))); break; //ora abs,x
+            case 0x19: ora(read(indexedRead(operand, y))); break; //ora abs,y
+            case 0x01: throw new RuntimeException("ora (indirect,x) not implemented!");
+            case 0x11: ora(read(indirectIndexedRead(operand))); break; //ora (indirect),y
+
+            //stack
+            case 0x48: write(postDecSp(), a); break; //pha
+            case 0x08: write(postDecSp(), getStatus()); break; //php
+            case 0x68: a = setNZ(read(preIncSp())); break; //pla
+            case 0x28: setStatus(read(preIncSp())); break; //plp
 
             //rol
-            case 0x2a: //rol a
-                a <<= 1;
-                a |= status_carry;
-                status_carry = (a & (1 << 8)) >> 8;
-                a &= 0xff;
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-            case 0x26: //rol zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                value <<= 1;
-                value |= status_carry;
-                status_carry = (value & (1 << 8)) >> 8;
-                value &= 0xff;
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = value == 0;
-                bus.writeIntAsByte(address, value);
-                pc++;
-                break;
-            case 0x36: //rol zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x);
-                value <<= 1;
-                value |= status_carry;
-                status_carry = (value & (1 << 8)) >> 8;
-                value &= 0xff;
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = value == 0;
-                bus.writeIntAsByte(address + x, value);
-                pc++;
-                break;
-            case 0x2e: //rol abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                value <<= 1;
-                value |= status_carry;
-                status_carry = (value & (1 << 8)) >> 8;
-                value &= 0xff;
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = value == 0;
-                bus.writeIntAsByte(address, value);
-                pc += 2;
-                break;
-            case 0x3e: //rol abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x);
-                value <<= 1;
-                value |= status_carry;
-                status_carry = (value & (1 << 8)) >> 8;
-                value &= 0xff;
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = value == 0;
-                bus.writeIntAsByte(address + x, value);
-                pc += 2;
-                break;
+            case 0x2a: rolA(); break; //rol a
+            case 0x26: rol(operand); break; //rol zp
+            case 0x36: rol(operand + x); break; //rol zp,x
+            case 0x2e: rol(operand); break; //rol abs
+            case 0x3e: rol(operand + x); break; //rol abs,x
 
             //ror
-            case 0x6a: //ror a
-                a |= (status_carry << 8);
-                status_carry = a & 1;
-                a >>= 1;
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
-            case 0x66: //ror zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                value |= (status_carry << 8);
-                status_carry = value & 1;
-                value >>= 1;
-                bus.writeIntAsByte(address, value);
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = value == 0;
-                pc++;
-                break;
-            case 0x76: //ror zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x);
-                value |= (status_carry << 8);
-                status_carry = value & 1;
-                value >>= 1;
-                bus.writeIntAsByte(address + x, value);
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = value == 0;
-                pc++;
-                break;
-            case 0x6e: //ror abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                value |= (status_carry << 8);
-                status_carry = value & 1;
-                value >>= 1;
-                bus.writeIntAsByte(address, value);
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = value == 0;
-                pc += 2;
-                break;
-            case 0x7e: //ror abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x);
-                value |= (status_carry << 8);
-                status_carry = value & 1;
-                value >>= 1;
-                bus.writeIntAsByte(address + x, value);
-                status_negative = (value & 0x80) == 0x80;
-                status_zero = value == 0;
-                pc += 2;
-                break;
+            case 0x6a: rorA(); break; //ror a
+            case 0x66: ror(operand); break; //ror zp
+            case 0x76: ror(operand + x); break; //ror zp,x
+            case 0x6e: ror(operand); break; //ror abs
+            case 0x7e: ror(operand + x); break; //ror abs,x
 
             //rti
-            case 0x40:
-                value = bus.readUnsignedByteAsInt(preIncSp());
-                if ((value & (1 << 6)) != 0) {
-                    status_carry = 1;
-                } else {
-                    status_carry = 0;
-                }
-                if ((value & (1 << 5)) != 0) {
-                    status_zero = true;
-                } else {
-                    status_zero = false;
-                }
-                if ((value & (1 << 4)) != 0) {
-                    status_interrupt_disable = true;
-                } else {
-                    status_interrupt_disable = false;
-                }
-                if ((value & (1 << 3)) != 0) {
-                    status_decimal_mode = true;
-                } else {
-                    status_decimal_mode = false;
-                }
-                //TODO: Implement break mode flag?
-                //TODO: This would be 1 << 2 here
-                if ((value & (1 << 1)) != 0) {
-                    status_overflow = true;
-                } else {
-                    status_overflow = false;
-                }
-                if ((value & 1) != 0) {
-                    status_negative = true;
-                } else {
-                    status_negative = false;
-                }
-                lo = bus.readUnsignedByteAsInt(preIncSp());
-                hi = bus.readUnsignedByteAsInt(preIncSp());
-                pc = ((hi << 8) | lo) + 1;
-                break;
+            case 0x40: rti(); return;
 
             //rts
-            case 0x60:
-                lo = bus.readUnsignedByteAsInt(preIncSp());
-                hi = bus.readUnsignedByteAsInt(preIncSp());
-                pc = ((hi << 8) | lo) + 1;
-                break;
+            case 0x60: rts(); return;
 
             //sbc
-            case 0xe9: //sbc #
-                value = bus.readUnsignedByteAsInt(++pc);
-                a = a - value - (1 - status_carry);
-                if (a < 0) {
-                    a &= 0xff;
-                    status_carry = 0;
-                } else {
-                    status_carry = 1;
-                }
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                //TODO: Implement overflow flag? I never use it.
-                pc++;
-                break;
-            case 0xe5: //sbc zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                a = a - value - (1 - status_carry);
-                if (a < 0) {
-                    a &= 0xff;
-                    status_carry = 0;
-                } else {
-                    status_carry = 1;
-                }
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                //TODO: Implement overflow flag? I never use it.
-                pc++;
-                break;
-            case 0xf5: //sbc zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x);
-                a = a - value - (1 - status_carry);
-                if (a < 0) {
-                    a &= 0xff;
-                    status_carry = 0;
-                } else {
-                    status_carry = 1;
-                }
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                //TODO: Implement overflow flag? I never use it.
-                pc++;
-                break;
-            case 0xed: //sbc abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address);
-                a = a - value - (1 - status_carry);
-                if (a < 0) {
-                    a &= 0xff;
-                    status_carry = 0;
-                } else {
-                    status_carry = 1;
-                }
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                //TODO: Implement overflow flag? I never use it.
-                pc += 2;
-                break;
-            case 0xfd: //sbc abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + x);
-                a = a - value - (1 - status_carry);
-                if (a < 0) {
-                    a &= 0xff;
-                    status_carry = 0;
-                } else {
-                    status_carry = 1;
-                }
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                //TODO: Implement overflow flag? I never use it.
-                pc += 2;
-                break;
-            case 0xf9: //sbc abs,y
-                address = bus.readUnsignedWordAsInt(++pc);
-                value = bus.readUnsignedByteAsInt(address + y);
-                a = a - value - (1 - status_carry);
-                if (a < 0) {
-                    a &= 0xff;
-                    status_carry = 0;
-                } else {
-                    status_carry = 1;
-                }
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                //TODO: Implement overflow flag? I never use it.
-                pc += 2;
-                break;
-            case 0xe1: //sbc (indirect,x)
-                throw new RuntimeException("sbc (indirect,x) not implemented!");
-            case 0xf1: //sbc (indirect),y
-                address = bus.readUnsignedByteAsInt(++pc);
-                address = bus.readUnsignedWordAsInt(address);
-                value = bus.readUnsignedByteAsInt(address + y);
-                a = a - value - (1 - status_carry);
-                if (a < 0) {
-                    a &= 0xff;
-                    status_carry = 0;
-                } else {
-                    status_carry = 1;
-                }
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                //TODO: Implement overflow flag? I never use it.
-                pc++;
-                break;
-
-            //sec
-            case 0x38:
-                status_carry = 1;
-                pc++;
-                break;
-
-            //sed
-            case 0xf8:
-                status_decimal_mode = true;
-                pc++;
-                break;
-
-            //sei
-            case 0x78:
-                status_interrupt_disable = true;
-                pc++;
-                break;
+            case 0xe9: sbc(operand); break; //sbc #
+            case 0xe5: sbc(read(operand)); break; //sbc zp
+            case 0xf5: sbc(read(operand + x)); break; //sbc zp,x
+            case 0xed: sbc(read(operand)); break; //sbc abs
+            case 0xfd: sbc(read(indexedRead(operand, x))); break; //sbc abs,x
+            case 0xf9: sbc(read(indexedRead(operand, y))); break; //sbc abs,y
+            case 0xe1: throw new RuntimeException("sbc (indirect,x) not implemented!");
+            case 0xf1: sbc(read(indirectIndexedRead(operand))); break; //sbc (indirect),y
 
             //sta
-            case 0x85: //sta zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                bus.writeIntAsByte(address, a);
-                pc++;
-                break;
-            case 0x95: //sta zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                bus.writeIntAsByte(address + x, a);
-                pc++;
-                break;
-            case 0x8d: //sta abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                bus.writeIntAsByte(address, a);
-                pc += 2;
-                break;
-            case 0x9d: //sta abs,x
-                address = bus.readUnsignedWordAsInt(++pc);
-                bus.writeIntAsByte(address + x, a);
-                pc += 2;
-                break;
-            case 0x99: //sta abs,y
-                address = bus.readUnsignedWordAsInt(++pc);
-                bus.writeIntAsByte(address + y, a);
-                pc += 2;
-                break;
-            case 0x81: //sta (indirect,x)
-                throw new RuntimeException("sta (indirect,x) not implemented!");
-            case 0x91: // sta (indirect),y
-                address = bus.readUnsignedByteAsInt(++pc);
-                address = bus.readUnsignedWordAsInt(address);
-                bus.writeIntAsByte(address + y, a);
-                pc++;
-                break;
+            case 0x85: write(operand, a); break; //sta zp
+            case 0x95: write(operand + x, a); break; //sta zp,x
+            case 0x8d: write(operand, a); break; //sta abs
+            case 0x9d: write(operand + x, a); break; //sta abs,x
+            case 0x99: write(operand + y, a); break; //sta abs,y
+            case 0x81: throw new RuntimeException("sta (indirect,x) not implemented!");
+            case 0x91: write(indirectIndexed(operand), a); break; //sta (indirect),y
 
             //stx
-            case 0x86: //stx zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                bus.writeIntAsByte(address, x);
-                pc++;
-                break;
-            case 0x96: //stx zp,y
-                address = bus.readUnsignedByteAsInt(++pc);
-                bus.writeIntAsByte(address + y, x);
-                pc++;
-                break;
-            case 0x8e: //stx abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                bus.writeIntAsByte(address, x);
-                pc += 2;
-                break;
+            case 0x86: write(operand, x); break; //stx zp
+            case 0x96: write(operand + y, x); break; //stx zp,y
+            case 0x8e: write(operand, x); break; //stx abs
 
             //sty
-            case 0x84: //sty zp
-                address = bus.readUnsignedByteAsInt(++pc);
-                bus.writeIntAsByte(address, y);
-                pc++;
-                break;
-            case 0x94: //sty zp,x
-                address = bus.readUnsignedByteAsInt(++pc);
-                bus.writeIntAsByte(address + x, y);
-                pc++;
-                break;
-            case 0x8c: //sty abs
-                address = bus.readUnsignedWordAsInt(++pc);
-                bus.writeIntAsByte(address, y);
-                pc += 2;
-                break;
+            case 0x84: write(operand, y); break; //sty zp
+            case 0x94: write(operand + x, y); break; //sty zp,x
+            case 0x8c: write(operand, y); break; //sty abs
+
+            //transfers
+            case 0xaa: x = setNZ(a); break; //tax
+            case 0xa8: y = setNZ(a); break; //tay
+            case 0xba: x = setNZ(sp - 0x100); break; //tsx
+            case 0x8a: a = setNZ(x); break; //txa
+            case 0x9a: sp = 0x100 + x; break; //txs
+            case 0x98: a = setNZ(y); break; //tya
 
-            //tax
-            case 0xaa:
-                x = a;
-                status_negative = (x & 0x80) == 0x80;
-                status_zero = x == 0;
-                pc++;
-                break;
+            default:
+                printRegisters();
+                Gdx.app.error(getClass().getSimpleName(), "Instruction: " + instruction + " not implemented.");
+                throw new RuntimeException("Instruction: " + instruction + " not implemented.");
+        }
+        pc += INSTRUCTION_LENGTHS[instruction];
+    }
 
-            //tay
-            case 0xa8:
-                y = a;
-                status_negative = (y & 0x80) == 0x80;
-                status_zero = y == 0;
-                pc++;
-                break;
+    /**
+     * Reads a byte, directly from ram if the address is below directRamLimit,
+     * otherwise through the bus.
+     */
+    int read(int address) {
+        if (address < directRamLimit) {
+            return ram[address & CpuRam.MIRROR_MASK] & 0xff;
+        }
+        return bus.readUnsignedByteAsInt(address);
+    }
 
-            //tsx
-            case 0xba:
-                x = sp - 0x100;
-                status_negative = (x & 0x80) == 0x80;
-                status_zero = x == 0;
-                pc++;
-                break;
+    /**
+     * Writes a byte, directly to ram if the address is below directRamLimit,
+     * otherwise through the bus.
+     */
+    void write(int address, int value) {
+        if (address < directRamLimit) {
+            address &= CpuRam.MIRROR_MASK;
+            ram[address] = (byte) value;
+        } else {
+            bus.writeIntAsByte(address, value);
+            if (address < CpuRam.MIRRORED_SIZE) {
+                address &= CpuRam.MIRROR_MASK;
+            }
+        }
+        //Code in ram is only cached at its address in $0000-$07ff
+        instructionCache.invalidate(address);
+    }
 
-            //txa
-            case 0x8a:
-                a = x;
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
+    /**
+     * Reads a little endian word, such as the pointer of an indirect addressing mode.
+     */
+    int readWord(int address) {
+        return read(address) | (read(address + 1) << 8);
+    }
 
-            //txs:
-            case 0x9a:
-                sp = 0x100 + x;
-                pc++;
-                break;
+    /**
+     * Resolves the (indirect),y addressing mode.
+     */
+    int indirectIndexed(int operand) {
+        return readWord(operand) + y;
+    }
 
-            //tya:
-            case 0x98:
-                a = y;
-                status_negative = (a & 0x80) == 0x80;
-                status_zero = a == 0;
-                pc++;
-                break;
+    /**
+     * Resolves the (indirect),y addressing mode for a read, counting the extra
+     * cycle taken when indexing crosses a page.
+     */
+    int indirectIndexedRead(int operand) {
+        return indexedRead(readWord(operand), y);
+    }
 
-            default:
-                printRegisters();
-                Gdx.app.error(getClass().getSimpleName(), "Instruction: " + instruction + " not implemented.");
-                throw new RuntimeException("Instruction: " + instruction + " not implemented.");
+    /**
+     * Resolves the abs,x and abs,y addressing modes for a read, counting the extra
+     * cycle taken when indexing crosses a page.
+     */
+    int indexedRead(int base, int index) {
+        int address = base + index;
+        if (((base ^ address) & 0xff00) != 0) {
+            cycles++;
         }
-        instructionCount++;
-        return instruction;
+        return address;
+    }
+
+    /**
+     * Resolves the (indirect,x) addressing mode.
+     */
+    int indexedIndirect(int operand) {
+        return readWord(operand + x);
+    }
+
+    /**
+     * Sets the negative and zero flags from the given value and returns it.
+     */
+    int setNZ(int value) {
+        negativeResult = value;
+        zeroResult = value;
+        return value;
+    }
+
+    /**
+     * @return The carry flag, 0 or 1: bit 8 of carryResult.
+     */
+    int getCarry() {
+        return (carryResult >> 8) & 1;
+    }
+
+    boolean isCarry() {
+        return (carryResult & 0x100) != 0;
+    }
+
+    void setCarry(boolean carry) {
+        carryResult = carry ? 0x100 : 0;
+    }
+
+    /**
+     * @return The negative flag: set when bit 7 of negativeResult is set.
+     */
+    boolean isNegative() {
+        return (negativeResult & 0x80) != 0;
+    }
+
+    void setNegative(boolean negative) {
+        negativeResult = negative ? 0x80 : 0;
+    }
+
+    /**
+     * @return The zero flag: set when zeroResult is 0.
+     */
+    boolean isZero() {
+        return zeroResult == 0;
+    }
+
+    void setZero(boolean zero) {
+        zeroResult = zero ? 0 : 1;
+    }
+
+    /**
+     * @return The overflow flag: set when bit 7 of overflowResult is set.
+     */
+    boolean isOverflow() {
+        return (overflowResult & 0x80) != 0;
+    }
+
+    void setOverflow(boolean overflow) {
+        overflowResult = overflow ? 0x80 : 0;
+    }
+
+    /**
+     * Packs the status flags into a byte, as pushed by php and nmi.
+     */
+    int getStatus() {
+        int value = 0;
+        if (isCarry()) {
+            value = (1 << 6);
+        }
+        if (isZero()) {
+            value |= (1 << 5);
+        }
+        if (status_interrupt_disable) {
+            value |= (1 << 4);
+        }
+        if (status_decimal_mode) {
+            value |= (1 << 3);
+        }
+        //TODO: Implement break mode flag?
+        //TODO: This would be 1 << 2 here
+        if (isOverflow()) {
+            value |= (1 << 1);
+        }
+        if (isNegative()) {
+            value |= 1;
+        }
+        return value;
+    }
+
+    /**
+     * Unpacks the status flags from a byte, as pulled by plp and rti.
+     */
+    void setStatus(int value) {
+        setCarry((value & (1 << 6)) != 0);
+        setZero((value & (1 << 5)) != 0);
+        status_interrupt_disable = (value & (1 << 4)) != 0;
+        status_decimal_mode = (value & (1 << 3)) != 0;
+        //TODO: Implement break mode flag?
+        //TODO: This would be 1 << 2 here
+        setOverflow((value & (1 << 1)) != 0);
+        setNegative((value & 1) != 0);
+    }
+
+    void adc(int value) {
+        int result = a + value + getCarry();
+        //Signed overflow if both operands have the same sign and the result has another
+        overflowResult = (a ^ result) & (value ^ result);
+        carryResult = result;
+        a = setNZ(result & 0xff);
+    }
+
+    void sbc(int value) {
+        int result = a - value - (1 - getCarry());
+        //Signed overflow if the operands have different signs and the result has the
+        //sign of value
+        overflowResult = (a ^ result) & (a ^ value);
+        //The result is within -256..255, so bit 8 is set after adding 0x100 unless it
+        //borrowed
+        carryResult = result + 0x100;
+        a = setNZ(result & 0xff);
+    }
+
+    void and(int value) {
+        a = setNZ(a & value);
+    }
+
+    void eor(int value) {
+        a = setNZ(a ^ value);
+    }
+
+    void ora(int value) {
+        a = setNZ(a | value);
+    }
+
+    void bit(int value) {
+        zeroResult = value & a;
+        negativeResult = value;
+        overflowResult = value << 1;
+    }
+
+    void compare(int register, int value) {
+        //Unsigned comparison, bit 8 is set after adding 0x100 unless it borrowed
+        carryResult = register - value + 0x100;
+        //Signed comparison, the difference is within -255..255 so shifting leaves
+        //all bits set if it is negative, none otherwise
+        negativeResult = ((byte) register - (byte) value) >> 8;
+        zeroResult = register - value;
+    }
+
+    void aslA() {
+        a <<= 1;
+        carryResult = a;
+        a = setNZ(a & 0xff);
+    }
+
+    void asl(int address) {
+        int value = read(address) << 1;
+        carryResult = value;
+        value &= 0xff;
+        negativeResult = value;
+        zeroResult = a;
+        write(address, value);
+    }
+
+    void lsrA() {
+        carryResult = a << 8;
+        a = setNZ(a >> 1);
+    }
+
+    void lsr(int address) {
+        int value = read(address);
+        carryResult = value << 8;
+        value >>= 1;
+        write(address, value);
+        setNZ(value);
+    }
+
+    void rolA() {
+        a = (a << 1) | getCarry();
+        carryResult = a;
+        a = setNZ(a & 0xff);
+    }
+
+    void rol(int address) {
+        int value = (read(address) << 1) | getCarry();
+        carryResult = value;
+        value = setNZ(value & 0xff);
+        write(address, value);
+    }
+
+    void rorA() {
+        a |= carryResult & 0x100;
+        carryResult = a << 8;
+        a = setNZ(a >> 1);
+    }
+
+    void ror(int address) {
+        int value = read(address) | (carryResult & 0x100);
+        carryResult = value << 8;
+        value >>= 1;
+        write(address, value);
+        setNZ(value);
+    }
+
+    void dec(int address) {
+        write(address, setNZ((read(address) - 1) & 0xff));
+    }
+
+    void inc(int address) {
+        write(address, setNZ((read(address) + 1) & 0xff));
+    }
+
+    /**
+     * Branches if condition holds. A taken branch takes an extra cycle, and another
+     * one if it lands on a different page than the following instruction.
+     */
+    private void branch(boolean condition, int operand) {
+        pc += 2;
+        if (condition) {
+            int target = pc + (byte) operand;
+            cycles += ((target ^ pc) & 0xff00) != 0 ? 2 : 1;
+            pc = target;
+        }
+    }
+
+    private void jsr(int address) {
+        int returnPoint = pc + 2;
+        write(postDecSp(), (returnPoint & 0xff00) >> 8);
+        write(postDecSp(), returnPoint & 0xff);
+        pc = address;
+    }
+
+    private void rts() {
+        int lo = read(preIncSp());
+        int hi = read(preIncSp());
+        pc = ((hi << 8) | lo) + 1;
+    }
+
+    private void rti() {
+        setStatus(read(preIncSp()));
+        rts();
     }
 }
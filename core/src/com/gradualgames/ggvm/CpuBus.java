@@ -20,8 +20,13 @@ public class CpuBus extends Bus {
      */
     public static final int MEMORY_MAP_SIZE = 65536 + 256;
 
+    /**
+     * The internal ram, which the cpu accesses directly where it can.
+     */
+    private CpuRam ram;
+
     public CpuBus(
-            Ram ram,
+            CpuRam ram,
             com.gradualgames.ggvm.Controller controller,
             SpriteRam spriteRam,
             ReadWriteRangeProvider ppu,
@@ -30,6 +35,7 @@ public class CpuBus extends Bus {
             ReadWriteRangeWarning readWriteRangeWarning) {
         super(BusType.CPU, MEMORY_MAP_SIZE, readWriteRangeWarning);
         //Map the ram object
+        this.ram = ram;
         add(ram);
         //Map the controller object
         add(controller);
@@ -45,4 +51,8 @@ public class CpuBus extends Bus {
         //Fill all null entries with a no-op
         fillNullEntries(readWriteRangeWarning);
     }
+
+    public CpuRam getRam() {
+        return ram;
+    }
 }
@@ -0,0 +1,78 @@
+package com.gradualgames.ggvm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The 2k of internal ram of the NES. It is mapped across $0000-$1fff on the cpu
+ * bus, and like on a real NES, $0800-$1fff mirror the 2k at $0000-$07ff. The
+ * cpu reads and writes the backing array directly for any address in this range
+ * without a BusEventGenerator installed, see Cpu.read and Cpu.write.
+ */
+public class CpuRam implements DirectReadWriteRange {
+
+    /**
+     * Size of the range the ram is mapped across, including its mirrors.
+     */
+    public static final int MIRRORED_SIZE = 0x2000;
+
+    /**
+     * Mask which maps an address in the mirrored range to an index into the ram.
+     */
+    public static final int MIRROR_MASK = Cpu.RAM_SIZE - 1;
+
+    private byte[] ram = new byte[Cpu.RAM_SIZE];
+
+    /**
+     * @return The array backing the ram, for direct access by the cpu.
+     */
+    byte[] getRam() {
+        return ram;
+    }
+
+    @Override
+    public byte read(int address) {
+        return ram[address & MIRROR_MASK];
+    }
+
+    @Override
+    public void write(int address, byte value) {
+        ram[address & MIRROR_MASK] = value;
+    }
+
+    @Override
+    public byte[] getPageData(int address) {
+        return ram;
+    }
+
+    @Override
+    public int getPageOffset(int address) {
+        return -(address & ~MIRROR_MASK);
+    }
+
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+
+    @Override
+    public int lower() {
+        return 0;
+    }
+
+    @Override
+    public int upper() {
+        return MIRRORED_SIZE - 1;
+    }
+
+    @Override
+    public void save(OutputStream outputStream) throws IOException {
+        outputStream.write(ram);
+    }
+
+    @Override
+    public void load(InputStream inputStream) throws IOException {
+        inputStream.read(ram);
+    }
+}
@@ -0,0 +1,30 @@
+package com.gradualgames.ggvm;
+
+/**
+ * A ReadWriteRange which is backed by byte arrays. A Bus reads, and unless the range
+ * is read only, writes every 256 byte page this range covers entirely straight from
+ * and to those arrays, rather than calling read and write. See Bus.mapPages.
+ */
+public interface DirectReadWriteRange extends ReadWriteRange {
+
+    /**
+     * @param address The address of the start of a page within this range.
+     * @return The array holding the page, or null if the page must be accessed
+     * through read and write.
+     */
+    byte[] getPageData(int address);
+
+    /**
+     * @param address The address of the start of a page within this range.
+     * @return The offset which, added to any address within the page, gives its
+     * index into the array returned by getPageData.
+     */
+    int getPageOffset(int address);
+
+    /**
+     * @return Whether writes may be stored straight into the arrays. Roms return
+     * false, so that writes still reach write, where mappers interpret them as
+     * bank switches.
+     */
+    boolean isWritable();
+}
@@ -0,0 +1,127 @@
+package com.gradualgames.ggvm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs GGVm on a thread of its own, as many frames as the application asks for with
+ * requestFrames. The application asks for the frames a FrameScheduler says are due
+ * right after acquiring the last one, see GGVm.acquireFrameState, so the cpu emulates
+ * the next frames while the application draws the last one, rather than one after the
+ * other on the same thread.
+ *
+ * Frames are handed over through the frame state triple buffer, and buttons through
+ * a queue, see GGVm, so neither thread ever waits for the other. At most
+ * MAX_PENDING_FRAMES requests are kept, so a vm which cannot keep up with the frame
+ * rate slows down rather than falling further and further behind. The thread parks
+ * while no frame is requested, unless it is uncapped, when it runs frames back to
+ * back as fast as it can, for fast forward.
+ *
+ * While the thread runs, the application should use the vm only to set buttons,
+ * acquire frame states, start, stop or reset it. Stop the thread before saving or
+ * loading states.
+ */
+public class EmulationThread implements Runnable {
+
+    private static final int MAX_PENDING_FRAMES = FrameScheduler.DEFAULT_MAX_FRAMES_PER_UPDATE;
+
+    private GGVm ggvm;
+
+    private Thread.UncaughtExceptionHandler uncaughtExceptionHandler;
+
+    private Thread thread;
+
+    private volatile boolean running;
+
+    private AtomicInteger pendingFrames = new AtomicInteger();
+
+    private volatile boolean uncapped;
+
+    /**
+     * @param ggvm The vm to run.
+     * @param uncaughtExceptionHandler Handles anything thrown while running the vm.
+     */
+    public EmulationThread(GGVm ggvm, Thread.UncaughtExceptionHandler uncaughtExceptionHandler) {
+        this.ggvm = ggvm;
+        this.uncaughtExceptionHandler = uncaughtExceptionHandler;
+    }
+
+    /**
+     * Starts the thread, if it is not running already.
+     */
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        pendingFrames.set(0);
+        thread = new Thread(this, getClass().getSimpleName());
+        thread.setUncaughtExceptionHandler(uncaughtExceptionHandler);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread after the frame it is running, if any, and waits for it.
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Asks the thread to run more frames. Only to be called from one thread. The
+     * frames pending are capped at MAX_PENDING_FRAMES, or at the frames requested
+     * this time if more, as when fast forwarding.
+     * @param frames The number of frames to run, see FrameScheduler.update.
+     */
+    public void requestFrames(int frames) {
+        if (frames <= 0) {
+            return;
+        }
+        int maxPendingFrames = Math.max(frames, MAX_PENDING_FRAMES);
+        int pending;
+        do {
+            pending = pendingFrames.get();
+        } while (!pendingFrames.compareAndSet(pending, Math.min(pending + frames, maxPendingFrames)));
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Sets whether the thread runs frames as fast as it can rather than as requested,
+     * see FrameScheduler.UNCAPPED.
+     */
+    public void setUncapped(boolean uncapped) {
+        if (this.uncapped != uncapped) {
+            this.uncapped = uncapped;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            if (!uncapped) {
+                if (pendingFrames.get() == 0) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                pendingFrames.decrementAndGet();
+            }
+            ggvm.runFrame();
+            ggvm.logInstructionsPerSecond();
+        }
+    }
+}
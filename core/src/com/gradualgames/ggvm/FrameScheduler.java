@@ -0,0 +1,152 @@
+package com.gradualgames.ggvm;
+
+/**
+ * Decides how many frames GGVm should run for each frame the application draws, so
+ * that games run at the frame rate of the NES rather than the refresh rate of the
+ * display. Time passed since the last update is added to an accumulator, and a whole
+ * number of frames is taken out of it: none when the display refreshes faster than
+ * the NES, such as at 144Hz, where the application draws the last frame again, and
+ * more than one after a slow frame on the application's side.
+ *
+ * After a stall, such as a garbage collection or the window being dragged, at most
+ * maxFramesPerUpdate frames are run and the rest are dropped, so the vm does not
+ * spend several display frames catching up. The accumulator starts half a frame
+ * full, so that jitter in the display's timing of up to half a frame either way
+ * never turns into an update running no frame followed by one running two.
+ *
+ * For fast forward, the scheduler can run a multiple of the frame rate, see setSpeed,
+ * or leave it to the application to run frames as fast as it can.
+ */
+public class FrameScheduler {
+
+    /**
+     * Frame rate of the NTSC NES: a cpu clock of 1.789773MHz over 29780.5 cycles.
+     */
+    public static final double NTSC_FRAME_RATE = 60.0988;
+
+    /**
+     * Frame rate of the PAL NES.
+     */
+    public static final double PAL_FRAME_RATE = 50.007;
+
+    public static final int DEFAULT_MAX_FRAMES_PER_UPDATE = 4;
+
+    /**
+     * Speed at which no frames are scheduled, because the application runs them as
+     * fast as it can, see setSpeed.
+     */
+    public static final int UNCAPPED = 0;
+
+    private long framePeriodNanos;
+
+    private int maxFramesPerUpdate;
+
+    private long accumulatorNanos;
+
+    private long lastUpdateNanos;
+
+    private long droppedFrames;
+
+    private int speed = 1;
+
+    /**
+     * @param frameRate Frames per second to run, such as NTSC_FRAME_RATE.
+     * @param maxFramesPerUpdate The most frames a single update may run.
+     */
+    public FrameScheduler(double frameRate, int maxFramesPerUpdate) {
+        this.framePeriodNanos = Math.round(1000000000.0 / frameRate);
+        this.maxFramesPerUpdate = maxFramesPerUpdate;
+        reset();
+    }
+
+    public FrameScheduler(double frameRate) {
+        this(frameRate, DEFAULT_MAX_FRAMES_PER_UPDATE);
+    }
+
+    /**
+     * Forgets the time passed so far, such as after the application was paused, so
+     * that it is not caught up on. The next update counts from now.
+     */
+    public void reset() {
+        reset(System.nanoTime());
+    }
+
+    /**
+     * Forgets the time passed so far, as of a given time.
+     * @param nowNanos The time now, on the clock of System.nanoTime.
+     */
+    void reset(long nowNanos) {
+        accumulatorNanos = framePeriodNanos / 2;
+        lastUpdateNanos = nowNanos;
+    }
+
+    /**
+     * Sets how many times the frame rate to run at, 1 being normal speed. Time passed
+     * counts that many times over, and that many times more frames may be run per
+     * update after a stall. At UNCAPPED, update always returns 0 and the application
+     * runs frames as fast as it can instead.
+     * @param speed A multiple of the frame rate, or UNCAPPED.
+     */
+    public void setSpeed(int speed) {
+        if (this.speed != speed) {
+            this.speed = speed;
+            reset();
+        }
+    }
+
+    public int getSpeed() {
+        return speed;
+    }
+
+    public boolean isUncapped() {
+        return speed == UNCAPPED;
+    }
+
+    /**
+     * Adds the time passed since the last update and takes the frames due out of it.
+     * To be called once for every frame the application draws.
+     * @return The number of frames to run, from 0 to maxFramesPerUpdate times the
+     * speed.
+     */
+    public int update() {
+        return update(System.nanoTime());
+    }
+
+    /**
+     * Adds the time passed since the last update as of a given time and takes the
+     * frames due out of it.
+     * @param nowNanos The time now, on the clock of System.nanoTime.
+     * @return The number of frames to run.
+     */
+    int update(long nowNanos) {
+        if (speed == UNCAPPED) {
+            lastUpdateNanos = nowNanos;
+            return 0;
+        }
+        accumulatorNanos += (nowNanos - lastUpdateNanos) * speed;
+        lastUpdateNanos = nowNanos;
+        long frames = accumulatorNanos / framePeriodNanos;
+        accumulatorNanos -= frames * framePeriodNanos;
+        int maxFrames = maxFramesPerUpdate * speed;
+        if (frames > maxFrames) {
+            droppedFrames += frames - maxFrames;
+            frames = maxFrames;
+        }
+        return (int) frames;
+    }
+
+    /**
+     * @return The length of a frame in nanoseconds.
+     */
+    public long getFramePeriodNanos() {
+        return framePeriodNanos;
+    }
+
+    /**
+     * @return The number of frames dropped so far because they were more than an
+     * update may run.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+}
@@ -0,0 +1,334 @@
+package com.gradualgames.ggvm;
+
+import java.util.Arrays;
+
+/**
+ * The state of the ppu as of the end of a frame, which is everything renderers need
+ * to draw it: the ppu control bits and scroll, the nametables, the palette, the
+ * sprites, and the chr data on the ppu bus along with the patterns written since the
+ * previous frame state. For BankedMappers it also holds the bank shown in each CHR
+ * slot and a copy of all banks of CHR-RAM. GGVm captures one at the end of every
+ * frame, and renderers read it rather than the vm, so that the vm can run the next
+ * frame on another thread, see EmulationThread, while the last one is drawn.
+ *
+ * Frame states are handed from the vm to the renderer through a triple buffer, see
+ * GGVm.acquireFrameState, so a frame state must not be kept past the next call to
+ * it. The getters are the same as those of GGVm.
+ */
+public class FrameState {
+
+    private static final int NAMETABLES_SIZE = 4 * Ppu.NAMETABLE_RAM_SIZE;
+
+    private int frame;
+
+    private int nametableAddress;
+
+    private int scrollX;
+
+    private int scrollY;
+
+    private int backgroundPatternTableAddress;
+
+    private int spritePatternTableAddress;
+
+    private int spriteSize;
+
+    private boolean backgroundVisible;
+
+    private boolean backgroundClipping;
+
+    private boolean spriteClipping;
+
+    private boolean monochromeDisplayType;
+
+    /**
+     * All four nametables as read from $2000 through $2fff on the ppu bus, so mirrored
+     * nametables appear once for every address they are mirrored at.
+     */
+    private byte[] nametables = new byte[NAMETABLES_SIZE];
+
+    private byte[] palette = new byte[Ppu.PALETTE_RAM_SIZE];
+
+    private int paletteVersion;
+
+    private SpriteRamSnapshot sprites = new SpriteRamSnapshot();
+
+    private byte[] chr = new byte[GGVm.CHR_SIZE];
+
+    /**
+     * The bank shown in each CHR slot, for BankedMappers.
+     */
+    private int[] chrBanks = new int[0];
+
+    /**
+     * The chr memory of a BankedMapper, all banks of it: a copy of its CHR-RAM, or its
+     * CHR rom itself, which never changes.
+     */
+    private byte[] chrMemory;
+
+    /**
+     * One bit for each pattern in the CHR-RAM of a BankedMapper, set for patterns
+     * written since they were last copied into chrMemory. Only used by the vm.
+     */
+    private long[] staleChrRamPatterns;
+
+    /**
+     * One bit for each pattern in the chr memory of the cartridge, set for patterns
+     * written since the previous frame state the renderer acquired, see
+     * GGVm.acquireFrameState.
+     */
+    long[] dirtyPatterns;
+
+    FrameState(int chrTiles) {
+        dirtyPatterns = new long[(chrTiles + 63) / 64];
+        staleChrRamPatterns = new long[dirtyPatterns.length];
+        for (int pattern = 0; pattern < chrTiles; pattern++) {
+            staleChrRamPatterns[pattern >> 6] |= 1L << pattern;
+        }
+    }
+
+    /**
+     * Captures the state of the ppu at the end of a frame.
+     * @param ggvm The vm to capture from.
+     * @param ppuBus The ppu bus of the vm, to copy nametables and the palette from.
+     * @param frame The number of the frame state, counting every one captured.
+     */
+    void capture(GGVm ggvm, PpuBus ppuBus, int frame) {
+        this.frame = frame;
+        nametableAddress = ggvm.getNametableAddress();
+        scrollX = ggvm.getScrollX();
+        scrollY = ggvm.getScrollY();
+        backgroundPatternTableAddress = ggvm.getBackgroundPatternTableAddress();
+        spritePatternTableAddress = ggvm.getSpritePatternTableAddress();
+        spriteSize = ggvm.getSpriteSize();
+        backgroundVisible = ggvm.isBackgroundVisible();
+        backgroundClipping = ggvm.isBackgroundClipping();
+        spriteClipping = ggvm.isSpriteClipping();
+        monochromeDisplayType = ggvm.isMonochromeDisplayType();
+        for (int offset = 0; offset < NAMETABLES_SIZE; offset += Ppu.NAMETABLE_RAM_SIZE) {
+            read(ppuBus, Ppu.NAME_TABLE_0_BASE_ADDRESS + offset, nametables, offset, Ppu.NAMETABLE_RAM_SIZE);
+        }
+        read(ppuBus, Ppu.BG_PALETTE_BASE_ADDRESS, palette, 0, palette.length);
+        paletteVersion = ggvm.getPaletteVersion();
+        sprites.copy(ggvm.getSprites());
+        ggvm.readChr(chr);
+        if (ggvm.getMapper() instanceof BankedMapper) {
+            BankedMapper mapper = (BankedMapper) ggvm.getMapper();
+            if (chrBanks.length != mapper.getChrSlotCount()) {
+                chrBanks = new int[mapper.getChrSlotCount()];
+            }
+            for (int slot = 0; slot < chrBanks.length; slot++) {
+                chrBanks[slot] = mapper.getChrSlot(slot).getBank();
+            }
+            captureChrMemory(mapper);
+        }
+    }
+
+    /**
+     * Copies the patterns of CHR-RAM written since this frame state was last captured,
+     * or refers to the CHR rom.
+     */
+    private void captureChrMemory(BankedMapper mapper) {
+        byte[] memory = mapper.getChrSlot(0).getMemory();
+        if (!mapper.hasChrRam()) {
+            chrMemory = memory;
+            return;
+        }
+        if (chrMemory == null) {
+            chrMemory = new byte[memory.length];
+        }
+        for (int i = 0; i < staleChrRamPatterns.length; i++) {
+            long bits = staleChrRamPatterns[i];
+            staleChrRamPatterns[i] = 0;
+            while (bits != 0) {
+                int pattern = (i << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                System.arraycopy(memory, pattern * 16, chrMemory, pattern * 16, 16);
+            }
+        }
+    }
+
+    /**
+     * Records patterns written to the CHR-RAM of a BankedMapper, to be copied the next
+     * time this frame state is captured.
+     * @param patterns One bit for each pattern written.
+     */
+    void addWrittenChrRamPatterns(long[] patterns) {
+        for (int i = 0; i < staleChrRamPatterns.length; i++) {
+            staleChrRamPatterns[i] |= patterns[i];
+        }
+    }
+
+    /**
+     * Reads a block from the ppu bus, or zeroes for a block the mapper left unmapped,
+     * such as the nametables which are not mirrored anywhere with horizontal
+     * mirroring, without logging a warning for each byte.
+     */
+    private void read(PpuBus ppuBus, int address, byte[] data, int offset, int length) {
+        if (ppuBus.memoryMap[address] instanceof ReadWriteRangeWarning) {
+            Arrays.fill(data, offset, offset + length, (byte) 0);
+        } else {
+            ppuBus.readBlock(address, data, offset, length);
+        }
+    }
+
+    /**
+     * Records the patterns written during the frame.
+     * @param patterns One bit for each pattern written.
+     * @param keep Whether to keep the patterns already recorded, because this state was
+     *             published without being acquired, see FrameStateBuffer.isBackConsumed.
+     */
+    void addDirtyPatterns(long[] patterns, boolean keep) {
+        for (int i = 0; i < dirtyPatterns.length; i++) {
+            dirtyPatterns[i] = keep ? dirtyPatterns[i] | patterns[i] : patterns[i];
+        }
+    }
+
+    /**
+     * @return The number of this frame state, which increases by one with every frame
+     * state captured, so renderers can tell whether a state is new to them.
+     */
+    public int getFrame() {
+        return frame;
+    }
+
+    public boolean isBackgroundVisible() {
+        return backgroundVisible;
+    }
+
+    public boolean isMonochromeDisplayType() {
+        return monochromeDisplayType;
+    }
+
+    public boolean isBackgroundClipping() {
+        return backgroundClipping;
+    }
+
+    public boolean isSpriteClipping() {
+        return spriteClipping;
+    }
+
+    /**
+     * @return 0 for $0000 or 1 for $1000
+     */
+    public int getBackgroundPatternTableAddress() {
+        return backgroundPatternTableAddress;
+    }
+
+    /**
+     * @return 0 for $0000 or 1 for $1000
+     */
+    public int getSpritePatternTableAddress() {
+        return spritePatternTableAddress;
+    }
+
+    /**
+     * Retrieves a 16 byte palette into an existing array.
+     * @param spritePalette Whether or not to retrieve the bg or sprite palette.
+     * @param palette The array to fill, at least 16 entries.
+     */
+    public void getPalette(boolean spritePalette, int[] palette) {
+        int offset = spritePalette ? Ppu.SPR_PALETTE_BASE_ADDRESS - Ppu.BG_PALETTE_BASE_ADDRESS : 0;
+        int mask = monochromeDisplayType ? 0xf0 : 0xff;
+        for (int i = 0; i < 16; i++) {
+            palette[i] = this.palette[offset + i] & mask;
+        }
+    }
+
+    /**
+     * @return The version of the palette, see GGVm.getPaletteVersion.
+     */
+    public int getPaletteVersion() {
+        return paletteVersion;
+    }
+
+    /**
+     * Copies the chr data on the ppu bus, both pattern tables, into an array.
+     * @param chr The array to copy into, at least GGVm.CHR_SIZE bytes.
+     */
+    public void readChr(byte[] chr) {
+        System.arraycopy(this.chr, 0, chr, 0, GGVm.CHR_SIZE);
+    }
+
+    /**
+     * Copies all four nametables, as read from $2000 through $2fff on the ppu bus,
+     * into an array.
+     * @param nametables The array to copy into, at least 4096 bytes.
+     */
+    public void readNametables(byte[] nametables) {
+        System.arraycopy(this.nametables, 0, nametables, 0, NAMETABLES_SIZE);
+    }
+
+    /**
+     * @param slot A CHR slot of the BankedMapper of the vm.
+     * @return The bank shown in the slot.
+     */
+    public int getChrBank(int slot) {
+        return chrBanks[slot];
+    }
+
+    /**
+     * @return All banks of the chr memory of the BankedMapper of the vm, as of this
+     * frame, indexed like BankSlot.getMemory. Must not be modified.
+     */
+    public byte[] getChrMemory() {
+        return chrMemory;
+    }
+
+    /**
+     * Retrieves a nametable tile from the given name table at x and y in
+     * nametable units.
+     */
+    public int getNametableTile(int nameTableAddress, int x, int y) {
+        return nametables[(nameTableAddress - Ppu.NAME_TABLE_0_BASE_ADDRESS + y * 32 + x) & (NAMETABLES_SIZE - 1)] & 0xff;
+    }
+
+    /**
+     * Retrieves the attribute for a given nametable tile index where x and y are
+     * in nametable units (0-31, 0-29)
+     */
+    public int getAttributeForNametableTile(int attributeTableAddress, int x, int y) {
+        int address = attributeTableAddress - Ppu.NAME_TABLE_0_BASE_ADDRESS + (y >> 2) * 8 + (x >> 2);
+        int attributeByte = nametables[address & (NAMETABLES_SIZE - 1)] & 0xff;
+        if (((y >> 1) & 1) == 1) {
+            attributeByte >>= 4;
+        }
+        if (((x >> 1) & 1) == 1) {
+            attributeByte >>= 2;
+        }
+        return attributeByte & 0x3;
+    }
+
+    public int getScrollX() {
+        return scrollX;
+    }
+
+    public int getScrollY() {
+        return scrollY;
+    }
+
+    public int getNametableAddress() {
+        return nametableAddress;
+    }
+
+    /**
+     * @return Returns 0 for 8x8 and 1 for 8x16
+     */
+    public int getSpriteSize() {
+        return spriteSize;
+    }
+
+    /**
+     * @return All sprites, decoded.
+     */
+    public SpriteRamSnapshot getSprites() {
+        return sprites;
+    }
+
+    /**
+     * Retrives sprite Y coordinate for the given sprite index, 0-63
+     */
+    public int getSpriteY(int spriteIndex) {
+        return sprites.y[spriteIndex];
+    }
+}
@@ -0,0 +1,92 @@
+package com.gradualgames.ggvm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A triple buffer of FrameStates, through which the thread running the vm hands the
+ * state of each frame it finishes to the thread rendering them without either one
+ * waiting on the other. The producer captures into the back state and publishes it,
+ * swapping it with the middle state; the consumer acquires the newest state by
+ * swapping the middle state with the front one, if it was published since. The index
+ * of the middle state and whether it is newer than the front one are kept in one
+ * AtomicInteger, so every swap is a single getAndSet.
+ *
+ * When the consumer falls behind, published states are replaced before it ever sees
+ * them. See isBackConsumed for carrying over what changed in them.
+ */
+class FrameStateBuffer {
+
+    private static final int INDEX_MASK = 3;
+
+    private static final int FRESH = 4;
+
+    private FrameState[] frameStates;
+
+    private AtomicInteger middle = new AtomicInteger(1);
+
+    private int back = 0;
+
+    private int front = 2;
+
+    private boolean backConsumed = true;
+
+    FrameStateBuffer(int chrTiles) {
+        frameStates = new FrameState[] { new FrameState(chrTiles), new FrameState(chrTiles), new FrameState(chrTiles) };
+    }
+
+    /**
+     * @return The state to capture the next frame into. Only for the producer.
+     */
+    FrameState getBack() {
+        return frameStates[back];
+    }
+
+    /**
+     * @return Whether the back state was acquired by the consumer since it was last
+     * published, or was never published. If not, the changes recorded in it, such as
+     * dirty patterns, were never seen and must be kept in the next state captured.
+     */
+    boolean isBackConsumed() {
+        return backConsumed;
+    }
+
+    /**
+     * Records patterns written to the CHR-RAM of a BankedMapper in every state, since
+     * each keeps a copy of its own, see FrameState.addWrittenChrRamPatterns. Only for
+     * the producer.
+     */
+    void addWrittenChrRamPatterns(long[] patterns) {
+        for (FrameState frameState : frameStates) {
+            frameState.addWrittenChrRamPatterns(patterns);
+        }
+    }
+
+    /**
+     * Publishes the back state as the newest one. Only for the producer.
+     */
+    void publish() {
+        int previous = middle.getAndSet(back | FRESH);
+        back = previous & INDEX_MASK;
+        backConsumed = (previous & FRESH) == 0;
+    }
+
+    /**
+     * Makes the newest published state the front one, if one was published since the
+     * last call. Only for the consumer.
+     * @return Whether the front state changed.
+     */
+    boolean acquire() {
+        if ((middle.get() & FRESH) == 0) {
+            return false;
+        }
+        front = middle.getAndSet(front) & INDEX_MASK;
+        return true;
+    }
+
+    /**
+     * @return The state the consumer acquired last. Only for the consumer.
+     */
+    FrameState getFront() {
+        return frameStates[front];
+    }
+}
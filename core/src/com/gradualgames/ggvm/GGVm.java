@@ -6,6 +6,7 @@ import com.gradualgames.manager.nmi.NmiSafeFunctor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 /**
  * Created by derek on 8/21/2016.
@@ -19,27 +20,59 @@ import java.io.OutputStream;
  * methods for easily gathering information about background and sprite graphics data, the
  * palette, the controller and cpu registers.
  *
- * GGVm advances the cpu by an arbitrary number of instructions, every frame, called from
- * the game framework application object. This is usually roughly 9000 or so, which is an
- * approximation of how many instructions are executed per frame on a real NES. On every
- * frame, the game framework code is expected to call nmi. In this fashion, GGVm simulates
- * how the NES hardware behaves, at least at a very high level. Any effects the NES
+ * GGVm runs the cpu for one frame at a time, called from the game framework application
+ * object through runFrame. A frame calls nmi and then runs the cpu for the cycles left in
+ * the frame's cycle budget, which by default is the 29780 cycles of an NTSC frame. The
+ * cpu can also be advanced by an arbitrary number of instructions, which was how GGVm
+ * used to approximate a frame (roughly 9000 of them), or cycles. In this fashion, GGVm
+ * simulates how the NES hardware behaves, at least at a very high level. Any effects the NES
  * hardware is normally capable of have to be implemented at a higher level by game
  * framework code. The intent of GGVm is to be as simple as possible and provide as much
  * performance as possible, written in Java, so it is easy to port to numerous operating
  * systems for distributing an NES game.
+ *
+ * At the end of every frame, GGVm captures the state renderers need to draw it into a
+ * FrameState, which the application acquires with acquireFrameState before drawing.
+ * Renderers read only frame states and never the vm, so runFrame may run on a thread
+ * of its own, see EmulationThread, emulating the next frame while the application
+ * draws the last one. Buttons are queued and applied to the controller at the next
+ * nmi, and a reset is applied then too, so both are safe from the application's
+ * thread. Everything else should only be called while the vm is not running frames
+ * on another thread.
+ *
+ * To cut the latency between a button press and the game reacting, GGVm can run
+ * ahead, see setRunAheadFrames: after every frame, it saves a Snapshot, runs frames
+ * ahead with the same buttons, publishes the frame state of the last one, and
+ * restores the snapshot. Sound is only played for the frames which are kept.
  */
 public class GGVm implements BusListener {
 
     private static final int INSTRUCTIONS_PER_SECOND_LOGGING_INTERVAL = 200;
 
+    /**
+     * Number of cpu cycles in one NTSC frame.
+     */
+    public static final int NTSC_CYCLES_PER_FRAME = 29780;
+
+    /**
+     * Size of the chr data on the ppu bus: two pattern tables of 256 tiles.
+     */
+    public static final int CHR_SIZE = 0x2000;
+
+    /**
+     * Multiple of the normal frame rate fast forward runs at unless set otherwise.
+     */
+    public static final int DEFAULT_FAST_FORWARD_SPEED = 4;
+
     private Cartridge cartridge;
 
+    private ReadWriteRangeProvider mapper;
+
     private PpuBus ppuBus;
 
     private Ppu ppu;
 
-    private Ram cpuRam;
+    private CpuRam cpuRam;
 
     private Controller controller;
 
@@ -51,6 +84,8 @@ public class GGVm implements BusListener {
 
     private Cpu cpu;
 
+    private TranslatedRom translatedRom;
+
     private ReadWriteRangeWarning readWriteRangeWarningCpu;
 
     private ReadWriteRangeWarning readWriteRangeWarningPpu;
@@ -59,17 +94,111 @@ public class GGVm implements BusListener {
 
     private NmiSafeFunctor nmiSafeFunctor;
 
-    private boolean alive = false;
+    private volatile boolean alive = false;
+
+    private volatile boolean resetRequested = false;
+
+    private volatile boolean fastForward = false;
+
+    private volatile int fastForwardSpeed = DEFAULT_FAST_FORWARD_SPEED;
+
+    private volatile int runAheadFrames = 0;
+
+    /**
+     * Set while running frames ahead, which are thrown away afterwards.
+     */
+    private boolean runningAhead = false;
+
+    private Snapshot runAheadSnapshot = new Snapshot();
+
+    /**
+     * One bit for each pattern written while running ahead. Restoring the snapshot
+     * undoes those writes, so the patterns are marked dirty again afterwards.
+     */
+    private long[] runAheadPatterns;
+
+    private long lastSnapshotNanos;
+
+    private long lastRestoreNanos;
+
+    private SaveStateFormat saveStateFormat;
+
+    private volatile boolean rewinding = false;
+
+    private RewindBuffer rewindBuffer;
+
+    /**
+     * The chr ram, if the cartridge has any, and a copy of it taken before loading a
+     * snapshot or state, to find the patterns it changes.
+     */
+    private byte[] chrRam;
+
+    private byte[] snapshotChrRam;
+
+    /**
+     * Button presses and releases waiting to be applied to the controller at the next
+     * nmi, each encoded as the button index times two, plus one if pressed.
+     */
+    private ButtonEventBuffer buttonEvents = new ButtonEventBuffer();
+
+    private FrameStateBuffer frameStates;
+
+    private int frameStateCount;
+
+    /**
+     * One bit for each pattern in the chr memory of the cartridge, set for patterns
+     * written since the last frame state was captured.
+     */
+    private long[] dirtyPatterns;
+
+    /**
+     * The size of the CHR slots of the mapper if it is a BankedMapper, or 0.
+     */
+    private int chrSlotSize;
 
     private int instructionsPerSecondLoggingIntervalCounter = INSTRUCTIONS_PER_SECOND_LOGGING_INTERVAL;
 
+    private int frameCycleBudget = NTSC_CYCLES_PER_FRAME;
+
+    /**
+     * Cycles by which the previous frame ran over its budget, which are taken off the
+     * budget of the next frame.
+     */
+    private int frameCycleOverrun;
+
+    private int lastFrameCycles;
+
+    private long lastFrameNanos;
+
+    private int lastFrameInstructions;
+
+    private int lastFrameIdleCycles;
+
+    /**
+     * Moving average of the time runFrame takes per cycle in frames which run their
+     * whole budget, for estimating the time saved by skipping idle cycles.
+     */
+    private float averageNanosPerCycle;
+
+    private boolean differentialTesting = false;
+
+    /**
+     * The state before each block checked by differential testing, and after running
+     * it translated and interpreted.
+     */
+    private Snapshot differentialSnapshot = new Snapshot();
+
+    private Snapshot translatedSnapshot = new Snapshot();
+
+    private Snapshot interpretedSnapshot = new Snapshot();
+
     public GGVm(Cartridge cartridge, NmiSafeFunctor nmiSafeFunctor, OnGeneratePatternTableListener onGeneratePatternTableListener) {
         this.cartridge = cartridge;
         this.nmiSafeFunctor = nmiSafeFunctor;
         this.onGeneratePatternTableListener = onGeneratePatternTableListener;
 
         //Configure mapper based on the cartridge data.
-        ReadWriteRangeProvider mapper = cartridge.configureMapper();
+        mapper = cartridge.configureMapper();
 
         //No-op objects to put on the cpu and ppu bus for warnings
         readWriteRangeWarningCpu = new ReadWriteRangeWarning();
@@ -79,15 +208,23 @@ public class GGVm implements BusListener {
         ppuBus = new PpuBus(mapper, readWriteRangeWarningPpu);
         ppu = new Ppu(ppuBus);
         //Listen for writes to CHR-RAM
-        ppuBus.installBusEventGenerator(0, 0x2000, this);
+        ppuBus.installBusEventGenerator(0, CHR_SIZE, this);
 
         //Configure cpu and dependencies
-        cpuRam = new Ram(0, Cpu.RAM_SIZE);
+        cpuRam = new CpuRam();
         controller = new Controller();
         apu = new Apu();
         spriteRam = new SpriteRam();
         cpuBus = new CpuBus(cpuRam, controller, spriteRam, ppu, apu, mapper, readWriteRangeWarningCpu);
         cpu = new Cpu(cpuBus);
+        saveStateFormat = new SaveStateFormat(cpu, new FrameTiming(), cpuBus, ppuBus);
+
+        //Use code generated ahead of time for this rom, if it has been translated
+        translatedRom = TranslatedRom.find(cartridge);
+        if (translatedRom != null) {
+            Gdx.app.log(getClass().getSimpleName(), "Using translated rom " + translatedRom.getClass().getSimpleName() + ".");
+            cpu.setTranslatedRom(translatedRom);
+        }
 
         //Configure warning generators
         readWriteRangeWarningCpu.setCpu(cpu);
@@ -96,18 +233,168 @@ public class GGVm implements BusListener {
         readWriteRangeWarningPpu.setBus(ppuBus);
 
         cpu.reset();
+
+        //Record patterns written within all of the chr memory, banks included
+        int chrTiles = CHR_SIZE / 16;
+        if (mapper instanceof BankedMapper) {
+            BankSlot chrSlot = ((BankedMapper) mapper).getChrSlot(0);
+            chrSlotSize = chrSlot.getSize();
+            chrTiles = chrSlot.getMemory().length / 16;
+            if (((BankedMapper) mapper).hasChrRam()) {
+                chrRam = chrSlot.getMemory();
+                snapshotChrRam = new byte[chrRam.length];
+            }
+        }
+        dirtyPatterns = new long[(chrTiles + 63) / 64];
+        runAheadPatterns = new long[dirtyPatterns.length];
+        frameStates = new FrameStateBuffer(chrTiles);
+        //Start with a frame state acquired, so there is one to draw or decode from
+        //before the first frame is run
+        publishFrameState();
+        frameStates.acquire();
     }
 
+    /**
+     * Saves the state of the vm: the cpu registers, the cycles the last frame ran over
+     * its budget, and every ReadWriteRange of the cpu and ppu bus, each in a section
+     * of its own, see SaveStateFormat.
+     */
     public void saveState(OutputStream outputStream) throws IOException {
-        cpu.save(outputStream);
-        cpuBus.save(outputStream);
-        ppuBus.save(outputStream);
+        saveStateFormat.save(outputStream);
     }
 
+    /**
+     * Loads a state saved with saveState, in this or an earlier release, and
+     * publishes its frame state. Patterns of the chr ram which the state changes are
+     * marked dirty, like loadSnapshot.
+     * @throws IOException If the state cannot be loaded. Part of it may have been
+     * loaded by then, see SaveStateFormat.load, so the vm should be reset.
+     */
     public void loadState(InputStream inputStream) throws IOException {
-        cpu.load(inputStream);
-        cpuBus.load(inputStream);
-        ppuBus.load(inputStream);
+        if (chrRam != null) {
+            System.arraycopy(chrRam, 0, snapshotChrRam, 0, chrRam.length);
+        }
+        restoreState(inputStream);
+        if (chrRam != null) {
+            markChangedPatterns();
+        }
+        publishFrameState();
+    }
+
+    /**
+     * @return The number of bytes saveState writes, which only changes along with the
+     * memory map, for sizing buffers of states, such as a RewindBuffer.
+     */
+    public int getStateSize() {
+        Snapshot snapshot = new Snapshot();
+        saveSnapshot(snapshot);
+        return snapshot.getSize();
+    }
+
+    private void restoreState(InputStream inputStream) throws IOException {
+        saveStateFormat.load(inputStream);
+        cpu.invalidateRamInstructionCache();
+    }
+
+    /**
+     * Saves the state of the vm into a snapshot in memory, like saveState. Once the
+     * snapshot has grown to fit, this allocates nothing.
+     */
+    public void saveSnapshot(Snapshot snapshot) {
+        long startNanos = System.nanoTime();
+        try {
+            saveState(snapshot.write());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        lastSnapshotNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Restores the vm to a snapshot saved with saveSnapshot and publishes its frame
+     * state, like loadState. Patterns of the chr ram which the snapshot changes are
+     * marked dirty, since they differ from those of the frame states drawn since the
+     * snapshot was saved.
+     */
+    public void loadSnapshot(Snapshot snapshot) {
+        if (chrRam != null) {
+            System.arraycopy(chrRam, 0, snapshotChrRam, 0, chrRam.length);
+        }
+        restoreSnapshot(snapshot);
+        if (chrRam != null) {
+            markChangedPatterns();
+        } else {
+            Arrays.fill(dirtyPatterns, -1L);
+        }
+        publishFrameState();
+    }
+
+    /**
+     * Marks dirty the patterns of the chr ram which differ from the copy taken before
+     * loading a snapshot.
+     */
+    private void markChangedPatterns() {
+        for (int pattern = 0; pattern < chrRam.length / 16; pattern++) {
+            int start = pattern * 16;
+            for (int i = start; i < start + 16; i++) {
+                if (chrRam[i] != snapshotChrRam[i]) {
+                    dirtyPatterns[pattern >> 6] |= 1L << (pattern & 63);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void restoreSnapshot(Snapshot snapshot) {
+        long startNanos = System.nanoTime();
+        try {
+            restoreState(snapshot.read());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        lastRestoreNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Saves the cycles the last frame ran over its budget, so that frames run after
+     * loading a state run exactly as they did after saving it.
+     */
+    private class FrameTiming implements StateComponent {
+
+        private byte[] data = new byte[4];
+
+        @Override
+        public void save(OutputStream outputStream) throws IOException {
+            data[0] = (byte) (frameCycleOverrun >> 24);
+            data[1] = (byte) (frameCycleOverrun >> 16);
+            data[2] = (byte) (frameCycleOverrun >> 8);
+            data[3] = (byte) frameCycleOverrun;
+            outputStream.write(data);
+        }
+
+        @Override
+        public void load(InputStream inputStream) throws IOException {
+            if (inputStream.read(data) == data.length) {
+                frameCycleOverrun = (data[0] & 0xff) << 24 | (data[1] & 0xff) << 16 |
+                        (data[2] & 0xff) << 8 | data[3] & 0xff;
+            }
+        }
+    }
+
+    /**
+     * @return The time in nanoseconds the last call to saveSnapshot took, including
+     * those made to run ahead.
+     */
+    public long getLastSnapshotNanos() {
+        return lastSnapshotNanos;
+    }
+
+    /**
+     * @return The time in nanoseconds the last snapshot load took, including those
+     * made to run ahead.
+     */
+    public long getLastRestoreNanos() {
+        return lastRestoreNanos;
     }
 
     public void logInstructionsPerSecond() {
@@ -115,9 +402,31 @@ public class GGVm implements BusListener {
         if (instructionsPerSecondLoggingIntervalCounter <= 0) {
             instructionsPerSecondLoggingIntervalCounter = INSTRUCTIONS_PER_SECOND_LOGGING_INTERVAL;
             Gdx.app.log(getClass().getSimpleName(), "Cpu is performing at: " + cpu.instructionsPerSecond() + " instructions per second.");
+            Gdx.app.log(getClass().getSimpleName(), "Last frame ran " + lastFrameCycles + " cycles (" + lastFrameInstructions +
+                    " instructions) in " + lastFrameNanos / 1000 + " microseconds, skipping " + lastFrameIdleCycles +
+                    " idle cycles and saving about " + getLastFrameSavedNanos() / 1000 + " microseconds.");
+            if (runAheadFrames > 0) {
+                Gdx.app.log(getClass().getSimpleName(), "Running " + runAheadFrames + " frames ahead. Snapshot took " +
+                        lastSnapshotNanos / 1000 + " microseconds and restoring it " + lastRestoreNanos / 1000 +
+                        " microseconds.");
+            }
+            if (rewindBuffer != null) {
+                Gdx.app.log(getClass().getSimpleName(), "Rewind buffer holds " + rewindBuffer.getSeconds() +
+                        " seconds in " + rewindBuffer.getStateCount() + " states, taking " +
+                        rewindBuffer.getBytesPerMinute() / 1024 + "KB per minute of the " +
+                        rewindBuffer.getCapacity() / 1024 + "KB buffer. Last state took " +
+                        rewindBuffer.getLastCaptureNanos() / 1000 + " microseconds to record.");
+            }
         }
     }
 
+    /**
+     * @return Instructions per second executed by the cpu since the last call to start.
+     */
+    public int instructionsPerSecond() {
+        return cpu.instructionsPerSecond();
+    }
+
     public void printRegisters() {
         cpu.printRegisters();
     }
@@ -126,6 +435,91 @@ public class GGVm implements BusListener {
         return alive;
     }
 
+    /**
+     * Turns fast forward on or off. While it is on, the application runs the vm at
+     * the fast forward speed rather than the frame rate of the NES, drawing only the
+     * last frame finished each time it draws, and mutes the soundtrack. Safe from any
+     * thread.
+     */
+    public void setFastForward(boolean fastForward) {
+        this.fastForward = fastForward;
+    }
+
+    public boolean isFastForward() {
+        return fastForward;
+    }
+
+    /**
+     * @param fastForwardSpeed A multiple of the normal frame rate to fast forward at,
+     *                         or FrameScheduler.UNCAPPED to run frames as fast as the
+     *                         host can.
+     */
+    public void setFastForwardSpeed(int fastForwardSpeed) {
+        this.fastForwardSpeed = fastForwardSpeed;
+    }
+
+    public int getFastForwardSpeed() {
+        return fastForwardSpeed;
+    }
+
+    /**
+     * @return The speed the application should run the vm at, see
+     * FrameScheduler.setSpeed: the fast forward speed while fast forwarding, else 1.
+     */
+    public int getSpeed() {
+        return fastForward ? fastForwardSpeed : 1;
+    }
+
+    /**
+     * Sets how many frames to run ahead after every frame, see the class description,
+     * 0 to not run ahead. Each frame run ahead takes one frame of latency off the
+     * buttons, but costs as much as running a frame. Nothing is run ahead while fast
+     * forwarding. Safe from any thread.
+     */
+    public void setRunAheadFrames(int runAheadFrames) {
+        this.runAheadFrames = runAheadFrames;
+    }
+
+    public int getRunAheadFrames() {
+        return runAheadFrames;
+    }
+
+    /**
+     * @return Whether the vm is running frames ahead, which are thrown away
+     * afterwards, so listeners should not act on what they hear of them, such as
+     * playing sounds.
+     */
+    public boolean isRunningAhead() {
+        return runningAhead;
+    }
+
+    /**
+     * Sets the buffer to record the state of the vm into after every frame, so that
+     * it can be rewound, see setRewinding, or null to not record it. To be set while
+     * no frame is running.
+     */
+    public void setRewindBuffer(RewindBuffer rewindBuffer) {
+        this.rewindBuffer = rewindBuffer;
+    }
+
+    public RewindBuffer getRewindBuffer() {
+        return rewindBuffer;
+    }
+
+    /**
+     * Turns rewinding on or off. While it is on, every frame steps back to the state
+     * recorded before the last one in the rewind buffer instead of running the cpu,
+     * until none are left. Play carries on from there once it is off. Safe from any
+     * thread.
+     */
+    public void setRewinding(boolean rewinding) {
+        this.rewinding = rewinding;
+    }
+
+    public boolean isRewinding() {
+        return rewinding;
+    }
+
     public void start() {
         stop();
         cpu.startTimer();
@@ -135,21 +529,39 @@ public class GGVm implements BusListener {
     public void stop() {
         if (alive) {
             alive = false;
-            controller.clear();
+            rewinding = false;
+            for (int i = 0; i < controller.getButtons().length; i++) {
+                setButtonState(i, false);
+            }
         }
     }
 
     /**
-     * Stops cpu thread, resets the cpu to the reset vector, then
-     * restarts the thread. Essentially a full system reset.
+     * Stops the vm, requests a reset of the cpu to the reset vector, then
+     * restarts the vm. Essentially a full system reset. The cpu is reset at the
+     * next nmi, on whichever thread runs the vm.
      */
     public void reset() {
         stop();
-        cpu.reset();
+        resetRequested = true;
         start();
     }
 
+    /**
+     * Applies a requested reset and the queued buttons, unless running ahead, then
+     * sets vblank and runs the nmi routine if it is enabled.
+     */
     public void nmi() {
+        if (!runningAhead) {
+            if (resetRequested) {
+                resetRequested = false;
+                cpu.reset();
+            }
+            for (int i = buttonEvents.available(); i > 0; i--) {
+                int buttonEvent = buttonEvents.poll();
+                controller.getButtons()[buttonEvent >> 1] = (byte) (buttonEvent & 1);
+            }
+        }
         if (alive) {
             ppu.setInVblank();
             if (ppu.isNmiEnabled()) {
@@ -168,6 +580,7 @@ public class GGVm implements BusListener {
      */
     public void installReadWriteRange(ReadWriteRange readWriteRange) {
         cpuBus.add(readWriteRange);
+        cpu.invalidateInstructionCache();
     }
 
     /**
@@ -181,6 +594,7 @@ public class GGVm implements BusListener {
      */
     public void installBusEventGenerator(int address, int size, BusListener busListener) {
         cpuBus.installBusEventGenerator(address, size, busListener);
+        cpu.invalidateInstructionCache();
     }
 
     /**
@@ -190,6 +604,19 @@ public class GGVm implements BusListener {
      */
     public void uninstallBusEventGenerator(int address, int size) {
         cpuBus.uninstallBusEventGenerator(address, size);
+        cpu.invalidateInstructionCache();
+    }
+
+    /**
+     * Installs a BusEventGenerator on the ppu bus. This can be used to learn which
+     * nametable and attribute bytes are written, so that only the tiles they
+     * affect need to be drawn again.
+     * @param address
+     * @param size
+     * @param busListener
+     */
+    public void installPpuBusEventGenerator(int address, int size, BusListener busListener) {
+        ppuBus.installBusEventGenerator(address, size, busListener);
     }
 
     /**
@@ -203,6 +630,15 @@ public class GGVm implements BusListener {
         return cpuBus.memoryMap[address];
     }
 
+    /**
+     * Retrieves the mapper configured for the cartridge. The pattern table manager, for
+     * example, asks the mapper which chr bank is swapped into place.
+     * @return The mapper.
+     */
+    public ReadWriteRangeProvider getMapper() {
+        return mapper;
+    }
+
     /**
      * Return current value of cpu accumulator.
      * @return Register value
@@ -251,20 +687,22 @@ public class GGVm implements BusListener {
      * @return
      */
     public int getLowerPrgBank() {
-        if (cpuBus.memoryMap[0x8000] instanceof UnromSwitchboard) {
-            UnromSwitchboard unromSwitchboard = (UnromSwitchboard) cpuBus.memoryMap[0x8000];
-            return unromSwitchboard.getCurrentRom();
+        if (cpuBus.memoryMap[0x8000] instanceof BankSlot) {
+            BankSlot bankSlot = (BankSlot) cpuBus.memoryMap[0x8000];
+            return bankSlot.isSwitchable() ? bankSlot.getBank() : -1;
         }
         return -1;
     }
 
     /**
-     * Sets the specified button to pressed or unpressed state.
+     * Sets the specified button to pressed or unpressed state at the next nmi. May be
+     * called from any one thread, such as the one handling input, while another runs
+     * the vm.
      * @param buttonIndex The button index. See constants in Controller
      * @param pressed Whether or not the buttton is pressed.
      */
     public void setButtonState(int buttonIndex, boolean pressed) {
-        controller.getButtons()[buttonIndex] = (byte) (pressed ? 1: 0);
+        buttonEvents.offer((buttonIndex << 1) | (pressed ? 1 : 0));
     }
 
     /**
@@ -272,7 +710,7 @@ public class GGVm implements BusListener {
      * @param pressed
      */
     public void setAButtonState(boolean pressed) {
-        controller.getButtons()[Controller.Buttons.A.ordinal()] = (byte) (pressed ? 1: 0);
+        setButtonState(Controller.Buttons.A.ordinal(), pressed);
     }
 
     /**
@@ -280,7 +718,7 @@ public class GGVm implements BusListener {
      * @param pressed
      */
     public void setBButtonState(boolean pressed) {
-        controller.getButtons()[Controller.Buttons.B.ordinal()] = (byte) (pressed ? 1: 0);
+        setButtonState(Controller.Buttons.B.ordinal(), pressed);
     }
 
     /**
@@ -288,7 +726,7 @@ public class GGVm implements BusListener {
      * @param pressed
      */
     public void setSelectButtonState(boolean pressed) {
-        controller.getButtons()[Controller.Buttons.SELECT.ordinal()] = (byte) (pressed ? 1: 0);
+        setButtonState(Controller.Buttons.SELECT.ordinal(), pressed);
     }
 
     /**
@@ -296,7 +734,7 @@ public class GGVm implements BusListener {
      * @param pressed
      */
     public void setStartButtonState(boolean pressed) {
-        controller.getButtons()[Controller.Buttons.START.ordinal()] = (byte) (pressed ? 1: 0);
+        setButtonState(Controller.Buttons.START.ordinal(), pressed);
     }
 
     /**
@@ -304,7 +742,7 @@ public class GGVm implements BusListener {
      * @param pressed
      */
     public void setUpButtonState(boolean pressed) {
-        controller.getButtons()[Controller.Buttons.UP.ordinal()] = (byte) (pressed ? 1: 0);
+        setButtonState(Controller.Buttons.UP.ordinal(), pressed);
     }
 
     /**
@@ -312,7 +750,7 @@ public class GGVm implements BusListener {
      * @param pressed
      */
     public void setDownButtonState(boolean pressed) {
-        controller.getButtons()[Controller.Buttons.DOWN.ordinal()] = (byte) (pressed ? 1: 0);
+        setButtonState(Controller.Buttons.DOWN.ordinal(), pressed);
     }
 
     /**
@@ -320,7 +758,7 @@ public class GGVm implements BusListener {
      * @param pressed
      */
     public void setLeftButtonState(boolean pressed) {
-        controller.getButtons()[Controller.Buttons.LEFT.ordinal()] = (byte) (pressed ? 1: 0);
+        setButtonState(Controller.Buttons.LEFT.ordinal(), pressed);
     }
 
     /**
@@ -328,7 +766,7 @@ public class GGVm implements BusListener {
      * @param pressed
      */
     public void setRightButtonState(boolean pressed) {
-        controller.getButtons()[Controller.Buttons.RIGHT.ordinal()] = (byte) (pressed ? 1: 0);
+        setButtonState(Controller.Buttons.RIGHT.ordinal(), pressed);
     }
 
     /**
@@ -375,8 +813,19 @@ public class GGVm implements BusListener {
      * @return The palette
      */
     public int[] getPalette(boolean spritePalette) {
-        int paletteBaseAddress = spritePalette ? Ppu.SPR_PALETTE_BASE_ADDRESS : Ppu.BG_PALETTE_BASE_ADDRESS;
         int[] palette = new int[16];
+        getPalette(spritePalette, palette);
+        return palette;
+    }
+
+    /**
+     * Retrieves a 16 byte palette from the ppuBus into an existing array, for callers
+     * which read the palette every frame.
+     * @param spritePalette Whether or not to retrieve the bg or sprite palette.
+     * @param palette The array to fill, at least 16 entries.
+     */
+    public void getPalette(boolean spritePalette, int[] palette) {
+        int paletteBaseAddress = spritePalette ? Ppu.SPR_PALETTE_BASE_ADDRESS : Ppu.BG_PALETTE_BASE_ADDRESS;
         if (isMonochromeDisplayType()) {
             for (int i = 0; i < 16; i++) {
                 palette[i] = ppuBus.readUnsignedByteAsInt(paletteBaseAddress + i) & 0xf0;
@@ -386,7 +835,62 @@ public class GGVm implements BusListener {
                 palette[i] = ppuBus.readUnsignedByteAsInt(paletteBaseAddress + i);
             }
         }
-        return palette;
+    }
+
+    /**
+     * Retrieves the version of the palette on the ppuBus, which changes whenever the
+     * palette does, so callers can skip rebuilding their palette while it stays the
+     * same. The monochrome display type is not part of the version.
+     * @return The version of the palette.
+     */
+    public int getPaletteVersion() {
+        return ppuBus.getPaletteVersion();
+    }
+
+    /**
+     * Makes the state of the newest frame the vm finished the one returned by
+     * getFrameState, and calls onGeneratePattern for every pattern written since the
+     * frame state acquired before it. Call once on the thread rendering frames, before
+     * drawing each one. If no frame was finished since the last call, the frame state
+     * stays the same.
+     * @return The frame state to draw.
+     */
+    public FrameState acquireFrameState() {
+        if (frameStates.acquire()) {
+            long[] patterns = frameStates.getFront().dirtyPatterns;
+            for (int i = 0; i < patterns.length; i++) {
+                long bits = patterns[i];
+                while (bits != 0) {
+                    int pattern = (i << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    onGeneratePatternTableListener.onGeneratePattern(pattern << 4);
+                }
+            }
+        }
+        return frameStates.getFront();
+    }
+
+    /**
+     * @return The frame state acquired last with acquireFrameState, which renderers
+     * draw from.
+     */
+    public FrameState getFrameState() {
+        return frameStates.getFront();
+    }
+
+    /**
+     * Captures the current state of the ppu into a frame state along with the patterns
+     * written since the last one, and publishes it to be acquired by the renderer.
+     */
+    private void publishFrameState() {
+        if (chrRam != null) {
+            frameStates.addWrittenChrRamPatterns(dirtyPatterns);
+        }
+        FrameState frameState = frameStates.getBack();
+        frameState.capture(this, ppuBus, ++frameStateCount);
+        frameState.addDirtyPatterns(dirtyPatterns, !frameStates.isBackConsumed());
+        Arrays.fill(dirtyPatterns, 0);
+        frameStates.publish();
     }
 
     /**
@@ -408,6 +912,33 @@ public class GGVm implements BusListener {
         return pixel;
     }
 
+    /**
+     * Copies the chr data currently on the ppu bus, both pattern tables, into an array.
+     * Pages of chr rom or ram are copied straight from the arrays backing them, past
+     * the BusEventGenerator which listens for writes to CHR-RAM, so this is much
+     * cheaper than reading the bus byte by byte.
+     * @param chr The array to copy into, at least CHR_SIZE bytes.
+     */
+    public void readChr(byte[] chr) {
+        for (int address = 0; address < CHR_SIZE; address += 256) {
+            ReadWriteRange readWriteRange = ppuBus.memoryMap[address];
+            if (readWriteRange instanceof BusEventGenerator) {
+                readWriteRange = ((BusEventGenerator) readWriteRange).getReadWriteRange();
+            }
+            byte[] data = null;
+            if (readWriteRange instanceof DirectReadWriteRange && readWriteRange.lower() <= address && readWriteRange.upper() >= address + 255) {
+                data = ((DirectReadWriteRange) readWriteRange).getPageData(address);
+            }
+            if (data != null) {
+                System.arraycopy(data, address + ((DirectReadWriteRange) readWriteRange).getPageOffset(address), chr, address, 256);
+            } else {
+                for (int i = address; i < address + 256; i++) {
+                    chr[i] = ppuBus.readSignedByte(i);
+                }
+            }
+        }
+    }
+
     /**
      * Retrives a nametable tile from the given name table at x and y in
      * nametable units.
@@ -476,6 +1007,15 @@ public class GGVm implements BusListener {
      */
     public int getSpriteSize() { return ppu.getSpriteSize(); }
 
+    /**
+     * Retrieves all sprites, decoded once per sprite ram copy rather than on every
+     * call like the getters of single sprite attributes below.
+     * @return The snapshot of sprite ram, which stays the same object.
+     */
+    public SpriteRamSnapshot getSprites() {
+        return spriteRam.getSnapshot();
+    }
+
     /**
      * Retrives sprite X coordinate for the given sprite index, 0-63
      * @param spriteIndex
@@ -540,13 +1080,280 @@ public class GGVm implements BusListener {
     }
 
     /**
-     * Advances the cpu by instructionCount instructions.
+     * Turns the block translator of the cpu on or off. It is on by default: blocks
+     * run no slower than the interpreter, and blocks with code generated by
+     * RomTranslator run several times faster, see CpuTierBenchmark. The generated
+     * code only runs through the block translator, so it takes no effect while this
+     * is off.
+     */
+    public void setBlockTranslationEnabled(boolean blockTranslationEnabled) {
+        cpu.setBlockTranslationEnabled(blockTranslationEnabled);
+    }
+
+    /**
+     * Turns use of the code generated ahead of time by RomTranslator on or off. It is
+     * on by default, if the rom has been translated. Blocks without generated code,
+     * or all blocks when this is off, are run by the block translator as usual.
+     */
+    public void setTranslatedRomEnabled(boolean translatedRomEnabled) {
+        cpu.setTranslatedRom(translatedRomEnabled ? translatedRom : null);
+    }
+
+    /**
+     * Turns differential testing of the block translator on or off. When on, advance
+     * takes a snapshot before every translated block it runs, then restores the
+     * snapshot and runs the same number of instructions with the interpreter. If the
+     * saved state of the vm differs afterwards, an error is logged and a
+     * RuntimeException is thrown. This is slow, and any BusListener sees each block
+     * twice, so it is only meant for testing.
+     */
+    public void setDifferentialTesting(boolean differentialTesting) {
+        this.differentialTesting = differentialTesting;
+    }
+
+    /**
+     * Advances the cpu by instructionCount instructions, or fewer if it reaches an idle
+     * loop, see setIdleLoopDetectionEnabled.
      * @param instructionCount Number of instructions to execute.
      */
     public void advance(int instructionCount) {
-        while(instructionCount-- >= 0) {
-            cpu.execute();
+        if (differentialTesting) {
+            advanceDifferential(instructionCount + 1, Integer.MAX_VALUE);
+        } else {
+            cpu.run(instructionCount + 1);
+        }
+    }
+
+    /**
+     * Advances the cpu by at least cycleCount cycles. The last instruction always
+     * completes, so a few more cycles may be executed. Fewer are executed if the cpu
+     * reaches an idle loop, see setIdleLoopDetectionEnabled.
+     * @param cycleCount Number of cycles to execute.
+     * @return The number of cycles actually executed.
+     */
+    public int advanceCycles(int cycleCount) {
+        if (differentialTesting) {
+            return advanceDifferential(Integer.MAX_VALUE, cycleCount);
+        } else {
+            return cpu.runCycles(cycleCount);
+        }
+    }
+
+    /**
+     * Runs one frame: calls nmi and then advances the cpu by the cycles left in the
+     * frame cycle budget, then publishes the frame state, see acquireFrameState. The
+     * nmi routine counts towards the budget, and any cycles by which a frame runs over
+     * its budget are taken off the next one, so that on average exactly the frame cycle
+     * budget is run every frame. The number of cycles run and the time it took are
+     * available from getLastFrameCycles and getLastFrameNanos.
+     *
+     * If the cpu reaches an idle loop, such as one waiting for the nmi to set a flag,
+     * the frame ends early and the rest of its cycles are skipped rather than spent
+     * spinning, see Cpu.run. The cycles skipped are available from
+     * getLastFrameIdleCycles.
+     *
+     * When running ahead, see setRunAheadFrames, the frames run ahead follow, and the
+     * frame state published is that of the last of them. The figures above are then
+     * those of the last frame run ahead.
+     *
+     * While rewinding, see setRewinding, the vm instead steps back a state in the
+     * rewind buffer and publishes its frame state. Otherwise the state after the frame
+     * is recorded into the rewind buffer, if there is one.
+     */
+    public void runFrame() {
+        if (rewinding && rewindBuffer != null) {
+            rewindBuffer.stepBack(this);
+            return;
+        }
+        emulateFrame();
+        if (rewindBuffer != null) {
+            rewindBuffer.capture(this);
+        }
+        int runAheadFrames = fastForward ? 0 : this.runAheadFrames;
+        if (runAheadFrames > 0) {
+            runAhead(runAheadFrames);
+        } else {
+            publishFrameState();
+        }
+    }
+
+    /**
+     * Saves a snapshot, runs frames ahead with the same buttons, publishes the frame
+     * state of the last one and restores the snapshot, so that the next frame carries
+     * on from the frame before the ones run ahead.
+     */
+    private void runAhead(int frames) {
+        saveSnapshot(runAheadSnapshot);
+        runningAhead = true;
+        for (int i = 0; i < frames; i++) {
+            emulateFrame();
+        }
+        publishFrameState();
+        restoreSnapshot(runAheadSnapshot);
+        runningAhead = false;
+        for (int i = 0; i < dirtyPatterns.length; i++) {
+            dirtyPatterns[i] |= runAheadPatterns[i];
+            runAheadPatterns[i] = 0;
+        }
+    }
+
+    private void emulateFrame() {
+        long startNanos = System.nanoTime();
+        int startCycles = cpu.getCycles();
+        long startInstructions = cpu.getInstructionCount();
+        int frameCycles = frameCycleBudget - frameCycleOverrun;
+
+        nmi();
+        lastFrameCycles = cpu.getCycles() - startCycles;
+        //Only runCycles stops early, and only sets the cpu's idle flag when it runs
+        boolean idle = false;
+        if (lastFrameCycles < frameCycles) {
+            lastFrameCycles += advanceCycles(frameCycles - lastFrameCycles);
+            idle = !differentialTesting && cpu.isIdle();
+        }
+
+        lastFrameNanos = System.nanoTime() - startNanos;
+        lastFrameInstructions = (int) (cpu.getInstructionCount() - startInstructions);
+        lastFrameIdleCycles = idle ? Math.max(frameCycles - lastFrameCycles, 0) : 0;
+        if (!idle && lastFrameCycles > 0) {
+            averageNanosPerCycle += ((float) lastFrameNanos / lastFrameCycles - averageNanosPerCycle) / 16;
+        }
+        frameCycleOverrun = Math.min(Math.max(lastFrameCycles - frameCycles, 0), frameCycleBudget);
+    }
+
+    /**
+     * Turns idle loop detection on or off. It is on by default. When on, advance and
+     * runFrame stop as soon as the cpu is in an idle loop, whether it is interpreted or
+     * runs through the block translator, see Cpu.run. Differential testing, see
+     * setDifferentialTesting, never stops early.
+     */
+    public void setIdleLoopDetectionEnabled(boolean idleLoopDetectionEnabled) {
+        cpu.setIdleLoopDetectionEnabled(idleLoopDetectionEnabled);
+    }
+
+    /**
+     * @return The number of cpu cycles runFrame runs per frame.
+     */
+    public int getFrameCycleBudget() {
+        return frameCycleBudget;
+    }
+
+    /**
+     * Sets the number of cpu cycles runFrame runs per frame. Defaults to
+     * NTSC_CYCLES_PER_FRAME.
+     */
+    public void setFrameCycleBudget(int frameCycleBudget) {
+        this.frameCycleBudget = frameCycleBudget;
+    }
+
+    /**
+     * @return The number of cpu cycles the last call to runFrame ran.
+     */
+    public int getLastFrameCycles() {
+        return lastFrameCycles;
+    }
+
+    /**
+     * @return The time in nanoseconds the last call to runFrame took to run.
+     */
+    public long getLastFrameNanos() {
+        return lastFrameNanos;
+    }
+
+    /**
+     * @return The number of instructions the last call to runFrame executed.
+     */
+    public int getLastFrameInstructions() {
+        return lastFrameInstructions;
+    }
+
+    /**
+     * @return The number of cycles of its budget the last call to runFrame skipped
+     * because the cpu was in an idle loop.
+     */
+    public int getLastFrameIdleCycles() {
+        return lastFrameIdleCycles;
+    }
+
+    /**
+     * @return An estimate of the time in nanoseconds skipping idle cycles saved in the
+     * last call to runFrame, at the rate recent frames without an idle loop ran cycles.
+     * Idle loops usually run faster than other code, so this is an upper bound.
+     */
+    public long getLastFrameSavedNanos() {
+        return (long) (lastFrameIdleCycles * averageNanosPerCycle);
+    }
+
+    /**
+     * Runs instructions until either instructionCount instructions or cycleCount cycles
+     * have been executed, checking every translated block against the interpreter.
+     * @return The number of cycles executed.
+     */
+    private int advanceDifferential(int instructionCount, int cycleCount) {
+        //Every block runs twice, so count the cycles executed rather than use the cpu's count
+        int executedCycles = 0;
+        try {
+            while (instructionCount > 0 && executedCycles < cycleCount) {
+                BlockTranslator.Block block = cpu.getBlock(instructionCount, cycleCount - executedCycles);
+                if (block == null) {
+                    int startCycles = cpu.getCycles();
+                    cpu.execute();
+                    executedCycles += cpu.getCycles() - startCycles;
+                    instructionCount--;
+                    continue;
+                }
+                int pc = cpu.getPc();
+                int executed = block.getLength();
+                saveState(differentialSnapshot.write());
+
+                int blockStartCycles = cpu.getCycles();
+                cpu.executeBlock(block);
+                int translatedCycles = cpu.getCycles() - blockStartCycles;
+                saveState(translatedSnapshot.write());
+
+                restoreState(differentialSnapshot.read());
+                boolean blockTranslationEnabled = cpu.isBlockTranslationEnabled();
+                boolean idleLoopDetectionEnabled = cpu.isIdleLoopDetectionEnabled();
+                cpu.setBlockTranslationEnabled(false);
+                cpu.setIdleLoopDetectionEnabled(false);
+                int interpretedStartCycles = cpu.getCycles();
+                cpu.run(executed);
+                int interpretedCycles = cpu.getCycles() - interpretedStartCycles;
+                cpu.setBlockTranslationEnabled(blockTranslationEnabled);
+                cpu.setIdleLoopDetectionEnabled(idleLoopDetectionEnabled);
+                saveState(interpretedSnapshot.write());
+
+                if (!equals(translatedSnapshot, interpretedSnapshot) || translatedCycles != interpretedCycles) {
+                    String interpretedRegisters = cpu.getRegistersString();
+                    restoreState(translatedSnapshot.read());
+                    String message = "Block at " + Integer.toHexString(pc) + " (" + executed +
+                            " instructions) diverged from the interpreter." +
+                            " Translated:" + cpu.getRegistersString() + " cycles: " + translatedCycles +
+                            " Interpreted:" + interpretedRegisters + " cycles: " + interpretedCycles;
+                    Gdx.app.error(getClass().getSimpleName(), message);
+                    throw new RuntimeException(message);
+                }
+                instructionCount -= executed;
+                executedCycles += translatedCycles;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+        return executedCycles;
+    }
+
+    private static boolean equals(Snapshot a, Snapshot b) {
+        if (a.getSize() != b.getSize()) {
+            return false;
+        }
+        byte[] aData = a.getData();
+        byte[] bData = b.getData();
+        for (int i = 0; i < a.getSize(); i++) {
+            if (aData[i] != bData[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -556,9 +1363,18 @@ public class GGVm implements BusListener {
 
     @Override
     public void onWrite(int address, byte value) {
-        //If we're writing the very last byte of a chr tile
+        //If we're writing the very last byte of a chr tile, mark it dirty in the
+        //bank it was written to, for the next frame state
         if ((address & 0xf) == 0xf) {
-            onGeneratePatternTableListener.onGeneratePattern(address - 0xf);
+            int pattern = address >> 4;
+            if (chrSlotSize != 0) {
+                BankSlot chrSlot = ((BankedMapper) mapper).getChrSlot(address / chrSlotSize);
+                pattern = (chrSlot.getBank() * chrSlotSize + address % chrSlotSize) >> 4;
+            }
+            dirtyPatterns[pattern >> 6] |= 1L << pattern;
+            if (runningAhead) {
+                runAheadPatterns[pattern >> 6] |= 1L << pattern;
+            }
         }
     }
 }
@@ -23,7 +23,8 @@ import java.io.OutputStream;
  */
 public class GGVmRegisterHideMobileButtons implements ReadWriteRange {
 
-    private int hideMobileButtons = 0;
+    //Written by the cpu and read by TouchInputProcessor, maybe on another thread
+    private volatile int hideMobileButtons = 0;
 
     @Override
     public byte read(int address) {
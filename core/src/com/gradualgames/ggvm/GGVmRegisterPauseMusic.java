@@ -26,7 +26,12 @@ public class GGVmRegisterPauseMusic implements ReadWriteRange {
 
     @Override
     public void write(int address, byte value) {
-        ggVmSoundtrackManager.pauseMusic();
+        ggVmSoundtrackManager.runOnApplicationThread(new Runnable() {
+            @Override
+            public void run() {
+                ggVmSoundtrackManager.pauseMusic();
+            }
+        });
     }
 
     @Override
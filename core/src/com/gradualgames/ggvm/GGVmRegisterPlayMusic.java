@@ -11,7 +11,8 @@ import java.io.OutputStream;
  * Created by derek on 5/27/2017.
  *
  * This ggvm register, located at 0x5600 on the cpu bus, plays a song by
- * forwarding the value written to a GGVmSoundtrackManager.
+ * forwarding the value written to a GGVmSoundtrackManager on the application
+ * thread.
  */
 public class GGVmRegisterPlayMusic implements ReadWriteRange {
 
@@ -27,8 +28,13 @@ public class GGVmRegisterPlayMusic implements ReadWriteRange {
     }
 
     @Override
-    public void write(int address, byte value) {
-        ggVmSoundtrackManager.playSongNum(value & 0xff);
+    public void write(int address, final byte value) {
+        ggVmSoundtrackManager.runOnApplicationThread(new Runnable() {
+            @Override
+            public void run() {
+                ggVmSoundtrackManager.playSongNum(value & 0xff);
+            }
+        });
     }
 
     @Override
@@ -26,7 +26,12 @@ public class GGVmRegisterResumeMusic implements ReadWriteRange {
 
     @Override
     public void write(int address, byte value) {
-        ggVmSoundtrackManager.unpauseMusic();
+        ggVmSoundtrackManager.runOnApplicationThread(new Runnable() {
+            @Override
+            public void run() {
+                ggVmSoundtrackManager.unpauseMusic();
+            }
+        });
     }
 
     @Override
@@ -8,7 +8,8 @@ import java.io.OutputStream;
  * Created by derek on 5/27/2017.
  *
  * This ggvm register just accepts writes and stores a value for whether GGVm's
- * Sprite 0 Hit status bar feature is enabled.
+ * Sprite 0 Hit status bar feature is enabled. It is written by the cpu and read by
+ * the render manager, which may run on different threads, see EmulationThread.
  */
 public class GGVmRegisterStatusBar implements ReadWriteRange {
 
@@ -20,7 +21,7 @@ public class GGVmRegisterStatusBar implements ReadWriteRange {
         this.sprite0HitStatusBarEnabled = sprite0HitStatusBarEnabled;
     }
 
-    private boolean sprite0HitStatusBarEnabled = false;
+    private volatile boolean sprite0HitStatusBarEnabled = false;
 
     @Override
     public byte read(int address) {
@@ -44,11 +45,11 @@ public class GGVmRegisterStatusBar implements ReadWriteRange {
 
     @Override
     public void save(OutputStream outputStream) throws IOException {
-
+        outputStream.write(sprite0HitStatusBarEnabled ? 1 : 0);
     }
 
     @Override
     public void load(InputStream inputStream) throws IOException {
-
+        sprite0HitStatusBarEnabled = inputStream.read() == 1;
     }
 }
@@ -26,7 +26,12 @@ public class GGVmRegisterStopMusic implements ReadWriteRange {
 
     @Override
     public void write(int address, byte value) {
-        ggVmSoundtrackManager.stopSongs();
+        ggVmSoundtrackManager.runOnApplicationThread(new Runnable() {
+            @Override
+            public void run() {
+                ggVmSoundtrackManager.stopSongs();
+            }
+        });
     }
 
     @Override
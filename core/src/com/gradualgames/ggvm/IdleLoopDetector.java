@@ -0,0 +1,152 @@
+package com.gradualgames.ggvm;
+
+/**
+ * Detects idle loops for the interpreter, see Cpu.run: loops such as lda nmi_flag /
+ * beq - which do nothing but read ram or rom at fixed addresses into registers and
+ * test them. Such a loop writes nothing, so once an iteration leaves the registers
+ * exactly as they were, every further iteration does the same until an nmi changes
+ * ram.
+ *
+ * The interpreter reports every branch or jmp which jumps back to its own address or
+ * before it. The code from there up to the jump is checked the first time, and
+ * remembered while the cpu keeps jumping back from the same place, so a loop only
+ * costs a comparison per iteration. Only loops which run straight through rom are
+ * considered, since code in ram might change. BlockTranslator marks translated blocks
+ * which are possible idle loops by the same rules, see isLoopInstruction.
+ */
+class IdleLoopDetector {
+
+    /**
+     * The most instructions a loop can have, including the jump back.
+     */
+    static final int MAX_LOOP_LENGTH = 16;
+
+    private CpuBus bus;
+
+    private InstructionCache instructionCache;
+
+    /**
+     * The address of the jump back checked last, the bank it was read from, and the
+     * number of instructions of its loop, or 0 if it is not a possible idle loop.
+     */
+    private int jumpAddress = -1;
+
+    private int jumpBank;
+
+    private int loopLength;
+
+    /**
+     * The registers and the instruction count when the cpu last jumped back.
+     */
+    private int registers;
+
+    private long instructionCount;
+
+    IdleLoopDetector(CpuBus bus, InstructionCache instructionCache) {
+        this.bus = bus;
+        this.instructionCache = instructionCache;
+    }
+
+    /**
+     * Forgets the loop checked last. Must be called whenever the memory map of the bus
+     * changes or the instruction count is reset.
+     */
+    void clear() {
+        jumpAddress = -1;
+    }
+
+    /**
+     * To be called after the instruction at jumpAddress has jumped back to pc.
+     * @param registers The registers and flags of the cpu, packed into an int.
+     * @param instructionCount The number of instructions executed, including the jump.
+     * @return Whether the cpu is in an idle loop: the code from pc up to the jump is a
+     * possible idle loop, the cpu has just run straight through it since the jump
+     * was last taken, and the registers are exactly as they were then.
+     */
+    boolean isIdle(int jumpAddress, int pc, int registers, long instructionCount) {
+        int bank = instructionCache.getBank(jumpAddress);
+        boolean idle = false;
+        if (jumpAddress == this.jumpAddress && bank == jumpBank) {
+            idle = loopLength > 0 && instructionCount - this.instructionCount == loopLength &&
+                    registers == this.registers;
+        } else {
+            this.jumpAddress = jumpAddress;
+            jumpBank = bank;
+            loopLength = findLoopLength(pc, jumpAddress);
+        }
+        this.registers = registers;
+        this.instructionCount = instructionCount;
+        return idle;
+    }
+
+    /**
+     * @return The number of instructions from pc up to and including the jump at
+     * jumpAddress, or 0 if they are not a possible idle loop.
+     */
+    private int findLoopLength(int pc, int jumpAddress) {
+        if (!isRom(jumpAddress)) {
+            return 0;
+        }
+        int length = 1;
+        int address = pc;
+        while (address < jumpAddress) {
+            if (length == MAX_LOOP_LENGTH || !isRom(address) || !instructionCache.isInSameBank(jumpAddress, address)) {
+                return 0;
+            }
+            int entry = instructionCache.fetch(address);
+            int opcode = entry & 0xff;
+            if (!isLoopInstruction(bus, opcode, (entry >> 8) & 0xffff)) {
+                return 0;
+            }
+            address += Cpu.INSTRUCTION_LENGTHS[opcode];
+            length++;
+        }
+        return address == jumpAddress ? length : 0;
+    }
+
+    /**
+     * An instruction can only be part of a loop if all of its bytes are read straight
+     * from rom.
+     */
+    private boolean isRom(int address) {
+        int length = Cpu.INSTRUCTION_LENGTHS[bus.readUnsignedByteAsInt(address)];
+        for (int i = address; i < address + length; i++) {
+            if (i > 0xffff || !(bus.memoryMap[i] instanceof Rom || bus.memoryMap[i] instanceof BankSlot)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether an instruction may be part of an idle loop, before the jump
+     * back: it only reads ram or rom at a fixed address, or an immediate, into a
+     * register or the flags.
+     */
+    static boolean isLoopInstruction(CpuBus bus, int opcode, int operand) {
+        switch (opcode) {
+            case 0xa9: case 0xa2: case 0xa0: //lda, ldx, ldy #
+            case 0xc9: case 0xe0: case 0xc0: //cmp, cpx, cpy #
+            case 0x29: case 0x09: case 0x49: //and, ora, eor #
+            case 0xaa: case 0xa8: case 0x8a: case 0x98: //tax, tay, txa, tya
+            case 0x18: case 0x38: case 0xea: //clc, sec, nop
+                return true;
+            case 0xa5: case 0xa6: case 0xa4: case 0xad: case 0xae: case 0xac: //lda, ldx, ldy zp, abs
+            case 0xc5: case 0xe4: case 0xc4: case 0xcd: case 0xec: case 0xcc: //cmp, cpx, cpy zp, abs
+            case 0x25: case 0x05: case 0x45: case 0x2d: case 0x0d: case 0x4d: //and, ora, eor zp, abs
+            case 0x24: case 0x2c: //bit zp, abs
+                ReadWriteRange readWriteRange = bus.memoryMap[operand];
+                return readWriteRange instanceof CpuRam || readWriteRange instanceof Ram || readWriteRange instanceof Rom ||
+                       (readWriteRange instanceof BankSlot && !((BankSlot) readWriteRange).isSwitchable());
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return Whether an instruction can end a loop: a branch or jmp abs.
+     */
+    static boolean isJump(int opcode) {
+        return (opcode & 0x1f) == 0x10 || opcode == 0x4c;
+    }
+}
@@ -0,0 +1,245 @@
+package com.gradualgames.ggvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Caches decoded instructions for the cpu, so that the opcode and operand of an
+ * instruction only have to be fetched from the bus the first time it is executed.
+ * Each decoded instruction is packed into an int as the opcode in bits 0-7, the
+ * operand in bits 8-23 and a valid bit; the length of the instruction follows from
+ * the opcode.
+ *
+ * Entries are kept per 256 byte page of the cpu bus. Pages within a switchable
+ * BankSlot are kept per bank, so the cache is effectively keyed by the pc and the
+ * bank the slot currently shows; the slot tells the cache when it switches banks.
+ * Instructions are only cached when every byte of them comes from rom or ram, so
+ * addresses with a BusEventGenerator installed (or any hardware register) are always
+ * read through the bus, and when no byte comes from another switchable slot than the
+ * first, since that slot could switch banks on its own. Entries for code running
+ * from ram are dropped whenever the cpu writes to one of their bytes.
+ *
+ * The cache must be cleared whenever the memory map is changed, see
+ * GGVm.installBusEventGenerator.
+ */
+public class InstructionCache implements OnBankSwitchListener {
+
+    private static final int PAGE_SIZE = 256;
+
+    private static final int PAGE_COUNT = CpuBus.MEMORY_MAP_SIZE / PAGE_SIZE;
+
+    private static final int VALID = 1 << 24;
+
+    private CpuBus bus;
+
+    /**
+     * Decoded instructions for every page of the bus, null if nothing has been
+     * cached in that page yet.
+     */
+    private int[][] pages = new int[PAGE_COUNT][];
+
+    /**
+     * The subset of pages which are backed by ram and must be invalidated on write.
+     */
+    private int[][] writablePages = new int[PAGE_COUNT][];
+
+    /**
+     * The switchable slots of the bus, the index of the slot covering each page (-1
+     * for pages outside any switchable slot) and the pages of each slot, per bank.
+     */
+    private BankSlot[] slots;
+    private int[] pageSlots = new int[PAGE_COUNT];
+    private int[][][][] bankPages;
+    private int bankCount;
+
+    public InstructionCache(CpuBus bus) {
+        this.bus = bus;
+        List<BankSlot> slotList = new ArrayList<BankSlot>();
+        Arrays.fill(pageSlots, -1);
+        for (int address = 0; address < CpuBus.MEMORY_MAP_SIZE; address += PAGE_SIZE) {
+            if (bus.memoryMap[address] instanceof BankSlot) {
+                BankSlot bankSlot = (BankSlot) bus.memoryMap[address];
+                if (bankSlot.isSwitchable() && !slotList.contains(bankSlot)) {
+                    bankSlot.addOnBankSwitchListener(this);
+                    for (int page = bankSlot.lower() / PAGE_SIZE; page <= bankSlot.upper() / PAGE_SIZE; page++) {
+                        pageSlots[page] = slotList.size();
+                    }
+                    slotList.add(bankSlot);
+                    bankCount = Math.max(bankCount, bankSlot.getBankCount());
+                }
+            }
+        }
+        slots = slotList.toArray(new BankSlot[slotList.size()]);
+        bankPages = new int[slots.length][][][];
+        for (int i = 0; i < slots.length; i++) {
+            bankPages[i] = new int[slots[i].getBankCount()][(slots[i].upper() - slots[i].lower() + 1) / PAGE_SIZE][];
+        }
+    }
+
+    /**
+     * Returns the decoded instruction at the specified address, decoding and caching
+     * it first if necessary.
+     * @param address The address of the instruction, usually the pc.
+     * @return The opcode in bits 0-7 and the operand in bits 8-23.
+     */
+    public int fetch(int address) {
+        int[] page = pages[address >> 8];
+        if (page != null) {
+            int entry = page[address & 0xff];
+            if (entry != 0) {
+                return entry;
+            }
+        }
+        return decode(address);
+    }
+
+    /**
+     * @param address An address on the cpu bus.
+     * @return The PRG bank the address is currently read from, or -1 if the address is
+     * not within a switchable slot.
+     */
+    public int getBank(int address) {
+        int slot = pageSlots[address >> 8];
+        return slot != -1 ? slots[slot].getBank() : -1;
+    }
+
+    /**
+     * @return The largest number of banks of any switchable slot, so every bank
+     * returned by getBank is less than this.
+     */
+    public int getBankCount() {
+        return bankCount;
+    }
+
+    /**
+     * Determines whether code at an address can follow code at pc without having to
+     * check the bank again: the address is not in a switchable slot, or in the same
+     * slot as pc, so it cannot switch banks on its own.
+     * @param pc An address on the cpu bus.
+     * @param address Another address on the cpu bus.
+     */
+    public boolean isInSameBank(int pc, int address) {
+        int slot = pageSlots[address >> 8];
+        return slot == -1 || slot == pageSlots[pc >> 8];
+    }
+
+    /**
+     * Drops any cached instruction containing the byte at the specified address, if
+     * it is backed by ram. Should be called on every write the cpu performs.
+     * @param address The address that has been written to.
+     */
+    public void invalidate(int address) {
+        invalidateEntry(address);
+        invalidateEntry(address - 1);
+        invalidateEntry(address - 2);
+    }
+
+    /**
+     * Drops all cached instructions which are backed by ram, for example after
+     * ram has been restored from a save state.
+     */
+    public void invalidateWritablePages() {
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            if (writablePages[i] != null) {
+                writablePages[i] = null;
+                pages[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Drops all cached instructions.
+     */
+    public void clear() {
+        Arrays.fill(pages, null);
+        Arrays.fill(writablePages, null);
+        for (int[][][] slotPages : bankPages) {
+            for (int[][] bank : slotPages) {
+                Arrays.fill(bank, null);
+            }
+        }
+    }
+
+    @Override
+    public void onBankSwitch(BankSlot bankSlot) {
+        int[][] bank = bankPages[pageSlots[bankSlot.lower() >> 8]][bankSlot.getBank()];
+        System.arraycopy(bank, 0, pages, bankSlot.lower() >> 8, bank.length);
+    }
+
+    private void invalidateEntry(int address) {
+        if (address >= 0) {
+            int[] page = writablePages[address >> 8];
+            if (page != null) {
+                page[address & 0xff] = 0;
+            }
+        }
+    }
+
+    private int decode(int address) {
+        int opcode = bus.readUnsignedByteAsInt(address);
+        int length = Cpu.INSTRUCTION_LENGTHS[opcode];
+        int operand;
+        switch (length) {
+            case 2:
+                operand = bus.readUnsignedByteAsInt(address + 1);
+                break;
+            case 3:
+                operand = bus.readUnsignedWordAsInt(address + 1);
+                break;
+            default:
+                operand = 0;
+                break;
+        }
+        int entry = VALID | (operand << 8) | opcode;
+        if (isCacheable(address, length)) {
+            getOrCreatePage(address >> 8)[address & 0xff] = entry;
+        }
+        return entry;
+    }
+
+    private boolean isCacheable(int address, int length) {
+        for (int i = address; i < address + length; i++) {
+            if (i > 0xffff) {
+                return false;
+            }
+            ReadWriteRange readWriteRange = bus.memoryMap[i];
+            //Code in the mirrors of cpu ram is not cached, since writes only drop
+            //entries at the address they were made through
+            if (!(readWriteRange instanceof Rom ||
+                  readWriteRange instanceof BankSlot ||
+                  readWriteRange instanceof Ram ||
+                  (readWriteRange instanceof CpuRam && i < Cpu.RAM_SIZE))) {
+                return false;
+            }
+            if (!isInSameBank(address, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int[] getOrCreatePage(int pageIndex) {
+        int[] page = pages[pageIndex];
+        if (page == null) {
+            page = new int[PAGE_SIZE];
+            pages[pageIndex] = page;
+            int slot = pageSlots[pageIndex];
+            if (slot != -1) {
+                bankPages[slot][slots[slot].getBank()][pageIndex - (slots[slot].lower() >> 8)] = page;
+            } else if (!isRomPage(pageIndex)) {
+                writablePages[pageIndex] = page;
+            }
+        }
+        return page;
+    }
+
+    private boolean isRomPage(int pageIndex) {
+        for (int i = pageIndex * PAGE_SIZE; i < (pageIndex + 1) * PAGE_SIZE; i++) {
+            if (!(bus.memoryMap[i] instanceof Rom || bus.memoryMap[i] instanceof BankSlot)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,12 @@
+package com.gradualgames.ggvm;
+
+/**
+ * This interface tells the listener that a BankSlot now shows a different bank
+ * of its rom. The buses listen for this so that they can point their page tables
+ * at the new bank, and the cpu's InstructionCache so that it can swap in the
+ * decoded instructions it has for that bank.
+ */
+public interface OnBankSwitchListener {
+
+    void onBankSwitch(BankSlot bankSlot);
+}
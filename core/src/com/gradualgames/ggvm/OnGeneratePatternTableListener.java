@@ -8,6 +8,12 @@ package com.gradualgames.ggvm;
  * to generate this event. Also see GGVmApplication, and particularly
  * RenderManager to see how ppu data is transformed into actual textures for
  * use in a modern gpu.
+ *
+ * onGeneratePattern is called on the thread rendering frames, for each pattern
+ * written since the previous frame state it acquired, see GGVm.acquireFrameState.
+ * The address is that of the pattern in the chr memory of the cartridge: its address
+ * on the ppu bus, unless the mapper switches CHR banks, in which case it is the
+ * offset of the pattern within all banks, see BankedMapper.
  */
 public interface OnGeneratePatternTableListener {
 
@@ -0,0 +1,49 @@
+package com.gradualgames.ggvm;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Palette ram, $3f00 - $3f1f of the ppu bus. Keeps a version which changes whenever
+ * a write changes a byte of the palette, or a state is loaded, so that render
+ * managers can rebuild and upload their palette only when it changed rather than
+ * every frame, see GGVm.getPaletteVersion. Games commonly write the whole palette
+ * every frame, so writes of the value already there leave the version alone.
+ *
+ * Writes always go through write, rather than straight into the array, so that
+ * none of them is missed.
+ */
+public class PaletteRam extends Ram {
+
+    private int version;
+
+    public PaletteRam() {
+        super(Ppu.BG_PALETTE_BASE_ADDRESS, Ppu.PALETTE_RAM_SIZE);
+    }
+
+    /**
+     * @return A number which changes whenever the palette changes.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public void write(int address, byte value) {
+        if (read(address) != value) {
+            super.write(address, value);
+            version++;
+        }
+    }
+
+    @Override
+    public boolean isWritable() {
+        return false;
+    }
+
+    @Override
+    public void load(InputStream inputStream) throws IOException {
+        super.load(inputStream);
+        version++;
+    }
+}
@@ -386,22 +386,35 @@ public class Ppu implements ReadWriteRangeProvider {
 
         @Override
         public void save(OutputStream outputStream) throws IOException {
-            DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
-            dataOutputStream.write(lo);
-            dataOutputStream.write(hi);
-            dataOutputStream.writeBoolean(vramAddressLatch);
-            dataOutputStream.writeInt(vramAddress);
-            dataOutputStream.writeInt(nameTableAddress);
+            //Laid out as DataOutputStream would, without allocating one for every save
+            outputStream.write(lo);
+            outputStream.write(hi);
+            outputStream.write(vramAddressLatch ? 1 : 0);
+            writeInt(outputStream, vramAddress);
+            writeInt(outputStream, nameTableAddress);
         }
 
         @Override
         public void load(InputStream inputStream) throws IOException {
-            DataInputStream dataInputStream = new DataInputStream(inputStream);
-            lo = dataInputStream.read();
-            hi = dataInputStream.read();
-            vramAddressLatch = dataInputStream.readBoolean();
-            vramAddress = dataInputStream.readInt();
-            nameTableAddress = dataInputStream.readInt();
+            lo = inputStream.read();
+            hi = inputStream.read();
+            vramAddressLatch = inputStream.read() != 0;
+            vramAddress = readInt(inputStream);
+            nameTableAddress = readInt(inputStream);
+        }
+
+        private void writeInt(OutputStream outputStream, int value) throws IOException {
+            outputStream.write(value >> 24);
+            outputStream.write(value >> 16);
+            outputStream.write(value >> 8);
+            outputStream.write(value);
+        }
+
+        private int readInt(InputStream inputStream) throws IOException {
+            int value = inputStream.read() << 24;
+            value |= inputStream.read() << 16;
+            value |= inputStream.read() << 8;
+            return value | inputStream.read();
         }
     }
 
@@ -444,12 +457,12 @@ public class Ppu implements ReadWriteRangeProvider {
 
         @Override
         public void save(OutputStream outputStream) throws IOException {
-
+            outputStream.write(readEnabled ? 1 : 0);
         }
 
         @Override
         public void load(InputStream inputStream) throws IOException {
-
+            readEnabled = inputStream.read() == 1;
         }
     }
 }
@@ -7,15 +7,34 @@ package com.gradualgames.ggvm;
  * can support chr-ram and chr-rom. Typically the mapper will always provide
  * palette ram and nametable ram. Depending on the mapper, chr data will be
  * mapped to rom or ram. See Mapper classes for more information.
+ *
+ * If the mapper provides a PaletteRam, the bus keeps track of it, so that the
+ * version of the palette is known without a lookup, see getPaletteVersion.
  */
 public class PpuBus extends Bus {
 
     public static final int MEMORY_MAP_SIZE = 0x4000;
 
+    private PaletteRam paletteRam;
+
+    private int unversionedPaletteVersion;
+
     public PpuBus(ReadWriteRangeProvider mapper, ReadWriteRangeWarning readWriteRangeWarning) {
         super(BusType.PPU, MEMORY_MAP_SIZE, readWriteRangeWarning);
         add(mapper);
         //Fill all null entries with a no-op
         fillNullEntries(readWriteRangeWarning);
+        if (memoryMap[Ppu.BG_PALETTE_BASE_ADDRESS] instanceof PaletteRam) {
+            paletteRam = (PaletteRam) memoryMap[Ppu.BG_PALETTE_BASE_ADDRESS];
+        }
+    }
+
+    /**
+     * @return A number which changes whenever the palette changes. Without a
+     * PaletteRam, the palette may have changed at any time, so this changes on every
+     * call.
+     */
+    public int getPaletteVersion() {
+        return paletteRam != null ? paletteRam.getVersion() : unversionedPaletteVersion++;
     }
 }
@@ -11,7 +11,7 @@ import java.io.OutputStream;
  * hardwired Ram in the CPU and for CHR-RAM by a mapper, for example,
  * or SRAM.
  */
-public class Ram implements ReadWriteRange {
+public class Ram implements DirectReadWriteRange {
 
     private int lower;
     private int upper;
@@ -37,6 +37,21 @@ public class Ram implements ReadWriteRange {
         ram[address] = value;
     }
 
+    @Override
+    public byte[] getPageData(int address) {
+        return ram;
+    }
+
+    @Override
+    public int getPageOffset(int address) {
+        return 0;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+
     @Override
     public int lower() {
         return lower;
@@ -49,11 +64,12 @@ public class Ram implements ReadWriteRange {
 
     @Override
     public void save(OutputStream outputStream) throws IOException {
-        outputStream.write(ram);
+        //Only the ram itself, not the space before it which aligns it to the bus
+        outputStream.write(ram, lower, ram.length - lower);
     }
 
     @Override
     public void load(InputStream inputStream) throws IOException {
-        inputStream.read(ram);
+        inputStream.read(ram, lower, ram.length - lower);
     }
 }
@@ -71,15 +71,14 @@ public class ReadWriteRangeWarning implements ReadWriteRange {
     }
 
     /**
-     * Hard coded helper method for UnROM mappers for now to report which
-     * bank is swapped in. In the future we may want to delegate this to the
-     * mapper itself somehow.
-     * @return The bank that is swapped in, or -1 if no switchboard available
+     * Helper method for banked mappers to report which bank is swapped in at
+     * 0x8000.
+     * @return The bank that is swapped in, or -1 if no switchable slot available
      */
     public int getLowerPrgBank() {
-        if (bus.busType == Bus.BusType.CPU && bus.memoryMap[0x8000] instanceof UnromSwitchboard) {
-            UnromSwitchboard unromSwitchboard = (UnromSwitchboard) bus.memoryMap[0x8000];
-            return unromSwitchboard.getCurrentRom();
+        if (bus.busType == Bus.BusType.CPU && bus.memoryMap[0x8000] instanceof BankSlot) {
+            BankSlot bankSlot = (BankSlot) bus.memoryMap[0x8000];
+            return bankSlot.isSwitchable() ? bankSlot.getBank() : -1;
         }
         return -1;
     }
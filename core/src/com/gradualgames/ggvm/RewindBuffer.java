@@ -0,0 +1,419 @@
+package com.gradualgames.ggvm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Records the state of the vm every few frames, see GGVm.setRewindBuffer, into a ring
+ * buffer of fixed size outside the Java heap, so that the game can be rewound one
+ * recorded state at a time, see GGVm.setRewinding. Once full, the oldest states are
+ * dropped to make room for new ones.
+ *
+ * Every keyframeInterval states, a whole Snapshot is recorded as a keyframe. The
+ * states in between are recorded as deltas against the last keyframe: the snapshot
+ * xored with the keyframe, which is mostly zeros, run-length encoded as the number of
+ * zeros followed by the number of bytes which differ and those bytes. States are
+ * dropped a keyframe at a time, along with the deltas following it, which cannot be
+ * decoded without it. A delta which would take as many bytes as the snapshot is
+ * recorded as a keyframe instead.
+ *
+ * Recording saves and encodes into arrays sized for the largest state in the
+ * constructor, see GGVm.getStateSize, so it allocates nothing and never causes a
+ * garbage collection. The time the last recording took and the memory recording takes
+ * per minute are available for reporting, see getLastCaptureNanos and
+ * getBytesPerMinute.
+ */
+public class RewindBuffer {
+
+    /**
+     * A zero run shorter than this is kept in the bytes which differ, as the two run
+     * lengths it would start cost more than the zeros.
+     */
+    private static final int MIN_ZERO_RUN = 4;
+
+    /**
+     * The most bytes the two lengths starting a run of a delta take.
+     */
+    private static final int MAX_RUN_LENGTHS_SIZE = 10;
+
+    private ByteBuffer buffer;
+
+    private double frameRate;
+
+    private int frameInterval;
+
+    private int keyframeInterval;
+
+    /**
+     * Where each recorded state is in the buffer, how many bytes it takes and whether
+     * it is a keyframe, kept as a ring of which count entries from first are used.
+     */
+    private int[] entryOffsets;
+
+    private int[] entryLengths;
+
+    private boolean[] entryKeyframes;
+
+    private int first;
+
+    private int count;
+
+    /**
+     * Where the next state is written in the buffer, and where the oldest one starts.
+     */
+    private int head;
+
+    private int tail;
+
+    private int framesUntilCapture;
+
+    private int statesUntilKeyframe;
+
+    private Snapshot snapshot = new Snapshot();
+
+    /**
+     * The last keyframe recorded, which deltas are taken against.
+     */
+    private byte[] keyframe;
+
+    private int keyframeSize;
+
+    /**
+     * Scratch space to encode a delta into, or read a state from the buffer into.
+     */
+    private byte[] encoded;
+
+    private long lastCaptureNanos;
+
+    private long bytesRecorded;
+
+    private long statesRecorded;
+
+    /**
+     * @param capacity The size of the buffer in bytes.
+     * @param maxStates The most states to keep, however little memory they take.
+     * @param maxStateSize The most bytes a state of the vm can take, see
+     * GGVm.getStateSize.
+     * @param frameRate The frames per second the vm runs at, for reporting the time
+     * and memory the recorded states take.
+     * @param frameInterval Record the state every this many frames.
+     * @param keyframeInterval Record a keyframe every this many states.
+     */
+    public RewindBuffer(int capacity, int maxStates, int maxStateSize, double frameRate, int frameInterval, int keyframeInterval) {
+        buffer = ByteBuffer.allocateDirect(capacity);
+        entryOffsets = new int[maxStates];
+        entryLengths = new int[maxStates];
+        entryKeyframes = new boolean[maxStates];
+        snapshot.resize(maxStateSize);
+        keyframe = new byte[maxStateSize];
+        encoded = new byte[maxStateSize];
+        this.frameRate = frameRate;
+        this.frameInterval = frameInterval;
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Records the state of the vm, if it is due. To be called after every frame.
+     * @throws IllegalStateException If the state takes more than the most bytes given
+     * to the constructor.
+     */
+    public void capture(GGVm ggvm) {
+        if (framesUntilCapture > 0) {
+            framesUntilCapture--;
+            return;
+        }
+        framesUntilCapture = frameInterval - 1;
+
+        long startNanos = System.nanoTime();
+        ggvm.saveSnapshot(snapshot);
+        record(snapshot);
+        lastCaptureNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Stores a state after the last one, as a keyframe or a delta.
+     */
+    void record(Snapshot snapshot) {
+        int size = snapshot.getSize();
+        if (size > keyframe.length) {
+            throw new IllegalStateException("State of " + size + " bytes is larger than the " +
+                    keyframe.length + " bytes the rewind buffer was made for.");
+        }
+        int deltaLength = -1;
+        if (count > 0 && statesUntilKeyframe > 0 && size == keyframeSize) {
+            deltaLength = encodeDelta(snapshot.getData(), size);
+        }
+        if (deltaLength >= 0 && add(encoded, deltaLength, false)) {
+            statesUntilKeyframe--;
+        } else {
+            //Due, or the delta would not be smaller, or making room dropped the
+            //keyframe the delta was taken against
+            System.arraycopy(snapshot.getData(), 0, keyframe, 0, size);
+            keyframeSize = size;
+            add(snapshot.getData(), size, true);
+            statesUntilKeyframe = keyframeInterval - 1;
+        }
+    }
+
+    /**
+     * Drops the last state recorded and restores the vm to the one before it, which
+     * stays recorded, so recording carries on from there.
+     * @return False if there was no earlier state to restore.
+     */
+    public boolean stepBack(GGVm ggvm) {
+        if (!stepBack(snapshot)) {
+            return false;
+        }
+        ggvm.loadSnapshot(snapshot);
+        framesUntilCapture = frameInterval - 1;
+        return true;
+    }
+
+    /**
+     * Drops the last state stored and decodes the one before it.
+     * @param snapshot The snapshot to decode the state into.
+     * @return False if there was no earlier state.
+     */
+    boolean stepBack(Snapshot snapshot) {
+        if (count < 2) {
+            return false;
+        }
+        int last = index(count - 1);
+        if (entryKeyframes[last]) {
+            //Deltas from here on are against the keyframe before the dropped one
+            int keyframeIndex = count - 2;
+            while (!entryKeyframes[index(keyframeIndex)]) {
+                keyframeIndex--;
+            }
+            int entry = index(keyframeIndex);
+            keyframeSize = entryLengths[entry];
+            read(entry, keyframe);
+            statesUntilKeyframe = keyframeInterval - 1 - (count - 2 - keyframeIndex);
+        } else {
+            statesUntilKeyframe++;
+        }
+        head = entryOffsets[last];
+        count--;
+
+        int entry = index(count - 1);
+        byte[] data = snapshot.resize(keyframeSize);
+        if (entryKeyframes[entry]) {
+            System.arraycopy(keyframe, 0, data, 0, keyframeSize);
+        } else {
+            read(entry, encoded);
+            decodeDelta(encoded, entryLengths[entry], data);
+        }
+        return true;
+    }
+
+    /**
+     * Drops every recorded state.
+     */
+    public void clear() {
+        first = 0;
+        count = 0;
+        head = 0;
+        tail = 0;
+        framesUntilCapture = 0;
+    }
+
+    /**
+     * @return The time in nanoseconds the last state recorded took to save, encode and
+     * store.
+     */
+    public long getLastCaptureNanos() {
+        return lastCaptureNanos;
+    }
+
+    /**
+     * @return The number of states recorded which can be stepped back through.
+     */
+    public int getStateCount() {
+        return count;
+    }
+
+    /**
+     * @return The number of seconds of play the recorded states span.
+     */
+    public float getSeconds() {
+        return (float) (count * frameInterval / frameRate);
+    }
+
+    /**
+     * @return The average number of bytes a minute of play has taken to record, or 0
+     * if nothing was recorded yet.
+     */
+    public long getBytesPerMinute() {
+        return statesRecorded > 0 ? (long) (bytesRecorded * 60 * frameRate / frameInterval / statesRecorded) : 0;
+    }
+
+    /**
+     * @return The size of the buffer in bytes.
+     */
+    public int getCapacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Xors the snapshot with the keyframe into encoded, run-length encoding the zeros.
+     * @return The length of the encoded delta, or -1 if it would take as many bytes
+     * as the snapshot.
+     */
+    private int encodeDelta(byte[] data, int size) {
+        int length = 0;
+        int i = 0;
+        while (i < size) {
+            int zeroStart = i;
+            while (i < size && data[i] == keyframe[i]) {
+                i++;
+            }
+            int zeros = i - zeroStart;
+            int literalStart = i;
+            int literalEnd = i;
+            while (i < size) {
+                if (data[i] != keyframe[i]) {
+                    i++;
+                    literalEnd = i;
+                } else {
+                    int run = i;
+                    while (run < size && run - i < MIN_ZERO_RUN && data[run] == keyframe[run]) {
+                        run++;
+                    }
+                    if (run - i >= MIN_ZERO_RUN || run == size) {
+                        break;
+                    }
+                    i = run;
+                }
+            }
+            i = literalEnd;
+            if (length + MAX_RUN_LENGTHS_SIZE + literalEnd - literalStart >= size) {
+                return -1;
+            }
+            length = writeLength(encoded, length, zeros);
+            length = writeLength(encoded, length, literalEnd - literalStart);
+            for (int j = literalStart; j < literalEnd; j++) {
+                encoded[length++] = (byte) (data[j] ^ keyframe[j]);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Applies an encoded delta to the keyframe.
+     * @param data The array to decode into, at least keyframeSize bytes.
+     */
+    private void decodeDelta(byte[] delta, int length, byte[] data) {
+        System.arraycopy(keyframe, 0, data, 0, keyframeSize);
+        int position = 0;
+        int i = 0;
+        while (position < length) {
+            int zeros = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = delta[position++];
+                zeros |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            int literals = 0;
+            shift = 0;
+            do {
+                b = delta[position++];
+                literals |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            i += zeros;
+            for (int j = 0; j < literals; j++) {
+                data[i] ^= delta[position++];
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Writes a length seven bits at a time, lowest first, with the top bit of each
+     * byte set if more follow.
+     * @return The position after the length.
+     */
+    private static int writeLength(byte[] data, int position, int value) {
+        while (value >= 0x80) {
+            data[position++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        data[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Stores a state after the last one, dropping the oldest states to make room.
+     * @return False if the state is a delta and making room dropped every state.
+     */
+    private boolean add(byte[] data, int length, boolean isKeyframe) {
+        if (length > buffer.capacity()) {
+            return isKeyframe;
+        }
+        int offset;
+        while ((offset = findSpace(length)) < 0 || count == entryOffsets.length) {
+            dropOldest();
+        }
+        if (count == 0 && !isKeyframe) {
+            return false;
+        }
+        buffer.position(offset);
+        buffer.put(data, 0, length);
+        int entry = index(count);
+        entryOffsets[entry] = offset;
+        entryLengths[entry] = length;
+        entryKeyframes[entry] = isKeyframe;
+        if (count == 0) {
+            tail = offset;
+        }
+        count++;
+        head = offset + length;
+        bytesRecorded += length;
+        statesRecorded++;
+        return true;
+    }
+
+    /**
+     * @return Where a state of the given length fits after the last one, or -1 if it
+     * does not fit without dropping states.
+     */
+    private int findSpace(int length) {
+        if (count == 0) {
+            return 0;
+        }
+        if (head > tail) {
+            if (buffer.capacity() - head >= length) {
+                return head;
+            }
+            return tail >= length ? 0 : -1;
+        }
+        return tail - head >= length ? head : -1;
+    }
+
+    /**
+     * Drops the oldest keyframe and the deltas following it. Should that leave no
+     * keyframe, the next state recorded is one.
+     */
+    private void dropOldest() {
+        do {
+            first = index(1);
+            count--;
+        } while (count > 0 && !entryKeyframes[first]);
+        if (count == 0) {
+            head = 0;
+            tail = 0;
+        } else {
+            tail = entryOffsets[first];
+        }
+    }
+
+    private void read(int entry, byte[] data) {
+        buffer.position(entryOffsets[entry]);
+        buffer.get(data, 0, entryLengths[entry]);
+    }
+
+    private int index(int i) {
+        return (first + i) % entryOffsets.length;
+    }
+}
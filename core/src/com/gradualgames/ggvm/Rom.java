@@ -11,7 +11,7 @@ import java.io.OutputStream;
  * level. Can be used for PRG rom or CHR rom. See Mapper classes to
  * see how they are configured.
  */
-public class Rom implements ReadWriteRange {
+public class Rom implements DirectReadWriteRange {
 
     private byte[] data;
     private int lower;
@@ -37,6 +37,21 @@ public class Rom implements ReadWriteRange {
 
     }
 
+    @Override
+    public byte[] getPageData(int address) {
+        return data;
+    }
+
+    @Override
+    public int getPageOffset(int address) {
+        return -lower;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return false;
+    }
+
     @Override
     public int lower() {
         return lower;
@@ -0,0 +1,585 @@
+package com.gradualgames.ggvm;
+
+import com.gradualgames.module.GameModule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Translates the PRG rom of a game module into Java source ahead of time, as a build
+ * step, see TranslatedRom. Starting from the nmi, reset and irq vectors, it follows
+ * every branch, jmp and jsr whose target is known statically, and splits the code it
+ * reaches into blocks with the same rules as BlockTranslator, so that the blocks the
+ * cpu translates at runtime find their generated code. Each block becomes a static
+ * method which executes its instructions directly on the registers and op methods of
+ * the Cpu. Instructions without a simple translation are handed to Cpu.execute. Like
+ * Cpu.execute, the generated code only counts extra cycles; Cpu.executeBlock counts
+ * the cycles of the instructions themselves.
+ *
+ * Code which is only reached through jmp (indirect), rts or rti, or at a pc in the
+ * middle of a block (after an nmi, for example), is not found and is left to the
+ * interpreter and block translator at runtime. Entry points in the switchable PRG
+ * slot of the mapper which are reached from a fixed slot are translated for every
+ * bank, since which bank is selected cannot be known statically. Mappers with more
+ * than one switchable PRG slot are not supported.
+ *
+ * Usage: RomTranslator outputDirectory gameModuleClass...
+ *
+ * The rom file of each game module is read relative to the working directory.
+ */
+public class RomTranslator {
+
+    private static final int BLOCKS_PER_DISPATCH_METHOD = 256;
+
+    /**
+     * A block found in the rom, with its decoded instructions.
+     */
+    private static class Block {
+
+        private final int bank;
+
+        private final int pc;
+
+        private final int[] addresses;
+
+        private final int[] opcodes;
+
+        private final int[] operands;
+
+        private Block(int bank, int pc, int[] addresses, int[] opcodes, int[] operands) {
+            this.bank = bank;
+            this.pc = pc;
+            this.addresses = addresses;
+            this.opcodes = opcodes;
+            this.operands = operands;
+        }
+    }
+
+    private BankedMapper mapper;
+
+    /**
+     * The switchable PRG slot, as with mappers 2 and 30, or null if all PRG slots are
+     * fixed, as with mapper 0.
+     */
+    private BankSlot bankedSlot;
+
+    private int bankCount;
+
+    private Set<Integer> entryPoints = new HashSet<Integer>();
+
+    private LinkedList<Integer> pendingEntryPoints = new LinkedList<Integer>();
+
+    private List<Block> blocks = new ArrayList<Block>();
+
+    public RomTranslator(Cartridge cartridge) {
+        mapper = cartridge.createMapper();
+        if (mapper == null) {
+            throw new IllegalArgumentException("Mapper " + cartridge.getMapper() + " not supported.");
+        }
+        for (int i = 0; i < mapper.getPrgSlotCount(); i++) {
+            BankSlot slot = mapper.getPrgSlot(i);
+            if (slot.isSwitchable()) {
+                if (bankedSlot != null) {
+                    throw new IllegalArgumentException("Mapper " + cartridge.getMapper() + " has more than one switchable PRG slot.");
+                }
+                bankedSlot = slot;
+                bankCount = slot.getBankCount();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: RomTranslator outputDirectory gameModuleClass...");
+            System.exit(1);
+        }
+        File outputDirectory = new File(args[0], TranslatedRom.class.getPackage().getName().replace('.', File.separatorChar));
+        outputDirectory.mkdirs();
+        for (int i = 1; i < args.length; i++) {
+            GameModule gameModule = (GameModule) Class.forName(args[i]).getDeclaredConstructor().newInstance();
+            Cartridge cartridge = gameModule.provideCartridge(readFile(new File(gameModule.provideFileName())));
+            String className = TranslatedRom.getClassName(cartridge);
+            String simpleName = className.substring(className.lastIndexOf('.') + 1);
+
+            RomTranslator romTranslator = new RomTranslator(cartridge);
+            romTranslator.translate();
+            Writer writer = new OutputStreamWriter(new FileOutputStream(new File(outputDirectory, simpleName + ".java")), "UTF-8");
+            try {
+                writer.write(romTranslator.generate(simpleName, gameModule.provideFileName()));
+            } finally {
+                writer.close();
+            }
+            System.out.println(gameModule.provideTitle() + ": translated " + romTranslator.blocks.size() + " blocks into " + className + ".");
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[0x4000];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Finds all blocks reachable from the vectors.
+     */
+    public void translate() {
+        addEntryPoint(-1, readWord(-1, Cpu.VECTORS_ADDRESS));
+        addEntryPoint(-1, readWord(-1, Cpu.VECTORS_ADDRESS + 2));
+        addEntryPoint(-1, readWord(-1, Cpu.VECTORS_ADDRESS + 4));
+        while (!pendingEntryPoints.isEmpty()) {
+            int entryPoint = pendingEntryPoints.removeFirst();
+            translateBlock((entryPoint >> 16) - 1, entryPoint & 0xffff);
+        }
+    }
+
+    /**
+     * Queues an entry point for translation.
+     * @param bank The bank of the code which refers to the address, -1 if the code is
+     *             not in the switchable range.
+     * @param address The address of the entry point.
+     */
+    private void addEntryPoint(int bank, int address) {
+        if (address < 0 || address > 0xffff) {
+            return;
+        }
+        if (!isBanked(address)) {
+            queueEntryPoint(-1, address);
+        } else if (bank != -1) {
+            queueEntryPoint(bank, address);
+        } else {
+            for (int i = 0; i < bankCount; i++) {
+                queueEntryPoint(i, address);
+            }
+        }
+    }
+
+    private void queueEntryPoint(int bank, int address) {
+        int entryPoint = ((bank + 1) << 16) | address;
+        if (entryPoints.add(entryPoint)) {
+            pendingEntryPoints.add(entryPoint);
+        }
+    }
+
+    private void translateBlock(int bank, int pc) {
+        int[] addresses = new int[BlockTranslator.MAX_BLOCK_LENGTH];
+        int[] opcodes = new int[BlockTranslator.MAX_BLOCK_LENGTH];
+        int[] operands = new int[BlockTranslator.MAX_BLOCK_LENGTH];
+        int length = 0;
+        int address = pc;
+        boolean mayHaveSwitchedBanks = false;
+        while (length < BlockTranslator.MAX_BLOCK_LENGTH && isTranslatable(bank, address) && (isBanked(pc) || !isBanked(address))) {
+            int opcode = read(bank, address);
+            int instructionLength = Cpu.INSTRUCTION_LENGTHS[opcode];
+            int operand = 0;
+            if (instructionLength == 2) {
+                operand = read(bank, address + 1);
+            } else if (instructionLength == 3) {
+                operand = readWord(bank, address + 1);
+            }
+            addresses[length] = address;
+            opcodes[length] = opcode;
+            operands[length] = operand;
+            length++;
+            address += instructionLength;
+            if (BlockTranslator.endsBlock(opcode)) {
+                break;
+            }
+            if (bank != -1 && BlockTranslator.mayWriteRom(opcode, operand)) {
+                mayHaveSwitchedBanks = true;
+                break;
+            }
+        }
+        if (length == 0) {
+            return;
+        }
+        blocks.add(new Block(bank, pc, copyOf(addresses, length), copyOf(opcodes, length), copyOf(operands, length)));
+
+        //Queue the blocks which may follow this one
+        int last = addresses[length - 1];
+        int opcode = opcodes[length - 1];
+        int operand = operands[length - 1];
+        if (isBranch(opcode)) {
+            addEntryPoint(bank, last + 2 + (byte) operand);
+            addEntryPoint(bank, last + 2);
+        } else if (opcode == 0x4c) {
+            addEntryPoint(bank, operand);
+        } else if (opcode == 0x20) {
+            addEntryPoint(bank, operand);
+            addEntryPoint(bank, last + 3);
+        } else if (mayHaveSwitchedBanks) {
+            addEntryPoint(-1, address);
+        } else if (!BlockTranslator.endsBlock(opcode)) {
+            addEntryPoint(bank, address);
+        }
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+    private boolean isBanked(int address) {
+        return bankedSlot != null && address >= bankedSlot.lower() && address <= bankedSlot.upper();
+    }
+
+    /**
+     * An instruction can be translated if all of its bytes are in rom.
+     */
+    private boolean isTranslatable(int bank, int address) {
+        int opcode = read(bank, address);
+        if (opcode == -1) {
+            return false;
+        }
+        for (int i = address + 1; i < address + Cpu.INSTRUCTION_LENGTHS[opcode]; i++) {
+            if (read(bank, i) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a byte of PRG rom as the cpu sees it with the given bank selected.
+     * @return The byte, or -1 if the address is not in rom.
+     */
+    private int read(int bank, int address) {
+        if (address < BankedMapper.PRG_ROM_BASE_ADDRESS || address > 0xffff) {
+            return -1;
+        } else if (isBanked(address)) {
+            int size = bankedSlot.upper() - bankedSlot.lower() + 1;
+            return bank != -1 ? bankedSlot.getMemory()[bank * size + address - bankedSlot.lower()] & 0xff : -1;
+        }
+        for (int i = 0; i < mapper.getPrgSlotCount(); i++) {
+            BankSlot slot = mapper.getPrgSlot(i);
+            if (address >= slot.lower() && address <= slot.upper()) {
+                return slot.read(address) & 0xff;
+            }
+        }
+        return -1;
+    }
+
+    private int readWord(int bank, int address) {
+        int lo = read(bank, address);
+        int hi = read(bank, address + 1);
+        return lo == -1 || hi == -1 ? -1 : (hi << 8) | lo;
+    }
+
+    private static boolean isBranch(int opcode) {
+        return (opcode & 0x1f) == 0x10;
+    }
+
+    /**
+     * Generates the source of the TranslatedRom subclass for all blocks found.
+     */
+    private String generate(String simpleName, String fileName) {
+        StringBuilder source = new StringBuilder();
+        source.append("package ").append(TranslatedRom.class.getPackage().getName()).append(";\n\n");
+        source.append("/**\n");
+        source.append(" * Generated by RomTranslator from ").append(fileName).append(". Do not edit.\n");
+        source.append(" */\n");
+        source.append("public final class ").append(simpleName).append(" extends TranslatedRom {\n");
+
+        //findBlock dispatches on bank, then page, then pc
+        source.append("\n    @Override\n");
+        source.append("    public int findBlock(int bank, int pc) {\n");
+        source.append("        switch (bank) {\n");
+        for (int bank = -1; bank < bankCount; bank++) {
+            if (hasBlocks(bank, -1)) {
+                source.append("            case ").append(bank).append(": return find").append(bankName(bank)).append("Block(pc);\n");
+            }
+        }
+        source.append("            default: return -1;\n");
+        source.append("        }\n");
+        source.append("    }\n");
+        for (int bank = -1; bank < bankCount; bank++) {
+            if (!hasBlocks(bank, -1)) {
+                continue;
+            }
+            source.append("\n    private static int find").append(bankName(bank)).append("Block(int pc) {\n");
+            source.append("        switch (pc >> 8) {\n");
+            for (int page = 0; page < 0x100; page++) {
+                if (hasBlocks(bank, page)) {
+                    source.append("            case ").append(hex(page)).append(": return find").append(bankName(bank)).append("Block").append(pageName(page)).append("(pc);\n");
+                }
+            }
+            source.append("            default: return -1;\n");
+            source.append("        }\n");
+            source.append("    }\n");
+            for (int page = 0; page < 0x100; page++) {
+                if (!hasBlocks(bank, page)) {
+                    continue;
+                }
+                source.append("\n    private static int find").append(bankName(bank)).append("Block").append(pageName(page)).append("(int pc) {\n");
+                source.append("        switch (pc) {\n");
+                for (int i = 0; i < blocks.size(); i++) {
+                    Block block = blocks.get(i);
+                    if (block.bank == bank && block.pc >> 8 == page) {
+                        source.append("            case ").append(hex(block.pc)).append(": return ").append(hex((i << 8) | block.opcodes.length)).append(";\n");
+                    }
+                }
+                source.append("            default: return -1;\n");
+                source.append("        }\n");
+                source.append("    }\n");
+            }
+        }
+
+        //execute dispatches on groups of blocks, then the index of the block
+        source.append("\n    @Override\n");
+        source.append("    public void execute(Cpu c, int index) {\n");
+        source.append("        switch (index / ").append(BLOCKS_PER_DISPATCH_METHOD).append(") {\n");
+        for (int group = 0; group * BLOCKS_PER_DISPATCH_METHOD < blocks.size(); group++) {
+            source.append("            case ").append(group).append(": execute").append(group).append("(c, index); return;\n");
+        }
+        source.append("        }\n");
+        source.append("    }\n");
+        for (int group = 0; group * BLOCKS_PER_DISPATCH_METHOD < blocks.size(); group++) {
+            source.append("\n    private static void execute").append(group).append("(Cpu c, int index) {\n");
+            source.append("        switch (index) {\n");
+            for (int i = group * BLOCKS_PER_DISPATCH_METHOD; i < Math.min(blocks.size(), (group + 1) * BLOCKS_PER_DISPATCH_METHOD); i++) {
+                source.append("            case ").append(i).append(": ").append(blockName(blocks.get(i))).append("(c); return;\n");
+            }
+            source.append("        }\n");
+            source.append("    }\n");
+        }
+
+        for (Block block : blocks) {
+            generateBlock(source, block);
+        }
+        source.append("}\n");
+        return source.toString();
+    }
+
+    private boolean hasBlocks(int bank, int page) {
+        for (Block block : blocks) {
+            if (block.bank == bank && (page == -1 || block.pc >> 8 == page)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String bankName(int bank) {
+        return bank == -1 ? "Fixed" : "Bank" + bank;
+    }
+
+    private static String pageName(int page) {
+        return Integer.toHexString(0x100 | page).substring(1);
+    }
+
+    private static String blockName(Block block) {
+        return bankName(block.bank).toLowerCase() + "_" + Integer.toHexString(block.pc);
+    }
+
+    private static String hex(int value) {
+        return "0x" + Integer.toHexString(value);
+    }
+
+    private void generateBlock(StringBuilder source, Block block) {
+        source.append("\n    private static void ").append(blockName(block)).append("(Cpu c) {\n");
+        boolean pcUpToDate = false;
+        for (int i = 0; i < block.opcodes.length; i++) {
+            int address = block.addresses[i];
+            int opcode = block.opcodes[i];
+            int operand = block.operands[i];
+            String statement = translateControl(address, opcode, operand);
+            if (statement == null) {
+                statement = translateInstruction(opcode, operand);
+                pcUpToDate = false;
+            } else {
+                pcUpToDate = true;
+            }
+            if (statement == null) {
+                //No translation, let the interpreter execute it
+                statement = "c.pc = " + hex(address) + "; c.execute(" + hex(opcode) + ", " + hex(operand) + ");";
+                pcUpToDate = true;
+            }
+            source.append("        ").append(statement).append(" //").append(Integer.toHexString(address)).append("\n");
+        }
+        if (!pcUpToDate) {
+            int last = block.opcodes.length - 1;
+            source.append("        c.pc = ").append(hex(block.addresses[last] + Cpu.INSTRUCTION_LENGTHS[block.opcodes[last]])).append(";\n");
+        }
+        source.append("    }\n");
+    }
+
+    /**
+     * Translates the instructions which transfer control to a known address.
+     * @return The statement setting pc, or null for any other instruction.
+     */
+    private static String translateControl(int address, int opcode, int operand) {
+        String condition;
+        switch (opcode) {
+            case 0x90: condition = "(c.carryResult & 0x100) == 0"; break; //bcc
+            case 0xb0: condition = "(c.carryResult & 0x100) != 0"; break; //bcs
+            case 0xf0: condition = "c.zeroResult == 0"; break; //beq
+            case 0x30: condition = "(c.negativeResult & 0x80) != 0"; break; //bmi
+            case 0xd0: condition = "c.zeroResult != 0"; break; //bne
+            case 0x10: condition = "(c.negativeResult & 0x80) == 0"; break; //bpl
+            case 0x50: condition = "(c.overflowResult & 0x80) == 0"; break; //bvc
+            case 0x70: condition = "(c.overflowResult & 0x80) != 0"; break; //bvs
+            case 0x4c: return "c.pc = " + hex(operand) + ";"; //jmp abs
+            case 0x20: //jsr
+                int returnPoint = address + 2;
+                return "c.write(c.postDecSp(), " + hex((returnPoint & 0xff00) >> 8) + "); " +
+                        "c.write(c.postDecSp(), " + hex(returnPoint & 0xff) + "); " +
+                        "c.pc = " + hex(operand) + ";";
+            default:
+                return null;
+        }
+        int next = address + 2;
+        int target = next + (byte) operand;
+        int extraCycles = ((target ^ next) & 0xff00) != 0 ? 2 : 1;
+        return "if (" + condition + ") { c.cycles += " + extraCycles + "; c.pc = " + hex(target) + "; } else { c.pc = " + hex(next) + "; }";
+    }
+
+    /**
+     * Translates an instruction which does not modify the pc into the same calls that
+     * Cpu.execute makes for it, with the operand as a constant. Indexed reads go through
+     * Cpu.indexedRead and Cpu.indirectIndexedRead to count their page crossing cycle.
+     * @return The statement, or null if the instruction is left to Cpu.execute.
+     */
+    private static String translateInstruction(int opcode, int operand) {
+        String o = hex(operand);
+        String x = o + " + c.x";
+        String y = o + " + c.y";
+
+        //adc, and, cmp, eor, lda, ora, sbc and sta share their addressing modes
+        if ((opcode & 3) == 1) {
+            int operation = opcode >> 5;
+            String address;
+            switch ((opcode >> 2) & 7) {
+                case 0: //(indirect,x), only implemented for lda
+                    if (operation != 5) {
+                        return null;
+                    }
+                    address = "c.indexedIndirect(" + o + ")";
+                    break;
+                case 1: address = o; break; //zp
+                case 2: address = null; break; //#
+                case 3: address = o; break; //abs
+                case 4: address = operation == 4 ? "c.indirectIndexed(" + o + ")" : "c.indirectIndexedRead(" + o + ")"; break; //(indirect),y
+                case 5: address = x; break; //zp,x
+                case 6: address = operation == 4 ? y : "c.indexedRead(" + o + ", c.y)"; break; //abs,y
+                default: address = operation == 4 ? x : "c.indexedRead(" + o + ", c.x)"; break; //abs,x
+            }
+            String value = address != null ? "c.read(" + address + ")" : o;
+            switch (operation) {
+                case 0: return "c.ora(" + value + ");";
+                case 1: return "c.and(" + value + ");";
+                case 2: return "c.eor(" + value + ");";
+                case 3: return "c.adc(" + value + ");";
+                case 4: return address != null ? "c.write(" + address + ", c.a);" : null;
+                case 5: return "c.a = c.setNZ(" + value + ");";
+                case 6: return "c.compare(c.a, " + value + ");";
+                default: return "c.sbc(" + value + ");";
+            }
+        }
+
+        switch (opcode) {
+            //asl
+            case 0x0a: return "c.aslA();";
+            case 0x06: case 0x0e: return "c.asl(" + o + ");";
+            case 0x16: case 0x1e: return "c.asl(" + x + ");";
+
+            //lsr
+            case 0x4a: return "c.lsrA();";
+            case 0x46: case 0x4e: return "c.lsr(" + o + ");";
+            case 0x56: case 0x5e: return "c.lsr(" + x + ");";
+
+            //rol
+            case 0x2a: return "c.rolA();";
+            case 0x26: case 0x2e: return "c.rol(" + o + ");";
+            case 0x36: case 0x3e: return "c.rol(" + x + ");";
+
+            //ror
+            case 0x6a: return "c.rorA();";
+            case 0x66: case 0x6e: return "c.ror(" + o + ");";
+            case 0x76: case 0x7e: return "c.ror(" + x + ");";
+
+            //bit
+            case 0x24: case 0x2c: return "c.bit(c.read(" + o + "));";
+
+            //flags
+            case 0x18: return "c.carryResult = 0;"; //clc
+            case 0xd8: return "c.status_decimal_mode = false;"; //cld
+            case 0x58: return "c.status_interrupt_disable = false;"; //cli
+            case 0xb8: return "c.overflowResult = 0;"; //clv
+            case 0x38: return "c.carryResult = 0x100;"; //sec
+            case 0xf8: return "c.status_decimal_mode = true;"; //sed
+            case 0x78: return "c.status_interrupt_disable = true;"; //sei
+
+            //cpx, cpy
+            case 0xe0: return "c.compare(c.x, " + o + ");";
+            case 0xe4: case 0xec: return "c.compare(c.x, c.read(" + o + "));";
+            case 0xc0: return "c.compare(c.y, " + o + ");";
+            case 0xc4: case 0xcc: return "c.compare(c.y, c.read(" + o + "));";
+
+            //dec, inc
+            case 0xc6: case 0xce: return "c.dec(" + o + ");";
+            case 0xd6: case 0xde: return "c.dec(" + x + ");";
+            case 0xca: return "c.x = c.setNZ((c.x - 1) & 0xff);"; //dex
+            case 0x88: return "c.y = c.setNZ((c.y - 1) & 0xff);"; //dey
+            case 0xe6: case 0xee: return "c.inc(" + o + ");";
+            case 0xf6: case 0xfe: return "c.inc(" + x + ");";
+            case 0xe8: return "c.x = c.setNZ((c.x + 1) & 0xff);"; //inx
+            case 0xc8: return "c.y = c.setNZ((c.y + 1) & 0xff);"; //iny
+
+            //ldx, ldy
+            case 0xa2: return "c.x = c.setNZ(" + o + ");";
+            case 0xa6: case 0xae: return "c.x = c.setNZ(c.read(" + o + "));";
+            case 0xb6: return "c.x = c.setNZ(c.read(" + y + "));";
+            case 0xbe: return "c.x = c.setNZ(c.read(c.indexedRead(" + o + ", c.y)));";
+            case 0xa0: return "c.y = c.setNZ(" + o + ");";
+            case 0xa4: case 0xac: return "c.y = c.setNZ(c.read(" + o + "));";
+            case 0xb4: return "c.y = c.setNZ(c.read(" + x + "));";
+            case 0xbc: return "c.y = c.setNZ(c.read(c.indexedRead(" + o + ", c.x)));";
+
+            //nop
+            case 0xea: return ";";
+
+            //stack
+            case 0x48: return "c.write(c.postDecSp(), c.a);"; //pha
+            case 0x08: return "c.write(c.postDecSp(), c.getStatus());"; //php
+            case 0x68: return "c.a = c.setNZ(c.read(c.preIncSp()));"; //pla
+            case 0x28: return "c.setStatus(c.read(c.preIncSp()));"; //plp
+
+            //stx, sty
+            case 0x86: case 0x8e: return "c.write(" + o + ", c.x);";
+            case 0x96: return "c.write(" + y + ", c.x);";
+            case 0x84: case 0x8c: return "c.write(" + o + ", c.y);";
+            case 0x94: return "c.write(" + x + ", c.y);";
+
+            //transfers
+            case 0xaa: return "c.x = c.setNZ(c.a);"; //tax
+            case 0xa8: return "c.y = c.setNZ(c.a);"; //tay
+            case 0xba: return "c.x = c.setNZ(c.sp - 0x100);"; //tsx
+            case 0x8a: return "c.a = c.setNZ(c.x);"; //txa
+            case 0x9a: return "c.sp = 0x100 + c.x;"; //txs
+            case 0x98: return "c.a = c.setNZ(c.y);"; //tya
+
+            default:
+                return null;
+        }
+    }
+}
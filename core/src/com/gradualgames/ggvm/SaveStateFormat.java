@@ -0,0 +1,400 @@
+package com.gradualgames.ggvm;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Saves and loads the state of the vm, see GGVm.saveState, as a header followed by a
+ * section for each StateComponent with state to save and an end tag. The header is
+ * the magic number "GGVS" and the version of the format. Each section is a tag
+ * identifying the component, the length of its state and the state itself.
+ * Components which save nothing, such as roms, take no section at all.
+ *
+ * Tags are stable across releases: "CPU " for the cpu registers, "TIME" for the
+ * frame timing GGVm keeps, and for every ReadWriteRange, the bus it is on, 'c' or 'p'
+ * in the top byte, and the first address it appears at in the memory map, which is
+ * fixed by the NES rather than by the order ranges happen to be installed in, see
+ * Bus.getStateRanges. Loading hands each section to the component with its tag and
+ * skips sections of components which no longer exist, while components without a
+ * section keep their state. So components can be added, removed or gain state without
+ * breaking states saved before. A component whose state changes layout should take a
+ * new tag; the version only changes with the framing itself.
+ *
+ * States saved before this format, which start with the cpu registers rather than
+ * the magic number, are still loaded in the order they were written in, see
+ * Bus.loadLegacy.
+ *
+ * The components are listed once, and again only after a bus changes its memory
+ * map. Sections are written through a buffer kept between saves. A state is read
+ * into a buffer kept between loads in full, framing checked, before any of it is
+ * loaded. So once the buffers have grown to fit, saving and loading allocate
+ * nothing.
+ */
+public class SaveStateFormat {
+
+    public static final int MAGIC = tag('G', 'G', 'V', 'S');
+
+    public static final int VERSION = 1;
+
+    private static final int END_TAG = 0;
+
+    private static final int CPU_TAG = tag('C', 'P', 'U', ' ');
+
+    private static final int TIMING_TAG = tag('T', 'I', 'M', 'E');
+
+    private static final int CPU_BUS_TAG = 'c' << 24;
+
+    private static final int PPU_BUS_TAG = 'p' << 24;
+
+    /**
+     * Cpu bus addresses of the ranges which saved nothing before this format: the
+     * read buffer of $2007 and the status bar register.
+     */
+    private static final int[] LEGACY_SKIPPED_CPU_BUS_ADDRESSES = { 0x2007, 0x5500 };
+
+    private StateComponent cpu;
+
+    private StateComponent timing;
+
+    private Bus cpuBus;
+
+    private Bus ppuBus;
+
+    /**
+     * The ranges of each bus the components were listed from, to notice when the
+     * buses return new ones.
+     */
+    private List<ReadWriteRange> cpuBusRanges;
+
+    private List<ReadWriteRange> ppuBusRanges;
+
+    private StateComponent[] components;
+
+    private int[] tags;
+
+    private byte[] header = new byte[8];
+
+    private SectionOutputStream sectionOutputStream = new SectionOutputStream();
+
+    private SectionOutputStream stateBuffer = new SectionOutputStream();
+
+    private StateInputStream stateInputStream = new StateInputStream();
+
+    private SectionInputStream sectionInputStream = new SectionInputStream();
+
+    /**
+     * @param cpu The cpu registers.
+     * @param timing The frame timing GGVm keeps.
+     * @param cpuBus The cpu bus, whose ranges are saved next.
+     * @param ppuBus The ppu bus, whose ranges are saved last.
+     */
+    public SaveStateFormat(StateComponent cpu, StateComponent timing, Bus cpuBus, Bus ppuBus) {
+        this.cpu = cpu;
+        this.timing = timing;
+        this.cpuBus = cpuBus;
+        this.ppuBus = ppuBus;
+    }
+
+    public void save(OutputStream outputStream) throws IOException {
+        listComponents();
+        writeInt(header, 0, MAGIC);
+        writeInt(header, 4, VERSION);
+        outputStream.write(header, 0, 8);
+        for (int i = 0; i < components.length; i++) {
+            sectionOutputStream.reset();
+            components[i].save(sectionOutputStream);
+            int length = sectionOutputStream.getLength();
+            if (length > 0) {
+                writeInt(header, 0, tags[i]);
+                writeInt(header, 4, length);
+                outputStream.write(header, 0, 8);
+                outputStream.write(sectionOutputStream.getData(), 0, length);
+            }
+        }
+        writeInt(header, 0, END_TAG);
+        outputStream.write(header, 0, 4);
+    }
+
+    /**
+     * Loads a state, leaving the stream just past its end tag. The state is read in
+     * full before any of it is loaded, so if the stream ends early or the state is of a
+     * newer version, nothing is loaded. A component may still fail on a section it
+     * cannot load, and states saved before this format are loaded as they are read, so
+     * in those cases the sections before the failure have already been loaded.
+     * @throws IOException If the state cannot be loaded.
+     */
+    public void load(InputStream inputStream) throws IOException {
+        listComponents();
+        readFully(inputStream, header, 4);
+        if (readInt(header, 0) != MAGIC) {
+            loadLegacy(new SequenceInputStream(new ByteArrayInputStream(Arrays.copyOf(header, 4)), inputStream));
+            return;
+        }
+        readFully(inputStream, header, 4);
+        int version = readInt(header, 0);
+        if (version > VERSION) {
+            throw new IOException("Save state version " + version + " is newer than version " + VERSION + ".");
+        }
+        readSections(inputStream);
+        stateInputStream.begin(stateBuffer.getData(), stateBuffer.getLength());
+        int next = 0;
+        while (true) {
+            readFully(stateInputStream, header, 4);
+            int tag = readInt(header, 0);
+            if (tag == END_TAG) {
+                break;
+            }
+            readFully(stateInputStream, header, 4);
+            sectionInputStream.begin(stateInputStream, readInt(header, 0));
+            int component = find(tag, next);
+            if (component >= 0) {
+                components[component].load(sectionInputStream);
+                next = component + 1;
+            }
+            sectionInputStream.skipRest();
+        }
+    }
+
+    /**
+     * Reads the sections of a state, up to and including the end tag, into stateBuffer.
+     */
+    private void readSections(InputStream inputStream) throws IOException {
+        stateBuffer.reset();
+        while (true) {
+            readFully(inputStream, header, 4);
+            stateBuffer.write(header, 0, 4);
+            if (readInt(header, 0) == END_TAG) {
+                return;
+            }
+            readFully(inputStream, header, 4);
+            stateBuffer.write(header, 0, 4);
+            stateBuffer.readFrom(inputStream, readInt(header, 0));
+        }
+    }
+
+    private void loadLegacy(InputStream inputStream) throws IOException {
+        cpu.load(inputStream);
+        cpuBus.loadLegacy(inputStream, LEGACY_SKIPPED_CPU_BUS_ADDRESSES);
+        ppuBus.loadLegacy(inputStream);
+    }
+
+    /**
+     * @return The index of the component with a tag, looking from the one after the
+     * last section loaded first, since sections are usually in the order saved, or -1
+     * if there is none.
+     */
+    private int find(int tag, int next) {
+        for (int i = 0; i < tags.length; i++) {
+            int component = (next + i) % tags.length;
+            if (tags[component] == tag) {
+                return component;
+            }
+        }
+        return -1;
+    }
+
+    private void listComponents() {
+        if (components != null && cpuBus.getStateRanges() == cpuBusRanges && ppuBus.getStateRanges() == ppuBusRanges) {
+            return;
+        }
+        cpuBusRanges = cpuBus.getStateRanges();
+        ppuBusRanges = ppuBus.getStateRanges();
+        int count = 2 + cpuBusRanges.size() + ppuBusRanges.size();
+        components = new StateComponent[count];
+        tags = new int[count];
+        components[0] = cpu;
+        tags[0] = CPU_TAG;
+        components[1] = timing;
+        tags[1] = TIMING_TAG;
+        int index = listRanges(2, cpuBusRanges, cpuBus.getStateAddresses(), CPU_BUS_TAG);
+        listRanges(index, ppuBusRanges, ppuBus.getStateAddresses(), PPU_BUS_TAG);
+    }
+
+    private int listRanges(int index, List<ReadWriteRange> ranges, int[] addresses, int busTag) {
+        for (int i = 0; i < ranges.size(); i++) {
+            components[index] = ranges.get(i);
+            tags[index] = busTag | addresses[i];
+            index++;
+        }
+        return index;
+    }
+
+    private static int tag(char a, char b, char c, char d) {
+        return a << 24 | b << 16 | c << 8 | d;
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 |
+                (data[offset + 2] & 0xff) << 8 | data[offset + 3] & 0xff;
+    }
+
+    private static void readFully(InputStream inputStream, byte[] data, int length) throws IOException {
+        int position = 0;
+        while (position < length) {
+            int read = inputStream.read(data, position, length - position);
+            if (read < 0) {
+                throw new EOFException("Save state ended early.");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Collects the state of one component, so its length can be written before it, or
+     * the sections of a state being loaded.
+     */
+    private static class SectionOutputStream extends OutputStream {
+
+        private byte[] data = new byte[0x2000];
+
+        private int length;
+
+        public void reset() {
+            length = 0;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > data.length) {
+                data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(length + 1);
+            data[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(length + len);
+            System.arraycopy(b, off, data, length, len);
+            length += len;
+        }
+
+        /**
+         * Appends exactly len bytes read from a stream, growing only as they arrive, so
+         * a corrupt length runs out of stream rather than memory.
+         * @throws EOFException If the stream ends first.
+         */
+        public void readFrom(InputStream inputStream, int len) throws IOException {
+            if (len < 0 || len > Integer.MAX_VALUE - length) {
+                throw new IOException("Save state section length " + len + " is out of range.");
+            }
+            int end = length + len;
+            while (length < end) {
+                ensureCapacity(Math.min(end, length + 1));
+                int read = inputStream.read(data, length, Math.min(end, data.length) - length);
+                if (read < 0) {
+                    throw new EOFException("Save state ended early.");
+                }
+                length += read;
+            }
+        }
+    }
+
+    /**
+     * Reads back the sections collected in stateBuffer.
+     */
+    private static class StateInputStream extends ByteArrayInputStream {
+
+        StateInputStream() {
+            super(new byte[0]);
+        }
+
+        public void begin(byte[] data, int length) {
+            buf = data;
+            pos = 0;
+            count = length;
+            mark = 0;
+        }
+    }
+
+    /**
+     * Reads one section of a state, ending where it ends, so a component can never
+     * read into the section after its own.
+     */
+    private static class SectionInputStream extends InputStream {
+
+        private InputStream inputStream;
+
+        private int remaining;
+
+        public void begin(InputStream inputStream, int length) {
+            this.inputStream = inputStream;
+            this.remaining = length;
+        }
+
+        /**
+         * Skips whatever of the section the component did not read.
+         */
+        public void skipRest() throws IOException {
+            while (remaining > 0) {
+                if (read() < 0) {
+                    throw new EOFException("Save state ended early.");
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = inputStream.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        /**
+         * Reads as many bytes as are asked for, up to the end of the section, even
+         * from streams which return fewer at a time, so that components can read
+         * their arrays with a single call.
+         * @return The number of bytes read, 0 if none were asked for, or -1 if the
+         * section or the stream has ended.
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            len = Math.min(len, remaining);
+            int position = 0;
+            while (position < len) {
+                int read = inputStream.read(b, off + position, len - position);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+            }
+            remaining -= position;
+            return position > 0 ? position : -1;
+        }
+    }
+}
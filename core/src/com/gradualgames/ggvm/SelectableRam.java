@@ -54,11 +54,12 @@ public class SelectableRam implements ReadWriteRange {
 
     @Override
     public void save(OutputStream outputStream) throws IOException {
-        outputStream.write(ram);
+        //Only the ram itself, not the space before it which aligns it to the bus
+        outputStream.write(ram, lower, ram.length - lower);
     }
 
     @Override
     public void load(InputStream inputStream) throws IOException {
-        inputStream.read(ram);
+        inputStream.read(ram, lower, ram.length - lower);
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
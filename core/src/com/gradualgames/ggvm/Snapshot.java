@@ -0,0 +1,115 @@
+package com.gradualgames.ggvm;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A state of the vm kept in memory, see GGVm.saveSnapshot and GGVm.loadSnapshot,
+ * for restoring it again soon after, such as for run-ahead. It holds the same data as
+ * GGVm.saveState in a byte array which is reused by every save, so that once it has
+ * grown to fit the state, saving and loading allocate nothing.
+ */
+public class Snapshot {
+
+    private static final int INITIAL_CAPACITY = 0x4000;
+
+    private byte[] data;
+
+    private int size;
+
+    private int position;
+
+    private SnapshotOutputStream outputStream = new SnapshotOutputStream();
+
+    private SnapshotInputStream inputStream = new SnapshotInputStream();
+
+    public Snapshot() {
+        data = new byte[INITIAL_CAPACITY];
+    }
+
+    /**
+     * @return The number of bytes the snapshot holds.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return The array holding the snapshot, of which the first getSize bytes are
+     * used.
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Sets the size of the snapshot, for filling it in directly, such as when
+     * decoding it from a RewindBuffer.
+     * @return The array holding the snapshot, at least size bytes long.
+     */
+    byte[] resize(int size) {
+        ensureCapacity(size);
+        this.size = size;
+        return data;
+    }
+
+    /**
+     * Empties the snapshot.
+     * @return A stream writing into the snapshot.
+     */
+    OutputStream write() {
+        size = 0;
+        return outputStream;
+    }
+
+    /**
+     * @return A stream reading the snapshot from its start.
+     */
+    InputStream read() {
+        position = 0;
+        return inputStream;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            byte[] newData = new byte[Math.max(capacity, data.length * 2)];
+            System.arraycopy(data, 0, newData, 0, size);
+            data = newData;
+        }
+    }
+
+    private class SnapshotOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(size + 1);
+            data[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(size + len);
+            System.arraycopy(b, off, data, size, len);
+            size += len;
+        }
+    }
+
+    private class SnapshotInputStream extends InputStream {
+
+        @Override
+        public int read() {
+            return position < size ? data[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= size) {
+                return -1;
+            }
+            len = Math.min(len, size - position);
+            System.arraycopy(data, position, b, off, len);
+            position += len;
+            return len;
+        }
+    }
+}
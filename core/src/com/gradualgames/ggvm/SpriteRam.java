@@ -14,6 +14,9 @@ import java.util.List;
  * implement the behavior of sprite ram, and currently only simulates the ram page
  * copy behavior that is the most commonly used. $2003 and $2004 are currently
  * ignored.
+ *
+ * After every copy, the sprites are decoded into a SpriteRamSnapshot for renderers,
+ * see getSnapshot.
  */
 public class SpriteRam implements ReadWriteRangeProvider {
 
@@ -21,6 +24,8 @@ public class SpriteRam implements ReadWriteRangeProvider {
 
     private byte[] spriteRam = new byte[256];
 
+    private SpriteRamSnapshot snapshot = new SpriteRamSnapshot();
+
     private SpriteRam2003 spriteRam2003 = new SpriteRam2003();
     private SpriteRam4014 spriteRam4014 = new SpriteRam4014();
 
@@ -29,6 +34,7 @@ public class SpriteRam implements ReadWriteRangeProvider {
     public SpriteRam() {
         registers.add(spriteRam2003);
         registers.add(spriteRam4014);
+        snapshot.decode(spriteRam);
     }
 
     public void setCpuBus(CpuBus cpuBus) {
@@ -39,6 +45,13 @@ public class SpriteRam implements ReadWriteRangeProvider {
         return spriteRam[address] & 0xff;
     }
 
+    /**
+     * @return The sprites as of the last copy into sprite ram, decoded.
+     */
+    public SpriteRamSnapshot getSnapshot() {
+        return snapshot;
+    }
+
     @Override
     public List<ReadWriteRange> provideReadWriteRanges(Bus.BusType busType) {
         return registers;
@@ -86,12 +99,9 @@ public class SpriteRam implements ReadWriteRangeProvider {
 
         @Override
         public void write(int address, byte value) {
-            int pageAddress = value << 8;
-            int spriteRamAddress = 0;
-            for(int i = pageAddress; i < pageAddress + 256; i++) {
-                spriteRam[spriteRamAddress] = cpuBus.readSignedByte(i);
-                spriteRamAddress++;
-            }
+            int pageAddress = (value & 0xff) << 8;
+            cpuBus.readBlock(pageAddress, spriteRam, 0, spriteRam.length);
+            snapshot.decode(spriteRam);
         }
 
         @Override
@@ -112,6 +122,7 @@ public class SpriteRam implements ReadWriteRangeProvider {
         @Override
         public void load(InputStream inputStream) throws IOException {
             inputStream.read(spriteRam);
+            snapshot.decode(spriteRam);
         }
     }
 }
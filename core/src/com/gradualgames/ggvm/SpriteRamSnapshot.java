@@ -0,0 +1,64 @@
+package com.gradualgames.ggvm;
+
+/**
+ * The 64 sprites of sprite ram, decoded into one array per attribute, so that
+ * renderers can iterate them directly rather than decoding each attribute from
+ * sprite ram again for every sprite every time they look at it. SpriteRam rebuilds
+ * it after every $4014 DMA and whenever a state is loaded; the arrays themselves are
+ * never replaced, so a reference to them stays valid. Each FrameState keeps a copy.
+ *
+ * Sprites at y 0xff are hidden below the screen. The indices of all other sprites,
+ * in ascending order, are listed in visibleSprites, so they can be skipped up front.
+ */
+public class SpriteRamSnapshot {
+
+    public static final int SPRITE_COUNT = 64;
+
+    public final int[] x = new int[SPRITE_COUNT];
+    public final int[] y = new int[SPRITE_COUNT];
+    public final int[] tile = new int[SPRITE_COUNT];
+    public final int[] palette = new int[SPRITE_COUNT];
+    public final boolean[] behindBackground = new boolean[SPRITE_COUNT];
+    public final boolean[] horizontalFlip = new boolean[SPRITE_COUNT];
+    public final boolean[] verticalFlip = new boolean[SPRITE_COUNT];
+
+    public final int[] visibleSprites = new int[SPRITE_COUNT];
+    private int visibleSpriteCount;
+
+    /**
+     * @return The number of sprites listed in visibleSprites.
+     */
+    public int getVisibleSpriteCount() {
+        return visibleSpriteCount;
+    }
+
+    void decode(byte[] spriteRam) {
+        visibleSpriteCount = 0;
+        for (int i = 0; i < SPRITE_COUNT; i++) {
+            int address = i << 2;
+            int attributes = spriteRam[address + 2];
+            y[i] = spriteRam[address] & 0xff;
+            tile[i] = spriteRam[address + 1] & 0xff;
+            palette[i] = attributes & 3;
+            behindBackground[i] = (attributes & 0x20) != 0;
+            horizontalFlip[i] = (attributes & 0x40) != 0;
+            verticalFlip[i] = (attributes & 0x80) != 0;
+            x[i] = spriteRam[address + 3] & 0xff;
+            if (y[i] != 0xff) {
+                visibleSprites[visibleSpriteCount++] = i;
+            }
+        }
+    }
+
+    void copy(SpriteRamSnapshot snapshot) {
+        System.arraycopy(snapshot.x, 0, x, 0, SPRITE_COUNT);
+        System.arraycopy(snapshot.y, 0, y, 0, SPRITE_COUNT);
+        System.arraycopy(snapshot.tile, 0, tile, 0, SPRITE_COUNT);
+        System.arraycopy(snapshot.palette, 0, palette, 0, SPRITE_COUNT);
+        System.arraycopy(snapshot.behindBackground, 0, behindBackground, 0, SPRITE_COUNT);
+        System.arraycopy(snapshot.horizontalFlip, 0, horizontalFlip, 0, SPRITE_COUNT);
+        System.arraycopy(snapshot.verticalFlip, 0, verticalFlip, 0, SPRITE_COUNT);
+        System.arraycopy(snapshot.visibleSprites, 0, visibleSprites, 0, snapshot.visibleSpriteCount);
+        visibleSpriteCount = snapshot.visibleSpriteCount;
+    }
+}
@@ -0,0 +1,28 @@
+package com.gradualgames.ggvm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A part of the vm with state to save, such as the cpu or a ReadWriteRange. Each one
+ * is saved in a section of its own, see SaveStateFormat.
+ */
+public interface StateComponent {
+
+    /**
+     * Saves the state of this object.
+     * @param outputStream An output stream to which to write this object's data.
+     * @throws IOException
+     */
+    void save(OutputStream outputStream) throws IOException;
+
+    /**
+     * Restores the state of this object. The stream holds only what save wrote,
+     * though possibly from an older release, so it should cope with the stream ending
+     * early, as when reading a state saved before it had as much to save.
+     * @param inputStream An input stream from which to restore the state of this object.
+     * @throws IOException
+     */
+    void load(InputStream inputStream) throws IOException;
+}
@@ -0,0 +1,66 @@
+package com.gradualgames.ggvm;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.zip.CRC32;
+
+/**
+ * Code generated ahead of time by RomTranslator for the blocks of one rom. Each
+ * generated subclass is named after a checksum of the PRG roms it was translated
+ * from, so a rom only ever finds code which was generated from exactly its own
+ * bytes. If a rom has not been translated, or was changed since, no TranslatedRom
+ * is found and the cpu interprets and translates blocks at runtime as usual.
+ *
+ * The desktop build translates the roms, and both the desktop and the Android builds
+ * compile the generated classes in. As nothing refers to them but by name, the Android
+ * build keeps them and this class's name from being stripped or renamed, see
+ * proguard-rules.pro.
+ */
+public abstract class TranslatedRom {
+
+    /**
+     * Looks up the generated code for a block.
+     * @param bank The PRG bank of the block, as in InstructionCache.getBank.
+     * @param pc The address at which the block starts.
+     * @return The index of the generated code for the block, shifted left by 8 and
+     * or'ed with the number of instructions in the block, or -1 if there is none.
+     */
+    public abstract int findBlock(int bank, int pc);
+
+    /**
+     * Executes the generated code for a block on the cpu.
+     * @param cpu The cpu.
+     * @param index The index of the block, from findBlock.
+     */
+    public abstract void execute(Cpu cpu, int index);
+
+    /**
+     * @return The name of the class generated for the cartridge's rom.
+     */
+    public static String getClassName(Cartridge cartridge) {
+        CRC32 crc32 = new CRC32();
+        for (Rom prgRom : cartridge.getPrgRoms()) {
+            crc32.update(prgRom.getData());
+        }
+        return TranslatedRom.class.getName() + "_" + Long.toHexString(crc32.getValue());
+    }
+
+    /**
+     * @return The code generated for the cartridge's rom, or null if it has not
+     * been translated.
+     */
+    public static TranslatedRom find(Cartridge cartridge) {
+        try {
+            return (TranslatedRom) Class.forName(getClassName(cartridge)).getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (InstantiationException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            return null;
+        }
+    }
+}
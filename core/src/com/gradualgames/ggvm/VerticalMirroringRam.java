@@ -17,7 +17,7 @@ import java.io.OutputStream;
  * is it maps itself over the full range of nametable addresses, and mirrors any
  * read or write past $2800 back to $2000 and $2400.
  */
-public class VerticalMirroringRam implements ReadWriteRange {
+public class VerticalMirroringRam implements DirectReadWriteRange {
 
     private int lower;
     private int upper;
@@ -63,6 +63,21 @@ public class VerticalMirroringRam implements ReadWriteRange {
         ram[mirrorAddress(address)] = value;
     }
 
+    @Override
+    public byte[] getPageData(int address) {
+        return ram;
+    }
+
+    @Override
+    public int getPageOffset(int address) {
+        return mirrorAddress(address) - address;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+
     @Override
     public int lower() {
         return lower;
@@ -75,11 +90,12 @@ public class VerticalMirroringRam implements ReadWriteRange {
 
     @Override
     public void save(OutputStream outputStream) throws IOException {
-        outputStream.write(ram);
+        //Only the ram itself, not the space before it which aligns it to the bus
+        outputStream.write(ram, lower, ram.length - lower);
     }
 
     @Override
     public void load(InputStream inputStream) throws IOException {
-        inputStream.read(ram);
+        inputStream.read(ram, lower, ram.length - lower);
     }
 }
@@ -22,7 +22,9 @@ import java.util.Map;
  * defined by Controller.Buttons and actual button codes, key codes, and axis codes that come
  * back from LibGDX. These mappings need to be created by the user using the configuration menu,
  * populated from a persistence file that remembers the mappings, or populated by default mappings
- * supplied by LibGDX for specific controllers, if connected.
+ * supplied by LibGDX for specific controllers, if connected. The fast forward key toggles
+ * fast forward at the speed chosen in the menu, see GGVm.setFastForward, and holding the rewind
+ * key rewinds, see GGVm.setRewinding.
  */
 public class KeyboardInputProcessor extends InputProcessorBase {
 
@@ -38,6 +40,10 @@ public class KeyboardInputProcessor extends InputProcessorBase {
     private static final String BUTTON_INDEX_TO_BUTTON_PREFERENCES = "buttonIndexToButtonPreferences";
     private static final String ACTUAL_AXIS_TO_AXIS_CODE_PREFERENCES = "actualAxisToAxisCodePreferences";
 
+    public static final int FAST_FORWARD_KEY = Input.Keys.TAB;
+
+    public static final int REWIND_KEY = Input.Keys.BACKSPACE;
+
     public static boolean isXbox360Controller(String name) {
         if (name.equals(XBOX_360_NAME)) return true;
         if (name.equals(XBOX_360_ALT_NAME)) return true;
@@ -231,6 +237,12 @@ public class KeyboardInputProcessor extends InputProcessorBase {
         if (keycode == Input.Keys.ESCAPE) {
             stopGGVmAndActivateMenu();
         }
+        if (keycode == FAST_FORWARD_KEY) {
+            ggvm.setFastForward(!ggvm.isFastForward());
+        }
+        if (keycode == REWIND_KEY) {
+            ggvm.setRewinding(true);
+        }
         return false;
     }
 
@@ -239,6 +251,9 @@ public class KeyboardInputProcessor extends InputProcessorBase {
         if (buttonIndexToKeyCode.containsValue(keycode)) {
             ggvm.setButtonState(buttonIndexToKeyCode.inverse().get(keycode).ordinal(), false);
         }
+        if (keycode == REWIND_KEY) {
+            ggvm.setRewinding(false);
+        }
         return false;
     }
 
@@ -0,0 +1,240 @@
+package com.gradualgames.manager.render;
+
+import com.badlogic.gdx.Gdx;
+import com.gradualgames.ggvm.BankSlot;
+import com.gradualgames.ggvm.BankedMapper;
+import com.gradualgames.ggvm.GGVm;
+
+import java.util.Arrays;
+
+/**
+ * Pattern table manager for mappers which switch CHR rom or CHR-RAM banks, see
+ * BankedMapper. The pattern table texture is an atlas of pages, each holding one
+ * bank of the size of the mapper's CHR slots, decoded from the bank's own bytes
+ * rather than from the ppu bus. Switching banks then only changes which page
+ * getTileIndex and getSprite point into, instead of decoding and uploading the bank
+ * again.
+ *
+ * The atlas holds as many pages as fit in the texture memory budget, which is also
+ * its size in bytes: 128 pixels wide, 4 bytes per pixel, so a 1mb budget makes a
+ * texture 2048 pixels high. Banks which are not shown in any slot stay resident
+ * until their page is needed for another bank, and the page used longest ago is
+ * evicted first. Once per frame, before rendering, the bank shown in every CHR slot
+ * is made resident and marked as used. The banks shown are those of the frame state
+ * last acquired, see GGVm.acquireFrameState.
+ *
+ * Writes to CHR-RAM mark their tile dirty in the page of the bank they were written
+ * to, if it is resident. Tiles are decoded from the copy of CHR-RAM in the frame
+ * state, see FrameState.getChrMemory, so they show CHR-RAM as of the frame drawn,
+ * also when running ahead or rewinding, however far the vm has run since. Banks
+ * which are not resident need no tracking, since they are decoded in full when
+ * loaded into a page. Use invalidateBank to have a whole
+ * resident bank decoded again.
+ */
+public class BankedPatternTableManager extends PatternTableManager {
+
+    public static final int DEFAULT_TEXTURE_BUDGET = 0x100000;
+
+    private static final int BYTES_PER_ROW_OF_TILES = 128 * 8 * 4;
+
+    protected BankedMapper mapper;
+
+    private int textureBudget;
+
+    private int bankSize;
+
+    private int tilesPerPage;
+
+    private int rowsPerPage;
+
+    /**
+     * The page each bank is decoded into, or -1 for banks which are not resident.
+     */
+    private int[] bankPages;
+
+    /**
+     * The bank decoded into each page, or -1 for pages which are free.
+     */
+    private int[] pageBanks;
+
+    /**
+     * The frame in which each page was last shown in a slot.
+     */
+    private long[] pageFrames;
+
+    private long frame;
+
+    /**
+     * The bank shown in each CHR slot as of the last call to updateDirtyPatterns.
+     */
+    private int[] slotBanks;
+
+    private int bankLoads;
+
+    public BankedPatternTableManager(GGVm ggvm) {
+        this(ggvm, DEFAULT_TEXTURE_BUDGET);
+    }
+
+    /**
+     * @param ggvm The vm, configured with a BankedMapper.
+     * @param textureBudget The size of the atlas texture in bytes. Rounded up to hold
+     * at least two pages per CHR slot, and down to hold no more pages than there are
+     * banks.
+     */
+    public BankedPatternTableManager(GGVm ggvm, int textureBudget) {
+        super(ggvm);
+        this.textureBudget = textureBudget;
+        initializeAtlas();
+    }
+
+    /**
+     * The atlas is initialized by initializeAtlas, once the texture budget is known.
+     */
+    @Override
+    public void initialize() {
+    }
+
+    private void initializeAtlas() {
+        mapper = (BankedMapper) ggvm.getMapper();
+        BankSlot chrSlot = mapper.getChrSlot(0);
+        bankSize = chrSlot.getSize();
+        tilesPerPage = bankSize / 16;
+        rowsPerPage = tilesPerPage / 16;
+        int pageCount = Math.max(2 * mapper.getChrSlotCount(), textureBudget / (rowsPerPage * BYTES_PER_ROW_OF_TILES));
+        pageCount = Math.min(pageCount, chrSlot.getBankCount());
+        Gdx.app.log(getClass().getSimpleName(), "Allocating " + pageCount + " pages of " + bankSize +
+                " bytes of chr for " + chrSlot.getBankCount() + " banks.");
+
+        initializePatternTable(pageCount * rowsPerPage * 8);
+        bankPages = new int[chrSlot.getBankCount()];
+        Arrays.fill(bankPages, -1);
+        pageBanks = new int[pageCount];
+        Arrays.fill(pageBanks, -1);
+        pageFrames = new long[pageCount];
+        slotBanks = new int[mapper.getChrSlotCount()];
+        initializeMonochromePalette();
+    }
+
+    @Override
+    public int getTileIndex(int patternTable, int row, int column) {
+        int tile = patternTable * 256 + row * 16 + column;
+        int bank = ggvm.getFrameState().getChrBank(tile / tilesPerPage);
+        int page = bankPages[bank];
+        if (page == -1) {
+            //The frame state was acquired after updateDirtyPatterns, load it right away
+            page = loadBank(bank);
+            uploadDirtyRows();
+        }
+        return page * tilesPerPage + tile % tilesPerPage;
+    }
+
+    /**
+     * Callback from ggvm which tells the application to generate a single pattern
+     * table tile. The tile is marked dirty in the page of the bank it was written to.
+     * @param patternAddress The offset of the pattern within all banks of CHR.
+     */
+    @Override
+    public void onGeneratePattern(int patternAddress) {
+        int page = bankPages[patternAddress / bankSize];
+        if (page != -1) {
+            markDirty(page * tilesPerPage + (patternAddress % bankSize) / 16);
+        }
+    }
+
+    /**
+     * Marks every tile of a bank dirty, to be decoded again by the next call to
+     * updateDirtyPatterns. Does nothing if the bank is not resident.
+     * @param bank The bank, in units of the CHR slot size.
+     */
+    public void invalidateBank(int bank) {
+        int page = bankPages[bank];
+        if (page != -1) {
+            for (int tile = page * tilesPerPage; tile < (page + 1) * tilesPerPage; tile++) {
+                markDirty(tile);
+            }
+        }
+    }
+
+    /**
+     * Makes the bank shown in every CHR slot resident, then decodes all dirty tiles
+     * from the banks of their pages, as of the frame state last acquired.
+     */
+    @Override
+    protected void decodeDirtyPatterns() {
+        frame++;
+        for (int slot = 0; slot < mapper.getChrSlotCount(); slot++) {
+            int bank = ggvm.getFrameState().getChrBank(slot);
+            if (bank != slotBanks[slot]) {
+                slotBanks[slot] = bank;
+                generation++;
+            }
+            int page = bankPages[bank];
+            if (page == -1) {
+                page = loadBank(bank);
+            }
+            pageFrames[page] = frame;
+        }
+        byte[] chrMemory = ggvm.getFrameState().getChrMemory();
+        for (int i = 0; i < dirtyTiles.length; i++) {
+            long bits = dirtyTiles[i];
+            dirtyTiles[i] = 0;
+            while (bits != 0) {
+                int tile = (i << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                decodeDirtyPattern(tile, chrMemory, pageBanks[tile / tilesPerPage] * bankSize + (tile % tilesPerPage) * 16);
+            }
+        }
+    }
+
+    /**
+     * Decodes a bank into a free page, or else into the page shown longest ago.
+     * @param bank The bank to load.
+     * @return The page the bank was decoded into.
+     */
+    private int loadBank(int bank) {
+        int page = 0;
+        for (int i = 0; i < pageBanks.length; i++) {
+            if (pageBanks[i] == -1) {
+                page = i;
+                break;
+            }
+            if (pageFrames[i] < pageFrames[page]) {
+                page = i;
+            }
+        }
+        if (pageBanks[page] != -1) {
+            bankPages[pageBanks[page]] = -1;
+        }
+        pageBanks[page] = bank;
+        bankPages[bank] = page;
+        pageFrames[page] = frame;
+        int firstTile = page * tilesPerPage;
+        byte[] chrMemory = ggvm.getFrameState().getChrMemory();
+        for (int tile = 0; tile < tilesPerPage; tile++) {
+            //Decoded in full, so any tile still marked dirty in the page is clean now
+            dirtyTiles[(firstTile + tile) >> 6] &= ~(1L << (firstTile + tile));
+            decodeDirtyPattern(firstTile + tile, chrMemory, bank * bankSize + tile * 16);
+        }
+        bankLoads++;
+        return page;
+    }
+
+    /**
+     * @return The number of banks loaded into a page of the atlas since it was created.
+     */
+    public int getBankLoads() {
+        return bankLoads;
+    }
+
+    /**
+     * Generates textures and sprites based on pattern table data in ggvm. Every
+     * resident bank is decoded again, since any bank of CHR-RAM may have changed.
+     */
+    @Override
+    protected void generateSpritesForPatternTable() {
+        for (int bank = 0; bank < bankPages.length; bank++) {
+            invalidateBank(bank);
+        }
+        updateDirtyPatterns();
+    }
+}
@@ -1,7 +1,7 @@
 package com.gradualgames.manager.render;
 
-import com.badlogic.gdx.graphics.g2d.Sprite;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.gradualgames.ggvm.FrameState;
 import com.gradualgames.ggvm.GGVm;
 import com.gradualgames.ggvm.Ppu;
 import com.gradualgames.ggvm.GGVmRegisterStatusBar;
@@ -10,15 +10,19 @@ import com.gradualgames.manager.rastereffect.RasterEffectManager;
 /**
  * Created by derek on 1/7/2017.
  *
- * This class draws the background using nametables at $2000 and $2800. See
- * RenderManager for a high level description of how backgrounds are drawn.
+ * This class draws the background using nametables at $2000 and $2800, from the
+ * left half of a NametableFrameBuffer. See RenderManager for a high level
+ * description of how backgrounds are drawn.
  */
 public class HorizontalMirroringRenderManager extends RenderManager {
 
     private GGVmRegisterStatusBar GGVmRegisterStatusBar = new GGVmRegisterStatusBar();
 
+    private NametableFrameBuffer nametableFrameBuffer;
+
     public HorizontalMirroringRenderManager(GGVm ggvm, PatternTableManager patternTableManager, RasterEffectManager rasterEffectManager) {
         super(ggvm, patternTableManager, rasterEffectManager);
+        nametableFrameBuffer = new NametableFrameBuffer(patternTableManager, attributes);
     }
 
     public HorizontalMirroringRenderManager(GGVm ggvm, PatternTableManager patternTableManager, RasterEffectManager rasterEffectManager, boolean statusBarEnabled) {
@@ -27,73 +31,40 @@ public class HorizontalMirroringRenderManager extends RenderManager {
     }
 
     @Override
-    public void drawNametable(GGVm ggvm, SpriteBatch spriteBatch) {
+    public void drawNametable(FrameState frameState, SpriteBatch spriteBatch) {
         if (GGVmRegisterStatusBar.isSprite0HitStatusBarEnabled()) {
-            drawNametable(ggvm, spriteBatch, 0, 0, 0, ggvm.getSpriteY(0));
-            drawNametable(ggvm, spriteBatch, ggvm.getScrollX(), ggvm.getScrollY(), ggvm.getSpriteY(0), 240f);
+            drawNametable(frameState, spriteBatch, 0, 0, 0, frameState.getSpriteY(0));
+            drawNametable(frameState, spriteBatch, frameState.getScrollX(), frameState.getScrollY(), frameState.getSpriteY(0), 240f);
         } else {
-            drawNametable(ggvm, spriteBatch, ggvm.getScrollX(), ggvm.getScrollY(), 0f, 240f);
+            drawNametable(frameState, spriteBatch, frameState.getScrollX(), frameState.getScrollY(), 0f, 240f);
         }
     }
 
-    private void drawNametable(GGVm ggvm, SpriteBatch spriteBatch, int scrollX, int scrollY, float splitYStart, float splitYEnd) {
-        int patternTable = ggvm.getBackgroundPatternTableAddress() == 0 ? 0 : 1;
+    @Override
+    protected void updateNametable(FrameState frameState, SpriteBatch spriteBatch) {
+        nametableFrameBuffer.update(frameState, spriteBatch);
+    }
+
+    @Override
+    public void invalidateNametable() {
+        nametableFrameBuffer.invalidate();
+    }
 
+    private void drawNametable(FrameState frameState, SpriteBatch spriteBatch, int scrollX, int scrollY, float splitYStart, float splitYEnd) {
         boolean toggleNametableEarly = false;
         if (scrollY > 239 && scrollY <= 255) {
             scrollY -= 16;
             toggleNametableEarly = true;
         }
 
-        int coarseScrollX = scrollX >> 3;
-        int coarseScrollY = scrollY >> 3;
-        int fineScrollX = scrollX & 7;
-        int fineScrollY = scrollY & 7;
-
-        int nameTableX = coarseScrollX;
-        int nameTableY = coarseScrollY;
-        int actualNameTableX;
-        int actualNameTableY;
-        int screenX = 0;
-        int screenY = 8;
-        int nameTableRowCount = fineScrollY == 0 ? 30 : 31;
-        int nameTableColumnCount = 33;
-        int nameTable;
-
-        while (nameTableColumnCount > 0) {
-            screenY = 0;
-            nameTableRowCount = fineScrollY == 0 ? 30 : 31;
-            nameTableY = coarseScrollY;
-            nameTable = (ggvm.getNametableAddress() == Ppu.NAME_TABLE_0_BASE_ADDRESS) ? 0 : 1;
-            if (toggleNametableEarly) {
-                nameTable ^= 1;
-            }
-            while (nameTableRowCount > 0) {
-                actualNameTableX = nameTableX % 32;
-                actualNameTableY = nameTableY % 30;
-                int whichNameTable = nameTable ^ (nameTableY / 30);
-
-                int nameTableAddress = whichNameTable == 1 ? Ppu.NAME_TABLE_2_BASE_ADDRESS : Ppu.NAME_TABLE_0_BASE_ADDRESS;
-                int attributeTableAddress = whichNameTable == 1 ? Ppu.ATTRIBUTE_TABLE_2_BASE_ADDRESS : Ppu.ATTRIBUTE_TABLE_0_BASE_ADDRESS;
-
-                int index = ggvm.getNametableTile(nameTableAddress, actualNameTableX, actualNameTableY);
-                int attribute = ggvm.getAttributeForNametableTile(attributeTableAddress, actualNameTableX, actualNameTableY);
-
-                int indexRow = index >> 4;
-                int indexColumn = index & 0x0f;
-                Sprite sprite = patternTableManager.getSprite(patternTable, indexRow, indexColumn);//patternTableSprites[patternTableOffset * 16 + indexRow][indexColumn];
-                sprite.setColor(0, attributes[attribute], 0, 0);
-                if (!GGVmRegisterStatusBar.isSprite0HitStatusBarEnabled() || (screenY >= splitYStart && screenY < splitYEnd)) {
-                    sprite.setPosition(screenX - fineScrollX, 232 - screenY + fineScrollY);
-                    sprite.draw(spriteBatch);
-                }
-                screenY += 8;
-                nameTableY++;
-                nameTableRowCount--;
-            }
-            screenX += 8;
-            nameTableX++;
-            nameTableColumnCount--;
+        int nameTable = (frameState.getNametableAddress() == Ppu.NAME_TABLE_0_BASE_ADDRESS) ? 0 : 1;
+        if (toggleNametableEarly) {
+            nameTable ^= 1;
         }
+
+        //Scrolling wraps around horizontally within a nametable, and vertically from
+        //$2000 to $2800 and back, the left half of the nametable framebuffer.
+        nametableFrameBuffer.draw(spriteBatch, scrollX, nameTable * 240 + scrollY,
+                NametableFrameBuffer.WIDTH / 2, NametableFrameBuffer.HEIGHT, splitYStart, splitYEnd);
     }
 }
@@ -0,0 +1,257 @@
+package com.gradualgames.manager.render;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.OrthographicCamera;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.g2d.Sprite;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.glutils.FrameBuffer;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.gradualgames.ggvm.FrameState;
+import com.gradualgames.ggvm.Ppu;
+
+/**
+ * Keeps all four nametables drawn in a 512x480 framebuffer, laid out as they are
+ * addressed: $2000 top left, $2400 top right, $2800 bottom left and $2c00 bottom
+ * right. Rather than drawing every tile of the visible nametables every frame, only
+ * tiles which changed since the last frame are drawn again by update, and the
+ * screen is drawn from the framebuffer by draw with one textured quad for each
+ * part of the scrolled screen which does not wrap around.
+ *
+ * A tile is drawn again when:
+ * - its nametable or attribute byte differs from the frame state the framebuffer was
+ *   last updated from. Frame states hold all four nametables as read from the ppu
+ *   bus, so a byte which is mirrored changes in every nametable it shows in.
+ * - the pattern it shows was decoded again or moved within the pattern table
+ *   texture, see PatternTableManager.getGeneration, or the background pattern
+ *   table changed.
+ *
+ * The framebuffer holds the pixel value and attribute of each pixel rather than its
+ * color, see nametable_fragment_shader.glsl, so palette changes do not draw any tile
+ * again: the palette is looked up by the usual shader when drawing the screen.
+ */
+public class NametableFrameBuffer {
+
+    public static final int WIDTH = 512;
+    public static final int HEIGHT = 480;
+
+    private static final int COLUMNS = 32;
+    private static final int ROWS = 30;
+    private static final int NAMETABLE_COUNT = 4;
+    private static final int NAMETABLES_SIZE = NAMETABLE_COUNT * Ppu.NAMETABLE_RAM_SIZE;
+    private static final int ATTRIBUTE_TABLE_OFFSET = COLUMNS * ROWS;
+
+    private PatternTableManager patternTableManager;
+    private float[] attributes;
+
+    private FrameBuffer frameBuffer;
+    private Texture texture;
+    private ShaderProgram shaderProgram;
+    private OrthographicCamera camera;
+
+    /**
+     * Tiles to be drawn by the next update, indexed by nametable times 1024 plus the
+     * offset of the tile in its nametable.
+     */
+    private boolean[] dirtyTiles = new boolean[NAMETABLES_SIZE];
+    private boolean dirty;
+
+    /**
+     * The nametables of the frame state last updated from, and a copy to compare the
+     * nametables of the next one with.
+     */
+    private byte[] nametables = new byte[NAMETABLES_SIZE];
+    private byte[] newNametables = new byte[NAMETABLES_SIZE];
+    private int frame = -1;
+
+    /**
+     * The tile in the pattern table texture each tile was drawn with, and its
+     * generation at the time.
+     */
+    private int[] drawnTiles = new int[NAMETABLES_SIZE];
+    private int[] drawnTileGenerations = new int[NAMETABLES_SIZE];
+
+    private int patternTableGeneration;
+    private int backgroundPatternTable = -1;
+
+    public NametableFrameBuffer(PatternTableManager patternTableManager, float[] attributes) {
+        this.patternTableManager = patternTableManager;
+        this.attributes = attributes;
+
+        FrameBuffer.FrameBufferBuilder frameBufferBuilder = new FrameBuffer.FrameBufferBuilder(WIDTH, HEIGHT);
+        frameBufferBuilder.addBasicColorTextureAttachment(Pixmap.Format.RGBA8888);
+        frameBuffer = frameBufferBuilder.build();
+        texture = frameBuffer.getColorBufferTexture();
+        texture.setFilter(Texture.TextureFilter.Nearest, Texture.TextureFilter.Nearest);
+
+        String vertexShader = Gdx.files.internal("shaders/vertex_shader.glsl").readString();
+        String fragmentShader = Gdx.files.internal("shaders/nametable_fragment_shader.glsl").readString();
+        shaderProgram = new ShaderProgram(vertexShader, fragmentShader);
+
+        camera = new OrthographicCamera();
+        camera.setToOrtho(false, WIDTH, HEIGHT);
+
+        invalidate();
+    }
+
+    /**
+     * Marks every tile to be drawn again by the next update. Should be called when
+     * the framebuffer may have lost its contents, such as after loading a save state
+     * on a mobile device.
+     */
+    public void invalidate() {
+        for (int i = 0; i < NAMETABLES_SIZE; i++) {
+            if ((i & (Ppu.NAMETABLE_RAM_SIZE - 1)) < ATTRIBUTE_TABLE_OFFSET) {
+                dirtyTiles[i] = true;
+            }
+        }
+        dirty = true;
+    }
+
+    /**
+     * Marks the tiles whose nametable or attribute bytes differ between the frame
+     * state last updated from and the next one.
+     */
+    private void markChangedBytes() {
+        for (int i = 0; i < NAMETABLES_SIZE; i++) {
+            if (newNametables[i] == nametables[i]) {
+                continue;
+            }
+            nametables[i] = newNametables[i];
+            int nametable = i & ~(Ppu.NAMETABLE_RAM_SIZE - 1);
+            int offset = i & (Ppu.NAMETABLE_RAM_SIZE - 1);
+            if (offset < ATTRIBUTE_TABLE_OFFSET) {
+                dirtyTiles[i] = true;
+            } else {
+                //Each attribute byte covers 4x4 tiles
+                int attributeX = (offset - ATTRIBUTE_TABLE_OFFSET) & 7;
+                int attributeY = (offset - ATTRIBUTE_TABLE_OFFSET) >> 3;
+                for (int y = attributeY * 4; y < Math.min(attributeY * 4 + 4, ROWS); y++) {
+                    for (int x = attributeX * 4; x < attributeX * 4 + 4; x++) {
+                        dirtyTiles[nametable + y * COLUMNS + x] = true;
+                    }
+                }
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+     * Draws every tile which changed since the last update into the framebuffer.
+     * Must be called outside of any other framebuffer and batch.
+     */
+    public void update(FrameState frameState, SpriteBatch spriteBatch) {
+        if (frameState.getFrame() != frame) {
+            frame = frameState.getFrame();
+            frameState.readNametables(newNametables);
+            markChangedBytes();
+        }
+        int patternTable = frameState.getBackgroundPatternTableAddress() == 0 ? 0 : 1;
+        if (patternTable != backgroundPatternTable || patternTableManager.getGeneration() != patternTableGeneration) {
+            backgroundPatternTable = patternTable;
+            patternTableGeneration = patternTableManager.getGeneration();
+            markChangedPatterns(frameState, patternTable);
+        }
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+
+        frameBuffer.begin();
+        spriteBatch.setShader(shaderProgram);
+        spriteBatch.setProjectionMatrix(camera.combined);
+        spriteBatch.begin();
+        spriteBatch.disableBlending();
+        for (int i = 0; i < dirtyTiles.length; i++) {
+            if (dirtyTiles[i]) {
+                dirtyTiles[i] = false;
+                drawTile(frameState, spriteBatch, patternTable, i);
+            }
+        }
+        spriteBatch.end();
+        spriteBatch.enableBlending();
+        frameBuffer.end();
+    }
+
+    /**
+     * Marks every tile whose pattern was decoded or moved since it was drawn.
+     */
+    private void markChangedPatterns(FrameState frameState, int patternTable) {
+        for (int nametable = 0; nametable < NAMETABLE_COUNT; nametable++) {
+            int nameTableAddress = Ppu.NAME_TABLE_0_BASE_ADDRESS + nametable * Ppu.NAMETABLE_RAM_SIZE;
+            for (int y = 0; y < ROWS; y++) {
+                for (int x = 0; x < COLUMNS; x++) {
+                    int i = nametable * Ppu.NAMETABLE_RAM_SIZE + y * COLUMNS + x;
+                    int index = frameState.getNametableTile(nameTableAddress, x, y);
+                    int tile = patternTableManager.getTileIndex(patternTable, index >> 4, index & 0x0f);
+                    if (tile != drawnTiles[i] || patternTableManager.getTileGeneration(tile) != drawnTileGenerations[i]) {
+                        dirtyTiles[i] = true;
+                        dirty = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private void drawTile(FrameState frameState, SpriteBatch spriteBatch, int patternTable, int i) {
+        int nametable = i / Ppu.NAMETABLE_RAM_SIZE;
+        int x = i & (COLUMNS - 1);
+        int y = (i & (Ppu.NAMETABLE_RAM_SIZE - 1)) / COLUMNS;
+        int nameTableAddress = Ppu.NAME_TABLE_0_BASE_ADDRESS + nametable * Ppu.NAMETABLE_RAM_SIZE;
+
+        int index = frameState.getNametableTile(nameTableAddress, x, y);
+        int attribute = frameState.getAttributeForNametableTile(nameTableAddress + ATTRIBUTE_TABLE_OFFSET, x, y);
+        int tile = patternTableManager.getTileIndex(patternTable, index >> 4, index & 0x0f);
+        drawnTiles[i] = tile;
+        drawnTileGenerations[i] = patternTableManager.getTileGeneration(tile);
+
+        Sprite sprite = patternTableManager.getSprite(patternTable, index >> 4, index & 0x0f);
+        sprite.setColor(0, attributes[attribute], 0, 0);
+        sprite.setFlip(false, false);
+        sprite.setPosition((nametable & 1) * 256 + x * 8, HEIGHT - (nametable >> 1) * 240 - y * 8 - 8);
+        sprite.draw(spriteBatch);
+    }
+
+    /**
+     * Draws the screen, or the rows of tiles of it between two splits, from the
+     * framebuffer, scrolled, with the palette shader already set on the batch. The
+     * source wraps around within a region at the top left of the framebuffer.
+     * @param sourceX The x coordinate in the framebuffer shown at the left of the screen.
+     * @param sourceY The y coordinate in the framebuffer, counting from the top, shown at
+     *                the top of the screen.
+     * @param regionWidth The width of the region the source wraps around in.
+     * @param regionHeight The height of the region the source wraps around in.
+     * @param splitYStart Rows of tiles are drawn from the first one whose top, before
+     *                    fine scrolling, is at or below this row of the screen.
+     * @param splitYEnd Rows of tiles are drawn up to the first one whose top, before fine
+     *                  scrolling, is at or below this row of the screen. 240 draws to the
+     *                  bottom of the screen.
+     */
+    public void draw(SpriteBatch spriteBatch, int sourceX, int sourceY, int regionWidth, int regionHeight, float splitYStart, float splitYEnd) {
+        int fineScrollY = sourceY & 7;
+        int screenYStart = splitYStart > 0 ? (((int) Math.ceil(splitYStart) + 7) & ~7) - fineScrollY : 0;
+        int screenYEnd = splitYEnd < 240 ? (((int) Math.ceil(splitYEnd) + 7) & ~7) - fineScrollY : 240;
+        //The stored attribute and pixel value already point into the palette
+        spriteBatch.setColor(0, 0, 0, 0);
+        int screenY = Math.max(0, screenYStart);
+        int y = ((sourceY + screenY) % regionHeight + regionHeight) % regionHeight;
+        while (screenY < screenYEnd) {
+            int height = Math.min(screenYEnd - screenY, regionHeight - y);
+            int screenX = 0;
+            int x = (sourceX % regionWidth + regionWidth) % regionWidth;
+            while (screenX < 256) {
+                int width = Math.min(256 - screenX, regionWidth - x);
+                //The framebuffer is stored bottom up, so flip the region vertically
+                spriteBatch.draw(texture, screenX, 240 - screenY - height, width, height,
+                        x, HEIGHT - y - height, width, height, false, true);
+                screenX += width;
+                x = 0;
+            }
+            screenY += height;
+            y = 0;
+        }
+        spriteBatch.setColor(Color.WHITE);
+    }
+}
@@ -2,6 +2,7 @@ package com.gradualgames.manager.render;
 
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.Pixmap;
 import com.badlogic.gdx.graphics.Texture;
 import com.badlogic.gdx.graphics.g2d.Sprite;
@@ -9,22 +10,109 @@ import com.badlogic.gdx.graphics.g2d.TextureRegion;
 import com.gradualgames.ggvm.GGVm;
 import com.gradualgames.ggvm.OnGeneratePatternTableListener;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
 /**
  * Created by derek on 6/10/2017.
  *
  * Base class for pattern table reading, writing, and bankswitching. The base
  * class assumes no chr-rom or ram bankswitching is being performed. In other words,
  * it just assumes the normal 8kb chr-rom or chr-ram is available.
+ *
+ * Writes to CHR-RAM do not regenerate their tile right away. Each tile written
+ * is marked in a bitset of dirty tiles, one bit for each tile in the texture.
+ * Once per frame, before rendering, updateDirtyPatterns decodes all dirty tiles
+ * into the pixmap and uploads every run of rows of tiles containing a dirty tile
+ * to the texture at once, rather than uploading each tile as it is written in
+ * the middle of a frame.
+ *
+ * Tiles are decoded from the chr data of the frame state last acquired, see
+ * GGVm.acquireFrameState, which also reports the tiles written, a row of 8
+ * pixels at a time through ROW_PIXELS, and written straight into the pixel buffer
+ * of the pixmap rather than pixel by pixel through Pixmap.drawPixel.
  */
 public class PatternTableManager implements OnGeneratePatternTableListener {
 
+    private static final int TEXTURE_UPLOADS_LOGGING_INTERVAL = 200;
+
+    /**
+     * The pixel values of a row of a tile, for every pair of bitplane bytes, indexed
+     * by the high bitplane byte times 256 plus the low bitplane byte. The value of the
+     * pixel in column x, counting from the left, is in bits 2x and 2x + 1.
+     */
+    static final char[] ROW_PIXELS = new char[256 * 256];
+
+    static {
+        for (int hi = 0; hi < 256; hi++) {
+            for (int lo = 0; lo < 256; lo++) {
+                int pixels = 0;
+                for (int x = 0; x < 8; x++) {
+                    int bit = 7 - x;
+                    int pixel = ((lo >> bit) & 1) | (((hi >> bit) & 1) << 1);
+                    pixels |= pixel << (x * 2);
+                }
+                ROW_PIXELS[(hi << 8) | lo] = (char) pixels;
+            }
+        }
+    }
+
     protected GGVm ggvm;
-    protected Pixmap patternPixmap;
     protected Pixmap patternTablePixmap;
     protected Texture patternTableTexture;
     protected Sprite[][] patternTableSprites;
     protected int[] monochromePalette = new int[4];
 
+    /**
+     * The pixels of the pattern table pixmap, one RGBA8888 int per pixel, in the
+     * native byte order so that every put is a plain store.
+     */
+    protected IntBuffer patternTablePixels;
+
+    /**
+     * The monochrome palette in the byte order of patternTablePixels, computed along
+     * with it by initializeMonochromePalette.
+     */
+    private int[] pixelPalette = new int[4];
+
+    /**
+     * Copy of the chr data of the frame state, which tiles are decoded from.
+     */
+    protected byte[] chr = new byte[GGVm.CHR_SIZE];
+
+    /**
+     * One bit per tile in the pattern table texture, counting 16 tiles per row of
+     * tiles from the top, set for tiles which have been written since they were
+     * last decoded.
+     */
+    protected long[] dirtyTiles;
+
+    /**
+     * Rows of tiles in the pixmap which have been decoded since they were last
+     * uploaded to the texture.
+     */
+    protected boolean[] dirtyRows;
+
+    /**
+     * Incremented whenever a tile is decoded or the tiles returned by getTileIndex
+     * change, so a render manager caching drawn tiles can tell when to check them.
+     */
+    protected int generation;
+
+    /**
+     * The generation at which each tile in the texture was last decoded.
+     */
+    private int[] tileGenerations;
+
+    private int decodedPatterns;
+
+    private int lastFrameTextureUploads;
+
+    private int lastFrameDecodedPatterns;
+
+    private int textureUploadsLoggingIntervalCounter = TEXTURE_UPLOADS_LOGGING_INTERVAL;
+
     public PatternTableManager(GGVm ggvm) {
         this.ggvm = ggvm;
         initialize();
@@ -35,25 +123,45 @@ public class PatternTableManager implements OnGeneratePatternTableListener {
      */
     public void initialize() {
         //Allocate a pixmap big enough to accommodate both pattern tables.
-        patternTablePixmap = new Pixmap(128, 256, Pixmap.Format.RGBA8888);
+        initializePatternTable(256);
+        initializeMonochromePalette();
+    }
+
+    /**
+     * Allocates the pattern table pixmap, texture and a sprite for every tile of it.
+     * @param height The height of the pixmap in pixels, 8 for every row of 16 tiles.
+     */
+    protected void initializePatternTable(int height) {
+        patternTablePixmap = new Pixmap(128, height, Pixmap.Format.RGBA8888);
         //Set blending to none so we can rewrite the pixmap and draw it to the
         //pattern table texture when graphics are regenerated.
         patternTablePixmap.setBlending(Pixmap.Blending.None);
-
-        //Allocate a pixmap the size of one tile for live CHR-RAM updates.
-        patternPixmap = new Pixmap(8, 8, Pixmap.Format.RGBA8888);
-        patternPixmap.setBlending(Pixmap.Blending.None);
+        initializePatternTableBuffers();
 
         patternTableTexture = new Texture(patternTablePixmap, false);
         TextureRegion[][] textureRegions = TextureRegion.split(patternTableTexture, 8, 8);
-        patternTableSprites = new Sprite[32][16];
-        for(int row = 0; row < 32; row++) {
+        int rows = height / 8;
+        patternTableSprites = new Sprite[rows][16];
+        for(int row = 0; row < rows; row++) {
             for(int column = 0; column < 16; column++) {
                 TextureRegion textureRegion = textureRegions[row][column];
                 patternTableSprites[row][column] = new Sprite(textureRegion);
             }
         }
-        initializeMonochromePalette();
+    }
+
+    /**
+     * Wraps the pixels of the pattern table pixmap, and allocates the dirty tile bitset
+     * and dirty rows to cover it.
+     */
+    protected void initializePatternTableBuffers() {
+        ByteBuffer pixels = patternTablePixmap.getPixels().duplicate();
+        pixels.clear();
+        patternTablePixels = pixels.order(ByteOrder.nativeOrder()).asIntBuffer();
+        int rows = patternTablePixmap.getHeight() / 8;
+        dirtyTiles = new long[(rows * 16 + 63) / 64];
+        dirtyRows = new boolean[rows];
+        tileGenerations = new int[rows * 16];
     }
 
     /**
@@ -64,7 +172,35 @@ public class PatternTableManager implements OnGeneratePatternTableListener {
      * @return
      */
     public Sprite getSprite(int patternTable, int row, int column) {
-        return patternTableSprites[patternTable * 16 + row][column];
+        int tile = getTileIndex(patternTable, row, column);
+        return patternTableSprites[tile >> 4][tile & 0x0f];
+    }
+
+    /**
+     * Finds the tile in the pattern table texture which getSprite returns a sprite of.
+     * @param patternTable Which pattern table to use (0 or 1)
+     * @param row The row of the pattern (0 to 15)
+     * @param column The column of the pattern (0 to 15)
+     * @return The index of the tile in the texture, 16 tiles per row of tiles.
+     */
+    public int getTileIndex(int patternTable, int row, int column) {
+        return patternTable * 256 + row * 16 + column;
+    }
+
+    /**
+     * @return The current generation of the pattern table texture. It changes
+     * whenever a tile is decoded or the tiles returned by getTileIndex change.
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param tile The index of a tile in the texture, see getTileIndex.
+     * @return The generation at which the tile was last decoded.
+     */
+    public int getTileGeneration(int tile) {
+        return tileGenerations[tile];
     }
 
     /**
@@ -100,6 +236,10 @@ public class PatternTableManager implements OnGeneratePatternTableListener {
         Gdx.app.log(getClass().getSimpleName(), "initializeMonochromePalette()");
         for (int pixelValue = 0; pixelValue <= 3; pixelValue++) {
             monochromePalette[pixelValue] = pixelToShaderPixel(pixelValue, pixelValue == 0 ? true : false);
+            //RGBA8888 pixels are stored as r, g, b, a bytes, the order in which a big
+            //endian int holds the colors from Color.rgba8888
+            pixelPalette[pixelValue] = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ?
+                    monochromePalette[pixelValue] : Integer.reverseBytes(monochromePalette[pixelValue]);
         }
     }
 
@@ -115,49 +255,156 @@ public class PatternTableManager implements OnGeneratePatternTableListener {
 
     /**
      * Callback from ggvm which tells the application to generate a single pattern
-     * table tile.
+     * table tile. The tile is only marked dirty, see updateDirtyPatterns.
      */
     @Override
     public void onGeneratePattern(int patternAddress) {
-        int patternIndex = patternAddress >> 4;
-        int patternTableSelector = patternIndex >> 8;
-        patternIndex &= 0xff;
-        int indexRow = patternIndex >> 4;
-        int indexColumn = patternIndex & 0x0f;
-        int patternTableXOffsetInPixels = indexColumn * 8;
-        int patternTableYOffsetInPixels = patternTableSelector * 128 + indexRow * 8;
-
-        //Iterate over current tile in pixel units
+        markDirty(patternAddress >> 4);
+    }
+
+    /**
+     * Marks a tile as dirty, to be decoded and uploaded by the next call to
+     * updateDirtyPatterns.
+     * @param tile The index of the tile in the texture, 16 tiles per row of tiles.
+     */
+    protected void markDirty(int tile) {
+        dirtyTiles[tile >> 6] |= 1L << tile;
+    }
+
+    /**
+     * Decodes all dirty tiles into the pattern table pixmap and uploads the rows of
+     * tiles they are in to the pattern table texture. Should be called once per frame
+     * before rendering.
+     */
+    public void updateDirtyPatterns() {
+        decodeDirtyPatterns();
+        lastFrameDecodedPatterns = decodedPatterns;
+        decodedPatterns = 0;
+        lastFrameTextureUploads = uploadDirtyRows();
+    }
+
+    /**
+     * Decodes all dirty tiles into the pattern table pixmap from the chr data of the
+     * frame state last acquired, and marks their rows for upload.
+     */
+    protected void decodeDirtyPatterns() {
+        boolean chrRead = false;
+        for (int i = 0; i < dirtyTiles.length; i++) {
+            long bits = dirtyTiles[i];
+            if (bits == 0) {
+                continue;
+            }
+            if (!chrRead) {
+                ggvm.getFrameState().readChr(chr);
+                chrRead = true;
+            }
+            dirtyTiles[i] = 0;
+            while (bits != 0) {
+                int tile = (i << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                decodeDirtyPattern(tile, chr, tile * 16);
+            }
+        }
+    }
+
+    /**
+     * Decodes a dirty tile into the pattern table pixmap and marks its row for upload.
+     * @param tile The index of the tile in the texture, 16 tiles per row of tiles.
+     * @param data The chr data to decode the tile from.
+     * @param chrAddress The index of the first byte of the tile in data.
+     */
+    protected void decodeDirtyPattern(int tile, byte[] data, int chrAddress) {
+        decodePattern(tile, data, chrAddress);
+        dirtyRows[tile >> 4] = true;
+        decodedPatterns++;
+    }
+
+    /**
+     * Decodes a tile from chr data into the pattern table pixmap.
+     * @param tile The index of the tile in the texture, 16 tiles per row of tiles.
+     * @param data The chr data to decode the tile from.
+     * @param chrAddress The index of the first byte of the tile in data.
+     */
+    protected void decodePattern(int tile, byte[] data, int chrAddress) {
+        int width = patternTablePixmap.getWidth();
+        int index = (tile >> 4) * 8 * width + (tile & 0x0f) * 8;
         for (int y = 0; y < 8; y++) {
+            int pixels = ROW_PIXELS[((data[chrAddress + y + 8] & 0xff) << 8) | (data[chrAddress + y] & 0xff)];
             for (int x = 0; x < 8; x++) {
-                int pixel = ggvm.getChrPixel(patternTableSelector * 256 + indexRow * 16 + indexColumn, x, y);
-                //Pattern table X offset in pixels is the attribute times the width of the pattern table, plus
-                //the current column within the pattern table * 8
-                patternPixmap.drawPixel(7 - x, y, monochromePalette[pixel]);
+                patternTablePixels.put(index + x, pixelPalette[(pixels >> (x * 2)) & 3]);
             }
+            index += width;
         }
-        patternTableTexture.draw(patternPixmap, patternTableXOffsetInPixels, patternTableYOffsetInPixels);
+        tileGenerations[tile] = ++generation;
     }
 
     /**
-     * Generates textures and sprites based on pattern table data in ggvm.
+     * Uploads every run of consecutive dirty rows of tiles from the pattern table
+     * pixmap to the pattern table texture, one upload per run. Rows of the pixmap are
+     * contiguous in its pixel buffer, so each run is uploaded straight from it.
+     * @return The number of uploads.
      */
-    protected void generateSpritesForPatternTable() {
-        //Iterate over current pattern table in tile units
-        for(int patternTableSelector = 0; patternTableSelector < 2; patternTableSelector++) {
-            for(int row = 0; row < 16; row++) {
-                for(int column = 0; column < 16; column++) {
-                    int patternTableXOffsetInPixels = column * 8;
-                    int patternTableYOffsetInPixels = patternTableSelector * 128 + row * 8;
-                    //Iterate over current tile in pixel units
-                    for (int y = 0; y < 8; y++) {
-                        for (int x = 0; x < 8; x++) {
-                            int pixel = ggvm.getChrPixel(patternTableSelector * 256 + row * 16 + column, x, y);
-                            patternTablePixmap.drawPixel(7 - x + patternTableXOffsetInPixels, y + patternTableYOffsetInPixels, monochromePalette[pixel]);
-                        }
-                    }
-                }
+    protected int uploadDirtyRows() {
+        int uploads = 0;
+        int row = 0;
+        while (row < dirtyRows.length) {
+            if (!dirtyRows[row]) {
+                row++;
+                continue;
+            }
+            int firstRow = row;
+            while (row < dirtyRows.length && dirtyRows[row]) {
+                dirtyRows[row] = false;
+                row++;
             }
+            int width = patternTablePixmap.getWidth();
+            ByteBuffer pixels = patternTablePixmap.getPixels();
+            int position = pixels.position();
+            pixels.position(firstRow * 8 * width * 4);
+            patternTableTexture.bind();
+            Gdx.gl.glPixelStorei(GL20.GL_UNPACK_ALIGNMENT, 1);
+            Gdx.gl.glTexSubImage2D(GL20.GL_TEXTURE_2D, 0, 0, firstRow * 8, width, (row - firstRow) * 8,
+                    patternTablePixmap.getGLFormat(), patternTablePixmap.getGLType(), pixels);
+            pixels.position(position);
+            uploads++;
+        }
+        return uploads;
+    }
+
+    /**
+     * @return The number of uploads to the pattern table texture made by the last call
+     * to updateDirtyPatterns.
+     */
+    public int getLastFrameTextureUploads() {
+        return lastFrameTextureUploads;
+    }
+
+    /**
+     * @return The number of tiles decoded since the call to updateDirtyPatterns before
+     * the last one.
+     */
+    public int getLastFrameDecodedPatterns() {
+        return lastFrameDecodedPatterns;
+    }
+
+    public void logTextureUploads() {
+        textureUploadsLoggingIntervalCounter--;
+        if (textureUploadsLoggingIntervalCounter <= 0) {
+            textureUploadsLoggingIntervalCounter = TEXTURE_UPLOADS_LOGGING_INTERVAL;
+            Gdx.app.log(getClass().getSimpleName(), "Last frame decoded " + lastFrameDecodedPatterns +
+                    " patterns in " + lastFrameTextureUploads + " texture uploads.");
+        }
+    }
+
+    /**
+     * Generates textures and sprites based on pattern table data in ggvm. Reads the
+     * ppu bus itself, so must only be called while the vm is not running frames on
+     * another thread.
+     */
+    protected void generateSpritesForPatternTable() {
+        ggvm.readChr(chr);
+        for (int tile = 0; tile < 512; tile++) {
+            decodePattern(tile, chr, tile * 16);
         }
         patternTableTexture.draw(patternTablePixmap, 0, 0);
     }
@@ -7,28 +7,46 @@ import com.badlogic.gdx.graphics.g2d.SpriteBatch;
 import com.badlogic.gdx.graphics.g2d.TextureRegion;
 import com.badlogic.gdx.graphics.glutils.FrameBuffer;
 import com.badlogic.gdx.graphics.glutils.GLFrameBuffer;
+import com.badlogic.gdx.graphics.glutils.PixmapTextureData;
 import com.badlogic.gdx.graphics.glutils.ShaderProgram;
 import com.badlogic.gdx.graphics.glutils.ShapeRenderer;
+import com.badlogic.gdx.utils.ScreenUtils;
 import com.badlogic.gdx.utils.viewport.FitViewport;
+import com.gradualgames.ggvm.FrameState;
 import com.gradualgames.ggvm.GGVm;
 import com.gradualgames.ggvm.OnGeneratePatternTableListener;
+import com.gradualgames.ggvm.SpriteRamSnapshot;
 import com.gradualgames.manager.rastereffect.RasterEffectManager;
 
 /**
  * Created by derek on 1/7/2017.
  *
  * This is the RenderManager, one of the most important objects in GGVm.
- * It uses the high level interface of the GGVm object itself to generate
- * graphics from ppu data and update the palette every frame. When rendering,
- * it draws background sprites first, then the nametable, and finally the fore-
- * ground sprites. To simulate the ability to hide foreground sprites with
- * background sprites, foreground sprites are drawn to a framebuffer first, then
- * background sprites are drawn as transparent 8x8 rectangles to erase pixels of
- * the foreground sprites.
+ * It draws every frame from the FrameState which the application last acquired
+ * from the GGVm object, see GGVm.acquireFrameState, generating graphics from its
+ * ppu data and updating the palette from it. When rendering,
+ * it draws foreground sprites, background sprites and the nametable into one
+ * framebuffer in a single pass, resolving which of them shows at each pixel with
+ * the stencil buffer:
+ * - Foreground sprites are drawn first, front to back, from sprite 0 to sprite 63.
+ *   Each opaque pixel sets a stencil bit, and no sprite is drawn where a stencil
+ *   bit is already set, so lower sprites win over higher ones.
+ * - To simulate the ability to hide foreground sprites with background sprites,
+ *   background sprites are drawn in the same order as 8x8 masks which set another
+ *   stencil bit without drawing any color, hiding the foreground sprites after them.
+ * - Background sprites, then the nametable over them, are drawn only where no
+ *   foreground sprite was drawn.
+ *
+ * The previous approach, which draws foreground sprites to a separate framebuffer,
+ * erases pixels of them with background sprites drawn as transparent 8x8
+ * rectangles, and blends the whole framebuffer over the background, is kept for
+ * comparison, see setSinglePassCompositing. Both produce the same picture.
  *
  * Backgrounds are rendered with HorizontalMirroringRenderManager and
- * VerticalMirroringRenderManager. They use various ppu register information,
- * forwarded via the GGVm object, to determine how to draw each tile. Note this
+ * VerticalMirroringRenderManager. They keep the nametables drawn in a
+ * NametableFrameBuffer, drawing only tiles which changed, and use various ppu
+ * register information from the frame state to determine which part of
+ * it to draw to the screen. Note this
  * does not simulate scanline per scanline drawing of the PPU. Highly advanced
  * raster effects may be impossible or require a fragment shader to be written,
  * and then inspect the ram of the running game to inform the behavior of the
@@ -39,9 +57,6 @@ import com.gradualgames.manager.rastereffect.RasterEffectManager;
  * Sprites are drawn in priority order. However the above described approach is not
  * accurate to how the PPU actually draws graphics, but is able to support the needs
  * of several homebrew games so far.
- * TODO: Find a way to use a z-buffer and blending in order to accurately simulate
- * how the PPU sorts sprites and background pixels. In theory this could also be
- * faster as we wouldn't be blending a whole framebuffer on top of the screen.
  *
  * All chr graphics are generated into a 512x256 sized texture, which has four copies
  * each of pattern table 0 and pattern table 1. The pixels generated into this texture
@@ -54,6 +69,13 @@ import com.gradualgames.manager.rastereffect.RasterEffectManager;
  */
 public abstract class RenderManager {
 
+    /**
+     * Stencil bits of the single pass: set by opaque pixels of foreground sprites,
+     * and by the 8x8 masks of background sprites.
+     */
+    private static final int FOREGROUND_SPRITE_STENCIL_BIT = 1;
+    private static final int MASK_STENCIL_BIT = 2;
+
     protected GGVm ggvm;
     protected RasterEffectManager rasterEffectManager;
     protected PatternTableManager patternTableManager;
@@ -68,14 +90,22 @@ public abstract class RenderManager {
     protected boolean[] isBgTransparentMask = new boolean[64];
     protected boolean[] isSprTransparentMask = new boolean[64];
     protected float[] attributes = new float[4];
-    protected Color bgColor = Color.BLACK;
+    protected Color bgColor = new Color(Color.BLACK);
     protected ShapeRenderer shapeRenderer;
     protected Pixmap palettePixmap;
     protected Texture paletteTexture;
+    private int[] bgGGVmPalette = new int[16];
+    private int[] sprGGVmPalette = new int[16];
+    private boolean paletteGenerated = false;
+    private int paletteVersion;
+    private boolean paletteMonochrome;
 
     protected Pixmap transparentMaskPixmap;
     protected Texture transparentMaskTexture;
     protected Sprite transparentMaskSprite;
+    protected Pixmap stencilMaskPixmap;
+    protected Texture stencilMaskTexture;
+    protected Sprite stencilMaskSprite;
     protected FrameBuffer mainFrameBuffer;
     protected TextureRegion mainTextureRegion;
     protected FrameBuffer foregroundSpritesFrameBuffer;
@@ -86,10 +116,17 @@ public abstract class RenderManager {
     protected String vertexShader;
     protected String fragmentShader;
     protected ShaderProgram shaderProgram;
+    protected ShaderProgram stencilShaderProgram;
+
+    private boolean singlePassCompositing = true;
 
     //Palette information
     protected int[] masterPalette = new int[64];
 
+    //The frame state being drawn, and its sprites
+    protected FrameState frameState;
+    protected SpriteRamSnapshot sprites;
+
     public RenderManager(GGVm ggvm, PatternTableManager patternTableManager, RasterEffectManager rasterEffectManager) {
         this.ggvm = ggvm;
         this.patternTableManager = patternTableManager;
@@ -110,6 +147,7 @@ public abstract class RenderManager {
         vertexShader = Gdx.files.internal("shaders/vertex_shader.glsl").readString();
         fragmentShader = Gdx.files.internal("shaders/fragment_shader.glsl").readString();
         shaderProgram = new ShaderProgram(vertexShader, fragmentShader);
+        stencilShaderProgram = new ShaderProgram(vertexShader, Gdx.files.internal("shaders/stencil_fragment_shader.glsl").readString());
 
         //Initialize attribute value (used by fragmentShader)
         initializeAttributes();
@@ -128,9 +166,18 @@ public abstract class RenderManager {
         transparentMaskTexture = new Texture(transparentMaskPixmap);
         transparentMaskSprite = new Sprite(transparentMaskTexture);
 
-        //Initialize main frame buffer
+        //Initialize the mask sprite for the single pass, which only writes the
+        //stencil buffer and so must be opaque to get past the stencil shader
+        stencilMaskPixmap = new Pixmap(8, 8, Pixmap.Format.RGBA8888);
+        stencilMaskPixmap.setColor(Color.WHITE);
+        stencilMaskPixmap.fill();
+        stencilMaskTexture = new Texture(stencilMaskPixmap);
+        stencilMaskSprite = new Sprite(stencilMaskTexture);
+
+        //Initialize main frame buffer, with a stencil buffer for the single pass
         FrameBuffer.FrameBufferBuilder frameBufferBuilder = new FrameBuffer.FrameBufferBuilder(256, 240);
         frameBufferBuilder.addBasicColorTextureAttachment(Pixmap.Format.RGBA8888);
+        frameBufferBuilder.addBasicStencilRenderBuffer();
         mainFrameBuffer = frameBufferBuilder.build();
 
         mainTextureRegion = new TextureRegion(mainFrameBuffer.getColorBufferTexture(), 0, 0,
@@ -138,17 +185,12 @@ public abstract class RenderManager {
         mainTextureRegion.flip(false, true);
         mainTextureRegion.getTexture().setFilter(Texture.TextureFilter.Nearest, Texture.TextureFilter.Nearest);
 
-        //Initialize special frame buffer for foreground sprites so
-        //we can hide them with fake background sprites
-        foregroundSpritesFrameBuffer = frameBufferBuilder.build();
-        foregroundSpritesTextureRegion = new TextureRegion(foregroundSpritesFrameBuffer.getColorBufferTexture(), 0, 0,
-                256, 240);
-        foregroundSpritesTextureRegion.flip(false, true);
-        foregroundSpritesTextureRegion.getTexture().setFilter(Texture.TextureFilter.Nearest, Texture.TextureFilter.Nearest);
-
         //Initialize palette information
         palettePixmap = new Pixmap(32, 1, Pixmap.Format.RGBA8888);
-        paletteTexture = new Texture(palettePixmap);
+        palettePixmap.setBlending(Pixmap.Blending.None);
+        //Managed, so the palette is restored from the pixmap if the context is lost,
+        //since it is only uploaded when it changes
+        paletteTexture = new Texture(new PixmapTextureData(palettePixmap, null, false, false, true));
         masterPalette = loadPalette("palette/nespalette.bmp", 1, 1, 32, 32, 16, 4);
     }
 
@@ -159,6 +201,8 @@ public abstract class RenderManager {
     }
 
     public void render(SpriteBatch spriteBatch) {
+        frameState = ggvm.getFrameState();
+        sprites = frameState.getSprites();
         generatePalettes();
         paletteTexture.bind(1);
 
@@ -175,47 +219,24 @@ public abstract class RenderManager {
         shapeRenderer.rect(0f, 0f, 256f, 240f);
         shapeRenderer.end();
 
-        if (ggvm.isBackgroundVisible()) {
+        if (frameState.isBackgroundVisible()) {
 
-            sortSprites();
-            //Draw foreground sprites to a separate framebuffer, where they can be
-            //optionally clipped by background sprites.
-            foregroundSpritesFrameBuffer.begin();
-                Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0);
-                Gdx.gl.glClearColor(0f, 0f, 0f, 0f);
-                Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT);
-                spriteBatch.setShader(shaderProgram);
-                spriteBatch.setProjectionMatrix(camera.combined);
-                spriteBatch.begin();
-                    shaderProgram.setUniformi("u_paletteTexture", 1);
-                    spriteBatch.disableBlending();
-                    drawSprites(spriteBatch, foregroundSprites, isSprTransparentMask, foregroundSpritesCount);
-                spriteBatch.end();
-            foregroundSpritesFrameBuffer.end();
+            //Draw changed nametable tiles before any other framebuffer is bound.
+            updateNametable(frameState, spriteBatch);
 
-            viewPort.apply();
-            mainFrameBuffer.begin();
-                Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0);
-                Gdx.gl.glClearColor(0f, 0f, 0f, 0f);
-                Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT);
-                //Draw background sprites, nametable, then blend
-                //the foreground sprites framebuffer to the main framebuffer.
-                spriteBatch.begin();
-                    spriteBatch.enableBlending();
-                    drawSprites(spriteBatch, backgroundSprites, isBgTransparentMask, backgroundSpritesCount);
-                    drawNametable(ggvm, spriteBatch);
-                    spriteBatch.setShader(null);
-                    spriteBatch.draw(foregroundSpritesTextureRegion, 0, 0);
-                    rasterEffectManager.render(spriteBatch);
-                spriteBatch.end();
-            mainFrameBuffer.end();
+            sortSprites();
+            if (singlePassCompositing) {
+                drawSinglePass(spriteBatch);
+            } else {
+                drawWithForegroundFrameBuffer(spriteBatch);
+            }
 
             viewPort.apply();
             spriteBatch.begin();
                 spriteBatch.draw(mainTextureRegion, 0, 0);
             spriteBatch.end();
 
-            if (ggvm.isBackgroundClipping()) {
+            if (frameState.isBackgroundClipping()) {
                 shapeRenderer.setProjectionMatrix(camera.combined);
                 shapeRenderer.begin();
                 shapeRenderer.set(ShapeRenderer.ShapeType.Filled);
@@ -227,6 +248,149 @@ public abstract class RenderManager {
         fpsLogger.log();
     }
 
+    /**
+     * Draws sprites and the nametable into the main framebuffer in one pass,
+     * resolving priority with the stencil buffer. See the class description.
+     */
+    private void drawSinglePass(SpriteBatch spriteBatch) {
+        viewPort.apply();
+        mainFrameBuffer.begin();
+            Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0);
+            Gdx.gl.glClearColor(0f, 0f, 0f, 0f);
+            Gdx.gl.glClearStencil(0);
+            Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT | GL20.GL_STENCIL_BUFFER_BIT);
+            Gdx.gl.glEnable(GL20.GL_STENCIL_TEST);
+            spriteBatch.setShader(stencilShaderProgram);
+            spriteBatch.setProjectionMatrix(camera.combined);
+            spriteBatch.begin();
+                stencilShaderProgram.setUniformi("u_paletteTexture", 1);
+                spriteBatch.enableBlending();
+                drawForegroundSpritesFrontToBack(spriteBatch);
+
+                //Background sprites, then the nametable, only where no foreground
+                //sprite was drawn
+                Gdx.gl.glStencilFunc(GL20.GL_EQUAL, 0, FOREGROUND_SPRITE_STENCIL_BIT);
+                Gdx.gl.glStencilMask(0);
+                drawSprites(spriteBatch, backgroundSprites, isBgTransparentMask, backgroundSpritesCount);
+                drawNametable(frameState, spriteBatch);
+                spriteBatch.flush();
+                Gdx.gl.glDisable(GL20.GL_STENCIL_TEST);
+                Gdx.gl.glStencilMask(0xff);
+                spriteBatch.setShader(null);
+                rasterEffectManager.render(spriteBatch);
+            spriteBatch.end();
+        mainFrameBuffer.end();
+    }
+
+    /**
+     * Draws the foreground sprites and the masks of background sprites from sprite 0
+     * to sprite 63, each only where no stencil bit is set yet. The batch is flushed
+     * whenever it switches between sprites and masks, since they write different
+     * stencil bits.
+     */
+    private void drawForegroundSpritesFrontToBack(SpriteBatch spriteBatch) {
+        int patternTable = frameState.getSpritePatternTableAddress() == 0 ? 0 : 1;
+        //Masks are only used for 8x8 sprites, see drawSprites
+        boolean masksUsed = frameState.getSpriteSize() == 0;
+        boolean drawingMasks = false;
+        Gdx.gl.glStencilFunc(GL20.GL_EQUAL, 0, 0xff);
+        Gdx.gl.glStencilOp(GL20.GL_KEEP, GL20.GL_KEEP, GL20.GL_INVERT);
+        Gdx.gl.glStencilMask(FOREGROUND_SPRITE_STENCIL_BIT);
+        for (int i = foregroundSpritesCount - 1; i >= 0; i--) {
+            boolean mask = masksUsed && isSprTransparentMask[i];
+            if (mask != drawingMasks) {
+                spriteBatch.flush();
+                drawingMasks = mask;
+                Gdx.gl.glStencilMask(mask ? MASK_STENCIL_BIT : FOREGROUND_SPRITE_STENCIL_BIT);
+                Gdx.gl.glColorMask(!mask, !mask, !mask, !mask);
+            }
+            int spriteRamIndex = foregroundSprites[i];
+            if (mask) {
+                stencilMaskSprite.setPosition(sprites.x[spriteRamIndex], 231 - sprites.y[spriteRamIndex]);
+                stencilMaskSprite.draw(spriteBatch);
+            } else {
+                drawSprite(spriteBatch, patternTable, spriteRamIndex);
+            }
+        }
+        spriteBatch.flush();
+        Gdx.gl.glColorMask(true, true, true, true);
+    }
+
+    /**
+     * Draws foreground sprites to a separate framebuffer, where they can be clipped
+     * by background sprites, then draws background sprites, the nametable and the
+     * foreground sprites framebuffer into the main framebuffer.
+     */
+    private void drawWithForegroundFrameBuffer(SpriteBatch spriteBatch) {
+        if (foregroundSpritesFrameBuffer == null) {
+            //Initialize special frame buffer for foreground sprites so
+            //we can hide them with fake background sprites
+            FrameBuffer.FrameBufferBuilder frameBufferBuilder = new FrameBuffer.FrameBufferBuilder(256, 240);
+            frameBufferBuilder.addBasicColorTextureAttachment(Pixmap.Format.RGBA8888);
+            foregroundSpritesFrameBuffer = frameBufferBuilder.build();
+            foregroundSpritesTextureRegion = new TextureRegion(foregroundSpritesFrameBuffer.getColorBufferTexture(), 0, 0,
+                    256, 240);
+            foregroundSpritesTextureRegion.flip(false, true);
+            foregroundSpritesTextureRegion.getTexture().setFilter(Texture.TextureFilter.Nearest, Texture.TextureFilter.Nearest);
+        }
+
+        foregroundSpritesFrameBuffer.begin();
+            Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0);
+            Gdx.gl.glClearColor(0f, 0f, 0f, 0f);
+            Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT);
+            spriteBatch.setShader(shaderProgram);
+            spriteBatch.setProjectionMatrix(camera.combined);
+            spriteBatch.begin();
+                shaderProgram.setUniformi("u_paletteTexture", 1);
+                spriteBatch.disableBlending();
+                drawSprites(spriteBatch, foregroundSprites, isSprTransparentMask, foregroundSpritesCount);
+            spriteBatch.end();
+        foregroundSpritesFrameBuffer.end();
+
+        viewPort.apply();
+        mainFrameBuffer.begin();
+            Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0);
+            Gdx.gl.glClearColor(0f, 0f, 0f, 0f);
+            Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT);
+            //Draw background sprites, nametable, then blend
+            //the foreground sprites framebuffer to the main framebuffer.
+            spriteBatch.begin();
+                spriteBatch.enableBlending();
+                drawSprites(spriteBatch, backgroundSprites, isBgTransparentMask, backgroundSpritesCount);
+                drawNametable(frameState, spriteBatch);
+                spriteBatch.setShader(null);
+                spriteBatch.draw(foregroundSpritesTextureRegion, 0, 0);
+                rasterEffectManager.render(spriteBatch);
+            spriteBatch.end();
+        mainFrameBuffer.end();
+    }
+
+    /**
+     * Chooses between drawing sprites and the nametable in a single pass with the
+     * stencil buffer, the default, and drawing foreground sprites to a separate
+     * framebuffer first.
+     */
+    public void setSinglePassCompositing(boolean singlePassCompositing) {
+        this.singlePassCompositing = singlePassCompositing;
+    }
+
+    public boolean isSinglePassCompositing() {
+        return singlePassCompositing;
+    }
+
+    /**
+     * Reads back the main framebuffer as drawn by the last call to render, for
+     * comparing the ways of compositing. The leftmost column of background clipping
+     * is drawn straight to the screen and so is not included.
+     * @return 256x240 RGBA8888 pixels, bottom row first.
+     */
+    public byte[] readMainFrameBuffer() {
+        mainFrameBuffer.begin();
+        byte[] pixels = ScreenUtils.getFrameBufferPixels(0, 0, 256, 240, false);
+        mainFrameBuffer.end();
+        return pixels;
+    }
+
     /**
      * Generate palette textures for background and sprites. These textures are
      * used by the shader to look up which color to replace. Actual pixels are
@@ -236,33 +400,50 @@ public abstract class RenderManager {
      * the shader to pick the correct color from the palette texture generated here.
      */
     private void generatePalettes() {
-        int[] bgGGVmPalette = ggvm.getPalette(false);
+        //Only rebuilt and uploaded when palette ram or the display type changed
+        int version = frameState.getPaletteVersion();
+        boolean monochrome = frameState.isMonochromeDisplayType();
+        if (paletteGenerated && version == paletteVersion && monochrome == paletteMonochrome) {
+            return;
+        }
+        paletteGenerated = true;
+        paletteVersion = version;
+        paletteMonochrome = monochrome;
+
+        frameState.getPalette(false, bgGGVmPalette);
+        bgColor.set(masterPalette[bgGGVmPalette[0]]);
         for (int i = 0; i < 16; i++) {
-            if (i == 0) {
-                bgColor = new Color(masterPalette[bgGGVmPalette[i]]);
-            }
-            palettePixmap.setColor(masterPalette[bgGGVmPalette[i]]);
-            palettePixmap.fillRectangle(i, 0, 1, 1);
+            palettePixmap.drawPixel(i, 0, masterPalette[bgGGVmPalette[i]]);
         }
 
-        int[] sprGGVmPalette = ggvm.getPalette(true);
+        frameState.getPalette(true, sprGGVmPalette);
         for (int i = 0; i < 16; i++) {
-            Color color = new Color(masterPalette[sprGGVmPalette[i]]);
-            if (i % 4 == 0) {
-                color.set(color.r, color.g, color.b, 0f);
-            }
-            palettePixmap.setColor(color);
-            palettePixmap.fillRectangle(i + 16, 0, 1, 1);
+            //The first color of each sprite palette is transparent
+            palettePixmap.drawPixel(i + 16, 0, i % 4 == 0 ? 0 : masterPalette[sprGGVmPalette[i]]);
         }
 
         paletteTexture.draw(palettePixmap, 0, 0);
     }
 
     /**
-     * Draws the current state of the two nametables in ggvm, taking scrolling into
-     * account.
+     * Called every frame before any framebuffer is bound, to bring any nametables
+     * kept by the render manager up to date.
      */
-    protected abstract void drawNametable(GGVm ggvm, SpriteBatch spriteBatch);
+    protected void updateNametable(FrameState frameState, SpriteBatch spriteBatch) {
+    }
+
+    /**
+     * Called after the nametables of ggvm were changed other than by the cpu, such
+     * as when loading a save state, so that nametables kept by the render manager are
+     * drawn again.
+     */
+    public void invalidateNametable() {
+    }
+
+    /**
+     * Draws the two nametables of the frame state, taking scrolling into account.
+     */
+    protected abstract void drawNametable(FrameState frameState, SpriteBatch spriteBatch);
 
     /**
      * Sort sprites into those which are behind the background tiles
@@ -271,9 +452,10 @@ public abstract class RenderManager {
     private void sortSprites() {
         backgroundSpritesCount = 0;
         foregroundSpritesCount = 0;
-        for (int i = 63; i >= 0; i--) {
-            boolean behindBackground = ggvm.getSpriteIsBehindBackground(i);
-            if (behindBackground) {
+        //Sprites hidden below the screen are neither drawn nor used as masks
+        for (int visibleSprite = sprites.getVisibleSpriteCount() - 1; visibleSprite >= 0; visibleSprite--) {
+            int i = sprites.visibleSprites[visibleSprite];
+            if (sprites.behindBackground[i]) {
                 backgroundSprites[backgroundSpritesCount] = i;
                 isBgTransparentMask[backgroundSpritesCount] = false;
                 backgroundSpritesCount++;
@@ -293,66 +475,61 @@ public abstract class RenderManager {
      * Draw a list of sprites using their indices.
      */
     private void drawSprites(SpriteBatch spriteBatch, int[] spriteIndices, boolean[] isTransparentMask, int spriteCount) {
-        int patternTable = ggvm.getSpritePatternTableAddress() == 0 ?
+        int patternTable = frameState.getSpritePatternTableAddress() == 0 ?
                 0 : 1;
 
-        if(ggvm.getSpriteSize() == 0) {
-            for (int i = 0; i < spriteCount; i++) {
-                int spriteRamIndex = spriteIndices[i];
-                int tile = ggvm.getSpriteTile(spriteRamIndex);
-                int attribute = ggvm.getSpriteColorAttribute(spriteRamIndex);
-                int x = ggvm.getSpriteX(spriteRamIndex);
-                int y = ggvm.getSpriteY(spriteRamIndex);
-                boolean horizontalFlip = ggvm.getSpriteHorizontalFlip(spriteRamIndex);
-                boolean verticalFlip = ggvm.getSpriteVerticalFlip(spriteRamIndex);
-                if (y != 0xff) {
-                    if (!isTransparentMask[i]) {
-                        spriteBatch.enableBlending();
-                        int indexRow = tile >> 4;
-                        int indexColumn = tile & 0x0f;
-                        Sprite sprite = patternTableManager.getSprite(patternTable, indexRow, indexColumn);//patternTableSprites[patternTableOffset * 16 + indexRow][indexColumn];
-                        sprite.setColor(0, attributes[attribute], .5f, 0);
-                        sprite.setPosition(x, 231 - y);
-                        sprite.setFlip(horizontalFlip, verticalFlip);
-                        sprite.draw(spriteBatch);
-                    } else {
-                        spriteBatch.disableBlending();
-                        transparentMaskSprite.setPosition(x, 231 - y);
-                        transparentMaskSprite.draw(spriteBatch);
-                    }
-                }
-            }
-        } else if (ggvm.getSpriteSize() == 1) {
-            for (int spriteIndex = 0; spriteIndex < spriteCount; spriteIndex++) {
-                int i = spriteIndices[spriteIndex];
-                int index = ggvm.getSpriteTile(i);
-                int attribute = ggvm.getSpriteColorAttribute(i);
-                int x = ggvm.getSpriteX(i);
-                int y = ggvm.getSpriteY(i);
-                boolean horizontalFlip = ggvm.getSpriteHorizontalFlip(i);
-                boolean verticalFlip = ggvm.getSpriteVerticalFlip(i);
-                if (y != 0xff) {
-                    int indexRow = index >> 4;
-                    int indexColumn = index & 0x0f;
-                    Sprite sprite = patternTableManager.getSprite(patternTable, indexRow, indexColumn);//patternTableSprites[patternTableOffset * 16 + indexRow][indexColumn];
-                    sprite.setColor(0, attributes[attribute], .5f, 0);
-                    sprite.setPosition(x, 239 - y - 16);
-                    sprite.setFlip(horizontalFlip, verticalFlip);
-                    sprite.draw(spriteBatch);
-
-                    int secondIndex = (index - 1) & 0xff;
-                    indexRow = secondIndex >> 4;
-                    indexColumn = secondIndex & 0x0f;
-                    sprite = patternTableManager.getSprite(patternTable, indexRow, indexColumn); //patternTableSprites[patternTableOffset * 16 + indexRow][indexColumn];
-                    sprite.setColor(0, attributes[attribute], .5f, 0);
-                    sprite.setPosition(x, 231 - y);
-                    sprite.setFlip(horizontalFlip, verticalFlip);
-                    sprite.draw(spriteBatch);
-                }
+        for (int i = 0; i < spriteCount; i++) {
+            int spriteRamIndex = spriteIndices[i];
+            //Masks are only used for 8x8 sprites
+            if (isTransparentMask[i] && frameState.getSpriteSize() == 0) {
+                spriteBatch.disableBlending();
+                transparentMaskSprite.setPosition(sprites.x[spriteRamIndex], 231 - sprites.y[spriteRamIndex]);
+                transparentMaskSprite.draw(spriteBatch);
+            } else {
+                spriteBatch.enableBlending();
+                drawSprite(spriteBatch, patternTable, spriteRamIndex);
             }
         }
     }
 
+    /**
+     * Draw a single 8x8 or 8x16 sprite.
+     */
+    private void drawSprite(SpriteBatch spriteBatch, int patternTable, int spriteRamIndex) {
+        int tile = sprites.tile[spriteRamIndex];
+        int attribute = sprites.palette[spriteRamIndex];
+        int x = sprites.x[spriteRamIndex];
+        int y = sprites.y[spriteRamIndex];
+        boolean horizontalFlip = sprites.horizontalFlip[spriteRamIndex];
+        boolean verticalFlip = sprites.verticalFlip[spriteRamIndex];
+        if (frameState.getSpriteSize() == 0) {
+            int indexRow = tile >> 4;
+            int indexColumn = tile & 0x0f;
+            Sprite sprite = patternTableManager.getSprite(patternTable, indexRow, indexColumn);
+            sprite.setColor(0, attributes[attribute], .5f, 0);
+            sprite.setPosition(x, 231 - y);
+            sprite.setFlip(horizontalFlip, verticalFlip);
+            sprite.draw(spriteBatch);
+        } else {
+            int indexRow = tile >> 4;
+            int indexColumn = tile & 0x0f;
+            Sprite sprite = patternTableManager.getSprite(patternTable, indexRow, indexColumn);
+            sprite.setColor(0, attributes[attribute], .5f, 0);
+            sprite.setPosition(x, 239 - y - 16);
+            sprite.setFlip(horizontalFlip, verticalFlip);
+            sprite.draw(spriteBatch);
+
+            int secondIndex = (tile - 1) & 0xff;
+            indexRow = secondIndex >> 4;
+            indexColumn = secondIndex & 0x0f;
+            sprite = patternTableManager.getSprite(patternTable, indexRow, indexColumn);
+            sprite.setColor(0, attributes[attribute], .5f, 0);
+            sprite.setPosition(x, 231 - y);
+            sprite.setFlip(horizontalFlip, verticalFlip);
+            sprite.draw(spriteBatch);
+        }
+    }
+
     /**
      * Loads the NES master palette by sampling a bitmap that is a visual
      * representation of the NES masterPalette. Thus this method traverses the bitmap
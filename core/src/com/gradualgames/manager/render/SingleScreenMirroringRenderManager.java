@@ -2,6 +2,7 @@ package com.gradualgames.manager.render;
 
 import com.badlogic.gdx.graphics.g2d.Sprite;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.gradualgames.ggvm.FrameState;
 import com.gradualgames.ggvm.GGVm;
 import com.gradualgames.ggvm.Ppu;
 import com.gradualgames.manager.rastereffect.RasterEffectManager;
@@ -19,12 +20,12 @@ public class SingleScreenMirroringRenderManager extends RenderManager {
     }
 
     @Override
-    protected void drawNametable(GGVm ggvm, SpriteBatch spriteBatch) {
-        drawNametable(ggvm, spriteBatch, ggvm.getScrollX(), ggvm.getScrollY(), 0f, 240f);
+    protected void drawNametable(FrameState frameState, SpriteBatch spriteBatch) {
+        drawNametable(frameState, spriteBatch, frameState.getScrollX(), frameState.getScrollY(), 0f, 240f);
     }
 
-    private void drawNametable(GGVm ggvm, SpriteBatch spriteBatch, int scrollX, int scrollY, float splitYStart, float splitYEnd) {
-        int patternTable = ggvm.getBackgroundPatternTableAddress() == 0 ? 0 : 1;
+    private void drawNametable(FrameState frameState, SpriteBatch spriteBatch, int scrollX, int scrollY, float splitYStart, float splitYEnd) {
+        int patternTable = frameState.getBackgroundPatternTableAddress() == 0 ? 0 : 1;
 
         boolean toggleNametableEarly = false;
         if (scrollY > 239 && scrollY <= 255) {
@@ -51,7 +52,7 @@ public class SingleScreenMirroringRenderManager extends RenderManager {
             screenY = 0;
             nameTableRowCount = fineScrollY == 0 ? 30 : 31;
             nameTableY = coarseScrollY;
-            nameTable = (ggvm.getNametableAddress() == Ppu.NAME_TABLE_0_BASE_ADDRESS) ? 0 : 1;
+            nameTable = (frameState.getNametableAddress() == Ppu.NAME_TABLE_0_BASE_ADDRESS) ? 0 : 1;
             if (toggleNametableEarly) {
                 nameTable ^= 1;
             }
@@ -62,8 +63,8 @@ public class SingleScreenMirroringRenderManager extends RenderManager {
                 int nameTableAddress = nameTable == 1 ? Ppu.NAME_TABLE_1_BASE_ADDRESS : Ppu.NAME_TABLE_0_BASE_ADDRESS;
                 int attributeTableAddress = nameTableAddress == 1 ? Ppu.ATTRIBUTE_TABLE_1_BASE_ADDRESS : Ppu.ATTRIBUTE_TABLE_0_BASE_ADDRESS;
 
-                int index = ggvm.getNametableTile(nameTableAddress, actualNameTableX, actualNameTableY);
-                int attribute = ggvm.getAttributeForNametableTile(attributeTableAddress, actualNameTableX, actualNameTableY);
+                int index = frameState.getNametableTile(nameTableAddress, actualNameTableX, actualNameTableY);
+                int attribute = frameState.getAttributeForNametableTile(attributeTableAddress, actualNameTableX, actualNameTableY);
 
                 int indexRow = index >> 4;
                 int indexColumn = index & 0x0f;
@@ -0,0 +1,365 @@
+package com.gradualgames.manager.render;
+
+import com.gradualgames.ggvm.FrameState;
+import com.gradualgames.ggvm.GGVm;
+import com.gradualgames.ggvm.GGVmRegisterStatusBar;
+import com.gradualgames.ggvm.Ppu;
+import com.gradualgames.ggvm.SpriteRamSnapshot;
+
+import java.util.Arrays;
+
+/**
+ * Renders frames on the cpu alone, into an int array of 256x240 RGBA8888 pixels,
+ * top row first, from the same frame states of the GGVm object as
+ * RenderManager and producing the same picture: the background color, then
+ * background sprites, then the nametable, then foreground sprites, which background
+ * sprites hide with 8x8 transparent masks just as they do in RenderManager. Sprites
+ * of 8x16 are drawn as two 8x8 halves and are never masked, the background is
+ * scrolled the way HorizontalMirroringRenderManager, VerticalMirroringRenderManager
+ * and SingleScreenMirroringRenderManager scroll it, including the sprite 0 hit status
+ * bar, and the leftmost 8 pixel column is filled with the background color when
+ * background clipping is on. Raster effects, which draw with LibGDX, are not
+ * supported.
+ *
+ * Since it needs no OpenGL context, it can render headless, in tests, or on another
+ * thread than the one which presents the frame. Tiles are decoded a row of 8 pixels
+ * at a time through PatternTableManager.ROW_PIXELS from a copy of the chr data taken
+ * once per frame, see GGVm.readChr, and the nametable bytes of a row of tiles are
+ * read from the ppu bus once per frame rather than once per scanline. Every array
+ * is allocated up front, so render allocates nothing.
+ */
+public class SoftwareRenderManager {
+
+    public enum Mirroring {
+        HORIZONTAL,
+        VERTICAL,
+        SINGLE_SCREEN
+    }
+
+    public static final int WIDTH = 256;
+    public static final int HEIGHT = 240;
+
+    /**
+     * Foreground pixels with this value show the pixel behind them. Colors of the
+     * master palette are opaque, so none of them is 0.
+     */
+    private static final int TRANSPARENT = 0;
+
+    private static final int COLUMNS = 32;
+    private static final int NAMETABLE_COUNT = 4;
+    private static final int ATTRIBUTE_TABLE_OFFSET = 0x3c0;
+
+    private GGVm ggvm;
+    private Mirroring mirroring;
+    private GGVmRegisterStatusBar ggvmRegisterStatusBar = new GGVmRegisterStatusBar();
+    private int[] masterPalette;
+    private FrameState frameState;
+    private SpriteRamSnapshot sprites;
+
+    private int[] frame = new int[WIDTH * HEIGHT];
+    private int[] foreground = new int[WIDTH * HEIGHT];
+    private byte[] chr = new byte[GGVm.CHR_SIZE];
+
+    private int[] bgPalette = new int[16];
+    private int[] sprPalette = new int[16];
+    private int[] bgColors = new int[16];
+    private int[] sprColors = new int[16];
+    private boolean paletteGenerated = false;
+    private int paletteVersion;
+    private boolean paletteMonochrome;
+
+    /**
+     * The tiles of the row of tiles last read from each nametable, and their
+     * attributes times 4, the index of their colors in bgColors.
+     */
+    private int[] rowTiles = new int[NAMETABLE_COUNT * COLUMNS];
+    private int[] rowPalettes = new int[NAMETABLE_COUNT * COLUMNS];
+    private int[] readRows = new int[NAMETABLE_COUNT];
+
+    /**
+     * @param ggvm The vm to render.
+     * @param masterPalette The NES master palette as RGBA8888 colors, 256 entries, see
+     *                      loadPalette.
+     * @param mirroring The nametable layout to scroll the background through, as with
+     *                  the choice of RenderManager.
+     */
+    public SoftwareRenderManager(GGVm ggvm, int[] masterPalette, Mirroring mirroring) {
+        this.ggvm = ggvm;
+        this.masterPalette = masterPalette;
+        this.mirroring = mirroring;
+    }
+
+    public SoftwareRenderManager(GGVm ggvm, int[] masterPalette, Mirroring mirroring, boolean statusBarEnabled) {
+        this(ggvm, masterPalette, mirroring);
+        if (statusBarEnabled && mirroring != Mirroring.SINGLE_SCREEN) ggvm.installReadWriteRange(ggvmRegisterStatusBar);
+    }
+
+    /**
+     * @return The array render draws into, 256x240 RGBA8888 pixels, top row first.
+     */
+    public int[] getFrame() {
+        return frame;
+    }
+
+    /**
+     * Draws the frame state last acquired from ggvm into the frame, see
+     * GGVm.acquireFrameState.
+     * @return The frame, see getFrame.
+     */
+    public int[] render() {
+        frameState = ggvm.getFrameState();
+        sprites = frameState.getSprites();
+        generatePalettes();
+        int bgColor = bgColors[0];
+        Arrays.fill(frame, bgColor);
+
+        if (frameState.isBackgroundVisible()) {
+            frameState.readChr(chr);
+            Arrays.fill(readRows, -1);
+
+            //Background sprites go straight into the frame. Foreground sprites go into
+            //a separate layer, where background sprites erase them with masks.
+            Arrays.fill(foreground, TRANSPARENT);
+            drawSprites();
+            drawNametable();
+            for (int i = 0; i < frame.length; i++) {
+                if (foreground[i] != TRANSPARENT) {
+                    frame[i] = foreground[i];
+                }
+            }
+
+            if (frameState.isBackgroundClipping()) {
+                for (int i = 0; i < frame.length; i += WIDTH) {
+                    Arrays.fill(frame, i, i + 8, bgColor);
+                }
+            }
+        }
+        return frame;
+    }
+
+    private void generatePalettes() {
+        //Only rebuilt when palette ram or the display type changed
+        int version = frameState.getPaletteVersion();
+        boolean monochrome = frameState.isMonochromeDisplayType();
+        if (paletteGenerated && version == paletteVersion && monochrome == paletteMonochrome) {
+            return;
+        }
+        paletteGenerated = true;
+        paletteVersion = version;
+        paletteMonochrome = monochrome;
+
+        frameState.getPalette(false, bgPalette);
+        frameState.getPalette(true, sprPalette);
+        for (int i = 0; i < 16; i++) {
+            bgColors[i] = masterPalette[bgPalette[i]];
+            sprColors[i] = masterPalette[sprPalette[i]];
+        }
+    }
+
+    /**
+     * Draws sprites from 63 down to 0, so lower sprites are drawn over higher ones, in
+     * the same order as the lists of RenderManager.sortSprites.
+     */
+    private void drawSprites() {
+        int patternTable = frameState.getSpritePatternTableAddress() == 0 ? 0 : 0x1000;
+        boolean tallSprites = frameState.getSpriteSize() == 1;
+        //Sprites hidden below the screen are skipped up front
+        for (int visibleSprite = sprites.getVisibleSpriteCount() - 1; visibleSprite >= 0; visibleSprite--) {
+            int i = sprites.visibleSprites[visibleSprite];
+            int x = sprites.x[i];
+            int y = sprites.y[i];
+            int tile = sprites.tile[i];
+            int palette = sprites.palette[i] * 4;
+            boolean horizontalFlip = sprites.horizontalFlip[i];
+            boolean verticalFlip = sprites.verticalFlip[i];
+            boolean behindBackground = sprites.behindBackground[i];
+            if (tallSprites) {
+                //Each half is flipped on its own, and both are drawn in front of the
+                //nametable whatever the priority, as RenderManager does
+                if (behindBackground) {
+                    drawSpriteTile(frame, x, y + 9, patternTable + tile * 16, palette, horizontalFlip, verticalFlip);
+                    drawSpriteTile(frame, x, y + 1, patternTable + ((tile - 1) & 0xff) * 16, palette, horizontalFlip, verticalFlip);
+                }
+                drawSpriteTile(foreground, x, y + 9, patternTable + tile * 16, palette, horizontalFlip, verticalFlip);
+                drawSpriteTile(foreground, x, y + 1, patternTable + ((tile - 1) & 0xff) * 16, palette, horizontalFlip, verticalFlip);
+            } else if (behindBackground) {
+                drawSpriteTile(frame, x, y + 1, patternTable + tile * 16, palette, horizontalFlip, verticalFlip);
+                clearSpriteTile(foreground, x, y + 1);
+            } else {
+                drawSpriteTile(foreground, x, y + 1, patternTable + tile * 16, palette, horizontalFlip, verticalFlip);
+            }
+        }
+    }
+
+    private void drawSpriteTile(int[] target, int x, int top, int chrAddress, int palette, boolean horizontalFlip, boolean verticalFlip) {
+        int width = Math.min(8, WIDTH - x);
+        for (int row = 0; row < 8; row++) {
+            int y = top + row;
+            if (y >= HEIGHT) {
+                break;
+            }
+            int chrRow = chrAddress + (verticalFlip ? 7 - row : row);
+            int pixels = PatternTableManager.ROW_PIXELS[((chr[chrRow + 8] & 0xff) << 8) | (chr[chrRow] & 0xff)];
+            int index = y * WIDTH + x;
+            for (int column = 0; column < width; column++) {
+                int value = (pixels >> ((horizontalFlip ? 7 - column : column) * 2)) & 3;
+                if (value != 0) {
+                    target[index + column] = sprColors[palette + value];
+                }
+            }
+        }
+    }
+
+    private void clearSpriteTile(int[] target, int x, int top) {
+        int width = Math.min(8, WIDTH - x);
+        for (int y = top; y < Math.min(top + 8, HEIGHT); y++) {
+            Arrays.fill(target, y * WIDTH + x, y * WIDTH + x + width, TRANSPARENT);
+        }
+    }
+
+    private void drawNametable() {
+        if (ggvmRegisterStatusBar.isSprite0HitStatusBarEnabled()) {
+            int nametableAddress = mirroring == Mirroring.VERTICAL ? Ppu.NAME_TABLE_0_BASE_ADDRESS : frameState.getNametableAddress();
+            drawNametable(nametableAddress, 0, 0, 0, frameState.getSpriteY(0));
+            drawNametable(frameState.getNametableAddress(), frameState.getScrollX(), frameState.getScrollY(), frameState.getSpriteY(0), 240f);
+        } else {
+            drawNametable(frameState.getNametableAddress(), frameState.getScrollX(), frameState.getScrollY(), 0f, 240f);
+        }
+    }
+
+    /**
+     * Works out which part of which nametables is scrolled into view, the same way as
+     * the drawNametable methods of the render managers for each kind of mirroring.
+     * The four nametables are laid out as in a NametableFrameBuffer.
+     */
+    private void drawNametable(int nametableAddress, int scrollX, int scrollY, float splitYStart, float splitYEnd) {
+        boolean toggleNametableEarly = false;
+        if (mirroring != Mirroring.VERTICAL && scrollY > 239 && scrollY <= 255) {
+            scrollY -= 16;
+            toggleNametableEarly = true;
+        }
+        int nameTable;
+        switch (mirroring) {
+            case HORIZONTAL:
+                nameTable = (nametableAddress == Ppu.NAME_TABLE_0_BASE_ADDRESS) ? 0 : 1;
+                if (toggleNametableEarly) {
+                    nameTable ^= 1;
+                }
+                //Wraps around horizontally within a nametable, and vertically from
+                //$2000 to $2800 and back
+                drawNametable(scrollX, nameTable * 240 + scrollY, 256, 480, 0, splitYStart, splitYEnd);
+                break;
+            case VERTICAL:
+                nameTable = (nametableAddress == Ppu.NAME_TABLE_0_BASE_ADDRESS || nametableAddress == Ppu.NAME_TABLE_2_BASE_ADDRESS) ? 0 : 1;
+                //Wraps around vertically within a nametable, and horizontally from
+                //$2000 to $2400 and back
+                drawNametable(nameTable * 256 + scrollX, scrollY % 240, 512, 240, 0, splitYStart, splitYEnd);
+                break;
+            case SINGLE_SCREEN:
+                nameTable = (nametableAddress == Ppu.NAME_TABLE_0_BASE_ADDRESS) ? 0 : 1;
+                if (toggleNametableEarly) {
+                    nameTable ^= 1;
+                }
+                //Wraps around in all directions within $2000 or $2400
+                drawNametable(scrollX, scrollY, 256, 240, nameTable, splitYStart, splitYEnd);
+                break;
+        }
+    }
+
+    /**
+     * Draws the screen, or the rows of tiles of it between two splits, scrolled, over
+     * the frame. Pixels of value 0 are left as they are. The source wraps around
+     * within a region of the layout of NametableFrameBuffer, see
+     * NametableFrameBuffer.draw for the meaning of the parameters.
+     * @param firstNametable The nametable at the top left of the region.
+     */
+    private void drawNametable(int sourceX, int sourceY, int regionWidth, int regionHeight, int firstNametable, float splitYStart, float splitYEnd) {
+        int patternTable = frameState.getBackgroundPatternTableAddress() == 0 ? 0 : 0x1000;
+        int fineScrollY = sourceY & 7;
+        int screenYStart = splitYStart > 0 ? (((int) Math.ceil(splitYStart) + 7) & ~7) - fineScrollY : 0;
+        int screenYEnd = Math.min(HEIGHT, splitYEnd < 240 ? (((int) Math.ceil(splitYEnd) + 7) & ~7) - fineScrollY : 240);
+        for (int screenY = Math.max(0, screenYStart); screenY < screenYEnd; screenY++) {
+            int y = (sourceY + screenY) % regionHeight;
+            int nametableRow = firstNametable + (y / 240) * 2;
+            int tileY = (y % 240) >> 3;
+            int fineY = y & 7;
+            int x = sourceX % regionWidth;
+            int index = screenY * WIDTH;
+            int end = index + WIDTH;
+            while (index < end) {
+                int nametable = nametableRow + (x >> 8);
+                if (readRows[nametable] != tileY) {
+                    readRow(nametable, tileY);
+                }
+                int tile = nametable * COLUMNS + ((x & 0xff) >> 3);
+                int chrRow = patternTable + rowTiles[tile] * 16 + fineY;
+                int pixels = PatternTableManager.ROW_PIXELS[((chr[chrRow + 8] & 0xff) << 8) | (chr[chrRow] & 0xff)];
+                int palette = rowPalettes[tile];
+                int column = x & 7;
+                int count = Math.min(8 - column, end - index);
+                pixels >>= column * 2;
+                for (int i = 0; i < count; i++) {
+                    int value = pixels & 3;
+                    if (value != 0) {
+                        frame[index] = bgColors[palette + value];
+                    }
+                    pixels >>= 2;
+                    index++;
+                }
+                x += count;
+                if (x == regionWidth) {
+                    x = 0;
+                }
+            }
+        }
+    }
+
+    private void readRow(int nametable, int tileY) {
+        int nameTableAddress = Ppu.NAME_TABLE_0_BASE_ADDRESS + nametable * Ppu.NAMETABLE_RAM_SIZE;
+        //SingleScreenMirroringRenderManager reads the attributes of $2400 from $23c0
+        int attributeTableAddress = mirroring == Mirroring.SINGLE_SCREEN ?
+                Ppu.ATTRIBUTE_TABLE_0_BASE_ADDRESS : nameTableAddress + ATTRIBUTE_TABLE_OFFSET;
+        for (int tileX = 0; tileX < COLUMNS; tileX++) {
+            rowTiles[nametable * COLUMNS + tileX] = frameState.getNametableTile(nameTableAddress, tileX, tileY);
+            rowPalettes[nametable * COLUMNS + tileX] = frameState.getAttributeForNametableTile(attributeTableAddress, tileX, tileY) * 4;
+        }
+        readRows[nametable] = tileY;
+    }
+
+    /**
+     * Loads the NES master palette from nespalette.bmp, an uncompressed 24 or 32 bit
+     * bitmap, sampling the same pixel of each color cell as RenderManager.
+     * @param bitmap The bytes of the bitmap file.
+     * @return 256 RGBA8888 colors, the 64 colors of the palette mirrored four times.
+     */
+    public static int[] loadPalette(byte[] bitmap) {
+        int dataOffset = readInt(bitmap, 10);
+        int width = readInt(bitmap, 18);
+        int height = readInt(bitmap, 22);
+        int bytesPerPixel = ((bitmap[28] & 0xff) | ((bitmap[29] & 0xff) << 8)) / 8;
+        int stride = (width * bytesPerPixel + 3) & ~3;
+        int[] palette = new int[256];
+        int paletteIndex = 0;
+        for (int imageY = 1; imageY < 32 * 4; imageY += 32) {
+            for (int imageX = 1; imageX < 32 * 16; imageX += 32) {
+                //Rows are stored bottom up unless the height is negative
+                int row = height > 0 ? height - 1 - imageY : imageY;
+                int offset = dataOffset + row * stride + imageX * bytesPerPixel;
+                int color = ((bitmap[offset + 2] & 0xff) << 24) | ((bitmap[offset + 1] & 0xff) << 16) |
+                        ((bitmap[offset] & 0xff) << 8) | 0xff;
+                //Record and mirror the colors in case palettes are read uninitialized
+                palette[paletteIndex] = color;
+                palette[paletteIndex + 64] = color;
+                palette[paletteIndex + 128] = color;
+                palette[paletteIndex + 192] = color;
+                paletteIndex++;
+            }
+        }
+        return palette;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8) |
+                ((bytes[offset + 2] & 0xff) << 16) | ((bytes[offset + 3] & 0xff) << 24);
+    }
+}
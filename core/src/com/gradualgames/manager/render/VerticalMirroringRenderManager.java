@@ -1,7 +1,7 @@
 package com.gradualgames.manager.render;
 
-import com.badlogic.gdx.graphics.g2d.Sprite;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.gradualgames.ggvm.FrameState;
 import com.gradualgames.ggvm.GGVm;
 import com.gradualgames.ggvm.GGVmRegisterStatusBar;
 import com.gradualgames.ggvm.Ppu;
@@ -10,15 +10,19 @@ import com.gradualgames.manager.rastereffect.RasterEffectManager;
 /**
  * Created by derek on 1/7/2017.
  *
- * This class draws the background using nametables at $2000 and $2400. See
- * RenderManager for a high level description of how backgrounds are drawn.
+ * This class draws the background using nametables at $2000 and $2400, from the
+ * top half of a NametableFrameBuffer. See RenderManager for a high level
+ * description of how backgrounds are drawn.
  */
 public class VerticalMirroringRenderManager extends RenderManager {
 
     private com.gradualgames.ggvm.GGVmRegisterStatusBar GGVmRegisterStatusBar = new GGVmRegisterStatusBar();
 
+    private NametableFrameBuffer nametableFrameBuffer;
+
     public VerticalMirroringRenderManager(GGVm ggvm, PatternTableManager patternTableManager, RasterEffectManager rasterEffectManager) {
         super(ggvm, patternTableManager, rasterEffectManager);
+        nametableFrameBuffer = new NametableFrameBuffer(patternTableManager, attributes);
     }
 
     public VerticalMirroringRenderManager(GGVm ggvm, PatternTableManager patternTableManager, RasterEffectManager rasterEffectManager, boolean statusBarEnabled) {
@@ -27,64 +31,31 @@ public class VerticalMirroringRenderManager extends RenderManager {
     }
 
     @Override
-    public void drawNametable(GGVm ggvm, SpriteBatch spriteBatch) {
+    public void drawNametable(FrameState frameState, SpriteBatch spriteBatch) {
         if (GGVmRegisterStatusBar.isSprite0HitStatusBarEnabled()) {
-            drawNametable(ggvm, spriteBatch, Ppu.NAME_TABLE_0_BASE_ADDRESS, 0, 0, 0, ggvm.getSpriteY(0));
-            drawNametable(ggvm, spriteBatch, ggvm.getNametableAddress(), ggvm.getScrollX(), ggvm.getScrollY(), ggvm.getSpriteY(0), 240f);
+            drawNametable(frameState, spriteBatch, Ppu.NAME_TABLE_0_BASE_ADDRESS, 0, 0, 0, frameState.getSpriteY(0));
+            drawNametable(frameState, spriteBatch, frameState.getNametableAddress(), frameState.getScrollX(), frameState.getScrollY(), frameState.getSpriteY(0), 240f);
         } else {
-            drawNametable(ggvm, spriteBatch, ggvm.getNametableAddress(), ggvm.getScrollX(), ggvm.getScrollY(), 0f, 240f);
+            drawNametable(frameState, spriteBatch, frameState.getNametableAddress(), frameState.getScrollX(), frameState.getScrollY(), 0f, 240f);
         }
     }
 
-    private void drawNametable(GGVm ggvm, SpriteBatch spriteBatch, int startingNametableAddress, int scrollX, int scrollY, float splitYStart, float splitYEnd) {
-        int patternTable = ggvm.getBackgroundPatternTableAddress() == 0 ? 0 : 1;
-
-        int coarseScrollX = scrollX >> 3;
-        int coarseScrollY = scrollY >> 3;
-        int fineScrollX = scrollX & 7;
-        int fineScrollY = scrollY & 7;
-
-        int nameTableX = coarseScrollX;
-        int nameTableY = coarseScrollY;
-        int actualNameTableX;
-        int actualNameTableY;
-        int screenX = 0;
-        int screenY = 0;
-        int nameTableRowCount = fineScrollY == 0 ? 30 : 31;
-        int nameTableColumnCount;
-        int nameTable;
-
-        while (nameTableRowCount > 0) {
-            screenX = 0;
-            nameTableColumnCount = fineScrollX == 0 ? 32 : 33;
-            nameTableX = coarseScrollX;
-            nameTable = (startingNametableAddress == Ppu.NAME_TABLE_0_BASE_ADDRESS || startingNametableAddress == Ppu.NAME_TABLE_2_BASE_ADDRESS) ? 0 : 1;
-            while (nameTableColumnCount > 0) {
-                actualNameTableX = nameTableX % 32;
-                actualNameTableY = nameTableY % 30;
-                int whichNameTable = nameTable ^ ((nameTableX >> 5) & 1);
+    @Override
+    protected void updateNametable(FrameState frameState, SpriteBatch spriteBatch) {
+        nametableFrameBuffer.update(frameState, spriteBatch);
+    }
 
-                int nameTableAddress = whichNameTable == 1 ? Ppu.NAME_TABLE_1_BASE_ADDRESS : Ppu.NAME_TABLE_0_BASE_ADDRESS;
-                int attributeTableAddress = whichNameTable == 1 ? Ppu.ATTRIBUTE_TABLE_1_BASE_ADDRESS : Ppu.ATTRIBUTE_TABLE_0_BASE_ADDRESS;
+    @Override
+    public void invalidateNametable() {
+        nametableFrameBuffer.invalidate();
+    }
 
-                int index = ggvm.getNametableTile(nameTableAddress, actualNameTableX, actualNameTableY);
-                int attribute = ggvm.getAttributeForNametableTile(attributeTableAddress, actualNameTableX, actualNameTableY);
+    private void drawNametable(FrameState frameState, SpriteBatch spriteBatch, int startingNametableAddress, int scrollX, int scrollY, float splitYStart, float splitYEnd) {
+        int nameTable = (startingNametableAddress == Ppu.NAME_TABLE_0_BASE_ADDRESS || startingNametableAddress == Ppu.NAME_TABLE_2_BASE_ADDRESS) ? 0 : 1;
 
-                int indexRow = index >> 4;
-                int indexColumn = index & 0x0f;
-                Sprite sprite = patternTableManager.getSprite(patternTable, indexRow, indexColumn);//patternTableSprites[patternTableOffset * 16 + indexRow][indexColumn];
-                sprite.setColor(0, attributes[attribute], 0, 0);
-                if (!GGVmRegisterStatusBar.isSprite0HitStatusBarEnabled() || (screenY >= splitYStart && screenY < splitYEnd)) {
-                    sprite.setPosition(screenX - fineScrollX, 232 - screenY + fineScrollY);
-                    sprite.draw(spriteBatch);
-                }
-                screenX += 8;
-                nameTableX++;
-                nameTableColumnCount--;
-            }
-            screenY += 8;
-            nameTableY++;
-            nameTableRowCount--;
-        }
+        //Scrolling wraps around vertically within a nametable, and horizontally from
+        //$2000 to $2400 and back, the top half of the nametable framebuffer.
+        nametableFrameBuffer.draw(spriteBatch, nameTable * 256 + scrollX, scrollY % 240,
+                NametableFrameBuffer.WIDTH, NametableFrameBuffer.HEIGHT / 2, splitYStart, splitYEnd);
     }
 }
@@ -41,12 +41,44 @@ public abstract class SoundtrackManager implements BusListener {
     protected Map<String, Music> songs = new HashMap<String, Music>();
     protected Map<String, Sound> sfx = new HashMap<String, Sound>();
 
+    /**
+     * The thread this soundtrack manager was created on, which is the only one
+     * allowed to use LibGDX audio.
+     */
+    private Thread applicationThread;
+
+    /**
+     * Whether songs play silently and sound effects are skipped, such as while
+     * fast forwarding.
+     */
+    private boolean muted = false;
+
     public SoundtrackManager(String title, GGVm ggvm) {
         this.title = title;
         this.ggvm = ggvm;
+        applicationThread = Thread.currentThread();
         preloadSfx();
     }
 
+    /**
+     * Runs an action on the application thread: right away if called from it,
+     * otherwise posted to it. Bus callbacks and ggvm registers arrive on whichever
+     * thread runs ggvm, which is an EmulationThread unless the application runs
+     * ggvm itself. Actions are dropped while ggvm runs ahead, since those frames are
+     * run again later, see GGVm.setRunAheadFrames.
+     * @param runnable
+     */
+    public void runOnApplicationThread(Runnable runnable) {
+        if (ggvm.isRunningAhead()) {
+            return;
+        }
+        if (Thread.currentThread() == applicationThread) {
+            runnable.run();
+        } else {
+            Gdx.app.postRunnable(runnable);
+        }
+    }
+
     /**
      * Preloads all sfx for the game prior to execution. This ensures sfx
      * will be heard the first time they are invoked.
@@ -81,6 +113,7 @@ public abstract class SoundtrackManager implements BusListener {
         Music music = songs.get(fileName);
         currentSong = music;
         currentSongFileName = fileName;
+        currentSong.setVolume(muted ? 0f : 1f);
         currentSong.play();
         currentSong.setPosition(position);
         currentSong.setLooping(looping);
@@ -99,9 +132,29 @@ public abstract class SoundtrackManager implements BusListener {
         currentSong = music;
         currentSongFileName = fileName;
         currentSong.setLooping(looping);
+        currentSong.setVolume(muted ? 0f : 1f);
         currentSong.play();
     }
 
+    /**
+     * Mutes or unmutes the soundtrack. Songs keep playing while muted, just silently,
+     * so that the right song is heard once unmuted, while sound effects are skipped.
+     * LibGDX music cannot change pitch, so fast forward mutes rather than speeding
+     * songs up.
+     * @param muted
+     */
+    public void setMuted(boolean muted) {
+        if (this.muted != muted) {
+            this.muted = muted;
+            if (currentSong != null) {
+                currentSong.setVolume(muted ? 0f : 1f);
+            }
+            if (muted) {
+                stopSfx();
+            }
+        }
+    }
+
     /**
      * Stops currently playing music
      */
@@ -124,7 +177,9 @@ public abstract class SoundtrackManager implements BusListener {
     protected void playSfx(final String fileName) {
         Gdx.app.log(SoundtrackManager.class.getSimpleName(), "playSfx(" + fileName + ");");
         loadSfx(fileName);
-        sfx.get(fileName).play();
+        if (!muted) {
+            sfx.get(fileName).play();
+        }
     }
 
     /**
@@ -135,7 +190,9 @@ public abstract class SoundtrackManager implements BusListener {
     protected void playSfxStoppingMusic(final String fileName) {
         stopSongs();
         loadSfx(fileName);
-        sfx.get(fileName).play();
+        if (!muted) {
+            sfx.get(fileName).play();
+        }
     }
 
     /**
@@ -146,13 +203,23 @@ public abstract class SoundtrackManager implements BusListener {
      * @param address
      */
     @Override
-    public void onRead(int address) {
-        handleOnRead(address);
+    public void onRead(final int address) {
+        runOnApplicationThread(new Runnable() {
+            @Override
+            public void run() {
+                handleOnRead(address);
+            }
+        });
     }
 
     @Override
-    public void onWrite(int address, byte value) {
-        handleOnWrite(address, value);
+    public void onWrite(final int address, final byte value) {
+        runOnApplicationThread(new Runnable() {
+            @Override
+            public void run() {
+                handleOnWrite(address, value);
+            }
+        });
     }
 
     public void save(OutputStream outputStream) throws IOException {
@@ -10,6 +10,7 @@ import com.badlogic.gdx.graphics.*;
 import com.badlogic.gdx.graphics.g2d.BitmapFont;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
 import com.badlogic.gdx.utils.viewport.FitViewport;
+import com.gradualgames.ggvm.FrameScheduler;
 import com.gradualgames.ggvm.GGVm;
 import com.gradualgames.input.InputProcessorBase;
 import com.gradualgames.input.KeyboardInputProcessor;
@@ -22,7 +23,8 @@ import java.util.List;
  * Created by derek on 11/20/2016.
  *
  * This is the menu manager for desktop builds of GGVm. It allows
- * the user to configure the controller and change fullscreen/windowed mode.
+ * the user to configure the controller, change fullscreen/windowed mode,
+ * choose a fast forward speed and how many frames to run ahead.
  */
 public class PCMenu extends Menu {
 
@@ -35,6 +37,7 @@ public class PCMenu extends Menu {
     private List<MenuOption> menuOptions;
     private MenuOption currentMenuOption;
     private ReturnToTitleOption returnToTitleOption;
+    private FastForwardMenuOption fastForwardMenuOption;
     private KeyboardInputProcessor inputProcessor;
     private GGVm ggvm;
     private SoundtrackManager soundtrackManager;
@@ -56,6 +59,7 @@ public class PCMenu extends Menu {
     public void activate() {
         super.activate();
         soundtrackManager.pauseMusic();
+        fastForwardMenuOption.updateText();
         this.menu = topLevelMenu;
         this.topLevelMenu.activate();
     }
@@ -94,7 +98,7 @@ public class PCMenu extends Menu {
         private static final int CURSOR_MENU_OPTION_X_OFFSET = -10;
         private static final int CURSOR_MENU_OPTION_Y_OFFSET = -11;
         private static final int MENU_WIDTH = 250;
-        private static final int MENU_HEIGHT = 170;
+        private static final int MENU_HEIGHT = 194;
         private static final int MENU_BOTTOM_LEFT_X = (256 - MENU_WIDTH) / 2;
         private static final int MENU_BOTTOM_LEFT_Y = (240 - MENU_HEIGHT) / 2;
         private static final int MENU_OPTION_X_OFFSET = 16;
@@ -132,35 +136,48 @@ public class PCMenu extends Menu {
             MenuOption menuOption =
                     new FullscreenWindowedToggleMenuOption(
                             MENU_BOTTOM_LEFT_X + MENU_OPTION_X_OFFSET,
-                            MENU_BOTTOM_LEFT_Y + 128 - MENU_OPTION_Y_OFFSET - MENU_OPTION_ROW_HEIGHT * position++,
+                            MENU_BOTTOM_LEFT_Y + 152 - MENU_OPTION_Y_OFFSET - MENU_OPTION_ROW_HEIGHT * position++,
                             Gdx.graphics.isFullscreen() ? "TO WINDOWED" : "TO FULLSCREEN");
             menuOptions.add(menuOption);
 
+            menuOption =
+                    new FastForwardMenuOption(
+                            MENU_BOTTOM_LEFT_X + MENU_OPTION_X_OFFSET,
+                            MENU_BOTTOM_LEFT_Y + 152 - MENU_OPTION_Y_OFFSET - MENU_OPTION_ROW_HEIGHT * position++);
+            menuOptions.add(menuOption);
+            fastForwardMenuOption = (FastForwardMenuOption) menuOption;
+
+            menuOption =
+                    new RunAheadMenuOption(
+                            MENU_BOTTOM_LEFT_X + MENU_OPTION_X_OFFSET,
+                            MENU_BOTTOM_LEFT_Y + 152 - MENU_OPTION_Y_OFFSET - MENU_OPTION_ROW_HEIGHT * position++);
+            menuOptions.add(menuOption);
+
             menuOption =
                     new ReturnToTitleOption(
                             MENU_BOTTOM_LEFT_X + MENU_OPTION_X_OFFSET,
-                            MENU_BOTTOM_LEFT_Y + 128 - MENU_OPTION_Y_OFFSET - MENU_OPTION_ROW_HEIGHT * position++);
+                            MENU_BOTTOM_LEFT_Y + 152 - MENU_OPTION_Y_OFFSET - MENU_OPTION_ROW_HEIGHT * position++);
             menuOptions.add(menuOption);
             returnToTitleOption = (ReturnToTitleOption) menuOption;
 
             menuOption =
                     new SaveStateAndExitMenuOption(
                             MENU_BOTTOM_LEFT_X + MENU_OPTION_X_OFFSET,
-                            MENU_BOTTOM_LEFT_Y + 128 - MENU_OPTION_Y_OFFSET - MENU_OPTION_ROW_HEIGHT * position++,
+                            MENU_BOTTOM_LEFT_Y + 152 - MENU_OPTION_Y_OFFSET - MENU_OPTION_ROW_HEIGHT * position++,
                             "SAVE GAME AND EXIT");
             menuOptions.add(menuOption);
 
             menuOption =
                     new ExitMenuOption(
                             MENU_BOTTOM_LEFT_X + MENU_OPTION_X_OFFSET,
-                            MENU_BOTTOM_LEFT_Y + 128 - MENU_OPTION_Y_OFFSET - MENU_OPTION_ROW_HEIGHT * position++,
+                            MENU_BOTTOM_LEFT_Y + 152 - MENU_OPTION_Y_OFFSET - MENU_OPTION_ROW_HEIGHT * position++,
                             "EXIT MENU");
             menuOptions.add(menuOption);
 
             menuOption =
                     new DefaultsMenuOption(
                             MENU_BOTTOM_LEFT_X + MENU_OPTION_X_OFFSET,
-                            MENU_BOTTOM_LEFT_Y + 128 - MENU_OPTION_Y_OFFSET - MENU_OPTION_ROW_HEIGHT * position++,
+                            MENU_BOTTOM_LEFT_Y + 152 - MENU_OPTION_Y_OFFSET - MENU_OPTION_ROW_HEIGHT * position++,
                             "DEFAULTS");
             menuOptions.add(menuOption);
 
@@ -169,7 +186,7 @@ public class PCMenu extends Menu {
                 menuOption =
                     new ButtonMenuOption(
                             MENU_BOTTOM_LEFT_X + MENU_OPTION_X_OFFSET,
-                            MENU_BOTTOM_LEFT_Y + 128 - MENU_OPTION_Y_OFFSET - MENU_OPTION_ROW_HEIGHT * position++,
+                            MENU_BOTTOM_LEFT_Y + 152 - MENU_OPTION_Y_OFFSET - MENU_OPTION_ROW_HEIGHT * position++,
                             button,
                             button.name());
                 menuOptions.add(menuOption);
@@ -482,6 +499,74 @@ public class PCMenu extends Menu {
         }
     }
 
+    /**
+     * Cycles through fast forward speeds, turning fast forward on at each of them and
+     * off again after the last one. The fast forward key toggles fast forward at the
+     * speed chosen last.
+     */
+    private class FastForwardMenuOption extends MenuOption {
+
+        private final int[] speeds = { 2, 4, 8, FrameScheduler.UNCAPPED };
+
+        public FastForwardMenuOption(int x, int y) {
+            super(x, y, com.gradualgames.ggvm.Controller.Buttons.NONE, "");
+        }
+
+        public void updateText() {
+            String speed = "OFF";
+            if (ggvm.isFastForward()) {
+                speed = ggvm.getFastForwardSpeed() == FrameScheduler.UNCAPPED ?
+                        "UNCAPPED" : ggvm.getFastForwardSpeed() + "X";
+            }
+            text = "FAST FORWARD: " + speed + " (" + Input.Keys.toString(KeyboardInputProcessor.FAST_FORWARD_KEY) + ")";
+        }
+
+        @Override
+        public void action() {
+            if (!ggvm.isFastForward()) {
+                ggvm.setFastForwardSpeed(speeds[0]);
+                ggvm.setFastForward(true);
+            } else {
+                int index = 0;
+                while (index < speeds.length && speeds[index] != ggvm.getFastForwardSpeed()) {
+                    index++;
+                }
+                if (index + 1 < speeds.length) {
+                    ggvm.setFastForwardSpeed(speeds[index + 1]);
+                } else {
+                    ggvm.setFastForward(false);
+                }
+            }
+            updateText();
+        }
+    }
+
+    /**
+     * Cycles through the number of frames to run ahead, see GGVm.setRunAheadFrames.
+     * The time each snapshot and restore takes is logged along with the cpu's
+     * performance, to judge how many frames a machine can afford.
+     */
+    private class RunAheadMenuOption extends MenuOption {
+
+        private static final int MAX_RUN_AHEAD_FRAMES = 3;
+
+        public RunAheadMenuOption(int x, int y) {
+            super(x, y, com.gradualgames.ggvm.Controller.Buttons.NONE, "");
+            updateText(0);
+        }
+
+        private void updateText(int runAheadFrames) {
+            text = "RUN AHEAD: " + (runAheadFrames == 0 ? "OFF" : runAheadFrames + (runAheadFrames == 1 ? " FRAME" : " FRAMES"));
+        }
+
+        @Override
+        public void action() {
+            int runAheadFrames = (ggvm.getRunAheadFrames() + 1) % (MAX_RUN_AHEAD_FRAMES + 1);
+            ggvm.setRunAheadFrames(runAheadFrames);
+            updateText(runAheadFrames);
+        }
+    }
+
     private class DefaultsMenuOption extends MenuOption {
         public DefaultsMenuOption(int x, int y, String text) {
             super(x, y, com.gradualgames.ggvm.Controller.Buttons.NONE, text);
@@ -0,0 +1,64 @@
+package com.gradualgames.ggvm;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameSchedulerTest {
+
+    private static final long SECOND_NANOS = 1000000000L;
+
+    private FrameScheduler frameScheduler;
+
+    private long period;
+
+    @Before
+    public void setUp() {
+        frameScheduler = new FrameScheduler(FrameScheduler.NTSC_FRAME_RATE);
+        frameScheduler.reset(0);
+        period = frameScheduler.getFramePeriodNanos();
+    }
+
+    @Test
+    public void runsAtMostOneFramePerUpdateAt144Hz() {
+        int total = 0;
+        for (int i = 1; i <= 144 * 10; i++) {
+            int frames = frameScheduler.update(i * SECOND_NANOS / 144);
+            assertTrue("Ran " + frames + " frames in one update", frames == 0 || frames == 1);
+            total += frames;
+        }
+        assertEquals(10 * FrameScheduler.NTSC_FRAME_RATE, total, 1);
+        assertEquals(0, frameScheduler.getDroppedFrames());
+    }
+
+    @Test
+    public void runsOneFramePerUpdateAtTheFrameRateDespiteJitter() {
+        for (int i = 1; i <= 600; i++) {
+            long jitter = i % 2 == 0 ? period / 4 : -period / 4;
+            assertEquals(1, frameScheduler.update(i * period + jitter));
+        }
+    }
+
+    @Test
+    public void dropsFramesBeyondTheMostPerUpdateAfterAStall() {
+        assertEquals(1, frameScheduler.update(period));
+        long due = (period / 2 + SECOND_NANOS) / period;
+        assertEquals(FrameScheduler.DEFAULT_MAX_FRAMES_PER_UPDATE, frameScheduler.update(period + SECOND_NANOS));
+        assertEquals(due - FrameScheduler.DEFAULT_MAX_FRAMES_PER_UPDATE, frameScheduler.getDroppedFrames());
+        //Carries on at the frame rate rather than catching up
+        assertEquals(1, frameScheduler.update(2 * period + SECOND_NANOS));
+    }
+
+    @Test
+    public void runsAMultipleOfTheFrameRateWhenFastForwarding() {
+        frameScheduler.setSpeed(3);
+        frameScheduler.reset(0);
+        for (int i = 1; i <= 60; i++) {
+            assertEquals(3, frameScheduler.update(i * period));
+        }
+        frameScheduler.setSpeed(FrameScheduler.UNCAPPED);
+        assertEquals(0, frameScheduler.update(SECOND_NANOS));
+    }
+}
@@ -0,0 +1,111 @@
+package com.gradualgames.ggvm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RewindBufferTest {
+
+    private static final int STATE_SIZE = 512;
+
+    private Random random = new Random(1);
+
+    private Snapshot snapshot = new Snapshot();
+
+    /**
+     * @return A state which differs from the last in a few bytes, or now and then in
+     * most of them, so that its delta is no smaller than the state.
+     */
+    private byte[] nextState(byte[] last, int index) {
+        byte[] state = Arrays.copyOf(last, STATE_SIZE);
+        if (index % 37 == 36) {
+            random.nextBytes(state);
+        } else {
+            state[index % STATE_SIZE] ^= 0x5a;
+            state[(index * 7 + 100) % STATE_SIZE]++;
+            state[STATE_SIZE - 1] = (byte) index;
+        }
+        return state;
+    }
+
+    private void record(RewindBuffer rewindBuffer, byte[] state) throws Exception {
+        snapshot.write().write(state);
+        rewindBuffer.record(snapshot);
+    }
+
+    private byte[] stepBack(RewindBuffer rewindBuffer) {
+        assertTrue(rewindBuffer.stepBack(snapshot));
+        return Arrays.copyOf(snapshot.getData(), snapshot.getSize());
+    }
+
+    @Test
+    public void restoresEveryStateKeptAfterTheBufferWraps() throws Exception {
+        RewindBuffer rewindBuffer = new RewindBuffer(8 * 1024, 1000, STATE_SIZE, FrameScheduler.NTSC_FRAME_RATE, 1, 10);
+        List<byte[]> states = new ArrayList<byte[]>();
+        byte[] state = new byte[STATE_SIZE];
+        for (int i = 0; i < 300; i++) {
+            state = nextState(state, i);
+            states.add(state);
+            record(rewindBuffer, state);
+        }
+        int count = rewindBuffer.getStateCount();
+        assertTrue("The oldest states should have been dropped", count < states.size());
+        for (int i = 2; i <= count; i++) {
+            assertArrayEquals("State " + (states.size() - i), states.get(states.size() - i), stepBack(rewindBuffer));
+        }
+        assertFalse(rewindBuffer.stepBack(snapshot));
+        assertEquals(1, rewindBuffer.getStateCount());
+    }
+
+    @Test
+    public void recordsOnFromAStateSteppedBackTo() throws Exception {
+        RewindBuffer rewindBuffer = new RewindBuffer(64 * 1024, 1000, STATE_SIZE, FrameScheduler.NTSC_FRAME_RATE, 1, 10);
+        List<byte[]> states = new ArrayList<byte[]>();
+        byte[] state = new byte[STATE_SIZE];
+        for (int i = 0; i < 45; i++) {
+            state = nextState(state, i);
+            states.add(state);
+            record(rewindBuffer, state);
+        }
+        //Back past a keyframe, then record a different future from there
+        for (int i = 0; i < 17; i++) {
+            stepBack(rewindBuffer);
+            states.remove(states.size() - 1);
+        }
+        state = states.get(states.size() - 1);
+        for (int i = 100; i < 120; i++) {
+            state = nextState(state, i);
+            states.add(state);
+            record(rewindBuffer, state);
+        }
+        assertEquals(states.size(), rewindBuffer.getStateCount());
+        for (int i = 2; i <= states.size(); i++) {
+            assertArrayEquals("State " + (states.size() - i), states.get(states.size() - i), stepBack(rewindBuffer));
+        }
+    }
+
+    @Test
+    public void reportsTheSpanAtTheFrameRate() throws Exception {
+        RewindBuffer rewindBuffer = new RewindBuffer(64 * 1024, 1000, STATE_SIZE, 50, 2, 10);
+        byte[] state = new byte[STATE_SIZE];
+        for (int i = 0; i < 25; i++) {
+            state = nextState(state, i);
+            record(rewindBuffer, state);
+        }
+        assertEquals(1, rewindBuffer.getSeconds(), 0.001);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsAStateLargerThanItWasMadeFor() throws Exception {
+        RewindBuffer rewindBuffer = new RewindBuffer(64 * 1024, 1000, STATE_SIZE, FrameScheduler.NTSC_FRAME_RATE, 1, 10);
+        record(rewindBuffer, new byte[STATE_SIZE + 1]);
+    }
+}
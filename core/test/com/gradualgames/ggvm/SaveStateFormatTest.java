@@ -0,0 +1,212 @@
+package com.gradualgames.ggvm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SaveStateFormatTest {
+
+    private Random random = new Random(1);
+
+    /**
+     * A component saving an array of bytes, which checks that reads past the end of
+     * its section behave.
+     */
+    private static class TestComponent implements StateComponent {
+
+        private byte[] data;
+
+        TestComponent(int size) {
+            data = new byte[size];
+        }
+
+        @Override
+        public void save(OutputStream outputStream) throws IOException {
+            outputStream.write(data);
+        }
+
+        @Override
+        public void load(InputStream inputStream) throws IOException {
+            assertEquals(data.length, inputStream.read(data, 0, data.length));
+            assertEquals(0, inputStream.read(data, 0, 0));
+            assertEquals(-1, inputStream.read(data, 0, 1));
+            assertEquals(-1, inputStream.read());
+        }
+    }
+
+    /**
+     * A bus of either kind mapping nothing but the given ranges, since a CpuBus needs
+     * the whole vm.
+     */
+    private static class TestBus extends Bus {
+
+        TestBus(BusType busType, int memoryMapSize, List<ReadWriteRange> ranges) {
+            super(busType, memoryMapSize, new ReadWriteRangeWarning());
+            for (ReadWriteRange range : ranges) {
+                add(range);
+            }
+            fillNullEntries(new ReadWriteRangeWarning());
+        }
+    }
+
+    /**
+     * A vm of a cpu, frame timing and a bus of each kind, with rams at the given
+     * addresses of the cpu bus.
+     */
+    private class TestVm {
+
+        private TestComponent cpu = new TestComponent(13);
+
+        private TestComponent timing = new TestComponent(4);
+
+        private List<Ram> rams = new ArrayList<Ram>();
+
+        private SaveStateFormat saveStateFormat;
+
+        TestVm(int... cpuRamAddresses) {
+            List<ReadWriteRange> cpuRanges = new ArrayList<ReadWriteRange>();
+            for (int address : cpuRamAddresses) {
+                cpuRanges.add(ram(address, 0x800));
+            }
+            List<ReadWriteRange> ppuRanges = new ArrayList<ReadWriteRange>();
+            ppuRanges.add(ram(0x0000, 0x2000));
+            ppuRanges.add(ram(0x2000, 0x800));
+            Bus cpuBus = new TestBus(Bus.BusType.CPU, CpuBus.MEMORY_MAP_SIZE, cpuRanges);
+            Bus ppuBus = new TestBus(Bus.BusType.PPU, PpuBus.MEMORY_MAP_SIZE, ppuRanges);
+            saveStateFormat = new SaveStateFormat(cpu, timing, cpuBus, ppuBus);
+        }
+
+        private Ram ram(int address, int size) {
+            Ram ram = new Ram(address, size);
+            rams.add(ram);
+            return ram;
+        }
+
+        void randomize() {
+            random.nextBytes(cpu.data);
+            random.nextBytes(timing.data);
+            for (Ram ram : rams) {
+                for (int address = ram.lower(); address <= ram.upper(); address++) {
+                    ram.write(address, (byte) random.nextInt());
+                }
+            }
+        }
+
+        byte[] save() throws IOException {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            saveStateFormat.save(outputStream);
+            return outputStream.toByteArray();
+        }
+
+        void load(byte[] state) throws IOException {
+            saveStateFormat.load(new ByteArrayInputStream(state));
+        }
+
+        Ram getRam(int address) {
+            for (Ram ram : rams) {
+                if (ram.lower() == address) {
+                    return ram;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static byte[] contents(Ram ram) {
+        byte[] data = new byte[ram.upper() - ram.lower() + 1];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = ram.read(ram.lower() + i);
+        }
+        return data;
+    }
+
+    private static void assertSameState(TestVm expected, TestVm actual, int... cpuRamAddresses) {
+        assertArrayEquals(expected.cpu.data, actual.cpu.data);
+        assertArrayEquals(expected.timing.data, actual.timing.data);
+        for (int address : cpuRamAddresses) {
+            assertArrayEquals(contents(expected.getRam(address)), contents(actual.getRam(address)));
+        }
+        assertArrayEquals(contents(expected.getRam(0x0000)), contents(actual.getRam(0x0000)));
+    }
+
+    @Test
+    public void loadsWhatWasSavedAndStopsAfterTheEndTag() throws IOException {
+        TestVm saved = new TestVm(0x0000, 0x1000);
+        saved.randomize();
+        byte[] state = saved.save();
+        TestVm loaded = new TestVm(0x0000, 0x1000);
+        loaded.randomize();
+        InputStream inputStream = new ByteArrayInputStream(Arrays.copyOf(state, state.length + 1));
+        loaded.saveStateFormat.load(inputStream);
+        assertSameState(saved, loaded, 0x0000, 0x1000);
+        assertEquals(0, inputStream.read());
+        assertEquals(-1, inputStream.read());
+        assertArrayEquals(state, loaded.save());
+    }
+
+    @Test
+    public void skipsSectionsWithUnknownTags() throws IOException {
+        TestVm saved = new TestVm(0x0000);
+        saved.randomize();
+        byte[] state = saved.save();
+        //A section from a later release, between the header and the cpu registers
+        byte[] unknownSection = { 'N', 'E', 'W', ' ', 0, 0, 0, 3, 1, 2, 3 };
+        byte[] withUnknownSection = new byte[state.length + unknownSection.length];
+        System.arraycopy(state, 0, withUnknownSection, 0, 8);
+        System.arraycopy(unknownSection, 0, withUnknownSection, 8, unknownSection.length);
+        System.arraycopy(state, 8, withUnknownSection, 8 + unknownSection.length, state.length - 8);
+        TestVm loaded = new TestVm(0x0000);
+        loaded.load(withUnknownSection);
+        assertSameState(saved, loaded, 0x0000);
+    }
+
+    @Test
+    public void skipsSectionsOfRemovedComponentsAndKeepsStateOfNewOnes() throws IOException {
+        TestVm saved = new TestVm(0x0000, 0x1000);
+        saved.randomize();
+        TestVm loaded = new TestVm(0x0000, 0x1800);
+        loaded.randomize();
+        byte[] newRam = contents(loaded.getRam(0x1800));
+        loaded.load(saved.save());
+        assertSameState(saved, loaded, 0x0000);
+        assertArrayEquals(newRam, contents(loaded.getRam(0x1800)));
+    }
+
+    @Test
+    public void loadsNothingFromAStateWhichEndsEarly() throws IOException {
+        TestVm saved = new TestVm(0x0000, 0x1000);
+        saved.randomize();
+        byte[] state = saved.save();
+        TestVm loaded = new TestVm(0x0000, 0x1000);
+        loaded.randomize();
+        byte[] before = loaded.save();
+        try {
+            //Ends within the last section, after every other section
+            loaded.load(Arrays.copyOf(state, state.length - 10));
+            fail();
+        } catch (EOFException expected) {
+        }
+        assertArrayEquals(before, loaded.save());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsANewerVersion() throws IOException {
+        TestVm saved = new TestVm(0x0000);
+        byte[] state = saved.save();
+        state[7] = (byte) (SaveStateFormat.VERSION + 1);
+        new TestVm(0x0000).load(state);
+    }
+}
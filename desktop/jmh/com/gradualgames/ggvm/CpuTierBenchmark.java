@@ -0,0 +1,110 @@
+package com.gradualgames.ggvm;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.gradualgames.module.DushlanGameModule;
+import com.gradualgames.module.GameModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time the cpu takes to run a second of Dushlan's game logic in each
+ * tier: interpreted, through the block translator, and through the code generated
+ * ahead of time by RomTranslator, which needs the desktop build to have translated
+ * the rom. Every invocation restores the same snapshot, taken once the game has left
+ * its title screen, and then runs the same frames with the same buttons as
+ * CpuBenchmark, so every tier runs exactly the same instructions. Idle loop
+ * detection is off unless asked for, to measure raw throughput rather than how much
+ * of each frame is skipped.
+ *
+ * With the defaults, on one shared core, the second took 10.8 +- 1.6 ms interpreted,
+ * 9.3 +- 1.4 ms through the block translator and 2.8 +- 0.5 ms through the generated
+ * code (99.9% confidence intervals over three forks of ten iterations each).
+ *
+ * Run with: gradlew desktop:jmh [-PjmhArgs="..."]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(3)
+public class CpuTierBenchmark implements OnGeneratePatternTableListener {
+
+    private static final int WARMUP_FRAMES = 600;
+
+    private static final int FRAMES = 60;
+
+    @Param({ "interpreter", "blocks", "translated" })
+    public String tier;
+
+    @Param({ "false" })
+    public boolean idleLoopDetection;
+
+    private HeadlessApplication application;
+
+    private GGVm ggvm;
+
+    private Snapshot snapshot = new Snapshot();
+
+    @Setup
+    public void setUp() {
+        application = new HeadlessApplication(new ApplicationAdapter() { }, new HeadlessApplicationConfiguration());
+        GameModule gameModule = new DushlanGameModule();
+        byte[] bytes = Gdx.files.internal(gameModule.provideFileName()).readBytes();
+        ggvm = new GGVm(gameModule.provideCartridge(bytes), gameModule.provideNmiSafeFunctor(), this);
+        ggvm.setBlockTranslationEnabled(!tier.equals("interpreter"));
+        ggvm.setTranslatedRomEnabled(tier.equals("translated"));
+        ggvm.setIdleLoopDetectionEnabled(idleLoopDetection);
+        ggvm.start();
+        for (int frame = 0; frame < WARMUP_FRAMES; frame++) {
+            runFrame(frame);
+        }
+        ggvm.saveSnapshot(snapshot);
+    }
+
+    @TearDown
+    public void tearDown() {
+        application.exit();
+    }
+
+    @Benchmark
+    public int runSecond() {
+        ggvm.loadSnapshot(snapshot);
+        for (int frame = WARMUP_FRAMES; frame < WARMUP_FRAMES + FRAMES; frame++) {
+            runFrame(frame);
+        }
+        return ggvm.getA();
+    }
+
+    private void runFrame(int frame) {
+        ggvm.setStartButtonState(frame % 240 >= 100 && frame % 240 < 106);
+        ggvm.setRightButtonState(frame % 480 >= 240);
+        ggvm.setAButtonState(frame % 32 < 4);
+        ggvm.runFrame();
+    }
+
+    @Override
+    public void onGeneratePatternTable() {
+
+    }
+
+    @Override
+    public void onGeneratePattern(int address) {
+
+    }
+}
@@ -0,0 +1,127 @@
+package com.gradualgames.ggvm;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.lwjgl3.Lwjgl3Application;
+import com.badlogic.gdx.backends.lwjgl3.Lwjgl3ApplicationConfiguration;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.gradualgames.manager.rastereffect.RasterEffectManager;
+import com.gradualgames.manager.render.PatternTableManager;
+import com.gradualgames.manager.render.RenderManager;
+import com.gradualgames.module.DushlanGameModule;
+import com.gradualgames.module.GameModule;
+
+/**
+ * Runs a game module's rom and draws every frame both ways RenderManager can
+ * composite sprites and the nametable, see RenderManager.setSinglePassCompositing,
+ * comparing the main framebuffer of each pixel for pixel. Input is scripted the same
+ * way as in CpuBenchmark, so the game leaves its title screen.
+ *
+ * It needs an OpenGL context but no gpu: on Linux, run it with
+ * LIBGL_ALWAYS_SOFTWARE=1 to use Mesa's llvmpipe, under xvfb-run if there is no
+ * display. The process exits with status 1 if any frame differs.
+ *
+ * Usage: CompositingComparison [frames]
+ */
+public class CompositingComparison extends ApplicationAdapter implements OnGeneratePatternTableListener {
+
+    private static final int DEFAULT_FRAMES = 3000;
+
+    private static final int LOGGED_FRAMES = 10;
+
+    private GameModule gameModule;
+
+    private int frames;
+
+    private GGVm ggvm;
+
+    private PatternTableManager patternTableManager;
+
+    private RenderManager renderManager;
+
+    private SpriteBatch spriteBatch;
+
+    private int frame;
+
+    private int differingFrames;
+
+    private static int exitStatus;
+
+    public CompositingComparison(GameModule gameModule, int frames) {
+        this.gameModule = gameModule;
+        this.frames = frames;
+    }
+
+    public static void main(String[] arg) {
+        int frames = arg.length > 0 ? Integer.parseInt(arg[0]) : DEFAULT_FRAMES;
+        Lwjgl3ApplicationConfiguration config = new Lwjgl3ApplicationConfiguration();
+        config.setWindowedMode(256, 240);
+        config.setInitialVisible(false);
+        config.useVsync(false);
+        config.setForegroundFPS(0);
+        new Lwjgl3Application(new CompositingComparison(new DushlanGameModule(), frames), config);
+        System.exit(exitStatus);
+    }
+
+    @Override
+    public void create() {
+        byte[] bytes = Gdx.files.internal(gameModule.provideFileName()).readBytes();
+        ggvm = new GGVm(gameModule.provideCartridge(bytes), gameModule.provideNmiSafeFunctor(), this);
+        RasterEffectManager rasterEffectManager = gameModule.provideRasterEffectManager(ggvm);
+        patternTableManager = gameModule.providePatternTableManager(ggvm);
+        renderManager = gameModule.provideRenderManager(ggvm, patternTableManager, rasterEffectManager);
+        renderManager.resize(256, 240);
+        spriteBatch = new SpriteBatch();
+        patternTableManager.onGeneratePatternTable();
+        ggvm.start();
+    }
+
+    @Override
+    public void render() {
+        ggvm.acquireFrameState();
+        patternTableManager.updateDirtyPatterns();
+        renderManager.setSinglePassCompositing(false);
+        renderManager.render(spriteBatch);
+        byte[] expected = renderManager.readMainFrameBuffer();
+        renderManager.setSinglePassCompositing(true);
+        renderManager.render(spriteBatch);
+        byte[] actual = renderManager.readMainFrameBuffer();
+
+        int differingPixels = 0;
+        for (int i = 0; i < expected.length; i += 4) {
+            if (expected[i] != actual[i] || expected[i + 1] != actual[i + 1] ||
+                    expected[i + 2] != actual[i + 2] || expected[i + 3] != actual[i + 3]) {
+                differingPixels++;
+            }
+        }
+        if (differingPixels > 0) {
+            if (differingFrames < LOGGED_FRAMES) {
+                Gdx.app.log(getClass().getSimpleName(), "Frame " + frame + ": " + differingPixels + " pixels differ.");
+            }
+            differingFrames++;
+        }
+
+        ggvm.setStartButtonState(frame % 240 >= 100 && frame % 240 < 106);
+        ggvm.setRightButtonState(frame % 480 >= 240);
+        ggvm.setAButtonState(frame % 32 < 4);
+        ggvm.runFrame();
+        frame++;
+
+        if (frame == frames) {
+            Gdx.app.log(getClass().getSimpleName(), gameModule.provideTitle() + ": " + frames + " frames, " +
+                    differingFrames + " of them differ.");
+            exitStatus = differingFrames == 0 ? 0 : 1;
+            Gdx.app.exit();
+        }
+    }
+
+    @Override
+    public void onGeneratePatternTable() {
+        patternTableManager.onGeneratePatternTable();
+    }
+
+    @Override
+    public void onGeneratePattern(int address) {
+        patternTableManager.onGeneratePattern(address);
+    }
+}
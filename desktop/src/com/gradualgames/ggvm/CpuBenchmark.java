@@ -0,0 +1,108 @@
+package com.gradualgames.ggvm;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.gradualgames.module.DushlanGameModule;
+import com.gradualgames.module.GameModule;
+
+/**
+ * Runs a game module's rom without rendering or sound and reports how many
+ * instructions per second the cpu executes. Each frame does the same cpu work
+ * as GGVmApplication.render: an nmi followed by advancing the cpu. The start
+ * button is pressed periodically and the dpad is held for a while so that the
+ * game leaves its title screen and runs game logic rather than idling.
+ *
+ * Usage: CpuBenchmark [warmupFrames] [frames] [interpreter|blocks]
+ *
+ * Passing "interpreter" turns off the block translator, and passing "blocks" turns
+ * off the code generated ahead of time by RomTranslator, for comparison.
+ *
+ * The interpreter is measured the same way on the cpu it replaced, a single switch
+ * too large for the JIT to compile, by running an nmi and 9000 calls to
+ * Cpu.execute per frame with the inputs below. With the defaults on Dushlan, five
+ * runs each on one JVM gave 5.7M - 7.0M instructions per second for the switch and
+ * 51.0M - 68.5M for the dispatch over small op methods which replaced it.
+ */
+public class CpuBenchmark extends ApplicationAdapter implements OnGeneratePatternTableListener {
+
+    private static final int DEFAULT_WARMUP_FRAMES = 600;
+
+    private static final int DEFAULT_FRAMES = 3000;
+
+    private static final int INSTRUCTIONS_PER_FRAME = 9000;
+
+    private GameModule gameModule;
+
+    private int warmupFrames;
+
+    private int frames;
+
+    private boolean blockTranslationEnabled;
+
+    private boolean translatedRomEnabled;
+
+    private GGVm ggvm;
+
+    private int frame;
+
+    public CpuBenchmark(GameModule gameModule, int warmupFrames, int frames, boolean blockTranslationEnabled, boolean translatedRomEnabled) {
+        this.gameModule = gameModule;
+        this.warmupFrames = warmupFrames;
+        this.frames = frames;
+        this.blockTranslationEnabled = blockTranslationEnabled;
+        this.translatedRomEnabled = translatedRomEnabled;
+    }
+
+    public static void main(String[] arg) {
+        int warmupFrames = arg.length > 0 ? Integer.parseInt(arg[0]) : DEFAULT_WARMUP_FRAMES;
+        int frames = arg.length > 1 ? Integer.parseInt(arg[1]) : DEFAULT_FRAMES;
+        String mode = arg.length > 2 ? arg[2] : "";
+        boolean blockTranslationEnabled = !mode.equals("interpreter");
+        boolean translatedRomEnabled = blockTranslationEnabled && !mode.equals("blocks");
+        new HeadlessApplication(new CpuBenchmark(new DushlanGameModule(), warmupFrames, frames, blockTranslationEnabled, translatedRomEnabled),
+                new HeadlessApplicationConfiguration());
+    }
+
+    @Override
+    public void create() {
+        byte[] bytes = Gdx.files.internal(gameModule.provideFileName()).readBytes();
+        ggvm = new GGVm(gameModule.provideCartridge(bytes), gameModule.provideNmiSafeFunctor(), this);
+        ggvm.setBlockTranslationEnabled(blockTranslationEnabled);
+        ggvm.setTranslatedRomEnabled(translatedRomEnabled);
+        //Measure raw throughput, rather than how much of each frame is skipped
+        ggvm.setIdleLoopDetectionEnabled(false);
+        ggvm.start();
+
+        runFrames(warmupFrames);
+        ggvm.start();
+        runFrames(frames);
+
+        Gdx.app.log(getClass().getSimpleName(), gameModule.provideTitle() + ": " + frames + " frames, " +
+                (translatedRomEnabled ? "translated rom, " : blockTranslationEnabled ? "block translator, " : "interpreter, ") +
+                ggvm.instructionsPerSecond() + " instructions per second.");
+        Gdx.app.exit();
+    }
+
+    private void runFrames(int count) {
+        for (int i = 0; i < count; i++) {
+            ggvm.setStartButtonState(frame % 240 >= 100 && frame % 240 < 106);
+            ggvm.setRightButtonState(frame % 480 >= 240);
+            ggvm.setAButtonState(frame % 32 < 4);
+            ggvm.nmi();
+            ggvm.advance(INSTRUCTIONS_PER_FRAME);
+            frame++;
+        }
+    }
+
+    @Override
+    public void onGeneratePatternTable() {
+
+    }
+
+    @Override
+    public void onGeneratePattern(int address) {
+
+    }
+}